@@ -0,0 +1,202 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/** This class is responsible for building wire-format DNS packets shaped like real captured traffic:
+ * client queries, root referrals with compressed NS names and glue, and authoritative answers. */
+final class BenchPackets {
+
+    final static int FLAGS_QUERY_RD = 0x0100;
+    final static int FLAGS_RESPONSE = 0x8000;
+    final static int FLAGS_RESPONSE_AA = 0x8400;
+
+    private BenchPackets() {
+    }
+
+    /** This class is responsible for writing a packet and compressing the names in it */
+    static class Writer {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
+        DataOutputStream dos = new DataOutputStream(baos);
+        Map<String, Integer> names = new HashMap<>();
+
+        void header(int id, int flags, int qd, int an, int ns, int ar) throws IOException {
+            dos.writeShort(id);
+            dos.writeShort(flags);
+            dos.writeShort(qd);
+            dos.writeShort(an);
+            dos.writeShort(ns);
+            dos.writeShort(ar);
+        }
+
+        /** Writes a name, replacing the longest suffix already written by a pointer */
+        void name(String name) throws IOException {
+            String rest = name.toLowerCase();
+            while(!rest.isEmpty()) {
+                Integer offset = names.get(rest);
+                if(offset != null) {
+                    dos.writeShort(0xC000 | offset);
+                    return;
+                }
+                if(baos.size() < 0x3FFF)
+                    names.put(rest, baos.size());
+                int dot = rest.indexOf('.');
+                String label = dot < 0 ? rest : rest.substring(0, dot);
+                byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+                dos.writeByte(bytes.length);
+                dos.write(bytes);
+                rest = dot < 0 ? "" : rest.substring(dot + 1);
+            }
+            dos.writeByte(0);
+        }
+
+        void question(String host, int qtype) throws IOException {
+            name(host);
+            dos.writeShort(qtype);
+            dos.writeShort(1);
+        }
+
+        void a(String owner, int ttl, byte[] address) throws IOException {
+            name(owner);
+            dos.writeShort(1);
+            dos.writeShort(1);
+            dos.writeInt(ttl);
+            dos.writeShort(4);
+            dos.write(address);
+        }
+
+        void ns(String owner, int ttl, String nsName) throws IOException {
+            name(owner);
+            dos.writeShort(2);
+            dos.writeShort(1);
+            dos.writeInt(ttl);
+            // The length is patched once the (compressed) name is written
+            int lenPos = baos.size();
+            dos.writeShort(0);
+            int start = baos.size();
+            name(nsName);
+            patchShort(lenPos, baos.size() - start);
+        }
+
+        /** Writes a record whose rdata is already encoded, names uncompressed */
+        void record(String owner, int type, int ttl, byte[] rdata) throws IOException {
+            name(owner);
+            dos.writeShort(type);
+            dos.writeShort(1);
+            dos.writeInt(ttl);
+            dos.writeShort(rdata.length);
+            dos.write(rdata);
+        }
+
+        private void patchShort(int pos, int value) throws IOException {
+            dos.flush();
+            byte[] bytes = baos.toByteArray();
+            bytes[pos] = (byte) (value >> 8);
+            bytes[pos + 1] = (byte) value;
+            baos.reset();
+            baos.write(bytes);
+        }
+
+        byte[] toBytes() throws IOException {
+            dos.flush();
+            return baos.toByteArray();
+        }
+    }
+
+    /** Builds a recursive client query.
+     * @param id Query ID.
+     * @param host Queried host.
+     * @param qtype Query type.
+     * @return the packet */
+    static byte[] query(int id, String host, int qtype) throws IOException {
+        Writer w = new Writer();
+        w.header(id, FLAGS_QUERY_RD, 1, 0, 0, 0);
+        w.question(host, qtype);
+        return w.toBytes();
+    }
+
+    /** Builds an authoritative answer with A records.
+     * @param id Query ID.
+     * @param host Queried host.
+     * @param ttl TTL of the records.
+     * @param addresses IPv4 addresses to answer with.
+     * @return the packet */
+    static byte[] answer(int id, String host, int ttl, byte[][] addresses) throws IOException {
+        Writer w = new Writer();
+        w.header(id, FLAGS_RESPONSE_AA, 1, addresses.length, 0, 0);
+        w.question(host, 1);
+        for(byte[] addr : addresses)
+            w.a(host, ttl, addr);
+        return w.toBytes();
+    }
+
+    /** Builds an authoritative answer the way most authoritative servers send it, with the zone's
+     * name servers in the authority section and their addresses in the additional section.
+     * @param id Query ID.
+     * @param host Queried host.
+     * @param zone The zone of host.
+     * @param addresses IPv4 addresses to answer with.
+     * @param nsNames Name servers of the zone.
+     * @param glue IPv4 address of each name server.
+     * @return the packet */
+    static byte[] answerWithReferral(int id, String host, String zone, byte[][] addresses, String[] nsNames,
+                                     byte[][] glue) throws IOException {
+        Writer w = new Writer();
+        w.header(id, FLAGS_RESPONSE_AA, 1, addresses.length, nsNames.length, glue.length);
+        w.question(host, 1);
+        for(byte[] addr : addresses)
+            w.a(host, 300, addr);
+        for(String ns : nsNames)
+            w.ns(zone, 172800, ns);
+        for(int i = 0; i < glue.length; i++)
+            w.a(nsNames[i], 172800, glue[i]);
+        return w.toBytes();
+    }
+
+    /** Builds an error response without records, e.g. NXDOMAIN.
+     * @param id Query ID.
+     * @param host Queried host.
+     * @param rcode R-code of the response.
+     * @return the packet */
+    static byte[] error(int id, String host, int rcode) throws IOException {
+        Writer w = new Writer();
+        w.header(id, FLAGS_RESPONSE_AA | rcode, 1, 0, 0, 0);
+        w.question(host, 1);
+        return w.toBytes();
+    }
+
+    /** Builds a referral to the servers of a zone, with glue in the additional section.
+     * @param id Query ID.
+     * @param host Queried host.
+     * @param zone The delegated zone, a suffix of host.
+     * @param nsNames Name servers of the zone.
+     * @param glue IPv4 address of each name server.
+     * @return the packet */
+    static byte[] referral(int id, String host, String zone, String[] nsNames, byte[][] glue) throws IOException {
+        Writer w = new Writer();
+        w.header(id, FLAGS_RESPONSE, 1, 0, nsNames.length, glue.length);
+        w.question(host, 1);
+        for(String ns : nsNames)
+            w.ns(zone, 172800, ns);
+        for(int i = 0; i < glue.length; i++)
+            w.a(nsNames[i], 172800, glue[i]);
+        return w.toBytes();
+    }
+
+    /** Builds the referral the root servers send for a .com name, as captured from a.root-servers.net.
+     * @param id Query ID.
+     * @param host Queried host.
+     * @return the packet */
+    static byte[] rootReferral(int id, String host) throws IOException {
+        String[] ns = new String[13];
+        byte[][] glue = new byte[13][];
+        for(int i = 0; i < 13; i++) {
+            ns[i] = (char) ('a' + i) + ".gtld-servers.net";
+            glue[i] = new byte[] {(byte) 192, (byte) (5 + i), 6, 30};
+        }
+        return referral(id, host, "com", ns, glue);
+    }
+}
@@ -0,0 +1,124 @@
+package il.ac.idc.cs.sinkhole;
+import java.util.concurrent.CountDownLatch;
+
+/** This class is responsible for running throughput micro-benchmarks in the spirit of JMH.
+ * Every benchmark is warmed up first and then measured over several fixed-length iterations,
+ * with the requested number of threads calling the operation in a tight loop. The result of
+ * every operation is folded into a sink so the JIT can't drop the measured code. */
+public class BenchmarkRunner {
+
+    /** A single benchmark. setup() and teardown() are called once around all the iterations */
+    static abstract class Benchmark {
+        String name;
+
+        Benchmark(String name) {
+            this.name = name;
+        }
+
+        void setup(int threads) throws Exception {
+        }
+
+        /** The measured operation.
+         * @param thread Index of the calling thread, 0 to threads-1.
+         * @return any value derived from the work done */
+        abstract long op(int thread) throws Exception;
+
+        void teardown() throws Exception {
+        }
+    }
+
+    private int warmupIterations;
+    private int measureIterations;
+    private long iterationMillis;
+    private volatile boolean stop;
+    private volatile long sink;
+
+    /** Class constructor.
+     * @param warmupIterations Number of iterations whose results are thrown away.
+     * @param measureIterations Number of measured iterations.
+     * @param iterationMillis Length of a single iteration.
+     */
+    BenchmarkRunner(int warmupIterations, int measureIterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measureIterations = measureIterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    /** Runs a benchmark and prints its throughput.
+     * @param b The benchmark.
+     * @param threads Number of threads calling the operation concurrently.
+     */
+    void run(Benchmark b, int threads) throws Exception {
+        b.setup(threads);
+        try {
+            for(int i = 0; i < warmupIterations; i++)
+                iteration(b, threads);
+            double[] results = new double[measureIterations];
+            double mean = 0;
+            for(int i = 0; i < measureIterations; i++) {
+                results[i] = iteration(b, threads);
+                mean += results[i];
+            }
+            mean /= measureIterations;
+            double var = 0;
+            for(double r : results)
+                var += (r - mean) * (r - mean);
+            double stddev = measureIterations > 1 ? Math.sqrt(var / (measureIterations - 1)) : 0;
+            double nsPerOp = mean > 0 ? 1e9 * threads / mean : 0;
+            System.out.println(String.format("%-32s threads=%-3d %14.0f ops/s  +- %10.0f  %10.1f ns/op",
+                                             b.name, threads, mean, stddev, nsPerOp));
+        }
+        finally {
+            b.teardown();
+        }
+    }
+
+    /** Runs a single iteration.
+     * @return operations per second over all the threads */
+    private double iteration(final Benchmark b, int threads) throws Exception {
+        final long[] counts = new long[threads * 8];
+        final Exception[] failure = new Exception[1];
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        stop = false;
+        for(int t = 0; t < threads; t++) {
+            final int index = t;
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    long n = 0;
+                    long acc = 0;
+                    ready.countDown();
+                    try {
+                        go.await();
+                        while(!stop) {
+                            acc += b.op(index);
+                            n++;
+                        }
+                    }
+                    catch (Exception ex) {
+                        failure[0] = ex;
+                    }
+                    // Counts are padded apart so the threads don't share a cache line
+                    counts[index * 8] = n;
+                    sink += acc;
+                }
+            }, "bench-" + t);
+            workers[t].start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        Thread.sleep(iterationMillis);
+        stop = true;
+        for(Thread w : workers)
+            w.join();
+        long elapsed = System.nanoTime() - start;
+        if(failure[0] != null)
+            throw failure[0];
+        long total = 0;
+        for(int t = 0; t < threads; t++)
+            total += counts[t * 8];
+        return total * 1e9 / elapsed;
+    }
+}
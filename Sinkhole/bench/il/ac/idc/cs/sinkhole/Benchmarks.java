@@ -0,0 +1,552 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/** This class is responsible for the benchmark suite of the sinkhole.
+ *
+ * The numbers to compare are the JMH runs of SinkholeBenchmark. This runner is the quick check,
+ * built with the benchmarks and run from the Sinkhole directory, without network access:
+ *   mvn -f bench/pom.xml package
+ *   java -cp bench/target/benchmarks.jar il.ac.idc.cs.sinkhole.Benchmarks [name-prefix ...]
+ *
+ * Settings (java properties): bench.threads (comma separated list, default 1,4),
+ * bench.warmup, bench.iterations, bench.millis, bench.blocklist.sizes (default 1000000,
+ * add 10000000 with a large heap), bench.workers for the end-to-end benchmarks and
+ * bench.cache.segments for the cache benchmarks, bench.patterns (default 100,1000) for the number
+ * of pattern rules.
+ *
+ * The cache.* benchmarks show how the answer cache scales with cores, e.g.
+ *   java -Dbench.threads=1,2,4,8,16,32,64 -cp bench/target/benchmarks.jar il.ac.idc.cs.sinkhole.Benchmarks cache.
+ * The "single" variants put the whole cache behind one segment as the contended baseline.
+ *
+ * dnssec.validate.cold validates every answer with a new validator, walking the whole chain of
+ * trust (root, TLD and zone keys), dnssec.validate.warm with one validator whose key sets and
+ * signature checks are cached: the cost a zone pays once against the cost of every answer. */
+public class Benchmarks {
+
+    final private static int NAME_POOL = 4096;
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner runner = new BenchmarkRunner(
+                Integer.getInteger("bench.warmup", 3),
+                Integer.getInteger("bench.iterations", 5),
+                Long.getLong("bench.millis", 1000L));
+        int[] threads = parseInts(System.getProperty("bench.threads", "1,4"));
+
+        List<BenchmarkRunner.Benchmark> all = all(parseInts(System.getProperty("bench.blocklist.sizes", "1000000")),
+                                                  parseInts(System.getProperty("bench.patterns", "100,1000")));
+        for(BenchmarkRunner.Benchmark b : all) {
+            if(!selected(b.name, args))
+                continue;
+            for(int t : threads)
+                runner.run(b, t);
+        }
+    }
+
+    /** Builds every benchmark of the suite. Nothing is set up until the benchmark runs.
+     * @param blockListSizes Sizes of the blocklist benchmarks.
+     * @param patternRules Numbers of rules of the pattern benchmarks.
+     * @return the benchmarks */
+    static List<BenchmarkRunner.Benchmark> all(int[] blockListSizes, int[] patternRules) throws IOException {
+        List<BenchmarkRunner.Benchmark> all = new ArrayList<>();
+        all.add(parser("parser.query", BenchPackets.query(0x1234, "www.example.com", 1)));
+        all.add(parser("parser.referral", BenchPackets.rootReferral(0x1234, "www.example.com")));
+        all.add(parser("parser.answer", BenchPackets.answer(0x1234, "www.example.com", 300, new byte[][] {
+                {93, (byte) 184, (byte) 216, 34}, {93, (byte) 184, (byte) 216, 35},
+                {93, (byte) 184, (byte) 216, 36}, {93, (byte) 184, (byte) 216, 37}})));
+        for(int size : blockListSizes) {
+            all.add(blockList("blocklist.hit." + size, size, true));
+            all.add(blockList("blocklist.miss." + size, size, false));
+            all.add(blockListPolicies("blocklist.policy.8lists." + size, size, 8));
+        }
+        for(int rules : patternRules) {
+            all.add(patterns("patterns.dfa." + rules, rules, false));
+            all.add(patterns("patterns.regex." + rules, rules, true));
+        }
+        all.add(queue());
+        all.add(buildFrame());
+        all.add(reply("reply.forward", false));
+        all.add(reply("reply.build", true));
+        all.add(dnssec("dnssec.validate.cold", true));
+        all.add(dnssec("dnssec.validate.warm", false));
+        int segments = Integer.getInteger("bench.cache.segments", 4 * Runtime.getRuntime().availableProcessors());
+        for(String store : new String[] {"heap", "offheap"}) {
+            for(int writePercent : new int[] {0, 10}) {
+                String mix = writePercent == 0 ? ".hit" : ".mixed";
+                all.add(cache("cache." + store + mix, store.equals("offheap"), segments, writePercent));
+                all.add(cache("cache." + store + ".single" + mix, store.equals("offheap"), 1, writePercent));
+            }
+        }
+        all.add(endToEnd("e2e.resolve", false, false, 1));
+        all.add(endToEnd("e2e.cached", false, true, 1));
+        all.add(endToEnd("e2e.blocked", true, false, 1));
+        all.add(endToEnd("e2e.cached.batch", false, true, 32));
+        all.add(endToEnd("e2e.blocked.batch", true, false, 32));
+        return all;
+    }
+
+    private static boolean selected(String name, String[] prefixes) {
+        if(prefixes.length == 0)
+            return true;
+        for(String p : prefixes) {
+            if(name.startsWith(p))
+                return true;
+        }
+        return false;
+    }
+
+    private static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for(int i = 0; i < parts.length; i++)
+            values[i] = Integer.parseInt(parts[i].trim());
+        return values;
+    }
+
+    /** Names used by the blocklist and end-to-end benchmarks */
+    private static String hostName(int i) {
+        return "host" + i + ".zone" + (i % 1000) + ".example";
+    }
+
+    /** DNSParser.parseDNS over a captured packet */
+    static BenchmarkRunner.Benchmark parser(String name, final byte[] packet) {
+        return new BenchmarkRunner.Benchmark(name) {
+            long op(int thread) {
+                DNSParser parser = new DNSParser(new DatagramPacket(packet, packet.length));
+                parser.parseDNS();
+                return parser.getRRList().size() + parser.getQuestion().host.length();
+            }
+        };
+    }
+
+    /** DNSBlockList.isBlocked with a list of the given size */
+    static BenchmarkRunner.Benchmark blockList(String name, final int size, final boolean hits) {
+        return new BenchmarkRunner.Benchmark(name) {
+            DNSBlockList list;
+            String[] probes;
+            int[] cursor;
+
+            void setup(int threads) throws IOException {
+                File file = File.createTempFile("blocklist", ".txt");
+                file.deleteOnExit();
+                try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
+                    for(int i = 0; i < size; i++) {
+                        bw.write(hostName(i));
+                        bw.newLine();
+                    }
+                }
+                list = new DNSBlockList(file.getPath());
+                file.delete();
+                probes = new String[NAME_POOL];
+                for(int i = 0; i < NAME_POOL; i++) {
+                    int n = (int) ((i * 2654435761L) % size);
+                    probes[i] = hits ? hostName(n) : hostName(n) + ".miss";
+                }
+                cursor = new int[threads * 16];
+            }
+
+            long op(int thread) {
+                int i = cursor[thread * 16]++;
+                return list.isBlocked(probes[i & (NAME_POOL - 1)]) ? 1 : 0;
+            }
+
+            void teardown() {
+                list = null;
+            }
+        };
+    }
+
+    /** DNSBlockList.check with the names spread over several category lists, three client
+     * policies and half of the probes missing */
+    static BenchmarkRunner.Benchmark blockListPolicies(String name, final int size, final int lists) {
+        return new BenchmarkRunner.Benchmark(name) {
+            DNSBlockList list;
+            String[] probes;
+            InetAddress[] clients;
+            int[] cursor;
+
+            void setup(int threads) throws IOException {
+                StringBuilder sources = new StringBuilder();
+                for(int c = 0; c < lists; c++) {
+                    File file = File.createTempFile("blocklist", ".txt");
+                    file.deleteOnExit();
+                    try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
+                        for(int i = c; i < size; i += lists) {
+                            bw.write(i % 16 == 0 ? "*." + hostName(i) : hostName(i));
+                            bw.newLine();
+                        }
+                    }
+                    sources.append(c == 0 ? "" : ",").append("list").append(c).append('=').append(file.getPath());
+                }
+                Properties props = new Properties();
+                props.setProperty("sinkhole.blocklists", sources.toString());
+                props.setProperty("sinkhole.policies", "strict,relaxed");
+                props.setProperty("sinkhole.policy.strict.clients", "10.1.0.0/16");
+                props.setProperty("sinkhole.policy.strict.action", "nxdomain");
+                props.setProperty("sinkhole.policy.relaxed.categories", "list0,list1");
+                props.setProperty("sinkhole.policy.relaxed.clients", "10.2.0.0/16,2001:db8::/32");
+                list = DNSBlockList.fromConfig(new SinkholeConfig(props), null);
+                probes = new String[NAME_POOL];
+                for(int i = 0; i < NAME_POOL; i++) {
+                    int n = (int) ((i * 2654435761L) % size);
+                    probes[i] = (i & 1) == 0 ? "www." + hostName(n) : hostName(n) + ".miss";
+                }
+                clients = new InetAddress[] {InetAddress.getByName("10.1.2.3"), InetAddress.getByName("10.2.3.4"),
+                                             InetAddress.getByName("192.0.2.1")};
+                cursor = new int[threads * 16];
+            }
+
+            long op(int thread) {
+                int i = cursor[thread * 16]++;
+                return list.check(probes[i & (NAME_POOL - 1)], clients[i % 3]);
+            }
+
+            void teardown() {
+                list = null;
+            }
+        };
+    }
+
+    /** Pattern rules in the shapes block lists use: substrings, DGA-like names and anchored regexes */
+    private static String patternRule(int i) {
+        switch(i % 4) {
+        case 0:
+            return ".*\\.track" + i + "\\..*";
+        case 1:
+            return "ads" + i + "[0-9]*\\.zone[0-9]+\\.example";
+        case 2:
+            // DGA-like names, a few lengths and many top level domains
+            return "[a-z0-9]{" + (20 + i % 8) + ",}\\.(com|net|" + (i < 64 ? "biz" : "tld" + i) + ")";
+        default:
+            return "(www\\.)?cdn" + i + "-[a-z]+\\..*";
+        }
+    }
+
+    /** Matching a name against all the pattern rules, with the compiled automaton or, as the
+     * baseline, one java.util.regex match per rule. A quarter of the probes match. */
+    static BenchmarkRunner.Benchmark patterns(String name, final int rules, final boolean regex) {
+        return new BenchmarkRunner.Benchmark(name) {
+            PatternAutomaton automaton;
+            Pattern[] compiled;
+            String[] probes;
+            int[] cursor;
+
+            void setup(int threads) throws IOException {
+                if(regex) {
+                    compiled = new Pattern[rules];
+                    for(int i = 0; i < rules; i++)
+                        compiled[i] = Pattern.compile(patternRule(i), Pattern.CASE_INSENSITIVE);
+                }
+                else {
+                    automaton = new PatternAutomaton();
+                    for(int i = 0; i < rules; i++)
+                        automaton.addRegex(patternRule(i), 1L << (i % 8));
+                    automaton.compile(1 << 20);
+                    System.out.println("  " + automaton.describe());
+                }
+                probes = new String[NAME_POOL];
+                for(int i = 0; i < NAME_POOL; i++) {
+                    int r = (i * 7) % rules;
+                    if(i % 4 != 0)
+                        probes[i] = hostName(i);
+                    else if(r % 4 == 0)
+                        probes[i] = "a.track" + r + ".example";
+                    else if(r % 4 == 1)
+                        probes[i] = "ads" + r + "12.zone7.example";
+                    else if(r % 4 == 2)
+                        probes[i] = "x1y2z3w4v5u6t7s8r9q0pabcdefgh.com";
+                    else
+                        probes[i] = "cdn" + r + "-img.example";
+                }
+                cursor = new int[threads * 16];
+            }
+
+            long op(int thread) {
+                int i = cursor[thread * 16]++;
+                String probe = probes[i & (NAME_POOL - 1)];
+                if(!regex)
+                    return automaton.match(probe);
+                long bits = 0;
+                for(int r = 0; r < compiled.length; r++) {
+                    if(compiled[r].matcher(probe).matches())
+                        bits |= 1L << (r % 8);
+                }
+                return bits;
+            }
+
+            void teardown() {
+                automaton = null;
+                compiled = null;
+            }
+        };
+    }
+
+    /** SynchronizedQueue enqueue followed by dequeue, all threads on one queue */
+    static BenchmarkRunner.Benchmark queue() {
+        return new BenchmarkRunner.Benchmark("queue.enqueue-dequeue") {
+            SynchronizedQueue<Integer> queue;
+            Integer item = 42;
+
+            void setup(int threads) {
+                queue = new SynchronizedQueue<>(threads);
+                queue.registerProducer();
+            }
+
+            long op(int thread) {
+                queue.enqueue(item);
+                return queue.dequeue();
+            }
+        };
+    }
+
+    /** Turning an authoritative answer into the client's reply: forwarding it after patching it
+     * through DNSParser, or writing the minimal reply with DNSResponseBuilder */
+    static BenchmarkRunner.Benchmark reply(String name, final boolean build) throws IOException {
+        final byte[] query = BenchPackets.query(0x1234, "www.example.com", 1);
+        String[] ns = new String[4];
+        byte[][] glue = new byte[4][];
+        for(int i = 0; i < 4; i++) {
+            ns[i] = "ns" + i + ".example.com";
+            glue[i] = new byte[] {(byte) 198, 51, 100, (byte) i};
+        }
+        final byte[] upstream = BenchPackets.answerWithReferral(0x4321, "www.example.com", "example.com",
+                new byte[][] {{93, (byte) 184, (byte) 216, 34}, {93, (byte) 184, (byte) 216, 35}}, ns, glue);
+        return new BenchmarkRunner.Benchmark(name) {
+            DNSResponseBuilder[] builders;
+            byte[][] copies;
+
+            void setup(int threads) {
+                builders = new DNSResponseBuilder[threads];
+                copies = new byte[threads][];
+                for(int i = 0; i < threads; i++) {
+                    builders[i] = new DNSResponseBuilder(DNSResponseBuilder.MAX_UDP_REPLY);
+                    copies[i] = upstream.clone();
+                }
+                if(build)
+                    System.out.println("  reply of " + builders[0].build(query, query.length, upstream, upstream.length, false)
+                                       + " bytes instead of " + upstream.length);
+            }
+
+            long op(int thread) {
+                if(build)
+                    return builders[thread].build(query, query.length, upstream, upstream.length, false);
+                DNSParser parser = new DNSParser(new DatagramPacket(copies[thread], copies[thread].length));
+                parser.parseDNS();
+                parser.setID((short) 0x1234);
+                parser.getFlags().setQR(true);
+                parser.getFlags().setRD(true);
+                parser.getFlags().setRA(true);
+                parser.getFlags().setAA(false);
+                return parser.getUpdatedPacket((short) 0).getLength();
+            }
+        };
+    }
+
+    /** DNSSECValidator.validate of signed answers from the signed StubHierarchy, its responses
+     * served from memory */
+    static BenchmarkRunner.Benchmark dnssec(String name, final boolean cold) {
+        return new BenchmarkRunner.Benchmark(name) {
+            StubHierarchy hierarchy;
+            DNSSECValidator.Upstream upstream;
+            List<byte[]> anchors;
+            DNSSECValidator shared;
+            byte[][] answers;
+            String[] zones;
+            int[] cursor;
+
+            void setup(int threads) throws Exception {
+                hierarchy = new StubHierarchy(0, 0, true);
+                anchors = DNSSECValidator.parseTrustAnchors(hierarchy.getTrustAnchor());
+                final Map<String, DatagramPacket> responses = new ConcurrentHashMap<>();
+                upstream = new DNSSECValidator.Upstream() {
+                    public DatagramPacket query(String qname, int qtype, String zone) throws IOException {
+                        String key = qname + "/" + qtype + "/" + zone;
+                        DatagramPacket p = responses.get(key);
+                        if(p == null) {
+                            StubHierarchy.Role role = StubHierarchy.Role.values()[Math.min(DNSSECValidator.labelCount(zone), 2)];
+                            byte[] r = hierarchy.signedAnswer(role, 1, qname, qtype);
+                            p = new DatagramPacket(r, r.length);
+                            responses.put(key, p);
+                        }
+                        return p;
+                    }
+                };
+                shared = new DNSSECValidator(anchors, new DNSMetrics(), 100000, 86400);
+                answers = new byte[NAME_POOL][];
+                zones = new String[NAME_POOL];
+                for(int i = 0; i < NAME_POOL; i++) {
+                    String host = hostName(i);
+                    zones[i] = host.substring(host.indexOf('.') + 1);
+                    answers[i] = hierarchy.signedAnswer(StubHierarchy.Role.AUTHORITATIVE, i, host, 1);
+                    if(shared.validate(answers[i], answers[i].length, zones[i], upstream) != DNSSECValidator.SECURE)
+                        throw new IllegalStateException(host + " does not validate");
+                }
+                cursor = new int[threads * 16];
+            }
+
+            long op(int thread) throws IOException {
+                int i = cursor[thread * 16]++ & (NAME_POOL - 1);
+                DNSSECValidator validator = cold ? new DNSSECValidator(anchors, new DNSMetrics(), 16, 86400) : shared;
+                return validator.validate(answers[i], answers[i].length, zones[i], upstream);
+            }
+
+            void teardown() {
+                hierarchy.close();
+            }
+        };
+    }
+
+    /** DNSResolver.buildDNSFrame for a typical name */
+    static BenchmarkRunner.Benchmark buildFrame() throws IOException {
+        byte[] packet = BenchPackets.query(1, "www.example.com", 1);
+        DNSParser parser = new DNSParser(new DatagramPacket(packet, packet.length));
+        parser.parseDNS();
+        final DNSParser.Query query = parser.getQuestion();
+        return new BenchmarkRunner.Benchmark("resolver.buildDNSFrame") {
+            DNSResolver[] resolvers;
+
+            void setup(int threads) {
+                resolvers = new DNSResolver[threads];
+                for(int i = 0; i < threads; i++)
+                    resolvers[i] = new DNSResolver(null, null, null, null, null, new SinkholeConfig(new Properties()), null, null, null);
+            }
+
+            long op(int thread) throws IOException {
+                return resolvers[thread].buildDNSFrame(query).length;
+            }
+        };
+    }
+
+    /** Cache lookups of a pool of hot names from every thread, with a share of them replaced by
+     * writes of fresh responses to the same names */
+    static BenchmarkRunner.Benchmark cache(String name, final boolean offHeap, final int segments,
+                                           final int writePercent) {
+        return new BenchmarkRunner.Benchmark(name) {
+            DNSCache cache;
+            String[] names;
+            byte[][] responses;
+            byte[][] buffers;
+            int[] cursor;
+
+            void setup(int threads) throws IOException {
+                AnswerStore store = offHeap ? new OffHeapAnswerStore(segments, 64L * 1024 * 1024)
+                                            : new HeapAnswerStore(NAME_POOL * 2, segments);
+                cache = new DNSCache(store, NAME_POOL * 2, 86400, 60);
+                names = new String[NAME_POOL];
+                responses = new byte[NAME_POOL][];
+                for(int i = 0; i < NAME_POOL; i++) {
+                    names[i] = hostName(i);
+                    responses[i] = BenchPackets.answer(i, names[i], 300, new byte[][] {{10, 0, (byte) (i >> 8), (byte) i}});
+                    cache.putAnswer(names[i], 1, responses[i], responses[i].length);
+                }
+                buffers = new byte[threads][1024];
+                cursor = new int[threads * 16];
+            }
+
+            long op(int thread) {
+                // Every thread walks the pool with its own stride so the threads hit different names
+                int c = cursor[thread * 16]++;
+                int i = (c * (2 * thread + 1)) & (NAME_POOL - 1);
+                if(writePercent > 0 && c % 100 < writePercent) {
+                    cache.putAnswer(names[i], 1, responses[i], responses[i].length);
+                    return 1;
+                }
+                return cache.getAnswer(names[i], 1, buffers[thread]);
+            }
+        };
+    }
+
+    /** A closed-loop client per thread sending queries through a SinkholeServer to a local stub,
+     * with batched I/O if ioBatch is more than 1 */
+    static BenchmarkRunner.Benchmark endToEnd(String name, final boolean blocked, final boolean cached, final int ioBatch) {
+        return new BenchmarkRunner.Benchmark(name) {
+            StubAuthoritativeServer stub;
+            SinkholeServer server;
+            InetSocketAddress serverAddress;
+            DatagramSocket[] clients;
+            byte[][] queries;
+            int[] cursor;
+
+            void setup(int threads) throws Exception {
+                InetAddress loopback = InetAddress.getLoopbackAddress();
+                stub = new StubAuthoritativeServer(loopback);
+                DNSRootServer roots = new DNSRootServer(new InetAddress[] {loopback}, stub.getPort());
+
+                File file = File.createTempFile("blocklist", ".txt");
+                file.deleteOnExit();
+                try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
+                    for(int i = 0; i < NAME_POOL; i++) {
+                        bw.write(hostName(i));
+                        bw.newLine();
+                    }
+                }
+                DNSBlockList list = new DNSBlockList(blocked ? file.getPath() : null);
+                file.delete();
+
+                Properties props = new Properties();
+                props.setProperty("sinkhole.workers", System.getProperty("bench.workers", "4"));
+                props.setProperty("sinkhole.io.batch", Integer.toString(ioBatch));
+                SinkholeConfig config = new SinkholeConfig(props);
+                DNSCache cache = new DNSCache(cached ? NAME_POOL : 0, 86400, 60);
+                if(ioBatch > 1) {
+                    DatagramBatchChannel channel = new DatagramBatchChannel(new InetSocketAddress(loopback, 0), ioBatch);
+                    serverAddress = new InetSocketAddress(loopback, channel.getLocalPort());
+                    server = new SinkholeServer(config, channel, list, roots, new DNSMetrics(), null, cache);
+                }
+                else {
+                    DatagramSocket socket = new DatagramSocket(new InetSocketAddress(loopback, 0));
+                    serverAddress = new InetSocketAddress(loopback, socket.getLocalPort());
+                    server = new SinkholeServer(config, socket, list, roots, new DNSMetrics(), null, cache);
+                }
+                Thread receiver = new Thread(server, "sinkhole-receive");
+                receiver.setDaemon(true);
+                receiver.start();
+
+                queries = new byte[NAME_POOL][];
+                for(int i = 0; i < NAME_POOL; i++)
+                    queries[i] = BenchPackets.query(i, hostName(i), 1);
+                clients = new DatagramSocket[threads];
+                for(int i = 0; i < threads; i++) {
+                    clients[i] = new DatagramSocket();
+                    clients[i].setSoTimeout(1000);
+                }
+                cursor = new int[threads * 16];
+            }
+
+            long op(int thread) throws IOException {
+                DatagramSocket client = clients[thread];
+                byte[] query = queries[cursor[thread * 16]++ & (NAME_POOL - 1)];
+                client.send(new DatagramPacket(query, query.length, serverAddress));
+                byte[] buf = new byte[512];
+                DatagramPacket reply = new DatagramPacket(buf, buf.length);
+                try {
+                    client.receive(reply);
+                }
+                catch (SocketTimeoutException ex) {
+                    return 0;
+                }
+                return reply.getLength();
+            }
+
+            void teardown() {
+                for(DatagramSocket c : clients)
+                    c.close();
+                server.close();
+                stub.close();
+            }
+        };
+    }
+}
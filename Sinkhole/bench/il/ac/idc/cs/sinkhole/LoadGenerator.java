@@ -0,0 +1,268 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** This class is responsible for driving a sinkhole with a realistic query mix and reporting its
+ * throughput and latency percentiles.
+ *
+ * Names are drawn from a Zipf popularity distribution; a share of the queries goes to blocked names
+ * and a share to names that don't exist. Without load.target an in-process StubHierarchy and
+ * SinkholeServer are started, so the run is reproducible with no network access:
+ *   java -cp bench/target/benchmarks.jar il.ac.idc.cs.sinkhole.LoadGenerator
+ *
+ * Settings (java properties, defaults in brackets): load.target host:port, load.threads [8],
+ * load.seconds [10], load.qps total target rate, 0 for closed-loop [0], load.names [100000],
+ * load.zipf exponent [1.0], load.blocked share [0.1], load.nxdomain share [0.05],
+ * load.timeout ms [2000], hop.latency ms [0], hop.loss share [0]. sinkhole.* settings apply
+ * to the in-process sinkhole; with sinkhole.dnssec=true the hierarchy is signed and the sinkhole
+ * validates against its root key. */
+public class LoadGenerator {
+
+    final private static int BLOCKED_NAMES = 10000;
+    final private static int ZONES = 1000;
+
+    private InetSocketAddress target;
+    private int threads;
+    private long durationMillis;
+    private double qps;
+    private double blockedShare;
+    private double nxShare;
+    private int timeoutMillis;
+    private double[] zipfCdf;
+
+    private LatencyHistogram latency;
+    private LongAdder sent;
+    private LongAdder timeouts;
+    private AtomicLongArray rcodes;
+
+    /** Class constructor.
+     * @param target The server to load.
+     * @param props Load settings.
+     */
+    LoadGenerator(InetSocketAddress target, Properties props) {
+        this.target = target;
+        threads = Integer.parseInt(props.getProperty("load.threads", "8"));
+        durationMillis = Long.parseLong(props.getProperty("load.seconds", "10")) * 1000;
+        qps = Double.parseDouble(props.getProperty("load.qps", "0"));
+        blockedShare = Double.parseDouble(props.getProperty("load.blocked", "0.1"));
+        nxShare = Double.parseDouble(props.getProperty("load.nxdomain", "0.05"));
+        timeoutMillis = Integer.parseInt(props.getProperty("load.timeout", "2000"));
+        zipfCdf = zipf(Integer.parseInt(props.getProperty("load.names", "100000")),
+                       Double.parseDouble(props.getProperty("load.zipf", "1.0")));
+        latency = new LatencyHistogram();
+        sent = new LongAdder();
+        timeouts = new LongAdder();
+        rcodes = new AtomicLongArray(16);
+    }
+
+    /** Builds the cumulative distribution of a Zipf law over n ranks */
+    private static double[] zipf(int n, double s) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for(int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, s);
+            cdf[i] = sum;
+        }
+        for(int i = 0; i < n; i++)
+            cdf[i] /= sum;
+        return cdf;
+    }
+
+    /** Draws a rank from the Zipf distribution */
+    private int nextRank() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        int lo = 0;
+        int hi = zipfCdf.length - 1;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(zipfCdf[mid] < u)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    static String blockedName(int i) {
+        return "ads" + i + ".tracker" + (i % ZONES) + ".test";
+    }
+
+    /** Draws the next queried name according to the mix */
+    private String nextName() {
+        double r = ThreadLocalRandom.current().nextDouble();
+        int rank = nextRank();
+        if(r < blockedShare)
+            return blockedName(rank % BLOCKED_NAMES);
+        if(r < blockedShare + nxShare)
+            return "nx" + rank + ".zone" + (rank % ZONES) + ".test";
+        return "host" + rank + ".zone" + (rank % ZONES) + ".test";
+    }
+
+    /** Runs the load and prints the report */
+    void run() throws Exception {
+        Thread[] workers = new Thread[threads];
+        final long deadline = System.currentTimeMillis() + durationMillis;
+        final long intervalNanos = qps > 0 ? (long) (1e9 * threads / qps) : 0;
+        for(int t = 0; t < threads; t++) {
+            final int index = t;
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        client(index, deadline, intervalNanos);
+                    }
+                    catch (IOException ex) {
+                        System.err.println("Load thread error: " + ex.getMessage());
+                    }
+                }
+            }, "load-" + t);
+            workers[t].start();
+        }
+        long start = System.nanoTime();
+        for(Thread w : workers)
+            w.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        report(seconds);
+    }
+
+    /** A single closed-loop client, paced when a target rate is set */
+    private void client(int index, long deadline, long intervalNanos) throws IOException {
+        DatagramSocket socket = new DatagramSocket();
+        socket.setSoTimeout(timeoutMillis);
+        byte[] buf = new byte[1024];
+        DatagramPacket reply = new DatagramPacket(buf, buf.length);
+        int id = index << 12;
+        long next = System.nanoTime();
+        try {
+            while(System.currentTimeMillis() < deadline) {
+                if(intervalNanos > 0) {
+                    long wait = next - System.nanoTime();
+                    if(wait > 0)
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    next += intervalNanos;
+                }
+                id = (id + 1) & 0xFFFF;
+                byte[] query = BenchPackets.query(id, nextName(), 1);
+                long sentAt = System.nanoTime();
+                socket.send(new DatagramPacket(query, query.length, target));
+                sent.increment();
+                if(awaitReply(socket, reply, id))
+                    latency.recordSince(sentAt);
+                else
+                    timeouts.increment();
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    /** Waits for the reply with the given ID, skipping late replies to earlier queries */
+    private boolean awaitReply(DatagramSocket socket, DatagramPacket reply, int id) throws IOException {
+        byte[] buf = reply.getData();
+        while(true) {
+            reply.setLength(buf.length);
+            try {
+                socket.receive(reply);
+            }
+            catch (SocketTimeoutException ex) {
+                return false;
+            }
+            if((((buf[0] & 0xFF) << 8) | (buf[1] & 0xFF)) == id) {
+                rcodes.incrementAndGet(buf[3] & 0x0F);
+                return true;
+            }
+        }
+    }
+
+    private void report(double seconds) {
+        long answered = latency.getCount();
+        System.out.println(String.format("sent %d, answered %d, timeouts %d in %.1f s",
+                                         sent.sum(), answered, timeouts.sum(), seconds));
+        System.out.println(String.format("throughput %.0f qps", answered / seconds));
+        System.out.println(String.format("latency us: p50 %d  p90 %d  p99 %d  p99.9 %d  max %d",
+                latency.getValueAtPercentile(50), latency.getValueAtPercentile(90),
+                latency.getValueAtPercentile(99), latency.getValueAtPercentile(99.9),
+                latency.getValueAtPercentile(100)));
+        StringBuilder sb = new StringBuilder("rcodes:");
+        for(int i = 0; i < 16; i++) {
+            if(rcodes.get(i) > 0)
+                sb.append(' ').append(i).append('=').append(rcodes.get(i));
+        }
+        System.out.println(sb);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties props = System.getProperties();
+        String target = props.getProperty("load.target");
+        if(target != null) {
+            int colon = target.lastIndexOf(':');
+            new LoadGenerator(new InetSocketAddress(target.substring(0, colon),
+                              Integer.parseInt(target.substring(colon + 1))), props).run();
+            return;
+        }
+
+        // In-process test bed: fake hierarchy, sinkhole with a block list, load generator
+        boolean dnssec = Boolean.parseBoolean(props.getProperty("sinkhole.dnssec", "false"));
+        StubHierarchy hierarchy = new StubHierarchy(Integer.parseInt(props.getProperty("hop.latency", "0")),
+                                                    Double.parseDouble(props.getProperty("hop.loss", "0")), dnssec);
+        File file = File.createTempFile("blocklist", ".txt");
+        file.deleteOnExit();
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
+            for(int i = 0; i < BLOCKED_NAMES; i++) {
+                bw.write(blockedName(i));
+                bw.newLine();
+            }
+        }
+        DNSBlockList blockList = new DNSBlockList(file.getPath());
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        Properties sinkholeProps = new Properties();
+        sinkholeProps.putAll(props);
+        sinkholeProps.setProperty("sinkhole.upstream.timeout", props.getProperty("sinkhole.upstream.timeout", "200"));
+        if(dnssec)
+            sinkholeProps.setProperty("sinkhole.dnssec.anchors", hierarchy.getTrustAnchor());
+        SinkholeConfig config = new SinkholeConfig(sinkholeProps);
+        DNSCache cache = DNSCache.fromConfig(config);
+        DNSMetrics metrics = new DNSMetrics();
+        SinkholeServer server;
+        int port;
+        if(config.ioBatch > 1) {
+            DatagramBatchChannel channel = new DatagramBatchChannel(new InetSocketAddress(loopback, 0), config.ioBatch);
+            port = channel.getLocalPort();
+            server = new SinkholeServer(config, channel, blockList, hierarchy.getRootServers(), metrics, null, cache);
+        }
+        else {
+            DatagramSocket socket = new DatagramSocket(new InetSocketAddress(loopback, 0));
+            port = socket.getLocalPort();
+            server = new SinkholeServer(config, socket, blockList, hierarchy.getRootServers(), metrics, null, cache);
+        }
+        Thread receiver = new Thread(server, "sinkhole-receive");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        try {
+            new LoadGenerator(new InetSocketAddress(loopback, port), props).run();
+            long resolutions = metrics.getResolutionCount();
+            if(resolutions > 0)
+                System.out.println(String.format("upstream queries per resolution %.2f (%d resolutions)",
+                                                 (double) metrics.getUpstreamQueryCount() / resolutions, resolutions));
+        }
+        finally {
+            server.close();
+            hierarchy.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package il.ac.idc.cs.sinkhole;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/** This class is responsible for running the benchmarks of the suite (see Benchmarks) under JMH.
+ * Each benchmark is picked by name, set up once per trial for the number of JMH threads, and its
+ * operation is the measured method; JMH takes care of the forks, warmup and dead code.
+ *
+ * Build and run from the Sinkhole directory, without network access once the JMH artifacts are
+ * in the local repository:
+ *   mvn -f bench/pom.xml package
+ *   java -jar bench/target/benchmarks.jar                         (every benchmark)
+ *   java -jar bench/target/benchmarks.jar -p name=parser.query -t 4
+ *   java -jar bench/target/benchmarks.jar -p name=blocklist.hit.10000000 -jvmArgsAppend -Xmx8g
+ * The blocklist benchmarks with 10M names need a larger heap than the 4GB given to every fork. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SinkholeBenchmark {
+
+    @Param({"parser.query", "parser.referral", "parser.answer",
+            "blocklist.hit.1000000", "blocklist.miss.1000000", "blocklist.policy.8lists.1000000",
+            "blocklist.hit.10000000", "blocklist.miss.10000000",
+            "patterns.dfa.100", "patterns.dfa.1000", "patterns.regex.100", "patterns.regex.1000",
+            "queue.enqueue-dequeue", "resolver.buildDNSFrame", "reply.forward", "reply.build",
+            "dnssec.validate.cold", "dnssec.validate.warm",
+            "cache.heap.hit", "cache.heap.mixed", "cache.offheap.hit", "cache.offheap.mixed",
+            "cache.heap.single.hit", "cache.heap.single.mixed", "cache.offheap.single.hit", "cache.offheap.single.mixed",
+            "e2e.resolve", "e2e.cached", "e2e.blocked", "e2e.cached.batch", "e2e.blocked.batch"})
+    public String name;
+
+    private BenchmarkRunner.Benchmark benchmark;
+    private AtomicInteger threads = new AtomicInteger();
+
+    /** The index a JMH thread passes to the operation */
+    @State(Scope.Thread)
+    public static class ThreadIndex {
+        int index;
+
+        @Setup(Level.Trial)
+        public void setup(SinkholeBenchmark suite) {
+            index = suite.threads.getAndIncrement();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup(BenchmarkParams params) throws Exception {
+        for(BenchmarkRunner.Benchmark b : Benchmarks.all(new int[] {1000000, 10000000}, new int[] {100, 1000})) {
+            if(b.name.equals(name))
+                benchmark = b;
+        }
+        if(benchmark == null)
+            throw new IllegalArgumentException("no such benchmark: " + name);
+        threads.set(0);
+        benchmark.setup(params.getThreads());
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        benchmark.teardown();
+    }
+
+    @Benchmark
+    public long op(ThreadIndex thread) throws Exception {
+        return benchmark.op(thread.index);
+    }
+}
@@ -0,0 +1,64 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/** This class is responsible for an in-process authoritative server used by the benchmarks.
+ * It answers every A query with an authoritative record derived from the queried name, so a
+ * resolution through the sinkhole finishes after a single upstream query and needs no network. */
+public class StubAuthoritativeServer implements Runnable {
+
+    private DatagramSocket socket;
+    private Thread thread;
+
+    /** Class constructor. Binds an ephemeral port on the loopback address and starts serving.
+     * @param address Loopback address to bind to. */
+    public StubAuthoritativeServer(InetAddress address) throws IOException {
+        socket = new DatagramSocket(new InetSocketAddress(address, 0));
+        thread = new Thread(this, "stub-authoritative");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Gets the bound address
+     * @return address */
+    InetAddress getAddress() {
+        return socket.getLocalAddress();
+    }
+
+    /** Gets the bound port
+     * @return port */
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /** Answers queries until the socket is closed */
+    public void run() {
+        byte[] buf = new byte[512];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while(!socket.isClosed()) {
+            try {
+                packet.setLength(buf.length);
+                socket.receive(packet);
+                DNSParser parser = new DNSParser(packet);
+                parser.parseDNS();
+                String host = parser.getQuestion().host;
+                int h = host.hashCode();
+                byte[] reply = BenchPackets.answer(parser.getID(), host, 300,
+                        new byte[][] {{10, (byte) (h >> 16), (byte) (h >> 8), (byte) h}});
+                socket.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+            }
+            catch (IOException ex) {
+                if(!socket.isClosed())
+                    System.err.println("Stub server error: " + ex.getMessage());
+            }
+        }
+    }
+
+    /** Stops the server */
+    void close() {
+        socket.close();
+    }
+}
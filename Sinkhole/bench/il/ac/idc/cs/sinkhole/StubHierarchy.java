@@ -0,0 +1,469 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** This class is responsible for an in-process fake DNS hierarchy: a root server that refers every
+ * name to its TLD server, a TLD server that refers to the authoritative server of the second-level
+ * zone, and an authoritative server that answers. Names whose first label starts with "nx" get
+ * NXDOMAIN. Every hop can add latency and drop queries.
+ *
+ * In signed mode every zone is signed with its own ECDSA P-256 key: the servers answer DNSKEY and
+ * DS queries, the referrals carry the DS records of the child zone, and the answers and the SOA
+ * of the negative answers carry their RRSIG. A second-level zone whose name starts with
+ * "unsigned" is an unsigned delegation, proven by an NSEC record of the TLD zone, and names whose
+ * first label starts with "bogus" get a corrupted signature. getTrustAnchor() gives the DS record
+ * of the root key for the validating resolver.
+ *
+ * The resolver sends every upstream query to the same port, so the three servers bind the same
+ * port on 127.0.0.2, 127.0.0.3 and 127.0.0.4 (Linux routes all of 127/8 to the loopback device). */
+public class StubHierarchy {
+
+    /** The role of a server in the hierarchy */
+    enum Role {
+        ROOT,
+        TLD,
+        AUTHORITATIVE
+    }
+
+    final private static int BIND_ATTEMPTS = 16;
+    final private static int REFERRAL_TTL = 172800;
+    final private static int ANSWER_TTL = 300;
+    final private static int SIGNATURE_VALIDITY = 30 * 86400;
+    final private static int ECDSA_P256 = 13;
+    /** NSEC type bitmap of an unsigned delegation: NS, RRSIG and NSEC */
+    final private static byte[] DELEGATION_TYPES = {0, 6, 0x20, 0, 0, 0, 0, 0x03};
+
+    /** This class is responsible for a single server of the hierarchy */
+    private class Node implements Runnable {
+        Role role;
+        DatagramSocket socket;
+
+        Node(Role role, DatagramSocket socket) {
+            this.role = role;
+            this.socket = socket;
+            Thread t = new Thread(this, "stub-" + role.name().toLowerCase());
+            t.setDaemon(true);
+            t.start();
+        }
+
+        public void run() {
+            byte[] buf = new byte[512];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            while(!socket.isClosed()) {
+                try {
+                    packet.setLength(buf.length);
+                    socket.receive(packet);
+                    if(loss > 0 && ThreadLocalRandom.current().nextDouble() < loss)
+                        continue;
+                    DNSParser parser = new DNSParser(packet);
+                    parser.parseDNS();
+                    byte[] reply = answer(parser.getID(), parser.getQuestion());
+                    send(reply, packet.getSocketAddress());
+                }
+                catch (IOException | RuntimeException ex) {
+                    if(!socket.isClosed())
+                        System.err.println("Stub " + role + " error: " + ex);
+                }
+            }
+        }
+
+        /** Builds the reply of this server to a query */
+        byte[] answer(short id, DNSParser.Query q) throws IOException {
+            if(signed)
+                return signedAnswer(role, id, q.host, q.qtype);
+            String host = q.host.toLowerCase();
+            String[] labels = host.split("\\.");
+            switch(role) {
+                case ROOT: {
+                    String tld = labels[labels.length - 1];
+                    return BenchPackets.referral(id, host, tld, new String[] {"ns1.nic." + tld},
+                                                 new byte[][] {TLD_ADDRESS});
+                }
+                case TLD: {
+                    if(labels.length < 2)
+                        return BenchPackets.error(id, host, 0);
+                    String zone = labels[labels.length - 2] + "." + labels[labels.length - 1];
+                    return BenchPackets.referral(id, host, zone, new String[] {"ns1." + zone},
+                                                 new byte[][] {AUTH_ADDRESS});
+                }
+                default: {
+                    if(labels[0].startsWith("nx"))
+                        return BenchPackets.error(id, host, 3);
+                    if(q.qtype != 1)
+                        return BenchPackets.error(id, host, 0);
+                    int h = host.hashCode();
+                    return BenchPackets.answer(id, host, ANSWER_TTL,
+                            new byte[][] {{10, (byte) (h >> 16), (byte) (h >> 8), (byte) h}});
+                }
+            }
+        }
+
+        void send(final byte[] reply, final SocketAddress to) throws IOException {
+            if(latencyMillis <= 0) {
+                socket.send(new DatagramPacket(reply, reply.length, to));
+                return;
+            }
+            delayed.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        socket.send(new DatagramPacket(reply, reply.length, to));
+                    }
+                    catch (IOException ex) {
+                        if(!socket.isClosed())
+                            System.err.println("Stub " + role + " send error: " + ex.getMessage());
+                    }
+                }
+            }, latencyMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    final static byte[] ROOT_ADDRESS = {127, 0, 0, 2};
+    final static byte[] TLD_ADDRESS = {127, 0, 0, 3};
+    final static byte[] AUTH_ADDRESS = {127, 0, 0, 4};
+
+    /** This class is responsible for writing a response out of whole RRsets, signing them */
+    private class Response {
+        int id;
+        int flags;
+        String host;
+        int qtype;
+        List<Object[]> answer = new ArrayList<>();
+        List<Object[]> authority = new ArrayList<>();
+        List<Object[]> additional = new ArrayList<>();
+
+        Response(int id, int flags, String host, int qtype) {
+            this.id = id;
+            this.flags = flags;
+            this.host = host;
+            this.qtype = qtype;
+        }
+
+        /** Adds an RRset to a section: owner, type, TTL, rdata list, signing zone or null */
+        void add(List<Object[]> section, String owner, int type, int ttl, List<byte[]> rdatas, String signer) {
+            section.add(new Object[] {owner, type, ttl, rdatas, signer});
+        }
+
+        @SuppressWarnings("unchecked")
+        byte[] toBytes() throws IOException {
+            BenchPackets.Writer w = new BenchPackets.Writer();
+            w.header(id, flags, 1, count(answer), count(authority), count(additional));
+            w.question(host, qtype);
+            for(List<Object[]> section : Arrays.asList(answer, authority, additional)) {
+                for(Object[] set : section) {
+                    String owner = (String) set[0];
+                    int type = (Integer) set[1];
+                    int ttl = (Integer) set[2];
+                    List<byte[]> rdatas = (List<byte[]>) set[3];
+                    for(byte[] rdata : rdatas)
+                        w.record(owner, type, ttl, rdata);
+                    if(set[4] != null) {
+                        boolean corrupt = section == answer && owner.startsWith("bogus");
+                        w.record(owner, DNSSECValidator.RRSIG_REC, ttl, rrsig((String) set[4], owner, type, ttl, rdatas, corrupt));
+                    }
+                }
+            }
+            return w.toBytes();
+        }
+
+        @SuppressWarnings("unchecked")
+        private int count(List<Object[]> section) {
+            int n = 0;
+            for(Object[] set : section)
+                n += ((List<byte[]>) set[3]).size() + (set[4] != null ? 1 : 0);
+            return n;
+        }
+    }
+
+    private int latencyMillis;
+    private double loss;
+    private boolean signed;
+    private Map<String, KeyPair> zoneKeys = new ConcurrentHashMap<>();
+    private ScheduledExecutorService delayed;
+    private Node[] nodes;
+    private int port;
+
+    /** Class constructor. Binds the three servers and starts serving.
+     * @param latencyMillis Delay added to every reply, per hop.
+     * @param loss Probability of dropping a query, per hop.
+     */
+    public StubHierarchy(int latencyMillis, double loss) throws IOException {
+        this(latencyMillis, loss, false);
+    }
+
+    /** Class constructor. Binds the three servers and starts serving.
+     * @param latencyMillis Delay added to every reply, per hop.
+     * @param loss Probability of dropping a query, per hop.
+     * @param signed Whether the zones are signed with DNSSEC.
+     */
+    public StubHierarchy(int latencyMillis, double loss, boolean signed) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.loss = loss;
+        this.signed = signed;
+        delayed = Executors.newSingleThreadScheduledExecutor();
+
+        DatagramSocket[] sockets = null;
+        for(int attempt = 0; sockets == null; attempt++) {
+            try {
+                sockets = bindAll();
+            }
+            catch (BindException ex) {
+                if(attempt >= BIND_ATTEMPTS)
+                    throw ex;
+            }
+        }
+        port = sockets[0].getLocalPort();
+        nodes = new Node[] {
+            new Node(Role.ROOT, sockets[0]),
+            new Node(Role.TLD, sockets[1]),
+            new Node(Role.AUTHORITATIVE, sockets[2])
+        };
+    }
+
+    /** Binds the root on an ephemeral port and the other servers on the same port */
+    private static DatagramSocket[] bindAll() throws IOException {
+        DatagramSocket root = new DatagramSocket(new InetSocketAddress(InetAddress.getByAddress(ROOT_ADDRESS), 0));
+        try {
+            DatagramSocket tld = new DatagramSocket(new InetSocketAddress(InetAddress.getByAddress(TLD_ADDRESS), root.getLocalPort()));
+            try {
+                DatagramSocket auth = new DatagramSocket(new InetSocketAddress(InetAddress.getByAddress(AUTH_ADDRESS), root.getLocalPort()));
+                return new DatagramSocket[] {root, tld, auth};
+            }
+            catch (IOException ex) {
+                tld.close();
+                throw ex;
+            }
+        }
+        catch (IOException ex) {
+            root.close();
+            throw ex;
+        }
+    }
+
+    /** Builds the reply of a server of the signed hierarchy to a query.
+     * @param role The server.
+     * @param id Query ID.
+     * @param host Queried name.
+     * @param qtype Query type.
+     * @return the packet */
+    byte[] signedAnswer(Role role, int id, String host, int qtype) throws IOException {
+        host = host.toLowerCase();
+        String[] labels = host.isEmpty() ? new String[0] : host.split("\\.");
+        int depth = role.ordinal();
+        if(labels.length < depth)
+            return negative(id, host, qtype, 0, "");
+        String zone = suffix(labels, depth);
+        String zoneSigner = isSigned(zone) ? zone : null;
+
+        if(host.equals(zone)) {
+            if(qtype != DNSSECValidator.DNSKEY_REC || zoneSigner == null)
+                return negative(id, host, qtype, 0, zone);
+            Response r = new Response(id, BenchPackets.FLAGS_RESPONSE_AA, host, qtype);
+            r.add(r.answer, zone, DNSSECValidator.DNSKEY_REC, REFERRAL_TTL, one(dnskey(zone)), zone);
+            return r.toBytes();
+        }
+
+        if(role != Role.AUTHORITATIVE) {
+            // Refer to the child zone, with its DS record or the NSEC record that denies it
+            String child = suffix(labels, depth + 1);
+            byte[] glue = role == Role.ROOT ? TLD_ADDRESS : AUTH_ADDRESS;
+            boolean dsQuery = qtype == DNSSECValidator.DS_REC && host.equals(child);
+            Response r = new Response(id, dsQuery ? BenchPackets.FLAGS_RESPONSE_AA : BenchPackets.FLAGS_RESPONSE, host, qtype);
+            List<Object[]> section = dsQuery ? r.answer : r.authority;
+            if(!dsQuery) {
+                r.add(r.authority, child, 2, REFERRAL_TTL, one(DNSSECValidator.nameWire("ns1." + child)), null);
+                r.add(r.additional, "ns1." + child, 1, REFERRAL_TTL, one(glue), null);
+            }
+            if(zoneSigner != null && isSigned(child))
+                r.add(section, child, DNSSECValidator.DS_REC, REFERRAL_TTL, one(ds(child)), zoneSigner);
+            else if(zoneSigner != null) {
+                byte[] next = DNSSECValidator.nameWire("\u0000." + child);
+                byte[] nsec = Arrays.copyOf(next, next.length + DELEGATION_TYPES.length);
+                System.arraycopy(DELEGATION_TYPES, 0, nsec, next.length, DELEGATION_TYPES.length);
+                r.add(r.authority, child, DNSSECValidator.NSEC_REC, REFERRAL_TTL, one(nsec), zoneSigner);
+            }
+            return r.toBytes();
+        }
+
+        if(labels[0].startsWith("nx"))
+            return negative(id, host, qtype, 3, zone);
+        if(qtype != 1)
+            return negative(id, host, qtype, 0, zone);
+        int h = host.hashCode();
+        Response r = new Response(id, BenchPackets.FLAGS_RESPONSE_AA, host, qtype);
+        r.add(r.answer, host, 1, ANSWER_TTL, one(new byte[] {10, (byte) (h >> 16), (byte) (h >> 8), (byte) h}), zoneSigner);
+        return r.toBytes();
+    }
+
+    /** Builds a negative answer with the SOA record of the zone, signed if the zone is */
+    private byte[] negative(int id, String host, int qtype, int rcode, String zone) throws IOException {
+        Response r = new Response(id, BenchPackets.FLAGS_RESPONSE_AA | rcode, host, qtype);
+        byte[] mname = DNSSECValidator.nameWire(zone.isEmpty() ? "ns1" : "ns1." + zone);
+        byte[] rname = DNSSECValidator.nameWire(zone.isEmpty() ? "hostmaster" : "hostmaster." + zone);
+        byte[] soa = new byte[mname.length + rname.length + 20];
+        System.arraycopy(mname, 0, soa, 0, mname.length);
+        System.arraycopy(rname, 0, soa, mname.length, rname.length);
+        int times = mname.length + rname.length;
+        DNSWire.putU32(soa, times, 1);
+        DNSWire.putU32(soa, times + 4, 3600);
+        DNSWire.putU32(soa, times + 8, 600);
+        DNSWire.putU32(soa, times + 12, 604800);
+        DNSWire.putU32(soa, times + 16, ANSWER_TTL);
+        r.add(r.authority, zone, DNSWire.SOA_REC, ANSWER_TTL, one(soa), isSigned(zone) ? zone : null);
+        return r.toBytes();
+    }
+
+    private static String suffix(String[] labels, int n) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = labels.length - n; i < labels.length; i++)
+            sb.append(sb.length() > 0 ? "." : "").append(labels[i]);
+        return sb.toString();
+    }
+
+    private static List<byte[]> one(byte[] rdata) {
+        List<byte[]> list = new ArrayList<>();
+        list.add(rdata);
+        return list;
+    }
+
+    private static boolean isSigned(String zone) {
+        return !zone.startsWith("unsigned");
+    }
+
+    /** Gets the key of a zone, made on first use */
+    private KeyPair keyPair(String zone) throws IOException {
+        KeyPair pair = zoneKeys.get(zone);
+        if(pair != null)
+            return pair;
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            pair = generator.generateKeyPair();
+        }
+        catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+        KeyPair existing = zoneKeys.putIfAbsent(zone, pair);
+        return existing != null ? existing : pair;
+    }
+
+    /** Gets the DNSKEY rdata of a zone: a key signing key of algorithm 13 */
+    private byte[] dnskey(String zone) throws IOException {
+        ECPublicKey key = (ECPublicKey) keyPair(zone).getPublic();
+        byte[] rdata = new byte[4 + 64];
+        DNSWire.putU16(rdata, 0, 0x0101);
+        rdata[2] = 3;
+        rdata[3] = ECDSA_P256;
+        unsigned(key.getW().getAffineX().toByteArray(), rdata, 4, 32);
+        unsigned(key.getW().getAffineY().toByteArray(), rdata, 36, 32);
+        return rdata;
+    }
+
+    /** Gets the DS rdata of a zone, with a SHA-256 digest */
+    private byte[] ds(String zone) throws IOException {
+        byte[] key = dnskey(zone);
+        MessageDigest md = DNSSECValidator.digest("SHA-256");
+        md.update(DNSSECValidator.nameWire(zone));
+        md.update(key);
+        byte[] digest = md.digest();
+        byte[] rdata = new byte[4 + digest.length];
+        DNSWire.putU16(rdata, 0, DNSSECValidator.keyTag(key));
+        rdata[2] = ECDSA_P256;
+        rdata[3] = 2;
+        System.arraycopy(digest, 0, rdata, 4, digest.length);
+        return rdata;
+    }
+
+    /** Signs an RRset with the key of a zone.
+     * @return the RRSIG rdata */
+    private byte[] rrsig(String signer, String owner, int type, int ttl, List<byte[]> rdatas, boolean corrupt) throws IOException {
+        byte[] signerWire = DNSSECValidator.nameWire(signer);
+        byte[] head = new byte[18 + signerWire.length];
+        long now = System.currentTimeMillis() / 1000;
+        DNSWire.putU16(head, 0, type);
+        head[2] = ECDSA_P256;
+        head[3] = (byte) DNSSECValidator.labelCount(owner);
+        DNSWire.putU32(head, 4, ttl);
+        DNSWire.putU32(head, 8, now + SIGNATURE_VALIDITY);
+        DNSWire.putU32(head, 12, now - 3600);
+        DNSWire.putU16(head, 16, DNSSECValidator.keyTag(dnskey(signer)));
+        System.arraycopy(signerWire, 0, head, 18, signerWire.length);
+
+        List<DNSSECValidator.Record> records = new ArrayList<>();
+        for(byte[] rdata : rdatas)
+            records.add(new DNSSECValidator.Record(owner, type, ttl, rdata));
+        byte[] rrsig = Arrays.copyOf(head, head.length + 64);
+        try {
+            Signature s = Signature.getInstance("SHA256withECDSA");
+            s.initSign(keyPair(signer).getPrivate());
+            s.update(DNSSECValidator.signedData(head, head.length, records));
+            // DER to the r|s form of RFC 6605
+            byte[] der = s.sign();
+            int rLen = der[3];
+            unsigned(Arrays.copyOfRange(der, 4, 4 + rLen), rrsig, head.length, 32);
+            unsigned(Arrays.copyOfRange(der, 6 + rLen, der.length), rrsig, head.length + 32, 32);
+        }
+        catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+        if(corrupt)
+            rrsig[head.length] ^= 1;
+        return rrsig;
+    }
+
+    /** Copies a big-endian integer right-aligned into a field, without its sign octet */
+    private static void unsigned(byte[] value, byte[] out, int pos, int size) {
+        int skip = Math.max(value.length - size, 0);
+        System.arraycopy(value, skip, out, pos + size - (value.length - skip), value.length - skip);
+    }
+
+    /** Gets the DS record of the root key, for sinkhole.dnssec.anchors
+     * @return the trust anchor */
+    String getTrustAnchor() throws IOException {
+        byte[] ds = ds("");
+        StringBuilder sb = new StringBuilder();
+        sb.append(DNSWire.u16(ds, 0)).append(' ').append(ds[2]).append(' ').append(ds[3]).append(' ');
+        for(int i = 4; i < ds.length; i++)
+            sb.append(String.format("%02X", ds[i] & 0xFF));
+        return sb.toString();
+    }
+
+    /** Gets the root servers of this hierarchy, for the resolver
+     * @return root servers */
+    DNSRootServer getRootServers() throws IOException {
+        return new DNSRootServer(new InetAddress[] {InetAddress.getByAddress(ROOT_ADDRESS)}, port);
+    }
+
+    /** Gets the port all the servers listen on
+     * @return port */
+    int getPort() {
+        return port;
+    }
+
+    /** Stops all the servers */
+    void close() {
+        for(Node n : nodes)
+            n.socket.close();
+        delayed.shutdownNow();
+    }
+}
@@ -0,0 +1,39 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.IOException;
+
+/** This interface is responsible for holding the responses of the answer cache.
+ * A store is keyed by question (name and type), keeps every response until its expiry time and
+ * evicts on its own when it is full. Implementations must be safe for concurrent use. */
+interface AnswerStore {
+
+    /** Receives the live entries of a store, see forEach() */
+    interface Visitor {
+        void visit(String qname, int qtype, byte[] response, long storedAt, long expiresAt) throws IOException;
+    }
+
+    /** Copies a response into a buffer, with its TTLs decremented by the time it spent in the store.
+     * @param qname Queried host, lower case.
+     * @param qtype Query type.
+     * @param now Current wall-clock time in milliseconds.
+     * @param out Buffer to copy the response into.
+     * @return the response length, or -1 if the question is not stored or has expired */
+    int get(String qname, int qtype, long now, byte[] out);
+
+    /** Stores a response, replacing any previous response to the same question.
+     * @param qname Queried host, lower case.
+     * @param qtype Query type.
+     * @param response The response.
+     * @param len Response length.
+     * @param storedAt Wall-clock time the response was received, in milliseconds.
+     * @param expiresAt Wall-clock time the response expires, in milliseconds.
+     */
+    void put(String qname, int qtype, byte[] response, int len, long storedAt, long expiresAt);
+
+    /** Gets the number of stored responses, possibly counting some that expired
+     * @return the size */
+    int size();
+
+    /** Visits every entry that has not expired, e.g. to write a snapshot.
+     * @param visitor The visitor. */
+    void forEach(Visitor visitor) throws IOException;
+}
@@ -0,0 +1,198 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/** This class is responsible for answering queries for blocked hosts directly on the receive thread,
+ * so blocked traffic never goes through the request queue and the resolver threads.
+ * The question is read straight from the wire and the reply is assembled in a buffer owned by the
+ * calling thread: the header, the question copied from the request and, in sinkhole mode, a
+ * preformatted A or AAAA record. The UDP receive thread and the stream listener threads all call
+ * tryAnswer() at once, so every thread gets its own buffers. Without sinkhole addresses, or when the client's policy asks for
+ * it, a blocked query gets NXDOMAIN. */
+public class BlockedResponder {
+
+    final private static int HEADER_SIZE = 12;
+    final private static int MAX_NAME = 255;
+    final private static int A_REC = 1;
+    final private static int AAAA_REC = 28;
+    final private static int IN_CLASS = 1;
+    final private static int NXDOMAIN = 3;
+
+    private DNSBlockList blockList;
+    private DNSMetrics metrics;
+    private QueryLog queryLog;
+    private RateLimiter rateLimiter;
+    private byte[] aRecord;
+    private byte[] aaaaRecord;
+    private ThreadLocal<Buffers> buffers;
+
+    /** The buffers a thread reads the question and writes the reply in */
+    private static class Buffers {
+        final byte[] reply = new byte[512];
+        final DatagramPacket replyPacket = new DatagramPacket(reply, reply.length);
+        final char[] name = new char[MAX_NAME];
+    }
+
+    /** Class constructor.
+     * @param config sinkhole settings (sinkhole.blocked.ipv4, sinkhole.blocked.ipv6, sinkhole.blocked.ttl)
+     * @param blockList List of blocked Hostnames
+     * @param metrics resolver metrics
+     * @param queryLog query log, or null if query logging is disabled
+     * @param rateLimiter response rate limiter, or null if rate limiting is disabled
+     */
+    BlockedResponder(SinkholeConfig config, DNSBlockList blockList, DNSMetrics metrics, QueryLog queryLog,
+                     RateLimiter rateLimiter) throws UnknownHostException {
+        this.blockList = blockList;
+        this.metrics = metrics;
+        this.queryLog = queryLog;
+        this.rateLimiter = rateLimiter;
+        if(config.blockedIPv4 != null) {
+            InetAddress addr = InetAddress.getByName(config.blockedIPv4);
+            if(!(addr instanceof Inet4Address))
+                throw new UnknownHostException("not an IPv4 address: " + config.blockedIPv4);
+            aRecord = buildRecord(A_REC, config.blockedTTL, addr.getAddress());
+        }
+        if(config.blockedIPv6 != null) {
+            InetAddress addr = InetAddress.getByName(config.blockedIPv6);
+            if(!(addr instanceof Inet6Address))
+                throw new UnknownHostException("not an IPv6 address: " + config.blockedIPv6);
+            aaaaRecord = buildRecord(AAAA_REC, config.blockedTTL, addr.getAddress());
+        }
+        buffers = new ThreadLocal<Buffers>() {
+            protected Buffers initialValue() {
+                return new Buffers();
+            }
+        };
+    }
+
+    /** Preformats an answer record whose owner name points at the question.
+     * @param type Record type.
+     * @param ttl Record TTL.
+     * @param rdata Record data.
+     * @return the record bytes */
+    private static byte[] buildRecord(int type, int ttl, byte[] rdata) {
+        byte[] rr = new byte[12 + rdata.length];
+        // Name: pointer to the question name at offset 12
+        rr[0] = (byte) 0xC0;
+        rr[1] = (byte) HEADER_SIZE;
+        rr[2] = (byte) (type >> 8);
+        rr[3] = (byte) type;
+        rr[4] = 0;
+        rr[5] = IN_CLASS;
+        rr[6] = (byte) (ttl >> 24);
+        rr[7] = (byte) (ttl >> 16);
+        rr[8] = (byte) (ttl >> 8);
+        rr[9] = (byte) ttl;
+        rr[10] = (byte) (rdata.length >> 8);
+        rr[11] = (byte) rdata.length;
+        System.arraycopy(rdata, 0, rr, 12, rdata.length);
+        return rr;
+    }
+
+    /** Answers the packet if it is a well-formed recursive query for a blocked host.
+     * Anything else is left to the resolver threads.
+     * @param sender sends the reply
+     * @param packet the received packet
+     * @return true if the packet was answered and can be discarded */
+    boolean tryAnswer(PacketSender sender, DatagramPacket packet) throws IOException {
+        long startedAt = System.nanoTime();
+        byte[] buf = packet.getData();
+        int off = packet.getOffset();
+        int len = packet.getLength();
+        if(len < HEADER_SIZE + 5)
+            return false;
+
+        // QR=0, OPCODE=0 and RD=1, with exactly one question
+        int flags = ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+        if((flags & 0xF900) != 0x0100)
+            return false;
+        if(buf[off + 4] != 0 || buf[off + 5] != 1)
+            return false;
+
+        // Read the question name, lower case and without compression
+        Buffers b = buffers.get();
+        char[] name = b.name;
+        int pos = off + HEADER_SIZE;
+        int end = off + len;
+        int nameLen = 0;
+        while(true) {
+            if(pos >= end)
+                return false;
+            int labelLen = buf[pos++] & 0xFF;
+            if(labelLen == 0)
+                break;
+            if(labelLen > 63 || pos + labelLen > end || nameLen + labelLen + 1 > MAX_NAME)
+                return false;
+            if(nameLen > 0)
+                name[nameLen++] = '.';
+            for(int i = 0; i < labelLen; i++) {
+                char c = (char) (buf[pos++] & 0xFF);
+                name[nameLen++] = (c >= 'A' && c <= 'Z') ? (char) (c + 32) : c;
+            }
+        }
+        if(pos + 4 > end)
+            return false;
+        int qtype = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+        int qclass = ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+        pos += 4;
+        if(qclass != IN_CLASS || nameLen == 0)
+            return false;
+
+        String host = new String(name, 0, nameLen);
+        int blockAction = blockList.check(host, packet.getAddress());
+        if(blockAction == DNSBlockList.ALLOW)
+            return false;
+        metrics.recordBlocked();
+        if(rateLimiter != null && !rateLimiter.allowResponse(packet.getAddress(), RateLimiter.BLOCKED)) {
+            metrics.recordDrop(DNSMetrics.Drop.RESPONSE_RATE_LIMITED);
+            if(queryLog != null)
+                queryLog.log(packet.getAddress(), host, qtype, QueryLog.Action.RATE_LIMITED, 0, (System.nanoTime() - startedAt) / 1000);
+            return true;
+        }
+
+        // Pick the answer: the sinkhole address of the right family, no data, or NXDOMAIN
+        byte[] record = null;
+        int rcode = 0;
+        if(blockAction == DNSBlockList.NXDOMAIN)
+            rcode = NXDOMAIN;
+        else if(qtype == A_REC && aRecord != null)
+            record = aRecord;
+        else if(qtype == AAAA_REC && aaaaRecord != null)
+            record = aaaaRecord;
+        else if(aRecord == null && aaaaRecord == null)
+            rcode = NXDOMAIN;
+
+        int questionLen = pos - (off + HEADER_SIZE);
+        byte[] reply = b.reply;
+        // Header: same ID, QR=1, RD as requested, RA=1
+        reply[0] = buf[off];
+        reply[1] = buf[off + 1];
+        reply[2] = (byte) 0x81;
+        reply[3] = (byte) (0x80 | rcode);
+        reply[4] = 0;
+        reply[5] = 1;
+        reply[6] = 0;
+        reply[7] = (byte) (record == null ? 0 : 1);
+        reply[8] = reply[9] = reply[10] = reply[11] = 0;
+        System.arraycopy(buf, off + HEADER_SIZE, reply, HEADER_SIZE, questionLen);
+        int replyLen = HEADER_SIZE + questionLen;
+        if(record != null) {
+            System.arraycopy(record, 0, reply, replyLen, record.length);
+            replyLen += record.length;
+        }
+
+        DatagramPacket replyPacket = b.replyPacket;
+        replyPacket.setData(reply, 0, replyLen);
+        replyPacket.setSocketAddress(packet.getSocketAddress());
+        sender.send(replyPacket);
+
+        metrics.recordResponse(qtype, rcode);
+        if(queryLog != null)
+            queryLog.log(packet.getAddress(), host, qtype, QueryLog.Action.BLOCKED, rcode, (System.nanoTime() - startedAt) / 1000);
+        return true;
+    }
+}
@@ -0,0 +1,187 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/** This class is responsible for saving the resolver caches to disk and loading them back, so a
+ * restarted sinkhole serves from a warm cache right away.
+ * The snapshot is written incrementally through a small direct buffer into a temporary file that
+ * replaces the previous snapshot once complete, and it is read back through a memory map.
+ * Entries keep their wall-clock store and expiry times, so the TTLs served after a restart account
+ * for the time the sinkhole was down, and entries that expired meanwhile are skipped. Expired
+ * entries are then re-resolved lazily, on the next query for them.
+ *
+ * File layout (big endian): magic, version, save time, then records until an END tag:
+ *   ANSWER:     qname length (short), qname, qtype (short), stored at (long), expires at (long),
+ *               length (short), response
+ *   DELEGATION: zone length (short), zone, expires at (long), count (byte), count x (length (byte), address) */
+public class CacheSnapshot {
+
+    final private static int MAGIC = 0x534B4843;
+    final private static int VERSION = 2;
+    final private static byte END = 0;
+    final private static byte ANSWER = 1;
+    final private static byte DELEGATION = 2;
+    final private static int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    private CacheSnapshot() {
+    }
+
+    /** Saves the caches periodically on a background thread.
+     * @param cache The caches.
+     * @param filename Snapshot file name.
+     * @param intervalSeconds Time between two snapshots.
+     * @return the scheduler, to stop the snapshots */
+    static ScheduledExecutorService schedule(final DNSCache cache, final String filename, long intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cache-snapshot");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    save(cache, filename);
+                }
+                catch (IOException ex) {
+                    System.err.println("Cache snapshot error: " + ex.getMessage());
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return scheduler;
+    }
+
+    /** Writes the caches to a snapshot file.
+     * @param cache The caches.
+     * @param filename Snapshot file name.
+     * @return the number of entries written */
+    static int save(DNSCache cache, String filename) throws IOException {
+        Path path = Paths.get(filename);
+        Path tmp = Paths.get(filename + ".tmp");
+        long now = System.currentTimeMillis();
+        final int[] count = new int[1];
+        final ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        try (final FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.putInt(MAGIC).putInt(VERSION).putLong(now);
+            cache.getAnswerStore().forEach(new AnswerStore.Visitor() {
+                public void visit(String qname, int qtype, byte[] response, long storedAt, long expiresAt) throws IOException {
+                    byte[] name = qname.getBytes(StandardCharsets.US_ASCII);
+                    ensure(ch, out, 1 + 2 + name.length + 2 + 16 + 2 + response.length);
+                    out.put(ANSWER).putShort((short) name.length).put(name).putShort((short) qtype);
+                    out.putLong(storedAt).putLong(expiresAt);
+                    out.putShort((short) response.length).put(response);
+                    count[0]++;
+                }
+            });
+            for(DNSCache.Delegation d : cache.getDelegations().values()) {
+                if(d.expiresAt <= now)
+                    continue;
+                byte[] zone = d.zone.getBytes(StandardCharsets.US_ASCII);
+                ensure(ch, out, 1 + 2 + zone.length + 8 + 1 + d.servers.length * 17);
+                out.put(DELEGATION).putShort((short) zone.length).put(zone);
+                out.putLong(d.expiresAt).put((byte) d.servers.length);
+                for(InetAddress addr : d.servers) {
+                    byte[] bytes = addr.getAddress();
+                    out.put((byte) bytes.length).put(bytes);
+                }
+                count[0]++;
+            }
+            ensure(ch, out, 1);
+            out.put(END);
+            flush(ch, out);
+            ch.force(false);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    /** Flushes the buffer to the file if the next record doesn't fit */
+    private static void ensure(FileChannel ch, ByteBuffer out, int size) throws IOException {
+        if(out.remaining() < size)
+            flush(ch, out);
+    }
+
+    private static void flush(FileChannel ch, ByteBuffer out) throws IOException {
+        out.flip();
+        while(out.hasRemaining())
+            ch.write(out);
+        out.clear();
+    }
+
+    /** Loads a snapshot file into the caches, skipping the entries that expired since it was saved.
+     * @param cache The caches to fill.
+     * @param filename Snapshot file name.
+     * @return the number of entries loaded, or -1 if there is no snapshot */
+    static int load(DNSCache cache, String filename) throws IOException {
+        Path path = Paths.get(filename);
+        if(!Files.exists(path))
+            return -1;
+        long now = System.currentTimeMillis();
+        int count = 0;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if(in.remaining() < 16 || in.getInt() != MAGIC || in.getInt() != VERSION)
+                throw new IOException("not a cache snapshot: " + filename);
+            in.getLong();
+            while(true) {
+                byte tag = in.get();
+                if(tag == END)
+                    break;
+                String name = readString(in);
+                if(tag == ANSWER) {
+                    int qtype = in.getShort() & 0xFFFF;
+                    long storedAt = in.getLong();
+                    long expiresAt = in.getLong();
+                    byte[] response = new byte[in.getShort() & 0xFFFF];
+                    in.get(response);
+                    if(expiresAt > now) {
+                        cache.getAnswerStore().put(name, qtype, response, response.length, storedAt, expiresAt);
+                        count++;
+                    }
+                }
+                else if(tag == DELEGATION) {
+                    long expiresAt = in.getLong();
+                    InetAddress[] servers = new InetAddress[in.get() & 0xFF];
+                    for(int i = 0; i < servers.length; i++) {
+                        byte[] addr = new byte[in.get() & 0xFF];
+                        in.get(addr);
+                        servers[i] = InetAddress.getByAddress(addr);
+                    }
+                    if(expiresAt > now) {
+                        cache.putDelegation(new DNSCache.Delegation(name, servers, expiresAt));
+                        count++;
+                    }
+                }
+                else {
+                    throw new IOException("corrupt cache snapshot: " + filename);
+                }
+            }
+        }
+        catch (RuntimeException ex) {
+            // A truncated file runs past the end of the map
+            throw new IOException("corrupt cache snapshot: " + filename, ex);
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
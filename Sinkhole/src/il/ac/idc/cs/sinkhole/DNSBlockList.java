@@ -1,48 +1,434 @@
 package il.ac.idc.cs.sinkhole;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
-/** This class is responsible for loading the Blocked-List.txt into a set*/
+/** This class is responsible for loading the block lists and deciding, per client, what to do with
+ * a query.
+ * Every list belongs to a category (ads, malware, ...). All the lists are compiled into a single
+ * open addressing index where each name maps to two category bitsets: the categories that block
+ * the name itself and those that block everything below it ("*.name" lines). A lookup hashes the
+ * queried name from its last label backwards and probes the index once per label, so it costs the
+ * same however many lists are loaded, and allocates nothing.
+ * A policy picks the blocked categories and the block action; clients are mapped to a policy by
+ * subnet, the longest prefix wins, everyone else gets the default policy.
+ *
+ * Pattern rules go to a PatternAutomaton instead, a single DFA for all the lists, so that they
+ * too are matched in one pass over the name.
+ *
+ * List format: one name per line, "*.name" for all the names below name, hosts file lines
+ * ("0.0.0.0 name1 name2") are accepted too and block every name after the address. A line between slashes ("/ads[0-9]+\.example\.com/") is a regex
+ * rule and a name with other * or ? wildcards ("*.tracking.*") is a glob rule, both matched
+ * against the whole name. Empty lines are skipped, and # starts a comment outside of regex rules. */
 public class DNSBlockList {
 
-    private Set<String> blockListSet;
+    /** What to do with a query, see check() */
+    final static int ALLOW = 0;
+    final static int SINKHOLE = 1;
+    final static int NXDOMAIN = 2;
+
+    final static String DEFAULT_CATEGORY = "default";
+    final static String DEFAULT_POLICY = "default";
+    final private static int MAX_CATEGORIES = 64;
+    final private static double MAX_LOAD = 0.5;
+    final private static Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /** A set of blocked categories and what to answer when a name is blocked */
+    static class Policy {
+        String name;
+        long categories;
+        int action;
+
+        Policy(String name, long categories, int action) {
+            this.name = name;
+            this.categories = categories;
+            this.action = action;
+        }
+    }
+
+    /** A client subnet and its policy */
+    private static class ClientRule {
+        byte[] network;
+        int prefix;
+        Policy policy;
+        /** The IPv4 network and netmask as ints */
+        int ipv4Network;
+        int ipv4Mask;
+    }
+
+    private String[] names;
+    private long[] exactBits;
+    private long[] subtreeBits;
+    private int mask;
+    private int size;
+    private Map<String, Integer> categories;
+    private Policy defaultPolicy;
+    private List<ClientRule> rules;
+    private ClientRule[] ipv4Rules;
+    private ClientRule[] ipv6Rules;
+    private PatternAutomaton patterns;
+    private int maxPatternStates = PatternAutomaton.DEFAULT_MAX_STATES;
+
+    /** Creates an empty block list that blocks every category it is given with the SINKHOLE action */
+    DNSBlockList() {
+        names = new String[1024];
+        exactBits = new long[1024];
+        subtreeBits = new long[1024];
+        mask = names.length - 1;
+        categories = new LinkedHashMap<>();
+        defaultPolicy = new Policy(DEFAULT_POLICY, -1L, SINKHOLE);
+        rules = new ArrayList<>();
+        ipv4Rules = ipv6Rules = new ClientRule[0];
+    }
+
     /** Creates a hostname blocked list.
      * @param filename Blocked list file name.
      */
     public DNSBlockList(String filename) throws  IOException {
-        blockListSet = new HashSet<String>();
-        // No file was passed as an argument and therefore, the set remains empty
+        this();
+        // No file was passed as an argument and therefore, the list remains empty
         if(filename == null) {
             return;
         }
-        // We have a filename so create a new file instance
-        File file = new File(filename);
-        BufferedReader br = new BufferedReader(new FileReader(file));
+        load(DEFAULT_CATEGORY, filename);
+        compilePatterns();
+    }
+
+    /** Creates the block lists and policies described by the sinkhole settings.
+     * @param config sinkhole settings (sinkhole.blocklists, sinkhole.policies)
+     * @param filename Block list file of the default category, may be null.
+     * @return the block list */
+    static DNSBlockList fromConfig(SinkholeConfig config, String filename) throws IOException {
+        DNSBlockList list = new DNSBlockList();
+        list.maxPatternStates = config.blockListPatternStates;
+        if(filename != null)
+            list.load(DEFAULT_CATEGORY, filename);
+        if(config.blockLists != null) {
+            for(String source : config.blockLists.split(",")) {
+                source = source.trim();
+                if(source.isEmpty())
+                    continue;
+                int eq = source.indexOf('=');
+                if(eq <= 0)
+                    throw new IOException("block list \"" + source + "\" is not category=file");
+                list.load(source.substring(0, eq).trim(), source.substring(eq + 1).trim());
+            }
+        }
+        list.compilePatterns();
+        for(SinkholeConfig.Policy p : config.policies) {
+            Policy policy = new Policy(p.name, p.categories == null ? -1L : list.categoryBits(p.categories),
+                                       parseAction(p.action));
+            if(p.name.equals(DEFAULT_POLICY))
+                list.defaultPolicy = policy;
+            else if(p.clients != null) {
+                for(String cidr : p.clients.split(",")) {
+                    if(!cidr.trim().isEmpty())
+                        list.addClientRule(cidr.trim(), policy);
+                }
+            }
+        }
+        return list;
+    }
+
+    private static int parseAction(String action) throws IOException {
+        if(action == null || action.equalsIgnoreCase("sinkhole"))
+            return SINKHOLE;
+        if(action.equalsIgnoreCase("nxdomain"))
+            return NXDOMAIN;
+        throw new IOException("unknown block action \"" + action + "\"");
+    }
+
+    /** Gets the bit of a category, assigning the next free one to a new category */
+    private long categoryBit(String category) throws IOException {
+        Integer bit = categories.get(category);
+        if(bit == null) {
+            if(categories.size() == MAX_CATEGORIES)
+                throw new IOException("more than " + MAX_CATEGORIES + " block list categories");
+            bit = categories.size();
+            categories.put(category, bit);
+        }
+        return 1L << bit;
+    }
+
+    /** Gets the bits of a comma separated list of categories. Unknown categories are an error
+     * so that a typo in a policy doesn't silently unblock everything. */
+    private long categoryBits(String list) throws IOException {
+        long bits = 0;
+        for(String c : list.split(",")) {
+            c = c.trim();
+            if(c.isEmpty())
+                continue;
+            if(!categories.containsKey(c))
+                throw new IOException("unknown block list category \"" + c + "\"");
+            bits |= categoryBit(c);
+        }
+        return bits;
+    }
+
+    /** Loads a list file into a category.
+     * @param category The category of every name in the file.
+     * @param filename The list file. */
+    void load(String category, String filename) throws IOException {
+        long bit = categoryBit(category);
+        try (BufferedReader br = new BufferedReader(new FileReader(new File(filename)))) {
+            // Add each element (Website) to our index
+            String str;
+            while((str = br.readLine()) != null) {
+                String name = str.trim();
+                if(name.isEmpty() || name.charAt(0) == '#')
+                    continue;
+                if(name.length() > 2 && name.charAt(0) == '/' && name.endsWith("/")) {
+                    addPattern(name.substring(1, name.length() - 1), true, bit);
+                    continue;
+                }
+                int comment = name.indexOf('#');
+                if(comment >= 0)
+                    name = name.substring(0, comment).trim();
+                // Hosts file line: every name after the address
+                String[] tokens = WHITESPACE.split(name);
+                for(int i = tokens.length > 1 ? 1 : 0; i < tokens.length; i++)
+                    addEntry(tokens[i], bit);
+            }
+        }
+    }
+
+    /** Adds a name or a glob rule of a list file.
+     * @param name The name, "*.name" or glob.
+     * @param bit The bit of its category. */
+    private void addEntry(String name, long bit) throws IOException {
+        String wildcards = name.startsWith("*.") ? name.substring(2) : name;
+        if(wildcards.indexOf('*') >= 0 || wildcards.indexOf('?') >= 0)
+            addPattern(name, false, bit);
+        else
+            addName(name, bit);
+    }
+
+    /** Adds a name (or "*.name") to the index.
+     * @param name The blocked name.
+     * @param bit The bit of its category. */
+    void addName(String name, long bit) {
+        boolean subtree = name.startsWith("*.");
+        if(subtree)
+            name = name.substring(2);
+        if(name.endsWith("."))
+            name = name.substring(0, name.length() - 1);
+        if(name.isEmpty())
+            return;
+        name = name.toLowerCase();
+
+        if(size + 1 > names.length * MAX_LOAD)
+            grow();
+        int slot = findSlot(name);
+        if(names[slot] == null) {
+            names[slot] = name;
+            size++;
+        }
+        if(subtree)
+            subtreeBits[slot] |= bit;
+        else
+            exactBits[slot] |= bit;
+    }
+
+    /** Adds a pattern rule. The rules only take effect once compilePatterns() is called.
+     * @param rule The regex or glob.
+     * @param regex Whether the rule is a regex or a glob.
+     * @param bit The bit of its category. */
+    void addPattern(String rule, boolean regex, long bit) throws IOException {
+        if(patterns == null)
+            patterns = new PatternAutomaton();
+        if(rule.endsWith(".") && !regex)
+            rule = rule.substring(0, rule.length() - 1);
+        if(regex)
+            patterns.addRegex(rule, bit);
+        else
+            patterns.addGlob(rule, bit);
+    }
+
+    /** Compiles the pattern rules added so far into their automaton */
+    void compilePatterns() throws IOException {
+        if(patterns != null)
+            patterns.compile(maxPatternStates);
+    }
+
+    /** Gets the pattern rules
+     * @return the pattern automaton, null if no list has pattern rules */
+    PatternAutomaton getPatterns() {
+        return patterns;
+    }
+
+    /** Finds the slot of a stored name, or the empty slot where it belongs */
+    private int findSlot(String name) {
+        int slot = spread(name.hashCode()) & mask;
+        while(names[slot] != null && !names[slot].equals(name))
+            slot = (slot + 1) & mask;
+        return slot;
+    }
 
-        // Add each element (Website) to our set
-        String str;
-        while((str = br.readLine()) != null) {
-            blockListSet.add(str);
+    private void grow() {
+        String[] oldNames = names;
+        long[] oldExact = exactBits;
+        long[] oldSubtree = subtreeBits;
+        names = new String[oldNames.length * 2];
+        exactBits = new long[names.length];
+        subtreeBits = new long[names.length];
+        mask = names.length - 1;
+        for(int i = 0; i < oldNames.length; i++) {
+            if(oldNames[i] == null)
+                continue;
+            int slot = findSlot(oldNames[i]);
+            names[slot] = oldNames[i];
+            exactBits[slot] = oldExact[i];
+            subtreeBits[slot] = oldSubtree[i];
         }
     }
 
-    /** Checks if a given hostname is in the blocked set.
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Adds a client subnet to a policy.
+     * @param cidr Address or address/prefix.
+     * @param policy The policy of the subnet. */
+    void addClientRule(String cidr, Policy policy) throws IOException {
+        int slash = cidr.indexOf('/');
+        ClientRule rule = new ClientRule();
+        rule.network = InetAddress.getByName(slash < 0 ? cidr : cidr.substring(0, slash)).getAddress();
+        rule.prefix = slash < 0 ? rule.network.length * 8 : Integer.parseInt(cidr.substring(slash + 1));
+        if(rule.prefix < 0 || rule.prefix > rule.network.length * 8)
+            throw new IOException("bad prefix length in \"" + cidr + "\"");
+        rule.policy = policy;
+        if(rule.network.length == 4) {
+            rule.ipv4Mask = rule.prefix == 0 ? 0 : -1 << (32 - rule.prefix);
+            rule.ipv4Network = InetAddress.getByAddress(rule.network).hashCode() & rule.ipv4Mask;
+        }
+        rules.add(rule);
+
+        // Keep the rules of each family ordered by prefix length, longest first
+        List<ClientRule> v4 = new ArrayList<>();
+        List<ClientRule> v6 = new ArrayList<>();
+        for(ClientRule r : rules)
+            (r.network.length == 4 ? v4 : v6).add(r);
+        Comparator<ClientRule> longestFirst = new Comparator<ClientRule>() {
+            public int compare(ClientRule a, ClientRule b) {
+                return b.prefix - a.prefix;
+            }
+        };
+        Collections.sort(v4, longestFirst);
+        Collections.sort(v6, longestFirst);
+        ipv4Rules = v4.toArray(new ClientRule[0]);
+        ipv6Rules = v6.toArray(new ClientRule[0]);
+    }
+
+    /** Gets the policy of a client
+     * @param client The client address, null for the default policy.
+     * @return the policy of the longest matching subnet, or the default policy */
+    Policy policyFor(InetAddress client) {
+        if(client == null || rules.isEmpty())
+            return defaultPolicy;
+        if(client instanceof Inet4Address) {
+            // The hash code of an IPv4 address is the address itself, no copy needed
+            int addr = client.hashCode();
+            for(ClientRule r : ipv4Rules) {
+                if((addr & r.ipv4Mask) == r.ipv4Network)
+                    return r.policy;
+            }
+            return defaultPolicy;
+        }
+        byte[] addr = client.getAddress();
+        for(ClientRule r : ipv6Rules) {
+            if(prefixMatches(addr, r.network, r.prefix))
+                return r.policy;
+        }
+        return defaultPolicy;
+    }
+
+    private static boolean prefixMatches(byte[] addr, byte[] network, int prefix) {
+        int i = 0;
+        for(; prefix >= 8; prefix -= 8, i++) {
+            if(addr[i] != network[i])
+                return false;
+        }
+        if(prefix == 0)
+            return true;
+        int m = (0xFF << (8 - prefix)) & 0xFF;
+        return (addr[i] & m) == (network[i] & m);
+    }
+
+    /** Gets the categories that block a name: the exact categories of the name itself, the
+     * subtree categories of every enclosing name and those of the matching pattern rules.
+     * @param hostname The queried name, in any case.
+     * @return the category bitset, 0 if the name is not blocked */
+    long lookup(String hostname) {
+        long bits = patterns == null ? 0 : patterns.match(hostname);
+        if(size == 0)
+            return bits;
+        int n = hostname.length();
+        if(n > 0 && hostname.charAt(n - 1) == '.')
+            n--;
+        // String.hashCode() of every suffix, built from the end: h(i) = c(i) * 31^(n-1-i) + h(i+1)
+        int h = 0;
+        int pow = 1;
+        for(int i = n - 1; i >= 0; i--) {
+            char c = hostname.charAt(i);
+            if(c >= 'A' && c <= 'Z')
+                c += 32;
+            h += c * pow;
+            pow *= 31;
+            if(i == 0 || hostname.charAt(i - 1) == '.') {
+                int slot = find(hostname, i, n, h);
+                if(slot >= 0)
+                    bits |= i == 0 ? exactBits[slot] : subtreeBits[slot];
+            }
+        }
+        return bits;
+    }
+
+    /** Finds the slot of hostname[from, to) given its hash, -1 if it is not stored */
+    private int find(String hostname, int from, int to, int hash) {
+        int len = to - from;
+        for(int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            String name = names[slot];
+            if(name == null)
+                return -1;
+            if(name.length() == len && hostname.regionMatches(true, from, name, 0, len))
+                return slot;
+        }
+    }
+
+    /** Decides what to do with a query.
+     * @param hostname The queried name.
+     * @param client The client address, null for the default policy.
+     * @return ALLOW, SINKHOLE or NXDOMAIN */
+    int check(String hostname, InetAddress client) {
+        long bits = lookup(hostname);
+        if(bits == 0)
+            return ALLOW;
+        Policy p = policyFor(client);
+        return (bits & p.categories) != 0 ? p.action : ALLOW;
+    }
+
+    /** Checks if a given hostname is blocked by the default policy.
      * @param hostname The host website we are checking for.
      * @return A boolean indication of if the hostname is blocked
      */
     public boolean isBlocked(String hostname) {
-        boolean rc = false;
-        if(!blockListSet.isEmpty())
-        {
-            if(blockListSet.contains(hostname))
-                rc = true;
-        }
-        return rc;
+        return check(hostname, null) != ALLOW;
+    }
+
+    /** Gets the number of names in the index
+     * @return the name count */
+    int getSize() {
+        return size;
     }
-    
 }
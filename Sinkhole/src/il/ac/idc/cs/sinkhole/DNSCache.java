@@ -0,0 +1,239 @@
+package il.ac.idc.cs.sinkhole;
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/** This class is responsible for caching resolution results between requests.
+ * The answer cache keeps the wire-format response of every resolved question (including negative
+ * answers) in an AnswerStore until its smallest TTL runs out; the TTLs are decremented when a
+ * response is served.
+ * The delegation cache keeps the name server addresses of every zone cut seen in a referral, so a
+ * resolution can start at the closest known zone instead of a root server, and the names that a
+ * minimised query showed not to be zone cuts, so the next minimised resolutions skip their label.
+ * Times are wall-clock milliseconds so entries stay valid across a restart (see CacheSnapshot). */
+public class DNSCache {
+
+    /** The name servers of a zone */
+    static class Delegation {
+        String zone;
+        InetAddress[] servers;
+        long expiresAt;
+
+        Delegation(String zone, InetAddress[] servers, long expiresAt) {
+            this.zone = zone;
+            this.servers = servers;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    final private static int EVICTION_SCAN = 64;
+
+    private AnswerStore answers;
+    private Map<String, Delegation> delegations;
+    /** Names answered by the servers of an enclosing zone, to the time that is known until */
+    private Map<String, Long> noCuts;
+    private int maxEntries;
+    private long maxTTL;
+    private long negativeTTL;
+
+    /** Class constructor for a cache that keeps its answers on the heap.
+     * @param maxEntries Maximum number of answers and of delegations, 0 disables the cache.
+     * @param maxTTL Upper bound of the time an entry is kept, in seconds.
+     * @param negativeTTL Time a negative answer without SOA is kept, in seconds.
+     */
+    public DNSCache(int maxEntries, long maxTTL, long negativeTTL) {
+        this(new HeapAnswerStore(maxEntries, Runtime.getRuntime().availableProcessors()), maxEntries, maxTTL, negativeTTL);
+    }
+
+    /** Class constructor.
+     * @param answers Where the answers are kept.
+     * @param maxEntries Maximum number of delegations, 0 disables the cache.
+     * @param maxTTL Upper bound of the time an entry is kept, in seconds.
+     * @param negativeTTL Time a negative answer without SOA is kept, in seconds.
+     */
+    public DNSCache(AnswerStore answers, int maxEntries, long maxTTL, long negativeTTL) {
+        this.answers = answers;
+        this.maxEntries = maxEntries;
+        this.maxTTL = maxTTL;
+        this.negativeTTL = negativeTTL;
+        delegations = new ConcurrentHashMap<>();
+        noCuts = new ConcurrentHashMap<>();
+    }
+
+    /** Creates the cache described by the sinkhole settings.
+     * @param config sinkhole settings
+     * @return the cache */
+    static DNSCache fromConfig(SinkholeConfig config) {
+        AnswerStore store;
+        if(config.cacheOffHeap)
+            store = new OffHeapAnswerStore(config.cacheSegments, (long) config.cacheOffHeapMB * 1024 * 1024);
+        else
+            store = new HeapAnswerStore(config.cacheSize, config.cacheSegments);
+        return new DNSCache(store, config.cacheSize, config.cacheMaxTTL, config.cacheNegativeTTL);
+    }
+
+    /** Copies a cached response into a buffer, with its TTLs decremented by the time it spent
+     * in the cache. The ID of the copy still has to be set by the caller.
+     * @param qname Queried host.
+     * @param qtype Query type.
+     * @param out Buffer to copy the response into.
+     * @return the response length, or -1 if the question is not cached */
+    int getAnswer(String qname, int qtype, byte[] out) {
+        if(maxEntries == 0)
+            return -1;
+        return answers.get(qname.toLowerCase(), qtype, System.currentTimeMillis(), out);
+    }
+
+    /** Caches a final response for its smallest TTL.
+     * @param qname Queried host.
+     * @param qtype Query type.
+     * @param response The response as sent to the client.
+     * @param len Response length.
+     */
+    void putAnswer(String qname, int qtype, byte[] response, int len) {
+        if(maxEntries == 0)
+            return;
+        long ttl = DNSWire.minTTL(response, len);
+        if(ttl < 0)
+            return;
+        // A negative answer without SOA has no TTL of its own
+        if(ttl == Long.MAX_VALUE)
+            ttl = negativeTTL;
+        ttl = Math.min(ttl, maxTTL);
+        if(ttl == 0)
+            return;
+        long now = System.currentTimeMillis();
+        answers.put(qname.toLowerCase(), qtype, response, len, now, now + ttl * 1000);
+    }
+
+    /** Gets the answer store, e.g. to snapshot or restore it
+     * @return the answer store */
+    AnswerStore getAnswerStore() {
+        return answers;
+    }
+
+    /** Finds the deepest cached zone cut enclosing a name.
+     * @param qname The name being resolved.
+     * @return the delegation, or null if only the root servers are known */
+    Delegation findDelegation(String qname) {
+        if(maxEntries == 0)
+            return null;
+        String zone = qname.toLowerCase();
+        long now = System.currentTimeMillis();
+        while(!zone.isEmpty()) {
+            Delegation d = delegations.get(zone);
+            if(d != null) {
+                if(now < d.expiresAt)
+                    return d;
+                delegations.remove(zone, d);
+            }
+            int dot = zone.indexOf('.');
+            zone = dot < 0 ? "" : zone.substring(dot + 1);
+        }
+        return null;
+    }
+
+    /** Caches the name servers of a zone.
+     * @param zone The delegated zone.
+     * @param servers Name server addresses.
+     * @param ttl TTL of the NS records, in seconds.
+     */
+    void putDelegation(String zone, InetAddress[] servers, long ttl) {
+        if(maxEntries == 0 || servers.length == 0 || zone.isEmpty())
+            return;
+        ttl = Math.min(ttl, maxTTL);
+        if(ttl <= 0)
+            return;
+        putDelegation(new Delegation(zone.toLowerCase(), servers, System.currentTimeMillis() + ttl * 1000));
+    }
+
+    /** Remembers that a name is not a zone cut: the servers of its zone answered for it.
+     * @param name The name.
+     * @param ttl TTL of the answer, in seconds, Long.MAX_VALUE if it had no records.
+     */
+    void putNoCut(String name, long ttl) {
+        if(maxEntries == 0 || ttl < 0)
+            return;
+        if(ttl == Long.MAX_VALUE)
+            ttl = negativeTTL;
+        ttl = Math.min(ttl, maxTTL);
+        if(ttl <= 0)
+            return;
+        if(noCuts.size() >= maxEntries)
+            evict(noCuts, EVICTION_SCAN, Long::longValue);
+        noCuts.put(name.toLowerCase(), System.currentTimeMillis() + ttl * 1000);
+    }
+
+    /** Checks whether a name is known not to be a zone cut
+     * @param name The name.
+     * @return true if the servers of an enclosing zone answered for it */
+    boolean isNoCut(String name) {
+        if(maxEntries == 0)
+            return false;
+        Long expiresAt = noCuts.get(name);
+        if(expiresAt == null)
+            return false;
+        if(System.currentTimeMillis() < expiresAt)
+            return true;
+        noCuts.remove(name, expiresAt);
+        return false;
+    }
+
+    /** Stores a delegation entry as is, e.g. one read back from a snapshot */
+    void putDelegation(Delegation d) {
+        if(delegations.size() >= maxEntries)
+            evict(delegations, EVICTION_SCAN, e -> e.expiresAt);
+        delegations.put(d.zone, d);
+    }
+
+    /** Makes room for a new entry in a bounded map: drops the expired entries among the first few,
+     * or the first one if none of them has expired.
+     * @param map The map, whose iterators must support remove.
+     * @param scan Number of entries to look at.
+     * @param expiresAt Gets the expiry time of an entry, in wall-clock milliseconds.
+     */
+    static <V> void evict(Map<?, V> map, int scan, ToLongFunction<V> expiresAt) {
+        long now = System.currentTimeMillis();
+        Iterator<V> it = map.values().iterator();
+        boolean removed = false;
+        for(int i = 0; i < scan && it.hasNext(); i++) {
+            if(expiresAt.applyAsLong(it.next()) <= now) {
+                it.remove();
+                removed = true;
+            }
+        }
+        if(!removed) {
+            it = map.values().iterator();
+            if(it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    /** Gets all the delegation entries, for snapshots
+     * @return the delegation map */
+    Map<String, Delegation> getDelegations() {
+        return delegations;
+    }
+
+    /** Gets the number of cached answers
+     * @return answer count */
+    int getAnswerCount() {
+        return answers.size();
+    }
+
+    /** Gets the number of cached delegations
+     * @return delegation count */
+    int getDelegationCount() {
+        return delegations.size();
+    }
+
+    /** Gets the number of names known not to be zone cuts
+     * @return name count */
+    int getNoCutCount() {
+        return noCuts.size();
+    }
+}
@@ -0,0 +1,429 @@
+package il.ac.idc.cs.sinkhole;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** This class is responsible for collecting the counters and histograms of the resolver pipeline.
+ * Every record method is lock-free so it can be called from the receive and resolver threads,
+ * the values are only aggregated when they are exported. */
+public class DNSMetrics {
+
+    /** The reasons for which a packet is dropped without a reply */
+    enum Drop {
+        RECEIVE_ERROR,
+        SEND_ERROR,
+        UPSTREAM_ERROR,
+        NO_ANSWER,
+        RATE_LIMITED,
+        RESPONSE_RATE_LIMITED,
+        DRAINING,
+        /** The request queue was full, the resolver threads are behind */
+        QUEUE_FULL,
+        /** Handling the request threw, e.g. on a malformed packet */
+        REQUEST_ERROR
+    }
+
+    /** What QNAME minimisation did */
+    enum Minimisation {
+        /** A query was sent with a minimised name */
+        QUERY,
+        /** A label was skipped because the name is known not to be a zone cut */
+        LABEL_SKIPPED,
+        /** A minimised query showed that its name is not a zone cut */
+        NO_CUT,
+        /** A server failed a minimised query, the full name was sent instead */
+        FALLBACK
+    }
+
+    final private static int[] TRACKED_QTYPES = {1, 2, 5, 6, 12, 15, 16, 28, 33, 255};
+    final private static String[] QTYPE_NAMES = {"A", "NS", "CNAME", "SOA", "PTR", "MX", "TXT", "AAAA", "SRV", "ANY", "OTHER"};
+    final private static int NUM_RCODES = 16;
+    final private static int MAX_ITERATIONS = 32;
+    final private static int MAX_UPSTREAM_SERVERS = 1024;
+    final private static double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private LongAdder[] responses;
+    private LongAdder receivedPackets;
+    private LongAdder blockedHits;
+    private LongAdder cacheHits;
+    private LongAdder cacheMisses;
+    private LongAdder upstreamTimeouts;
+    private LongAdder[] minimisation;
+    private LongAdder[] validations;
+    private LongAdder signaturesVerified;
+    private LongAdder signaturesMemoised;
+    private LongAdder[] droppedPackets;
+    private AtomicLongArray iterations;
+    private LatencyHistogram resolutionLatency;
+    private LatencyHistogram queueWait;
+    private LatencyHistogram otherUpstreamRTT;
+    private Map<InetAddress, LatencyHistogram> upstreamRTT;
+    private SynchronizedQueue<?> queue;
+    private QueryLog queryLog;
+    private WorkerPool workers;
+    private TraceCollector traces;
+    private DNSCache cache;
+    private DNSSECValidator validator;
+    private volatile boolean ready;
+
+    /** Class constructor */
+    public DNSMetrics() {
+        responses = newAdders(QTYPE_NAMES.length * NUM_RCODES);
+        droppedPackets = newAdders(Drop.values().length);
+        receivedPackets = new LongAdder();
+        blockedHits = new LongAdder();
+        cacheHits = new LongAdder();
+        cacheMisses = new LongAdder();
+        upstreamTimeouts = new LongAdder();
+        minimisation = newAdders(Minimisation.values().length);
+        validations = newAdders(DNSSECValidator.RESULT_NAMES.length);
+        signaturesVerified = new LongAdder();
+        signaturesMemoised = new LongAdder();
+        iterations = new AtomicLongArray(MAX_ITERATIONS + 1);
+        resolutionLatency = new LatencyHistogram();
+        queueWait = new LatencyHistogram();
+        otherUpstreamRTT = new LatencyHistogram();
+        upstreamRTT = new ConcurrentHashMap<>();
+    }
+
+    private static LongAdder[] newAdders(int size) {
+        LongAdder[] adders = new LongAdder[size];
+        for(int i = 0; i < size; i++)
+            adders[i] = new LongAdder();
+        return adders;
+    }
+
+    /** Gets the index of a query type in the QTYPE_NAMES table
+     * @param qtype The query type.
+     * @return the index, the last index is used for all the untracked types */
+    private static int qtypeIndex(int qtype) {
+        for(int i = 0; i < TRACKED_QTYPES.length; i++) {
+            if(TRACKED_QTYPES[i] == qtype)
+                return i;
+        }
+        return TRACKED_QTYPES.length;
+    }
+
+    /** Attaches the request queue so its depth and wait time are exported.
+     * @param queue The request queue. */
+    void watchQueue(SynchronizedQueue<?> queue) {
+        this.queue = queue;
+        queue.setWaitHistogram(queueWait);
+    }
+
+    /** Gets the time the requests waited in the queue, in microseconds
+     * @return the queue wait histogram */
+    LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    /** Attaches the resolver thread pool so its size and the time breakdown of its threads are exported.
+     * @param workers The resolver thread pool. */
+    void watchWorkers(WorkerPool workers) {
+        this.workers = workers;
+    }
+
+    /** Attaches the trace collector, so the resolver threads trace the sampled queries into it
+     * and /traces serves them.
+     * @param traces The trace collector, or null if tracing is disabled. */
+    void watchTraces(TraceCollector traces) {
+        this.traces = traces;
+    }
+
+    /** Gets the trace collector
+     * @return the collector, or null if tracing is disabled */
+    TraceCollector getTraces() {
+        return traces;
+    }
+
+    /** Attaches the query log so its written and dropped records are exported.
+     * @param queryLog The query log. */
+    void watchQueryLog(QueryLog queryLog) {
+        this.queryLog = queryLog;
+    }
+
+    /** Attaches the caches so their sizes are exported.
+     * @param cache The caches. */
+    void watchCache(DNSCache cache) {
+        this.cache = cache;
+    }
+
+    /** Attaches the DNSSEC validator so its trusted zones are exported.
+     * @param validator The validator. */
+    void watchValidator(DNSSECValidator validator) {
+        this.validator = validator;
+    }
+
+    /** Sets whether the sinkhole should get traffic: only once its caches are warm, and no more
+     * once it started draining.
+     * @param ready true if ready */
+    void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    /** Checks whether the sinkhole should get traffic
+     * @return true if ready */
+    boolean isReady() {
+        return ready;
+    }
+
+    /** Counts a packet read from the sinkhole socket */
+    void recordReceived() {
+        receivedPackets.increment();
+    }
+
+    /** Counts a reply sent to a client.
+     * @param qtype The query type, or 0 if the request could not be parsed.
+     * @param rcode The R-code of the reply. */
+    void recordResponse(int qtype, int rcode) {
+        responses[qtypeIndex(qtype) * NUM_RCODES + (rcode & 0x0F)].increment();
+    }
+
+    /** Counts a request for a blocked host */
+    void recordBlocked() {
+        blockedHits.increment();
+    }
+
+    /** Counts a cache lookup.
+     * @param hit Whether the lookup was answered from the cache. */
+    void recordCacheLookup(boolean hit) {
+        if(hit)
+            cacheHits.increment();
+        else
+            cacheMisses.increment();
+    }
+
+    /** Counts a packet that was dropped without a reply.
+     * @param reason Why the packet was dropped. */
+    void recordDrop(Drop reason) {
+        droppedPackets[reason.ordinal()].increment();
+    }
+
+    /** Records the number of upstream queries a resolution needed.
+     * @param count Number of iterations. */
+    void recordIterations(int count) {
+        iterations.incrementAndGet(Math.min(Math.max(count, 0), MAX_ITERATIONS));
+    }
+
+    /** Records the total time spent resolving a request.
+     * @param startNanos System.nanoTime() when the request was dequeued. */
+    void recordResolution(long startNanos) {
+        resolutionLatency.recordSince(startNanos);
+    }
+
+    /** Counts an upstream query that was not answered in time */
+    void recordUpstreamTimeout() {
+        upstreamTimeouts.increment();
+    }
+
+    /** Records the round trip time of a single upstream query.
+     * The number of distinct servers is capped, later servers are accounted together.
+     * @param server The upstream server.
+     * @param startNanos System.nanoTime() when the query was sent. */
+    void recordUpstreamRTT(InetAddress server, long startNanos) {
+        LatencyHistogram h = upstreamRTT.get(server);
+        if(h == null) {
+            if(upstreamRTT.size() >= MAX_UPSTREAM_SERVERS)
+                h = otherUpstreamRTT;
+            else
+                h = upstreamRTT.computeIfAbsent(server, k -> new LatencyHistogram());
+        }
+        h.recordSince(startNanos);
+    }
+
+    /** Counts a step of QNAME minimisation.
+     * @param event What happened. */
+    void recordMinimisation(Minimisation event) {
+        minimisation[event.ordinal()].increment();
+    }
+
+    /** Counts a validated answer.
+     * @param result DNSSECValidator.SECURE, INSECURE or BOGUS. */
+    void recordValidation(int result) {
+        validations[result].increment();
+    }
+
+    /** Counts a signature check.
+     * @param memoised Whether the result was known from an earlier check of the same signature. */
+    void recordSignatureCheck(boolean memoised) {
+        if(memoised)
+            signaturesMemoised.increment();
+        else
+            signaturesVerified.increment();
+    }
+
+    /** Gets the number of resolutions that queried upstream
+     * @return resolution count */
+    long getResolutionCount() {
+        long n = 0;
+        for(int i = 1; i <= MAX_ITERATIONS; i++)
+            n += iterations.get(i);
+        return n;
+    }
+
+    /** Gets the number of upstream queries of all the resolutions
+     * @return query count */
+    long getUpstreamQueryCount() {
+        long n = 0;
+        for(int i = 1; i <= MAX_ITERATIONS; i++)
+            n += iterations.get(i) * i;
+        return n;
+    }
+
+    /** Gets the number of packets dropped for a reason
+     * @param reason Why the packets were dropped.
+     * @return drop count */
+    long getDropCount(Drop reason) {
+        return droppedPackets[reason.ordinal()].sum();
+    }
+
+    /** Gets the number of times QNAME minimisation did something
+     * @param event What it did.
+     * @return event count */
+    long getMinimisationCount(Minimisation event) {
+        return minimisation[event.ordinal()].sum();
+    }
+
+    /** Writes all the metrics in the Prometheus text exposition format.
+     * @param sb The output buffer. */
+    void writePrometheus(StringBuilder sb) {
+        sb.append("# TYPE sinkhole_received_packets_total counter\n");
+        sb.append("sinkhole_received_packets_total ").append(receivedPackets.sum()).append('\n');
+
+        sb.append("# TYPE sinkhole_responses_total counter\n");
+        for(int t = 0; t < QTYPE_NAMES.length; t++) {
+            for(int r = 0; r < NUM_RCODES; r++) {
+                long v = responses[t * NUM_RCODES + r].sum();
+                if(v == 0)
+                    continue;
+                sb.append("sinkhole_responses_total{qtype=\"").append(QTYPE_NAMES[t]);
+                sb.append("\",rcode=\"").append(r).append("\"} ").append(v).append('\n');
+            }
+        }
+
+        sb.append("# TYPE sinkhole_ready gauge\n");
+        sb.append("sinkhole_ready ").append(ready ? 1 : 0).append('\n');
+        sb.append("# TYPE sinkhole_blocked_total counter\n");
+        sb.append("sinkhole_blocked_total ").append(blockedHits.sum()).append('\n');
+        sb.append("# TYPE sinkhole_cache_hits_total counter\n");
+        sb.append("sinkhole_cache_hits_total ").append(cacheHits.sum()).append('\n');
+        sb.append("# TYPE sinkhole_cache_misses_total counter\n");
+        sb.append("sinkhole_cache_misses_total ").append(cacheMisses.sum()).append('\n');
+
+        if(cache != null) {
+            sb.append("# TYPE sinkhole_cache_entries gauge\n");
+            sb.append("sinkhole_cache_entries{cache=\"answer\"} ").append(cache.getAnswerCount()).append('\n');
+            sb.append("sinkhole_cache_entries{cache=\"delegation\"} ").append(cache.getDelegationCount()).append('\n');
+            sb.append("sinkhole_cache_entries{cache=\"nocut\"} ").append(cache.getNoCutCount()).append('\n');
+        }
+
+        sb.append("# TYPE sinkhole_qname_minimisation_total counter\n");
+        for(Minimisation m : Minimisation.values()) {
+            sb.append("sinkhole_qname_minimisation_total{event=\"").append(m.name().toLowerCase());
+            sb.append("\"} ").append(minimisation[m.ordinal()].sum()).append('\n');
+        }
+
+        if(validator != null) {
+            sb.append("# TYPE sinkhole_dnssec_validations_total counter\n");
+            for(int i = 0; i < validations.length; i++) {
+                sb.append("sinkhole_dnssec_validations_total{result=\"").append(DNSSECValidator.RESULT_NAMES[i]);
+                sb.append("\"} ").append(validations[i].sum()).append('\n');
+            }
+            sb.append("# TYPE sinkhole_dnssec_signatures_total counter\n");
+            sb.append("sinkhole_dnssec_signatures_total{check=\"verified\"} ").append(signaturesVerified.sum()).append('\n');
+            sb.append("sinkhole_dnssec_signatures_total{check=\"memoised\"} ").append(signaturesMemoised.sum()).append('\n');
+            sb.append("# TYPE sinkhole_dnssec_trusted_zones gauge\n");
+            sb.append("sinkhole_dnssec_trusted_zones ").append(validator.getTrustedZoneCount()).append('\n');
+        }
+
+        sb.append("# TYPE sinkhole_dropped_packets_total counter\n");
+        for(Drop d : Drop.values()) {
+            sb.append("sinkhole_dropped_packets_total{reason=\"").append(d.name().toLowerCase());
+            sb.append("\"} ").append(droppedPackets[d.ordinal()].sum()).append('\n');
+        }
+
+        sb.append("# TYPE sinkhole_resolution_iterations histogram\n");
+        long cumulative = 0;
+        long sum = 0;
+        for(int i = 0; i <= MAX_ITERATIONS; i++) {
+            long v = iterations.get(i);
+            cumulative += v;
+            sum += v * i;
+            sb.append("sinkhole_resolution_iterations_bucket{le=\"").append(i).append("\"} ").append(cumulative).append('\n');
+        }
+        sb.append("sinkhole_resolution_iterations_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append("sinkhole_resolution_iterations_sum ").append(sum).append('\n');
+        sb.append("sinkhole_resolution_iterations_count ").append(cumulative).append('\n');
+
+        if(queue != null) {
+            sb.append("# TYPE sinkhole_queue_depth gauge\n");
+            sb.append("sinkhole_queue_depth ").append(queue.getSize()).append('\n');
+            sb.append("# TYPE sinkhole_queue_capacity gauge\n");
+            sb.append("sinkhole_queue_capacity ").append(queue.getCapacity()).append('\n');
+        }
+
+        if(queryLog != null) {
+            sb.append("# TYPE sinkhole_querylog_written_total counter\n");
+            sb.append("sinkhole_querylog_written_total ").append(queryLog.getWritten()).append('\n');
+            sb.append("# TYPE sinkhole_querylog_dropped_total counter\n");
+            sb.append("sinkhole_querylog_dropped_total ").append(queryLog.getDropped()).append('\n');
+        }
+
+        if(workers != null) {
+            sb.append("# TYPE sinkhole_workers gauge\n");
+            sb.append("sinkhole_workers ").append(workers.getSize()).append('\n');
+            sb.append("sinkhole_workers{bound=\"min\"} ").append(workers.getMinWorkers()).append('\n');
+            sb.append("sinkhole_workers{bound=\"max\"} ").append(workers.getMaxWorkers()).append('\n');
+            sb.append("# TYPE sinkhole_worker_resizes_total counter\n");
+            sb.append("sinkhole_worker_resizes_total{direction=\"grow\"} ").append(workers.getGrowCount()).append('\n');
+            sb.append("sinkhole_worker_resizes_total{direction=\"shrink\"} ").append(workers.getShrinkCount()).append('\n');
+            sb.append("# TYPE sinkhole_worker_replacements_total counter\n");
+            sb.append("sinkhole_worker_replacements_total ").append(workers.getReplaceCount()).append('\n');
+            sb.append("# TYPE sinkhole_worker_seconds_total counter\n");
+            for(WorkerPool.Worker w : workers.getWorkers()) {
+                writeWorkerSeconds(sb, w.name, "cpu", w.cpuNanos);
+                writeWorkerSeconds(sb, w.name, "upstream", w.upstreamNanos);
+                writeWorkerSeconds(sb, w.name, "idle", w.idleNanos);
+            }
+        }
+
+        writeSummary(sb, "sinkhole_queue_wait_microseconds", "", queueWait, true);
+        writeSummary(sb, "sinkhole_resolution_microseconds", "", resolutionLatency, true);
+
+        sb.append("# TYPE sinkhole_upstream_timeouts_total counter\n");
+        sb.append("sinkhole_upstream_timeouts_total ").append(upstreamTimeouts.sum()).append('\n');
+        sb.append("# TYPE sinkhole_upstream_rtt_microseconds summary\n");
+        for(Map.Entry<InetAddress, LatencyHistogram> e : upstreamRTT.entrySet()) {
+            String label = "server=\"" + e.getKey().getHostAddress() + "\"";
+            writeSummary(sb, "sinkhole_upstream_rtt_microseconds", label, e.getValue(), false);
+        }
+        if(otherUpstreamRTT.getCount() > 0)
+            writeSummary(sb, "sinkhole_upstream_rtt_microseconds", "server=\"other\"", otherUpstreamRTT, false);
+    }
+
+    private static void writeWorkerSeconds(StringBuilder sb, String worker, String state, long nanos) {
+        sb.append("sinkhole_worker_seconds_total{worker=\"").append(worker).append("\",state=\"").append(state);
+        sb.append("\"} ").append(nanos / 1e9).append('\n');
+    }
+
+    /** Writes a histogram as a Prometheus summary.
+     * @param sb The output buffer.
+     * @param name Metric name.
+     * @param labels Extra labels, may be empty.
+     * @param h The histogram.
+     * @param withType Whether to write the TYPE line. */
+    static void writeSummary(StringBuilder sb, String name, String labels, LatencyHistogram h, boolean withType) {
+        if(withType)
+            sb.append("# TYPE ").append(name).append(" summary\n");
+        String sep = labels.isEmpty() ? "" : ",";
+        for(double q : QUANTILES) {
+            sb.append(name).append("{").append(labels).append(sep).append("quantile=\"").append(q).append("\"} ");
+            sb.append(h.getValueAtPercentile(q * 100)).append('\n');
+        }
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        sb.append(name).append("_sum").append(braces).append(' ').append(h.getSum()).append('\n');
+        sb.append(name).append("_count").append(braces).append(' ').append(h.getCount()).append('\n');
+    }
+}
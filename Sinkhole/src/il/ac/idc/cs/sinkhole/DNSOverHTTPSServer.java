@@ -0,0 +1,195 @@
+package il.ac.idc.cs.sinkhole;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+
+/** This class is responsible for the DNS-over-HTTPS listener (RFC 8484).
+ * Queries come as the body of a POST or in the base64url "dns" parameter of a GET, both as
+ * application/dns-message, and the reply is cacheable for the smallest TTL of its records. A query the
+ * sinkhole drops is answered at once: 400 if it is malformed, 429 if its client is rate limited and 503
+ * if the sinkhole is overloaded or shutting down; 504 is only for a reply that doesn't come in time.
+ * The JDK HTTP server only speaks HTTP/1.1: connections are kept alive between requests and a client
+ * sends parallel queries over parallel connections, which share the TLS session cache. */
+public class DNSOverHTTPSServer {
+
+    final private static String DNS_MESSAGE = "application/dns-message";
+    final private static int MAX_MESSAGE = 65535;
+
+    /** Waits for the reply to one query */
+    private static class PendingReply implements StreamReplies.Connection {
+        private byte[] message;
+        private int length;
+
+        public synchronized void reply(byte[] message, int length) {
+            this.message = message;
+            this.length = length;
+            notifyAll();
+        }
+
+        /** Waits for the reply.
+         * @param timeoutMillis How long to wait.
+         * @return true if the reply came in time */
+        synchronized boolean await(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while(message == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0)
+                    return false;
+                wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    private HttpsServer server;
+    private ExecutorService executor;
+
+    /** Class constructor.
+     * @param config sinkhole settings
+     * @param context TLS keys and session cache
+     * @param sinkhole Where the queries go.
+     */
+    DNSOverHTTPSServer(SinkholeConfig config, SSLContext context, final SinkholeServer sinkhole) throws IOException {
+        final int timeoutMillis = config.dohTimeoutMillis;
+        server = HttpsServer.create(new InetSocketAddress(config.dohPort), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(context));
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(config.dohThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "doh-" + threadCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext(config.dohPath, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    byte[] query = readQuery(exchange);
+                    if(query == null)
+                        return;
+                    PendingReply pending = new PendingReply();
+                    // A dropped query is told at once, the client doesn't wait for a reply that never comes
+                    switch(sinkhole.submitStream(query, query.length, exchange.getRemoteAddress().getAddress(), pending)) {
+                        case MALFORMED:
+                            send(exchange, 400, null, 0);
+                            return;
+                        case RATE_LIMITED:
+                            send(exchange, 429, null, 0);
+                            return;
+                        case UNAVAILABLE:
+                        case DRAINING:
+                            send(exchange, 503, null, 0);
+                            return;
+                        default:
+                            break;
+                    }
+                    if(!pending.await(timeoutMillis)) {
+                        send(exchange, 504, null, 0);
+                        return;
+                    }
+                    long ttl = DNSWire.minTTL(pending.message, pending.length);
+                    if(ttl >= 0 && ttl != Long.MAX_VALUE)
+                        exchange.getResponseHeaders().set("Cache-Control", "max-age=" + ttl);
+                    exchange.getResponseHeaders().set("Content-Type", DNS_MESSAGE);
+                    send(exchange, 200, pending.message, pending.length);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    send(exchange, 503, null, 0);
+                }
+            }
+        });
+    }
+
+    /** Reads the query of a request, or answers the request with an error.
+     * @param exchange The HTTP exchange.
+     * @return the DNS message, or null if the request was answered with an error */
+    private static byte[] readQuery(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if("GET".equals(method)) {
+            String param = exchange.getRequestURI().getRawQuery();
+            String encoded = null;
+            if(param != null) {
+                for(String p : param.split("&")) {
+                    if(p.startsWith("dns="))
+                        encoded = p.substring(4);
+                }
+            }
+            if(encoded == null) {
+                send(exchange, 400, null, 0);
+                return null;
+            }
+            try {
+                return Base64.getUrlDecoder().decode(encoded);
+            }
+            catch (IllegalArgumentException ex) {
+                send(exchange, 400, null, 0);
+                return null;
+            }
+        }
+        if("POST".equals(method)) {
+            String type = exchange.getRequestHeaders().getFirst("Content-Type");
+            if(type == null || !type.startsWith(DNS_MESSAGE)) {
+                send(exchange, 415, null, 0);
+                return null;
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream(512);
+            byte[] buf = new byte[4096];
+            try (InputStream in = exchange.getRequestBody()) {
+                for(int n; (n = in.read(buf)) > 0; ) {
+                    body.write(buf, 0, n);
+                    if(body.size() > MAX_MESSAGE) {
+                        send(exchange, 413, null, 0);
+                        return null;
+                    }
+                }
+            }
+            return body.toByteArray();
+        }
+        exchange.getResponseHeaders().set("Allow", "GET, POST");
+        send(exchange, 405, null, 0);
+        return null;
+    }
+
+    /** Sends a reply and closes the exchange.
+     * @param exchange The HTTP exchange.
+     * @param status HTTP status code.
+     * @param body Reply body, or null for none.
+     * @param length Body length. */
+    private static void send(HttpExchange exchange, int status, byte[] body, int length) throws IOException {
+        if(body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(status, length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body, 0, length);
+        }
+    }
+
+    /** Starts serving requests */
+    void start() {
+        server.start();
+    }
+
+    /** Stops accepting connections, lets the requests in progress finish and closes the listener.
+     * @param delaySeconds Time to let the requests in progress finish. */
+    void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,273 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+
+/** This class is responsible for the DNS-over-TLS listener (RFC 7858).
+ * Every connection gets a thread reading the length prefixed queries (RFC 1035 4.2.2) one after the
+ * other without waiting for their replies, which are written back in the order they are resolved
+ * (RFC 7766 6.2.1.1). The resolver threads only queue the replies, a writer thread per connection writes
+ * them, so a client that doesn't read can't hold up resolution: once sinkhole.dot.pending replies wait
+ * for it, its connection is closed. A connection stays open for more queries until it is idle for
+ * sinkhole.dot.idle ms; then, or once the client is done sending, it stops reading and the writer sends
+ * the replies still to come, for up to sinkhole.dot.timeout ms, before the connection is closed.
+ * TLS sessions are cached, and resumed with TLS 1.3 tickets or TLS 1.2 session IDs. */
+public class DNSOverTLSServer implements Runnable {
+
+    final private static int MAX_MESSAGE = 65535;
+
+    /** One client connection */
+    private class Connection implements StreamReplies.Connection {
+        final Socket socket;
+        final BlockingQueue<byte[]> replies;
+        volatile boolean closed;
+        Thread writer;
+        /** Queries read whose reply is not flushed yet, guarded by the connection */
+        int unanswered;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+            this.replies = new ArrayBlockingQueue<>(maxPendingReplies);
+        }
+
+        /** Queues a reply for the writer thread, without ever blocking the calling resolver thread */
+        public void reply(byte[] message, int length) {
+            if(closed)
+                return;
+            if(length != message.length)
+                message = Arrays.copyOf(message, length);
+            if(!replies.offer(message)) {
+                // The client doesn't read its replies
+                close();
+            }
+        }
+
+        /** Writes the queued replies until the connection is closed */
+        void write() {
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), MAX_MESSAGE + 2);
+                int written = 0;
+                while(!closed) {
+                    byte[] message = replies.take();
+                    out.write(message.length >>> 8);
+                    out.write(message.length);
+                    out.write(message);
+                    written++;
+                    // The replies that are ready go out together
+                    if(replies.isEmpty()) {
+                        out.flush();
+                        answered(written);
+                        written = 0;
+                    }
+                }
+            }
+            catch (InterruptedException ex) {
+                // Closed while waiting for a reply
+            }
+            catch (IOException ex) {
+                close();
+            }
+        }
+
+        /** Counts the replies sent, or the queries that get none.
+         * @param count How many. */
+        synchronized void answered(int count) {
+            unanswered -= count;
+            if(unanswered <= 0)
+                notifyAll();
+        }
+
+        /** Reads the queries until the client closes the connection, stays idle or the sinkhole drains,
+         * then lets the replies still to come go out before closing */
+        void serve() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while(true) {
+                    int length;
+                    try {
+                        length = in.readUnsignedShort();
+                    }
+                    catch (EOFException | SocketTimeoutException ex) {
+                        break;
+                    }
+                    byte[] query = new byte[length];
+                    in.readFully(query);
+                    synchronized(this) {
+                        unanswered++;
+                    }
+                    SinkholeServer.Submitted submitted = server.submitStream(query, length, socket.getInetAddress(), this);
+                    if(submitted != SinkholeServer.Submitted.ANSWERED && submitted != SinkholeServer.Submitted.QUEUED)
+                        answered(1);
+                    if(submitted == SinkholeServer.Submitted.DRAINING)
+                        break;
+                }
+            }
+            catch (IOException ex) {
+                // Handshake failures and reset connections end here, nothing more can be written
+                close();
+                return;
+            }
+            finish();
+        }
+
+        /** Waits until the replies still to come are written, or for sinkhole.dot.timeout ms, and closes
+         * the connection */
+        void finish() {
+            long deadline = System.currentTimeMillis() + replyTimeoutMillis;
+            try {
+                synchronized(this) {
+                    while(unanswered > 0 && !closed) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if(remaining <= 0)
+                            break;
+                        wait(remaining);
+                    }
+                }
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            close();
+        }
+
+        void close() {
+            synchronized(this) {
+                closed = true;
+                notifyAll();
+            }
+            if(writer != null)
+                writer.interrupt();
+            try {
+                socket.close();
+            }
+            catch (IOException ex) {
+            }
+            connections.remove(this);
+        }
+    }
+
+    private SinkholeServer server;
+    private SSLServerSocket serverSocket;
+    private int idleMillis;
+    private int maxConnections;
+    private int maxPendingReplies;
+    private int replyTimeoutMillis;
+    private Set<Connection> connections;
+
+    /** Class constructor.
+     * @param config sinkhole settings
+     * @param context TLS keys and session cache
+     * @param server Where the queries go.
+     */
+    DNSOverTLSServer(SinkholeConfig config, SSLContext context, SinkholeServer server) throws IOException {
+        this.server = server;
+        this.idleMillis = config.dotIdleMillis;
+        this.maxConnections = config.dotConnections;
+        this.maxPendingReplies = Math.max(config.dotPendingReplies, 1);
+        this.replyTimeoutMillis = config.dotReplyTimeoutMillis;
+        connections = ConcurrentHashMap.newKeySet();
+        serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(config.dotPort));
+    }
+
+    /** Loads the TLS key and certificate of the encrypted listeners and sets up their session cache.
+     * @param config sinkhole settings
+     * @return the TLS context */
+    static SSLContext createContext(SinkholeConfig config) throws IOException, GeneralSecurityException {
+        if(config.tlsKeyStore == null)
+            throw new IOException("sinkhole.tls.keystore is not set");
+        char[] password = config.tlsKeyStorePassword.toCharArray();
+        KeyStore keys = KeyStore.getInstance(config.tlsKeyStore.endsWith(".jks") ? "JKS" : "PKCS12");
+        try (InputStream in = new FileInputStream(config.tlsKeyStore)) {
+            keys.load(in, password);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keys, password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(config.tlsSessionCache);
+        sessions.setSessionTimeout(config.tlsSessionTimeout);
+        return context;
+    }
+
+    /** Accepts connections until the listener is closed */
+    public void run() {
+        while(!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            }
+            catch (IOException ex) {
+                if(serverSocket.isClosed())
+                    break;
+                System.err.println("DNS-over-TLS accept error: " + ex.getMessage());
+                continue;
+            }
+            try {
+                if(connections.size() >= maxConnections) {
+                    socket.close();
+                    continue;
+                }
+                socket.setSoTimeout(idleMillis);
+                socket.setTcpNoDelay(true);
+                final Connection connection = new Connection(socket);
+                connections.add(connection);
+                String name = socket.getInetAddress().getHostAddress();
+                connection.writer = new Thread(new Runnable() {
+                    public void run() {
+                        connection.write();
+                    }
+                }, "dot-write-" + name);
+                connection.writer.setDaemon(true);
+                connection.writer.start();
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        connection.serve();
+                    }
+                }, "dot-" + name);
+                t.setDaemon(true);
+                t.start();
+            }
+            catch (IOException ex) {
+                System.err.println("DNS-over-TLS connection error: " + ex.getMessage());
+            }
+        }
+    }
+
+    /** Stops accepting connections, the open ones still get the replies to their queries */
+    void stopAccepting() {
+        try {
+            serverSocket.close();
+        }
+        catch (IOException ex) {
+        }
+    }
+
+    /** Closes the listener and every connection */
+    void close() {
+        stopAccepting();
+        for(Connection c : connections)
+            c.close();
+    }
+}
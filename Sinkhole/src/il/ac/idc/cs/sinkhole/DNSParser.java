@@ -2,6 +2,7 @@ package il.ac.idc.cs.sinkhole;
 import java.nio.ByteBuffer;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
@@ -18,6 +19,7 @@ public class DNSParser
      */
     class Flags
     {
+        final private static int AD_BIT = 6;
         final private static int RA_BIT = 8;
         final private static int RD_BIT = 9;
         final private static int TC_BIT = 10;
@@ -95,6 +97,17 @@ public class DNSParser
                 unsetBit(QR_BIT);
         }
 
+        /** Sets AD to B.
+         * @param b The value we want to change the AD to.
+         */
+        void setAD(boolean b)
+        {
+            if(b)
+                setBit(AD_BIT);
+            else
+                unsetBit(AD_BIT);
+        }
+
         /** Checks if the query bit is 1.
          * @return boolean indicator for the query bit.
          */
@@ -241,17 +254,22 @@ public class DNSParser
     final private static int QUESTION_BYTE = 4;
     final private static int ANSWER_BYTE = 6;
     final private static int AUTHORITIES_BYTE = 8;
+    final private static int ADDITIONAL_BYTE = 10;
     final private static int ID_BYTE = 0;
 
     final private static int A_REC = 1;
     final private static int NS_REC = 2;
+    /** Most compression pointers followed in one name, more means they loop */
+    final private static int MAX_POINTERS = 128;
+    final private static int MAX_NAME_LENGTH = 255;
 
 
     /** Class constructor getting the packet as input */
     DNSParser(DatagramPacket packet)
     {
         this.packet = packet;
-        bb = ByteBuffer.wrap(packet.getData());
+        // Reading past the received bytes throws instead of reading what an earlier packet left there
+        bb = ByteBuffer.wrap(packet.getData(), 0, packet.getOffset() + packet.getLength());
         flags = new Flags(bb.getShort(2));
         query = null;         
         RRList = new ArrayList<RR>();
@@ -308,6 +326,13 @@ public class DNSParser
         return bb.getShort(AUTHORITIES_BYTE);
     }
 
+    /** Gets the ADDITIONAL section
+     * @return ADDITIONAL short */
+    short getNumAdditional()
+    {
+        return bb.getShort(ADDITIONAL_BYTE);
+    }
+
     /** Gets the ID section
      * @return ID short */
     short getID() 
@@ -338,10 +363,14 @@ public class DNSParser
 
     /** Gets an entire label
      * @param currPos The index value to start reading from.
-     * @param r where we store the currPoss or hostName */
+     * @param r where we store the currPoss or hostName
+     * @throws IllegalArgumentException if the name is malformed, e.g. its pointers loop */
     void getLabels(int currPos, ReadDNSResult r) 
     {       
         byte firstByte = 0;
+        // Where the name ends in the message once a pointer was followed
+        int end = -1;
+        int pointers = 0;
         
         while (true) {           
             
@@ -357,29 +386,29 @@ public class DNSParser
                     currPos++;
                 }
                 r.host = r.host + new String(record, StandardCharsets.UTF_8) + new String(".");
+                if(r.host.length() > MAX_NAME_LENGTH)
+                    throw new IllegalArgumentException("Malformed name: longer than " + MAX_NAME_LENGTH);
             }
             else if(firstByte == 0)
             {
-                r.currPos = currPos + 1;                
+                r.currPos = end < 0 ? currPos + 1 : end;
                 // Remove last . (full-stop)
                 if( r.host.length() != 0 && r.host.charAt(r.host.length() - 1) == '.')
                     r.host = r.host.substring(0, r.host.length() - 1);
                 break;                
             }
-            // This is a pointer
-            else {
-                currPos++;
-                byte secondByte = bb.get(currPos);
-                currPos++;
-                short offset = 0;
-                offset |= (firstByte << 8);
-                offset |= secondByte;
-                offset &= ~(COMPRESSION_MASK);
-                // Recursive call
-                getLabels(offset, r);
-                r.currPos = currPos;
-                break;
+            // This is a pointer, the name goes on at its offset
+            else if((firstByte & COMPRESSION_MASK) == COMPRESSION_MASK)
+            {
+                if(++pointers > MAX_POINTERS)
+                    throw new IllegalArgumentException("Malformed name: compression pointer loop");
+                byte secondByte = bb.get(currPos + 1);
+                if(end < 0)
+                    end = currPos + 2;
+                currPos = ((firstByte & ~COMPRESSION_MASK) << 8) | (secondByte & 0xFF);
             }
+            else
+                throw new IllegalArgumentException("Malformed name: unknown label type");
         }
     }
 
@@ -416,7 +445,7 @@ public class DNSParser
             currPos += 2;
             rr.cls = bb.getShort(currPos);
             currPos += 2;
-            rr.ttl = bb.getInt(currPos);
+            rr.ttl = bb.getInt(currPos) & 0xFFFFFFFFL;
             currPos += 4;            
             rr.rdlen = bb.getShort(currPos);
             currPos += 2;
@@ -447,7 +476,8 @@ public class DNSParser
             }
             else
             {
-                // Interesting case
+                // Interesting case, skip the record data
+                currPos += rr.rdlen & 0xFFFF;
                 continue;
             }
             
@@ -474,6 +504,41 @@ public class DNSParser
         {
             currPos = getRR(currPos, getNumAuthorities());
         }
+
+        if(getNumAdditional() > 0) // this section holds the glue of the authorities
+        {
+            currPos = getRR(currPos, getNumAdditional());
+        }
+    }
+
+    /** Gets the first NS record of the authority section
+     * @return the NS record, or null if there is none */
+    RR getFirstNS()
+    {
+        for(RR rr : RRList) {
+            if(rr.type == NS_REC)
+                return rr;
+        }
+        return null;
+    }
+
+    /** Gets the address of a name server from the glue records of the additional section
+     * @param hostname The name server.
+     * @return the glue address, or null if the response has no glue for it */
+    InetAddress getGlueAddress(String hostname)
+    {
+        for(RR rr : RRList) {
+            if(rr.type == A_REC && rr.rdlen == 4 && rr.name.equalsIgnoreCase(hostname)) {
+                try {
+                    // A dotted address literal is parsed without any lookup
+                    return InetAddress.getByName(rr.address);
+                }
+                catch (UnknownHostException ex) {
+                    return null;
+                }
+            }
+        }
+        return null;
     }
 
     /** Get the packets address
@@ -6,46 +6,130 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /** This class is responsible for resolving the DNS request implementing Runnable*/
-public class DNSResolver implements Runnable {
+public class DNSResolver implements Runnable, DNSSECValidator.Upstream {
     final static int DNS_QUERY_PORT = 53;
     final static int MAX_RETRIES = 16;
+    /** resolveAndSendReply() results other than an R-code */
+    final static short NO_REPLY = -1;
+    final static short RATE_LIMITED = -2;
+    final static short NOT_CACHED = -3;
+    /** Upstream queries the validator may send for one key or DS set */
+    final static int VALIDATION_ATTEMPTS = 3;
+    final static int CD_FLAG = 0x10;
+    /** Most minimised queries of one resolution (RFC 9156 MAX_MINIMISE_COUNT) */
+    final static int MAX_MINIMISE_COUNT = 10;
+    final static int CNAME_REC = 5;
         
 	SynchronizedQueue<DatagramPacket> queue;
-    DatagramSocket socket;
-    DNSBlockList blockList;
+    PacketSender sender;
+    int batchSize;
     DNSRootServer rootServers;
-    short queryID;
+    DNSMetrics metrics;
+    QueryLog queryLog;
+    int upstreamTimeout;
+    DNSCache cache;
+    RateLimiter rateLimiter;
+    DNSSECValidator validator;
+    /** Keeps the traces of the sampled queries, null when tracing is disabled */
+    TraceCollector traces;
+    /** The hops of the current query, if it is sampled */
+    QueryTrace trace;
+    /** The pool thread running this resolver, null when it is not run by a WorkerPool */
+    WorkerPool.Worker worker;
+    boolean minimiseQNames;
+    boolean strictMinimisation;
+    /** The servers of the zones the current resolution was referred to */
+    Map<String, InetAddress[]> zoneServers;
+    int upstreamBufferSize;
+    /** Largest UDP message, advertised upstream and to the EDNS0 clients */
+    int ednsUdpSize;
+    byte[] cachedReply;
+    DatagramPacket cachedReplyPacket;
+    DNSResponseBuilder replyBuilder;
+    /** Builds the replies to the stream clients, created with the first one */
+    DNSResponseBuilder streamReplyBuilder;
+    DatagramPacket replyPacket;
+    /** Picks the query IDs and the servers asked, so that neither can be guessed by a spoofer */
+    SecureRandom random;
 
 
     /** Class constructor.
      * @param queue Thread Queue
-     * @param socket socket
-     * @param blockList List of blocked Hostnames
+     * @param sender sends the replies to the clients
      * @param rootServers the Root-server
+     * @param metrics resolver metrics
+     * @param queryLog query log, or null if query logging is disabled
+     * @param config sinkhole settings
+     * @param cache answer and delegation caches
+     * @param rateLimiter response rate limiter, or null if rate limiting is disabled
+     * @param validator DNSSEC validator, or null if validation is disabled
      */
-	public DNSResolver(SynchronizedQueue<DatagramPacket> queue, DatagramSocket socket, DNSBlockList blockList, DNSRootServer rootServers)
+	public DNSResolver(SynchronizedQueue<DatagramPacket> queue, PacketSender sender, DNSRootServer rootServers, DNSMetrics metrics, QueryLog queryLog, SinkholeConfig config, DNSCache cache, RateLimiter rateLimiter, DNSSECValidator validator)
 	{
 		this.queue = queue;
-        this.socket = socket;
-        this.blockList = blockList;
+        // In batched mode the replies of a batch are gathered and sent together
+        this.batchSize = Math.max(config.ioBatch, 1);
+        this.sender = batchSize > 1 ? new ReplyBatch(sender, batchSize) : sender;
         this.rootServers = rootServers;
-        queryID = 1;
+        this.metrics = metrics;
+        this.queryLog = queryLog;
+        this.upstreamTimeout = config.upstreamTimeoutMillis;
+        this.cache = cache;
+        this.rateLimiter = rateLimiter;
+        this.validator = validator;
+        this.traces = metrics != null ? metrics.getTraces() : null;
+        this.trace = traces != null ? traces.newTrace() : null;
+        this.minimiseQNames = !"off".equals(config.qnameMinimisation);
+        this.strictMinimisation = "strict".equals(config.qnameMinimisation);
+        zoneServers = new HashMap<>();
+        // EDNS0 lets the larger responses, signed ones especially, come over UDP
+        ednsUdpSize = config.ednsUdpSize;
+        upstreamBufferSize = Math.max(ednsUdpSize, validator != null ? 4096 : 1024);
+        cachedReply = new byte[ednsUdpSize];
+        cachedReplyPacket = new DatagramPacket(cachedReply, cachedReply.length);
+        replyBuilder = new DNSResponseBuilder(ednsUdpSize);
+        replyPacket = new DatagramPacket(replyBuilder.getBuffer(), replyBuilder.getBuffer().length);
+        random = new SecureRandom();
 	}
 
+    /** Makes this resolver the work of a pool thread, which records its times and may retire it
+     * @param worker the pool thread
+     */
+    void attach(WorkerPool.Worker worker)
+    {
+        this.worker = worker;
+    }
+
     /** Builds a DNS Packet Request
      * @param query
      * @return dnsFrame
      */
-    private byte[] buildDNSFrame(DNSParser.Query query) throws IOException
+    byte[] buildDNSFrame(DNSParser.Query query) throws IOException
+    {
+        return buildDNSFrame(query.host, 1);
+    }
+
+    /** Builds a DNS Packet Request, asking for the DNSSEC records when validating
+     * @param host queried name, "" for the root
+     * @param qtype query type
+     * @return dnsFrame
+     */
+    byte[] buildDNSFrame(String host, int qtype) throws IOException
     {
         // Build a iterative query for the host sent by the client
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(baos);
 
-        // Write ID;
-        dos.writeShort(queryID++);
+        // Write ID, random so that a forged response has to guess it (RFC 5452 4.3)
+        dos.writeShort(random.nextInt(0x10000));
 
         // Write Query Flags
         dos.writeShort(0x0000);
@@ -61,12 +145,14 @@ public class DNSResolver implements Runnable {
         dos.writeShort(0x0000);
 
         // Additional Record Count: Specifies the number of resource records in the Additional section of the message.
-        dos.writeShort(0x0000);
+        dos.writeShort(0x0001);
 
-        String[] domainParts = query.host.split("\\.");
+        String[] domainParts = host.split("\\.");
 
         // Write labels
         for (int i = 0; i < domainParts.length; i++) {
+            if(domainParts[i].isEmpty())
+                continue;
             byte[] domainBytes = domainParts[i].getBytes("UTF-8");
             dos.writeByte(domainBytes.length);
             dos.write(domainBytes);
@@ -75,25 +161,131 @@ public class DNSResolver implements Runnable {
         // End of labels
         dos.writeByte(0x00);
 
-        // Type 0x01 = A (Host Request)
-        dos.writeShort(0x0001);
+        // Query type
+        dos.writeShort(qtype);
 
         // Class 0x01 = IN
         dos.writeShort(0x0001);
 
+        // EDNS0 OPT record: root name, UDP payload size, DO flag when validating
+        dos.writeByte(0x00);
+        dos.writeShort(DNSWire.OPT_REC);
+        dos.writeShort(ednsUdpSize);
+        dos.writeShort(0x0000);
+        dos.writeShort(validator != null ? DNSSECValidator.DO_FLAG : 0x0000);
+        dos.writeShort(0x0000);
+
         byte[] dnsFrame = baos.toByteArray();
 
         return dnsFrame;
     }
 
+    /** Sends a query to an upstream server and waits for its response.
+     * Every query goes out from a socket of its own, on a new ephemeral port, so a spoofer has to
+     * guess the port as well as the random ID (RFC 5452 9.2). A response is only taken if it comes
+     * from the server's address and port with the query's ID and question, anything else is
+     * skipped, like a late response to an earlier query.
+     * @param dnsFrame the query
+     * @param destination upstream server
+     * @param qname queried name, for the trace
+     * @return the response packet, or null if the server did not answer in time
+     */
+    private DatagramPacket exchange(byte[] dnsFrame, InetAddress destination, String qname) throws IOException
+    {
+        try (DatagramSocket upstreamSocket = new DatagramSocket())
+        {
+            return exchange(upstreamSocket, dnsFrame, destination, qname);
+        }
+    }
+
+    private DatagramPacket exchange(DatagramSocket upstreamSocket, byte[] dnsFrame, InetAddress destination, String qname) throws IOException
+    {
+        upstreamSocket.setSoTimeout(upstreamTimeout);
+        int id = ((dnsFrame[0] & 0xFF) << 8) | (dnsFrame[1] & 0xFF);
+
+        // *** Send DNS Request Frame ***
+        DatagramPacket dnsReqPacket = new DatagramPacket(dnsFrame, dnsFrame.length, destination, rootServers.getQueryPort());
+        long sentAt = System.nanoTime();
+        upstreamSocket.send(dnsReqPacket);
+
+        // Await response from DNS server
+        byte[] buf = new byte[upstreamBufferSize];
+        DatagramPacket responePacket = new DatagramPacket(buf, buf.length);
+        long deadline = System.currentTimeMillis() + upstreamTimeout;
+        while(true)
+        {
+            try {
+                upstreamSocket.receive(responePacket);
+            }
+            catch (SocketTimeoutException ex) {
+                metrics.recordUpstreamTimeout();
+                if(worker != null)
+                    worker.recordUpstream(sentAt);
+                if(tracing())
+                    trace.hop(QueryTrace.Hop.TIMEOUT, destination, sentAt, System.nanoTime(), -1, qname);
+                return null;
+            }
+            int replyID = ((buf[0] & 0xFF) << 8) | (buf[1] & 0xFF);
+            if(replyID == id && destination.equals(responePacket.getAddress())
+               && responePacket.getPort() == rootServers.getQueryPort()
+               && DNSWire.sameQuestion(dnsFrame, dnsFrame.length, buf, responePacket.getLength()))
+                break;
+            // A stale or forged response, keep waiting for the rest of the timeout
+            int remaining = (int) (deadline - System.currentTimeMillis());
+            if(remaining <= 0) {
+                metrics.recordUpstreamTimeout();
+                if(worker != null)
+                    worker.recordUpstream(sentAt);
+                if(tracing())
+                    trace.hop(QueryTrace.Hop.TIMEOUT, destination, sentAt, System.nanoTime(), -1, qname);
+                return null;
+            }
+            upstreamSocket.setSoTimeout(remaining);
+            responePacket.setLength(buf.length);
+        }
+        metrics.recordUpstreamRTT(destination, sentAt);
+        if(worker != null)
+            worker.recordUpstream(sentAt);
+        if(tracing())
+            trace.hop(QueryTrace.Hop.UPSTREAM, destination, sentAt, System.nanoTime(), buf[3] & 0x0F, qname);
+        return responePacket;
+    }
+
     /** Resolve DNS Request and iteratively send reply
+     * @param request the client request
      * @param clientPacketParser packet parser object
      * @param query
+     * @return the R-code sent back to the client, NO_REPLY if no reply was sent or RATE_LIMITED
      */
-    private void resolveAndSendReply(DNSParser clientPacketParser, DNSParser.Query query) throws IOException
+    private short resolveAndSendReply(DatagramPacket request, DNSParser clientPacketParser, DNSParser.Query query) throws IOException
     {
-        // Get a random ROOT dns server
-        InetAddress destination = rootServers.getRandomRootServer();
+        short replyRCode = 0;
+        int iterations = 0;
+        // Start at the closest cached zone cut, or at a random ROOT dns server.
+        // When validating, only at a zone cut whose keys are still known, the referrals on the
+        // way down from the root bring the DS records of the chain of trust otherwise
+        InetAddress destination;
+        boolean atRoot;
+        String zone = "";
+        zoneServers.clear();
+        DNSCache.Delegation delegation = cache.findDelegation(query.host);
+        if(delegation != null && (validator == null || validator.hasTrust(delegation.zone))) {
+            destination = delegation.servers[random.nextInt(delegation.servers.length)];
+            atRoot = false;
+            zone = delegation.zone;
+            if(tracing())
+                trace.hop(QueryTrace.Hop.DELEGATION, zone);
+        }
+        else {
+            destination = rootServers.getRandomRootServer();
+            atRoot = true;
+        }
+
+        // QNAME minimisation (RFC 9156): the servers of a zone are only asked about the next label
+        // of the host, "below" is the deepest name they are known to answer for themselves
+        boolean minimise = minimiseQNames;
+        int minimisedQueries = 0;
+        String below = zone;
 
         int count = 0;
         while(count < MAX_RETRIES)
@@ -101,81 +293,186 @@ public class DNSResolver implements Runnable {
             // System.out.println("Running query " + count + " to " + destination.getHostName());
 
             // Build request
-            byte[] dnsFrame = buildDNSFrame(query);
+            String qname = query.host;
+            if(minimise && minimisedQueries < MAX_MINIMISE_COUNT)
+                qname = minimisedName(query.host, below);
+            boolean minimised = qname.length() < query.host.length();
+            if(minimised)
+            {
+                minimisedQueries++;
+                metrics.recordMinimisation(DNSMetrics.Minimisation.QUERY);
+            }
+            byte[] dnsFrame = buildDNSFrame(qname, 1);
 
-            // *** Send DNS Request Frame ***
-            DatagramSocket dnsSocket = new DatagramSocket();
-            DatagramPacket dnsReqPacket = new DatagramPacket(dnsFrame, dnsFrame.length, destination, DNS_QUERY_PORT);
-            dnsSocket.send(dnsReqPacket);
+            DatagramPacket responePacket = exchange(dnsFrame, destination, qname);
+            iterations++;
+            if(responePacket == null || responePacket.getLength() < DNSWire.HEADER_SIZE)
+            {
+                // Lost query, try another root or ask the same server again
+                if(atRoot)
+                    destination = rootServers.getRandomRootServer();
+                count++;
+                continue;
+            }
 
-            // Await response from DNS server
-            byte[] buf = new byte[1024];
-            DatagramPacket responePacket = new DatagramPacket(buf, buf.length);
-            dnsSocket.receive(responePacket);
+            // Final answers are replied to straight from the wire, only the rest needs parsing
+            byte[] response = responePacket.getData();
+            short rcode = (short) (response[3] & 0x0F);
+            int answerRecords = DNSWire.u16(response, 6);
+            DNSParser parser = null;
+            if(rcode == 0 && answerRecords == 0)
+            {
+                parser = new DNSParser(responePacket);
+                parser.parseDNS();
+            }
 
-            DNSParser parser = new DNSParser(responePacket);
-            parser.parseDNS();
-            short rcode = parser.getFlags().getRCode();
-            short answerRecords = parser.getNumAnswers();
-            short authRecords = parser.getNumAuthorities();
+            // The answer to a minimised query only tells whether its name is a zone cut
+            if(minimised && (rcode != 0 || answerRecords > 0 || parser.getFirstNS() == null))
+            {
+                if(rcode == 0 && !isAlias(response, responePacket.getLength()))
+                {
+                    // Not a zone cut, ask the same servers about one more label
+                    below = qname;
+                    cache.putNoCut(qname, DNSWire.minTTL(response, responePacket.getLength()));
+                    metrics.recordMinimisation(DNSMetrics.Minimisation.NO_CUT);
+                    count++;
+                    continue;
+                }
+                if(rcode != 3 || !strictMinimisation)
+                {
+                    // Many servers fail names that only have names below them, and an alias
+                    // can't be minimised: ask for the full name (relaxed mode, RFC 9156 3)
+                    minimise = false;
+                    metrics.recordMinimisation(DNSMetrics.Minimisation.FALLBACK);
+                    count++;
+                    continue;
+                }
+                // Strict mode: nothing exists below a name that does not exist (RFC 8020)
+            }
 
-            if(rcode != 0)
+            if(rcode != 0 && rcode != 3)
             {
-                System.err.println("Received error " + rcode + " for request " + parser.getID());
                 sendErrorReply(clientPacketParser, rcode);
+                replyRCode = rcode;
                 break;
             }
-            // Got a resolved address?
-            else if(answerRecords > 0)
+            // Got a resolved address, a name error, or a final answer without records (no data)?
+            else if(rcode == 3 || answerRecords > 0 || parser.getFirstNS() == null)
             {
-                /*
-                // get the desired rr, ie, the A record
-                DNSParser.RR rr = null;
-
-                int k;
-                for(k = 0; k < parser.getRRList().size(); k++)
+                // A bogus answer is a failure, unless the client disabled checking (CD)
+                int validation = DNSSECValidator.INSECURE;
+                if(validator != null)
                 {
-                    rr = parser.getRRList().get(k);
-                    if(rr.type == 1)
-                        break;
+                    long validatingAt = System.nanoTime();
+                    validation = validator.validate(response, responePacket.getLength(), zone, this);
+                    if(tracing())
+                        trace.hop(QueryTrace.Hop.VALIDATION, null, validatingAt, System.nanoTime(), -1,
+                                  DNSSECValidator.RESULT_NAMES[validation]);
+                }
+                byte[] clientQuery = request.getData();
+                if(validation == DNSSECValidator.BOGUS && (clientQuery[3] & CD_FLAG) == 0)
+                {
+                    sendErrorReply(clientPacketParser, (short)2);
+                    replyRCode = 2;
+                    break;
                 }
 
-                if(k == parser.getRRList().size())
-                    rr = null;
-
-                // get the address and return to our client
-                // System.out.println("Got ip address of " + rr.address);
-                */
-                // Set the id to original id
-                parser.setID(clientPacketParser.getID());
-
-                // We now set the qr, rd and ra flags in the response packet
-                parser.getFlags().setQR(true);
-                parser.getFlags().setRD(true);
-                parser.getFlags().setRA(true);
-                // Remember to unset aa flag in the response packet
-                parser.getFlags().setAA(false);
-
-                // Then we set the address and host of the response packet to the original
-                // Client's info
-                parser.setAddress(clientPacketParser.getAddress());
-                parser.setPort(clientPacketParser.getPort());
-
-                // Finally send reply back to original client
-                socket.send(parser.getUpdatedPacket((short)0));
-
+                // Write the client its own reply: its question and the answer records, without the
+                // referral data of the upstream response, straight from the upstream wire format.
+                // A stream client gets the whole answer, it can't retry over another transport
+                DNSResponseBuilder builder = replyBuilder;
+                if(request.getPort() == StreamReplies.STREAM_PORT)
+                {
+                    if(streamReplyBuilder == null)
+                        streamReplyBuilder = new DNSResponseBuilder(DNSResponseBuilder.MAX_STREAM_REPLY);
+                    builder = streamReplyBuilder;
+                }
+                int clientEdns = DNSWire.ednsPayloadSize(clientQuery, request.getLength());
+                int limit = replyLimit(request, clientEdns) - (clientEdns >= 0 ? DNSWire.OPT_SIZE : 0);
+                int len = builder.build(clientQuery, request.getLength(), responePacket.getData(),
+                                        responePacket.getLength(), validation == DNSSECValidator.SECURE, limit);
+                if(len < 0)
+                {
+                    sendErrorReply(clientPacketParser, (short)2);
+                    replyRCode = 2;
+                    break;
+                }
+                byte[] reply = builder.getBuffer();
+
+                // Keep it for the next clients asking the same question, unless it was truncated.
+                // The cache answers every transport, so it only keeps the replies that fit in the
+                // largest UDP reply, each client then gets them if they fit its own limit
+                if((reply[2] & 0x02) == 0 && len + DNSWire.OPT_SIZE <= ednsUdpSize && validation != DNSSECValidator.BOGUS)
+                    cache.putAnswer(query.host, query.qtype, reply, len);
+                if(clientEdns >= 0)
+                    len = DNSWire.appendOpt(reply, len, ednsUdpSize);
+
+                if(rcode == 3 && !allowNegativeReply(clientPacketParser, RateLimiter.NXDOMAIN)) {
+                    replyRCode = RATE_LIMITED;
+                }
+                else {
+                    DNSResponseBuilder.maskAuthenticData(reply, clientQuery);
+                    replyPacket.setData(reply, 0, len);
+                    replyPacket.setAddress(clientPacketParser.getAddress());
+                    replyPacket.setPort(clientPacketParser.getPort());
+                    sender.send(replyPacket);
+                    replyRCode = rcode;
+                }
                 break;
             }
             // Got a authority record?
-            else if(authRecords > 0)
+            else if(parser.getNumAuthorities() > 0)
             {
-                // Get first authority record
-                DNSParser.RR rr = parser.getRRList().get(0);
-                destination = InetAddress.getByName(rr.hostname);
+                // Only follow a referral to a zone below the current one, on the way to the queried name,
+                // so a server can't send the resolution sideways or up, or take over the cuts of other zones
+                DNSParser.RR ns = parser.getFirstNS();
+                String child = ns.name.toLowerCase();
+                if(child.equals(zone) || !DNSSECValidator.isSubdomain(child, zone)
+                   || !DNSSECValidator.isSubdomain(qname.toLowerCase(), child))
+                {
+                    sendErrorReply(clientPacketParser, (short)2);
+                    replyRCode = 2;
+                    break;
+                }
+
+                // Prefer the name servers of the child that came with glue, only look up the first one
+                // otherwise. Glue for names outside the current zone is not the server's to give
+                List<InetAddress> servers = new ArrayList<>();
+                for(DNSParser.RR rr : parser.getRRList())
+                {
+                    InetAddress glue;
+                    if(rr.type == 2 && rr.name.equalsIgnoreCase(child)
+                       && DNSSECValidator.isSubdomain(rr.hostname.toLowerCase(), zone)
+                       && (glue = parser.getGlueAddress(rr.hostname)) != null)
+                        servers.add(glue);
+                }
+                if(servers.isEmpty())
+                {
+                    long lookupAt = System.nanoTime();
+                    servers.add(InetAddress.getByName(ns.hostname));
+                    if(tracing())
+                        trace.hop(QueryTrace.Hop.GLUE_LOOKUP, null, lookupAt, System.nanoTime(), -1, ns.hostname);
+                }
+                destination = servers.get(random.nextInt(servers.size()));
+                atRoot = false;
+
+                // Remember the zone cut for the other names below it
+                InetAddress[] zoneCut = servers.toArray(new InetAddress[0]);
+                cache.putDelegation(child, zoneCut, ns.ttl);
+
+                // And the DS records of the child zone, before the keys of the parent are forgotten
+                zoneServers.put(child, zoneCut);
+                long referralAt = System.nanoTime();
+                if(validator != null)
+                    validator.noteReferral(response, responePacket.getLength(), zone, child, this);
+                if(tracing())
+                    trace.hop(QueryTrace.Hop.REFERRAL, null, referralAt, System.nanoTime(), -1, child);
+                zone = child;
+                below = child;
             }
             else
             {
-                System.err.println("Interesting case!!\n");
+                replyRCode = NO_REPLY;
                 break;
             }
 
@@ -184,9 +481,140 @@ public class DNSResolver implements Runnable {
 
         if(count >= MAX_RETRIES)
         {
-            System.err.println("Exceeded max retries for qname " + query.host);
             sendErrorReply(clientPacketParser, (short)5);
+            replyRCode = 5;
+        }
+
+        metrics.recordIterations(iterations);
+        return replyRCode;
+    }
+
+    /** Gets the name to ask the servers of a zone about: the host up to one label below the
+     * names they are known to answer for, skipping the names the cache knows not to be zone cuts
+     * @param host queried host
+     * @param below the deepest name the servers are known to answer for, "" at the root
+     * @return a suffix of host, or host itself
+     */
+    private String minimisedName(String host, String below)
+    {
+        int end = host.length();
+        if(!below.isEmpty())
+        {
+            end = host.length() - below.length() - 1;
+            if(end <= 0 || host.charAt(end) != '.' || !host.regionMatches(true, end + 1, below, 0, below.length()))
+                return host;
+        }
+        while(true)
+        {
+            int dot = host.lastIndexOf('.', end - 1);
+            if(dot < 0)
+                return host;
+            String name = host.substring(dot + 1);
+            if(!cache.isNoCut(name.toLowerCase()))
+                return name;
+            metrics.recordMinimisation(DNSMetrics.Minimisation.LABEL_SKIPPED);
+            end = dot;
+        }
+    }
+
+    /** Checks whether the answer section of a response starts with a CNAME record
+     * @param response the response
+     * @param len response length
+     * @return true if the queried name is an alias
+     */
+    private static boolean isAlias(byte[] response, int len)
+    {
+        int pos = DNSWire.skipQuestions(response, len);
+        if(pos < 0 || DNSWire.u16(response, 6) == 0)
+            return false;
+        pos = DNSWire.skipName(response, pos, len);
+        return pos >= 0 && pos + 2 <= len && DNSWire.u16(response, pos) == CNAME_REC;
+    }
+
+    /** Sends a query for the DNSSEC validator to the servers of a zone
+     * @param name queried name
+     * @param qtype query type
+     * @param zone the zone whose servers should answer
+     * @return the response, or null if no server answered
+     */
+    public DatagramPacket query(String name, int qtype, String zone) throws IOException
+    {
+        // The servers of the zone, or of the closest enclosing zone, as seen in this resolution or cached
+        InetAddress[] servers = null;
+        for(String z = zone; servers == null && !z.isEmpty(); z = DNSSECValidator.parentOf(z))
+            servers = zoneServers.get(z);
+        if(servers == null && !zone.isEmpty())
+        {
+            DNSCache.Delegation d = cache.findDelegation(zone);
+            if(d != null)
+                servers = d.servers;
         }
+
+        int first = servers != null ? random.nextInt(servers.length) : 0;
+        for(int attempt = 0; attempt < VALIDATION_ATTEMPTS; attempt++)
+        {
+            InetAddress server = servers != null ? servers[(first + attempt) % servers.length] : rootServers.getRandomRootServer();
+            DatagramPacket responsePacket = exchange(buildDNSFrame(name, qtype), server, name);
+            if(responsePacket != null && responsePacket.getLength() >= DNSWire.HEADER_SIZE)
+                return responsePacket;
+        }
+        return null;
+    }
+
+    /** Answer a request from the answer cache
+     * @param request the client request
+     * @param parser parser of the client request
+     * @param query the question
+     * @return the R-code sent back to the client, NOT_CACHED or RATE_LIMITED
+     */
+    private short sendCachedReply(DatagramPacket request, DNSParser parser, DNSParser.Query query) throws IOException
+    {
+        int len = cache.getAnswer(query.host, query.qtype, cachedReply);
+        // A reply too large for this client is resolved again, to truncate it for the client
+        int clientEdns = DNSWire.ednsPayloadSize(request.getData(), request.getLength());
+        if(len >= 0 && len + (clientEdns >= 0 ? DNSWire.OPT_SIZE : 0) > replyLimit(request, clientEdns))
+            len = -1;
+        metrics.recordCacheLookup(len >= 0);
+        if(len < 0)
+            return NOT_CACHED;
+        short rcode = (short) (cachedReply[3] & 0x0F);
+        if(rcode == 3 && !allowNegativeReply(parser, RateLimiter.NXDOMAIN))
+            return RATE_LIMITED;
+        DNSResponseBuilder.adaptReply(cachedReply, len, request.getData(), request.getLength());
+        if(clientEdns >= 0)
+            len = DNSWire.appendOpt(cachedReply, len, ednsUdpSize);
+        cachedReplyPacket.setData(cachedReply, 0, len);
+        cachedReplyPacket.setAddress(parser.getAddress());
+        cachedReplyPacket.setPort(parser.getPort());
+        sender.send(cachedReplyPacket);
+        return rcode;
+    }
+
+    /** Gets the largest reply a client can take: 512 bytes over UDP, the payload size of its EDNS0
+     * OPT record up to sinkhole.edns.udp.size if it has one, and a whole message over a stream.
+     * @param request the client request
+     * @param clientEdns the payload size of the request's OPT record, or -1
+     * @return the reply size limit, OPT record included */
+    private int replyLimit(DatagramPacket request, int clientEdns)
+    {
+        if(request.getPort() == StreamReplies.STREAM_PORT)
+            return DNSResponseBuilder.MAX_STREAM_REPLY;
+        if(clientEdns < 0)
+            return DNSResponseBuilder.MAX_UDP_REPLY;
+        return Math.min(Math.max(clientEdns, DNSResponseBuilder.MAX_UDP_REPLY), ednsUdpSize);
+    }
+
+    /** Checks the response rate limit before a negative answer is sent
+     * @param parser parser of the client request
+     * @param kind RateLimiter.BLOCKED or RateLimiter.NXDOMAIN
+     * @return true if the answer may be sent
+     */
+    private boolean allowNegativeReply(DNSParser parser, int kind)
+    {
+        if(rateLimiter == null || rateLimiter.allowResponse(parser.getAddress(), kind))
+            return true;
+        metrics.recordDrop(DNSMetrics.Drop.RESPONSE_RATE_LIMITED);
+        return false;
     }
 
     /** Send an error reply
@@ -196,91 +624,254 @@ public class DNSResolver implements Runnable {
     private void sendErrorReply(DNSParser parser, short rcode) throws IOException
     {
         // Send reply back to client
-        socket.send(parser.getUpdatedPacket(rcode));
+        sender.send(parser.getUpdatedPacket(rcode));
+    }
+
+    /** Write a query log record, if query logging is enabled
+     * @param packet the client request
+     * @param qname queried host, or null if the request could not be parsed
+     * @param qtype query type
+     * @param action what was done with the request
+     * @param rcode R-code sent to the client
+     * @param startedAt System.nanoTime() when the request was dequeued
+     */
+    private void logQuery(DatagramPacket packet, String qname, short qtype, QueryLog.Action action, int rcode, long startedAt)
+    {
+        if(queryLog != null)
+            queryLog.log(packet.getAddress(), qname, qtype, action, rcode, (System.nanoTime() - startedAt) / 1000);
     }
 
     /** Runnnable implementation of Run*/
 	public void run() {
             
 		// System.out.println("Resolver thread starting...");
+		if(queryLog != null)
+			queryLog.attach();
+		DatagramPacket[] batch = new DatagramPacket[batchSize];
+		DNSParser[] pending = new DNSParser[batchSize];
+		long[] pendingStartedAt = new long[batchSize];
+		long[] enqueuedAt = new long[batchSize];
 		
 		while(true)
 		{
-                    DatagramPacket packet =  queue.dequeue();
-                    if(packet == null)
+                    long idleSince = System.nanoTime();
+                    int n = queue.dequeueAll(batch, enqueuedAt);
+                    if(n == 0)
                     {
                             // System.out.println("Request queue empty.  breaking...");
                             break;
                     }
+                    if(worker != null)
+                        worker.beginBatch(idleSince);
 
-                    // System.out.println("Got request from " + packet.getSocketAddress().toString());
-                     /** Check that this is a request
-                     * Check that this request is recursive
-                     * In case of error, print error and reply back with RCODE REFUSED (5)**/
-                    DNSParser parser = new DNSParser(packet);                    
-                    short rcode = 0;
-
-                    // Set QR to 1
-                    parser.getFlags().setQR(true);
-
-                    // Set RA to 1
-                    parser.getFlags().setRA(true);                                        
-
-                    if(!parser.getFlags().isQuery()) {
-                        System.err.println("Packet is not query");                        
-                        rcode = 5;
-                    }
-                    else if (!parser.getFlags().isRD()) {
-                        System.err.println("Packet request is not recursive");                        
-                        rcode = 5;
-                    }
-                    // Passed validation
-                    else {
+                    // First answer everything that needs no upstream query, then resolve the rest,
+                    // so a slow resolution never holds back the cheap replies of the same batch
+                    int pendingCount = 0;
+                    for(int i = 0; i < n; i++)
+                    {
+                        long startedAt = System.nanoTime();
+                        DNSParser parser = null;
+                        // A request that fails is dropped alone, the rest of the batch goes on
                         try {
-                            parser.parseDNS();
-                            DNSParser.Query q = parser.getQuestion();
-                            if(q == null)
-                            {
-                                rcode = 5;
-                            }
-                            else
-                            {
-                                if(q.qclass != 1 || q.qtype != 1)
-                                {
-                                    System.err.println("Received invalid request for " + q.asString());
-                                    rcode = 5;
-                                }
-                                else if(blockList.isBlocked(q.host))
-                                {
-                                    System.err.println("Received request for blocked host " + q.asString());
-                                    rcode = 3;
-                                }
-                                else
-                                {
-                                    // Here we are actually ready to do some work
-                                    resolveAndSendReply(parser, q);
-                                }
-                            }
-                        } catch (IOException ex) {
-                            System.err.println("Error: during run(): " + ex.getMessage());
-                            System.err.println("\tIgnoring this request and back to processing queue");                            
-                            continue;
+                            parser = answerLocally(batch[i], startedAt, enqueuedAt[i]);
+                        } catch (RuntimeException | StackOverflowError ex) {
+                            requestFailed(batch[i], null, (short) 0, startedAt, ex);
+                        }
+                        if(parser != null)
+                        {
+                            batch[pendingCount] = batch[i];
+                            pending[pendingCount] = parser;
+                            pendingStartedAt[pendingCount++] = startedAt;
                         }
                     }
-                        
-                    if(rcode != 0)
+                    flushReplies();
+
+                    for(int i = 0; i < pendingCount; i++)
                     {
-                        try {
-                            // Return the packet to sender
-                            sendErrorReply(parser, rcode);
-                        } catch (IOException ex) {
-                            System.err.println("Error: during run(): socket send: " + ex.getMessage());
-                            System.err.println("\tIgnoring this request and back to processing queue");                            
-                            continue;
-                        }
+                        resolve(batch[i], pending[i], pendingStartedAt[i]);
+                        flushReplies();
+                        pending[i] = null;
                     }
+                    for(int i = 0; i < n; i++)
+                        batch[i] = null;
+
+                    // The pool is shrinking?
+                    if(worker != null && worker.endBatch())
+                        break;
 		}	
 		// System.out.println("Resolver thread exiting...");
 	}
 
+    /** Handles a request as far as possible without querying upstream: refuses invalid requests,
+     * answers blocked hosts and cached answers.
+     * @param packet the client request
+     * @param startedAt System.nanoTime() when the request was dequeued
+     * @param enqueuedAt System.nanoTime() when the request was queued, 0 if unknown
+     * @return the parsed request if it still has to be resolved, null if it was handled
+     */
+    private DNSParser answerLocally(DatagramPacket packet, long startedAt, long enqueuedAt)
+    {
+        // System.out.println("Got request from " + packet.getSocketAddress().toString());
+         /** Check that this is a request
+         * Check that this request is recursive
+         * In case of error, print error and reply back with RCODE REFUSED (5)**/
+        DNSParser parser = new DNSParser(packet);
+        short rcode = 0;
+        short qtype = 0;
+        String qname = null;
+        QueryLog.Action action = QueryLog.Action.REFUSED;
+
+        // Set QR to 1
+        parser.getFlags().setQR(true);
+
+        // Set RA to 1
+        parser.getFlags().setRA(true);
+
+        // An error reply is not validated data
+        parser.getFlags().setAD(false);
+
+        if(!parser.getFlags().isQuery()) {
+            rcode = 5;
+        }
+        else if (!parser.getFlags().isRD()) {
+            rcode = 5;
+        }
+        // Passed validation
+        else {
+            try {
+                parser.parseDNS();
+                DNSParser.Query q = parser.getQuestion();
+                if(q == null)
+                {
+                    rcode = 5;
+                }
+                else
+                {
+                    qtype = q.qtype;
+                    qname = q.host;
+                    if(q.qclass != 1 || q.qtype != 1)
+                    {
+                        rcode = 5;
+                    }
+                    else
+                    {
+                        // Blocked hosts never get here, BlockedResponder answered them on the receive thread
+                        if(trace != null)
+                            trace.begin(q.host, q.qtype, parser.getAddress(), startedAt, enqueuedAt > 0 ? startedAt - enqueuedAt : -1);
+                        short replyRCode = sendCachedReply(packet, parser, q);
+                        if(tracing())
+                            trace.hop(replyRCode == NOT_CACHED ? QueryTrace.Hop.CACHE_MISS : QueryTrace.Hop.CACHE_HIT, null);
+                        // Here we are actually ready to do some work
+                        if(replyRCode == NOT_CACHED)
+                            return parser;
+                        finish(packet, qname, qtype, replyRCode, startedAt);
+                        return null;
+                    }
+                }
+            } catch (IOException ex) {
+                System.err.println("Error: during run(): " + ex.getMessage());
+                System.err.println("\tIgnoring this request and back to processing queue");
+                metrics.recordDrop(DNSMetrics.Drop.UPSTREAM_ERROR);
+                logQuery(packet, qname, qtype, QueryLog.Action.FAILED, 0, startedAt);
+                return null;
+            }
+        }
+
+        try {
+            // Return the packet to sender
+            sendErrorReply(parser, rcode);
+            metrics.recordResponse(qtype, rcode);
+            logQuery(packet, qname, qtype, action, rcode, startedAt);
+        } catch (IOException ex) {
+            System.err.println("Error: during run(): socket send: " + ex.getMessage());
+            System.err.println("\tIgnoring this request and back to processing queue");
+            metrics.recordDrop(DNSMetrics.Drop.SEND_ERROR);
+            logQuery(packet, qname, qtype, QueryLog.Action.FAILED, rcode, startedAt);
+        }
+        return null;
+    }
+
+    /** Resolves a request that could not be answered locally and sends the reply
+     * @param packet the client request
+     * @param parser the parsed request
+     * @param startedAt System.nanoTime() when the request was dequeued
+     */
+    private void resolve(DatagramPacket packet, DNSParser parser, long startedAt)
+    {
+        DNSParser.Query q = parser.getQuestion();
+        try {
+            finish(packet, q.host, q.qtype, resolveAndSendReply(packet, parser, q), startedAt);
+        } catch (IOException ex) {
+            System.err.println("Error: during run(): " + ex.getMessage());
+            System.err.println("\tIgnoring this request and back to processing queue");
+            metrics.recordDrop(DNSMetrics.Drop.UPSTREAM_ERROR);
+            logQuery(packet, q.host, q.qtype, QueryLog.Action.FAILED, 0, startedAt);
+            if(tracing())
+                trace.end(NO_REPLY, traces);
+        } catch (RuntimeException | StackOverflowError ex) {
+            requestFailed(packet, q.host, q.qtype, startedAt, ex);
+        }
+    }
+
+    /** Accounts for a request dropped because handling it threw, e.g. on a malformed packet
+     * @param packet the client request
+     * @param qname queried host, or null if it is not known
+     * @param qtype query type
+     * @param startedAt System.nanoTime() when the request was dequeued
+     * @param ex what was thrown
+     */
+    private void requestFailed(DatagramPacket packet, String qname, short qtype, long startedAt, Throwable ex)
+    {
+        System.err.println("Error: during run(): " + ex);
+        System.err.println("\tIgnoring this request and back to processing queue");
+        metrics.recordDrop(DNSMetrics.Drop.REQUEST_ERROR);
+        logQuery(packet, qname, qtype, QueryLog.Action.FAILED, 0, startedAt);
+        if(tracing())
+            trace.end(NO_REPLY, traces);
+    }
+
+    /** Accounts for a request answered from the cache or by resolution
+     * @param packet the client request
+     * @param qname queried host
+     * @param qtype query type
+     * @param replyRCode the R-code sent back, NO_REPLY or RATE_LIMITED
+     * @param startedAt System.nanoTime() when the request was dequeued
+     */
+    private void finish(DatagramPacket packet, String qname, short qtype, short replyRCode, long startedAt)
+    {
+        if(replyRCode == RATE_LIMITED) {
+            logQuery(packet, qname, qtype, QueryLog.Action.RATE_LIMITED, 0, startedAt);
+        }
+        else if(replyRCode < 0) {
+            metrics.recordDrop(DNSMetrics.Drop.NO_ANSWER);
+            logQuery(packet, qname, qtype, QueryLog.Action.FAILED, 0, startedAt);
+        }
+        else {
+            metrics.recordResponse(qtype, replyRCode);
+            logQuery(packet, qname, qtype, QueryLog.Action.ANSWERED, replyRCode, startedAt);
+        }
+        metrics.recordResolution(startedAt);
+        if(tracing())
+            trace.end(replyRCode, traces);
+    }
+
+    /** Checks whether the hops of the current query are traced
+     * @return true if the query is sampled
+     */
+    private boolean tracing()
+    {
+        return trace != null && trace.isActive();
+    }
+
+    /** Sends the replies held back by a batched sender */
+    private void flushReplies()
+    {
+        try {
+            sender.flush();
+        } catch (IOException ex) {
+            System.err.println("Error: during run(): socket send: " + ex.getMessage());
+            metrics.recordDrop(DNSMetrics.Drop.SEND_ERROR);
+        }
+    }
+
 }
@@ -0,0 +1,366 @@
+package il.ac.idc.cs.sinkhole;
+
+/** This class is responsible for writing the reply sent to a client out of an upstream response.
+ * Instead of forwarding the upstream message as is, with the referral data an authoritative
+ * server adds (NS records, glue, its EDNS0 OPT record), the reply only holds the client's own
+ * question, the answer records (without their DNSSEC signatures), and for a negative answer the
+ * SOA record that gives its TTL.
+ * Every name is written again with compression against the reply itself, so the reply is usually
+ * much smaller than the upstream message and fits the 512 bytes of a plain UDP reply without
+ * truncation. When it does not fit the client's limit (512 bytes, or what its EDNS0 OPT record allows),
+ * the records that don't fit are left out and TC is set. Stream clients (DNS-over-TLS and DNS-over-HTTPS)
+ * have no transport to retry on, their builder takes up to 65535 bytes.
+ * The reply is written straight from the upstream wire format into a buffer owned by the builder,
+ * one builder per worker thread, so nothing is parsed into objects or allocated per reply. */
+final class DNSResponseBuilder {
+
+    final static int MAX_UDP_REPLY = 512;
+    /** Largest reply over a stream transport, whose length prefix is 16 bits (RFC 7766 8) */
+    final static int MAX_STREAM_REPLY = 65535;
+
+    /** Results of writing a part of a record */
+    final private static int WRITTEN = 0;
+    final private static int MALFORMED = -1;
+    final private static int NO_ROOM = -2;
+
+    final private static int MAX_NAMES = 128;
+    final private static int MAX_LABELS = 128;
+    final private static int NS_REC = 2;
+    final private static int CNAME_REC = 5;
+    final private static int SOA_REC = 6;
+    final private static int PTR_REC = 12;
+    final private static int MX_REC = 15;
+    final private static int SRV_REC = 33;
+    final private static int DNAME_REC = 39;
+    final private static int RRSIG_REC = 46;
+    final private static int QR_FLAG = 0x8000;
+    final private static int OPCODE_MASK = 0x7800;
+    final private static int TC_FLAG = 0x0200;
+    final private static int RD_FLAG = 0x0100;
+    final private static int RA_FLAG = 0x0080;
+    final private static int AD_FLAG = 0x0020;
+
+    private byte[] out;
+    private int pos;
+    private int maxSize;
+    /** Offsets in the reply of the names (and name suffixes) written so far, for compression */
+    private int[] names = new int[MAX_NAMES];
+    private int nameCount;
+    /** Offsets in the upstream message of the labels of the name being written */
+    private int[] labels = new int[MAX_LABELS];
+
+    /** Class constructor.
+     * @param maxSize Largest reply to write, the largest EDNS0 UDP reply or MAX_STREAM_REPLY for the
+     * stream clients. */
+    DNSResponseBuilder(int maxSize) {
+        this.maxSize = maxSize;
+        out = new byte[maxSize];
+    }
+
+    /** Gets the buffer the last reply was written to
+     * @return the reply buffer */
+    byte[] getBuffer() {
+        return out;
+    }
+
+    /** Writes the reply to a client query out of the upstream response to it.
+     * @param query The client query.
+     * @param queryLen Query length.
+     * @param upstream The upstream response.
+     * @param upstreamLen Response length.
+     * @param authenticated Whether the answer passed DNSSEC validation, sets AD.
+     * @return the reply length, or -1 if either message is malformed */
+    int build(byte[] query, int queryLen, byte[] upstream, int upstreamLen, boolean authenticated) {
+        return build(query, queryLen, upstream, upstreamLen, authenticated, out.length);
+    }
+
+    /** Writes the reply to a client query out of the upstream response to it, truncated to a size.
+     * @param query The client query.
+     * @param queryLen Query length.
+     * @param upstream The upstream response.
+     * @param upstreamLen Response length.
+     * @param authenticated Whether the answer passed DNSSEC validation, sets AD.
+     * @param limit Largest reply the client takes, at most the builder's maxSize.
+     * @return the reply length, or -1 if either message is malformed */
+    int build(byte[] query, int queryLen, byte[] upstream, int upstreamLen, boolean authenticated, int limit) {
+        maxSize = Math.min(limit, out.length);
+        int questionEnd = DNSWire.skipQuestions(query, queryLen);
+        int records = DNSWire.skipQuestions(upstream, upstreamLen);
+        if(questionEnd < 0 || records < 0 || DNSWire.u16(query, 4) != 1 || questionEnd > maxSize)
+            return -1;
+        int answers = DNSWire.u16(upstream, 6);
+        int authorities = DNSWire.u16(upstream, 8);
+        int upstreamFlags = DNSWire.u16(upstream, 2);
+        int queryFlags = DNSWire.u16(query, 2);
+
+        // Header and the question as the client sent it (same ID, same case)
+        System.arraycopy(query, 0, out, 0, questionEnd);
+        int flags = QR_FLAG | (queryFlags & (OPCODE_MASK | RD_FLAG)) | RA_FLAG | (upstreamFlags & 0x0F);
+        if(authenticated)
+            flags |= AD_FLAG;
+        DNSWire.putU16(out, 6, 0);
+        DNSWire.putU16(out, 8, 0);
+        DNSWire.putU16(out, 10, 0);
+        pos = questionEnd;
+        nameCount = 0;
+        addNames(DNSWire.HEADER_SIZE);
+
+        int written = 0;
+        boolean truncated = false;
+        int src = records;
+        for(int i = 0; i < answers && !truncated; i++) {
+            // The client did not ask for the signatures of a validated answer
+            int start = DNSWire.skipName(upstream, src, upstreamLen);
+            if(start < 0 || start + 10 > upstreamLen)
+                return -1;
+            if(DNSWire.u16(upstream, start) == RRSIG_REC) {
+                src = start + 10 + DNSWire.u16(upstream, start + 8);
+                continue;
+            }
+            int next = copyRecord(upstream, upstreamLen, src);
+            if(next == MALFORMED)
+                return -1;
+            if(next == NO_ROOM)
+                truncated = true;
+            else {
+                written++;
+                src = next;
+            }
+        }
+        DNSWire.putU16(out, 6, written);
+
+        // A negative answer keeps the SOA record of the zone, its TTL bounds the negative caching
+        if(answers == 0) {
+            written = 0;
+            for(int i = 0; i < authorities && !truncated; i++) {
+                int start = DNSWire.skipName(upstream, src, upstreamLen);
+                if(start < 0 || start + 10 > upstreamLen)
+                    return -1;
+                int end = start + 10 + DNSWire.u16(upstream, start + 8);
+                if(DNSWire.u16(upstream, start) == SOA_REC) {
+                    int next = copyRecord(upstream, upstreamLen, src);
+                    if(next == MALFORMED)
+                        return -1;
+                    if(next == NO_ROOM)
+                        truncated = true;
+                    else
+                        written++;
+                }
+                src = end;
+            }
+            DNSWire.putU16(out, 8, written);
+        }
+
+        DNSWire.putU16(out, 2, truncated ? flags | TC_FLAG : flags);
+        return pos;
+    }
+
+    /** Copies one record, writing its names again with compression.
+     * @param src Offset of the record in the upstream message.
+     * @return the offset of the next record, MALFORMED, or NO_ROOM if the record does not fit in
+     * the reply (nothing is written then) */
+    private int copyRecord(byte[] msg, int len, int src) {
+        int recordStart = pos;
+        int savedNames = nameCount;
+        int fixed = DNSWire.skipName(msg, src, len);
+        if(fixed < 0 || fixed + 10 > len)
+            return MALFORMED;
+        int type = DNSWire.u16(msg, fixed);
+        int rdata = fixed + 10;
+        int rdataEnd = rdata + DNSWire.u16(msg, fixed + 8);
+        if(rdataEnd > len)
+            return MALFORMED;
+
+        int result = writeName(msg, len, src, true);
+        if(result == WRITTEN)
+            result = copyBytes(msg, fixed, 10);
+        int rdataStart = pos;
+        switch(type) {
+        case NS_REC:
+        case CNAME_REC:
+        case PTR_REC:
+            if(result == WRITTEN)
+                result = writeName(msg, len, rdata, true);
+            break;
+        case DNAME_REC:
+            if(result == WRITTEN)
+                result = writeName(msg, len, rdata, false);
+            break;
+        case MX_REC:
+            if(result == WRITTEN)
+                result = copyBytes(msg, rdata, 2);
+            if(result == WRITTEN)
+                result = writeName(msg, len, rdata + 2, true);
+            break;
+        case SRV_REC:
+            if(result == WRITTEN)
+                result = copyBytes(msg, rdata, 6);
+            if(result == WRITTEN)
+                result = writeName(msg, len, rdata + 6, false);
+            break;
+        case SOA_REC: {
+            int rname = DNSWire.skipName(msg, rdata, rdataEnd);
+            int serial = rname < 0 ? -1 : DNSWire.skipName(msg, rname, rdataEnd);
+            if(serial < 0 || serial + 20 > rdataEnd)
+                return MALFORMED;
+            if(result == WRITTEN)
+                result = writeName(msg, len, rdata, true);
+            if(result == WRITTEN)
+                result = writeName(msg, len, rname, true);
+            if(result == WRITTEN)
+                result = copyBytes(msg, serial, 20);
+            break;
+        }
+        default:
+            if(result == WRITTEN)
+                result = copyBytes(msg, rdata, rdataEnd - rdata);
+            break;
+        }
+        if(result != WRITTEN) {
+            pos = recordStart;
+            nameCount = savedNames;
+            return result;
+        }
+        DNSWire.putU16(out, rdataStart - 2, pos - rdataStart);
+        return rdataEnd;
+    }
+
+    private int copyBytes(byte[] msg, int from, int n) {
+        if(pos + n > maxSize)
+            return NO_ROOM;
+        System.arraycopy(msg, from, out, pos, n);
+        pos += n;
+        return WRITTEN;
+    }
+
+    /** Writes a name of the upstream message, replacing its longest suffix already in the reply
+     * by a pointer.
+     * @param msg The upstream message.
+     * @param len Message length.
+     * @param src Offset of the (possibly compressed) name.
+     * @param compress Whether a pointer may be used, RFC 3597 only allows it in well-known types.
+     * @return WRITTEN, MALFORMED or NO_ROOM */
+    private int writeName(byte[] msg, int len, int src, boolean compress) {
+        // Gather the labels, following the pointers of the upstream message
+        int n = 0;
+        int jumps = 0;
+        while(true) {
+            if(src >= len)
+                return MALFORMED;
+            int labelLen = msg[src] & 0xFF;
+            if(labelLen == 0)
+                break;
+            if((labelLen & 0xC0) == 0xC0) {
+                if(src + 1 >= len || ++jumps > MAX_LABELS)
+                    return MALFORMED;
+                src = ((labelLen & 0x3F) << 8) | (msg[src + 1] & 0xFF);
+                continue;
+            }
+            if((labelLen & 0xC0) != 0 || n == MAX_LABELS || src + 1 + labelLen > len)
+                return MALFORMED;
+            labels[n++] = src;
+            src += labelLen + 1;
+        }
+
+        int suffix = n;
+        int target = -1;
+        if(compress) {
+            for(int i = 0; i < n && target < 0; i++) {
+                for(int k = 0; k < nameCount; k++) {
+                    if(sameName(msg, i, n, names[k])) {
+                        suffix = i;
+                        target = names[k];
+                        break;
+                    }
+                }
+            }
+        }
+
+        int first = pos;
+        for(int i = 0; i < suffix; i++) {
+            int labelLen = msg[labels[i]] & 0xFF;
+            if(pos + labelLen + 1 > maxSize)
+                return NO_ROOM;
+            System.arraycopy(msg, labels[i], out, pos, labelLen + 1);
+            pos += labelLen + 1;
+        }
+        if(pos + (target >= 0 ? 2 : 1) > maxSize)
+            return NO_ROOM;
+        if(target >= 0) {
+            DNSWire.putU16(out, pos, 0xC000 | target);
+            pos += 2;
+        }
+        else
+            out[pos++] = 0;
+        if(suffix > 0)
+            addNames(first);
+        return WRITTEN;
+    }
+
+    /** Remembers the name written at an offset of the reply and all its suffixes, up to the
+     * first pointer (whose target is already known) */
+    private void addNames(int at) {
+        while(nameCount < MAX_NAMES && at < 0x3FFF) {
+            int labelLen = out[at] & 0xFF;
+            if(labelLen == 0 || (labelLen & 0xC0) != 0)
+                return;
+            names[nameCount++] = at;
+            at += labelLen + 1;
+        }
+    }
+
+    /** Compares the labels from the i-th on of the name being written with a name of the reply,
+     * case-insensitively */
+    private boolean sameName(byte[] msg, int i, int n, int at) {
+        for(; i < n; i++) {
+            int labelLen = out[at] & 0xFF;
+            while((labelLen & 0xC0) == 0xC0) {
+                at = ((labelLen & 0x3F) << 8) | (out[at + 1] & 0xFF);
+                labelLen = out[at] & 0xFF;
+            }
+            int src = labels[i];
+            if(labelLen != (msg[src] & 0xFF))
+                return false;
+            for(int j = 1; j <= labelLen; j++) {
+                if(lower(out[at + j]) != lower(msg[src + j]))
+                    return false;
+            }
+            at += labelLen + 1;
+        }
+        // Both names must end here
+        int labelLen = out[at] & 0xFF;
+        while((labelLen & 0xC0) == 0xC0) {
+            at = ((labelLen & 0x3F) << 8) | (out[at + 1] & 0xFF);
+            labelLen = out[at] & 0xFF;
+        }
+        return labelLen == 0;
+    }
+
+    private static int lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + 32 : b;
+    }
+
+    /** Makes a stored reply answer another client's query: sets the query's ID and RD flag, AD
+     * only if the query has it, and its question when the stored one only differs in case.
+     * @param reply The stored reply.
+     * @param replyLen Reply length.
+     * @param query The client query.
+     * @param queryLen Query length. */
+    static void adaptReply(byte[] reply, int replyLen, byte[] query, int queryLen) {
+        int questionEnd = DNSWire.skipQuestions(query, queryLen);
+        DNSWire.putU16(reply, 0, DNSWire.u16(query, 0));
+        reply[2] = (byte) ((reply[2] & ~(RD_FLAG >> 8)) | (query[2] & (RD_FLAG >> 8)));
+        maskAuthenticData(reply, query);
+        if(questionEnd > 0 && questionEnd <= replyLen && DNSWire.skipQuestions(reply, replyLen) == questionEnd)
+            System.arraycopy(query, DNSWire.HEADER_SIZE, reply, DNSWire.HEADER_SIZE, questionEnd - DNSWire.HEADER_SIZE);
+    }
+
+    /** Clears AD in a reply unless the client set it in its query: only a client that asks for it
+     * is told that the answer was validated (RFC 6840 5.7), the reply as cached keeps it.
+     * @param reply The reply.
+     * @param query The client query. */
+    static void maskAuthenticData(byte[] reply, byte[] query) {
+        if((query[3] & AD_FLAG) == 0)
+            reply[3] &= ~AD_FLAG;
+    }
+}
@@ -1,9 +1,14 @@
 package il.ac.idc.cs.sinkhole;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.Random;
 
 /** This class is responsible for choosing a Random RootServer*/
 public class DNSRootServer {
@@ -31,7 +36,8 @@ public class DNSRootServer {
     }
 
     private ServerInfo[] servers;
-    private Random rand;
+    private SecureRandom rand;
+    private int queryPort;
 
     /**Class constructor */
     public DNSRootServer() {
@@ -51,14 +57,79 @@ public class DNSRootServer {
         servers[11] = new ServerInfo("l.root-servers.net", "199.7.83.42");
         servers[12] = new ServerInfo("m.root-servers.net", "202.12.27.33");        
         
-        rand = new Random();
+        rand = new SecureRandom();
+        queryPort = DNSResolver.DNS_QUERY_PORT;
+    }
+
+    /** Class constructor for a custom set of root servers, e.g. a local test hierarchy.
+     * @param addresses Root server addresses
+     * @param queryPort UDP port every upstream query is sent to
+     */
+    DNSRootServer(InetAddress[] addresses, int queryPort) {
+        servers = new ServerInfo[addresses.length];
+        for(int i = 0; i < addresses.length; i++) {
+            servers[i] = new ServerInfo(addresses[i].getHostAddress(), addresses[i].getHostAddress());
+        }
+        rand = new SecureRandom();
+        this.queryPort = queryPort;
+    }
+
+    /** Creates the root servers from the sinkhole settings: an explicit address list, a root
+     * hints file, or the built-in list of the real root servers.
+     * @param config sinkhole settings
+     * @return the root servers
+     */
+    static DNSRootServer fromConfig(SinkholeConfig config) throws IOException {
+        List<InetAddress> addresses = new ArrayList<>();
+        if(config.roots != null) {
+            for(String addr : config.roots.split(",")) {
+                if(!addr.trim().isEmpty())
+                    addresses.add(InetAddress.getByName(addr.trim()));
+            }
+        }
+        else if(config.rootsFile != null) {
+            try (BufferedReader br = new BufferedReader(new FileReader(config.rootsFile))) {
+                String line;
+                while((line = br.readLine()) != null) {
+                    line = line.trim();
+                    if(line.isEmpty() || line.startsWith(";") || line.startsWith("#"))
+                        continue;
+                    String[] tokens = line.split("\\s+");
+                    // named.root style: "A.ROOT-SERVERS.NET. 3600000 A 198.41.0.4", IPv6 lines are skipped
+                    if(tokens.length >= 4) {
+                        if(tokens[tokens.length - 2].equalsIgnoreCase("A"))
+                            addresses.add(InetAddress.getByName(tokens[tokens.length - 1]));
+                    }
+                    // "name address" or just "address"
+                    else {
+                        addresses.add(InetAddress.getByName(tokens[tokens.length - 1]));
+                    }
+                }
+            }
+        }
+        else {
+            DNSRootServer builtin = new DNSRootServer();
+            builtin.queryPort = config.upstreamPort;
+            return builtin;
+        }
+
+        if(addresses.isEmpty())
+            throw new IOException("no root server address configured");
+        return new DNSRootServer(addresses.toArray(new InetAddress[0]), config.upstreamPort);
     }
 
     /** Selects a random Root Server.
      * @return A random Root Server from the servers list
      */
     public InetAddress getRandomRootServer() {
-        int idx = rand.nextInt(NUM_ROOT_SERVERS);
+        int idx = rand.nextInt(servers.length);
         return servers[idx].address;
     }   
+
+    /** Gets the UDP port upstream queries are sent to.
+     * @return the query port
+     */
+    int getQueryPort() {
+        return queryPort;
+    }
 }
@@ -0,0 +1,1016 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** This class is responsible for validating the upstream responses with DNSSEC (RFC 4033-4035).
+ *
+ * The chain of trust is built top down from the trust anchors, the DS records of the root: the
+ * DNSKEY set of a zone is trusted when one of its keys matches a trusted DS record of the zone
+ * and signs the set, and the DS set of a child zone is trusted when a trusted key of its parent
+ * signs it. The DS records usually come with the referral to the child, so noteReferral() takes
+ * them from there; the DNSKEY sets are asked for once per zone. Both are kept for their TTL (and
+ * the validity of their signatures), so a zone costs its key queries and signature checks once
+ * and the answers below it only cost the check of their own signature. The result of every
+ * signature check is also remembered by a digest of the key, the signed data and the signature,
+ * until the signature expires, so the same signature is never checked twice, e.g. when a key set
+ * is fetched again.
+ *
+ * A zone whose parent proves with NSEC or NSEC3 that it has no DS record, or whose DS records
+ * only use algorithms this class doesn't implement, is insecure: its answers are passed on as
+ * they are. Supported algorithms are RSA/SHA-1 (5, 7), RSA/SHA-256 (8), RSA/SHA-512 (10) and
+ * ECDSA P-256 and P-384 (13, 14).
+ *
+ * Limitations: the ranges of the NSEC and NSEC3 records of a negative answer are not checked
+ * against the question, nor are the closest encloser proofs of wildcard answers and of NSEC3
+ * opt-out. So a negative answer, or an answer expanded from a wildcard, is at best INSECURE (no AD
+ * bit) even when all its signatures check out, since a replayed NSEC record of the same zone would
+ * check out as well; a bad signature still makes it BOGUS. A truncated response is not retried over TCP. */
+final class DNSSECValidator {
+
+    /** Validation results, the worse result is the larger one */
+    final static int SECURE = 0;
+    final static int INSECURE = 1;
+    final static int BOGUS = 2;
+    final static String[] RESULT_NAMES = {"secure", "insecure", "bogus"};
+
+    final static int DS_REC = 43;
+    final static int RRSIG_REC = 46;
+    final static int NSEC_REC = 47;
+    final static int DNSKEY_REC = 48;
+    final static int NSEC3_REC = 50;
+    /** EDNS0 UDP payload size advertised upstream, large enough for most key sets */
+    final static int EDNS_UDP_SIZE = 1232;
+    /** The EDNS0 "DNSSEC OK" flag, asks for the signatures */
+    final static int DO_FLAG = 0x8000;
+    /** The KSKs of the root zone (2017 and 2024) */
+    final static String ROOT_TRUST_ANCHORS =
+            "20326 8 2 E06D44B80B8F1D39A95C0B0D7C65D08458E880409BBF683457104237C7F8EC8D,"
+          + "38696 8 2 683D2D0ACB8C9B712A1948B27F741219298D0A450D612C483AF444A4C0FB2B16";
+
+    final private static int NS_REC = 2;
+    final private static int CNAME_REC = 5;
+    final private static int PTR_REC = 12;
+    final private static int MX_REC = 15;
+    final private static int SRV_REC = 33;
+    final private static int DNAME_REC = 39;
+    final private static int ZONE_KEY_FLAG = 0x0100;
+    final private static int DNSKEY_PROTOCOL = 3;
+    final private static int NSEC3_OPT_OUT = 0x01;
+    final private static int MAX_NSEC3_ITERATIONS = 150;
+    final private static int MAX_DEPTH = 16;
+    final private static int MAX_POINTERS = 128;
+    /** How long a zone whose chain of trust is broken stays bogus, in milliseconds */
+    final private static long BOGUS_MILLIS = 60 * 1000;
+    final private static int EVICTION_SCAN = 8;
+    final private static String BASE32HEX = "0123456789abcdefghijklmnopqrstuv";
+
+    /** This interface is responsible for the upstream queries of the validator */
+    interface Upstream {
+        /** Sends a query to the servers of a zone, or of the closest enclosing zone known.
+         * @param name Queried name.
+         * @param qtype Query type.
+         * @param zone The zone whose servers should answer.
+         * @return the response, or null if no server answered */
+        DatagramPacket query(String name, int qtype, String zone) throws IOException;
+    }
+
+    /** A resource record in canonical form: lower case owner, uncompressed rdata */
+    static class Record {
+        String owner;
+        int type;
+        int cls;
+        long ttl;
+        byte[] rdata;
+
+        Record() {
+        }
+
+        Record(String owner, int type, long ttl, byte[] rdata) {
+            this.owner = owner;
+            this.type = type;
+            this.cls = 1;
+            this.ttl = ttl;
+            this.rdata = rdata;
+        }
+    }
+
+    /** A zone key usable for checking signatures */
+    private static class Key {
+        int tag;
+        int algorithm;
+        byte[] rdata;
+        PublicKey publicKey;
+    }
+
+    /** What is known of a zone: its validated DS or DNSKEY set, or that it is insecure or bogus */
+    private static class Trust {
+        int state;
+        long expiresAt;
+        List<byte[]> ds;
+        List<Key> keys;
+
+        Trust(int state, long expiresAt) {
+            this.state = state;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /** The remembered result of a signature check, until the signature expires */
+    private static class Check {
+        boolean valid;
+        long expiresAt;
+
+        Check(boolean valid, long expiresAt) {
+            this.valid = valid;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private Trust anchors;
+    private DNSMetrics metrics;
+    private int maxEntries;
+    private long maxTTL;
+    /** Zone to its DNSKEY set */
+    private Map<String, Trust> keys;
+    /** Zone to its DS set, as signed by the parent zone */
+    private Map<String, Trust> delegationSigners;
+    /** Digest of key, signed data and signature to the result of the check */
+    private Map<ByteBuffer, Check> verified;
+
+    /** Class constructor.
+     * @param anchors DS records of the root, see parseTrustAnchors().
+     * @param metrics resolver metrics
+     * @param maxEntries Most zones (and signature checks) remembered.
+     * @param maxTTL Longest time a key or DS set is trusted, in seconds. */
+    DNSSECValidator(List<byte[]> anchors, DNSMetrics metrics, int maxEntries, long maxTTL) {
+        this.anchors = new Trust(SECURE, Long.MAX_VALUE);
+        this.anchors.ds = anchors;
+        this.metrics = metrics;
+        this.maxEntries = Math.max(maxEntries, 1);
+        this.maxTTL = maxTTL;
+        keys = new ConcurrentHashMap<>();
+        delegationSigners = new ConcurrentHashMap<>();
+        verified = new ConcurrentHashMap<>();
+    }
+
+    /** Creates the validator of the settings (sinkhole.dnssec, sinkhole.dnssec.anchors).
+     * @param config sinkhole settings
+     * @param metrics resolver metrics
+     * @return the validator, or null if validation is disabled */
+    static DNSSECValidator fromConfig(SinkholeConfig config, DNSMetrics metrics) throws IOException {
+        if(!config.dnssecValidate)
+            return null;
+        DNSSECValidator validator = new DNSSECValidator(parseTrustAnchors(config.dnssecTrustAnchors), metrics,
+                                                        Math.max(config.cacheSize, 1024), config.cacheMaxTTL);
+        metrics.watchValidator(validator);
+        return validator;
+    }
+
+    /** Parses trust anchors: comma separated DS records as "key-tag algorithm digest-type digest".
+     * @param spec The trust anchors.
+     * @return the DS rdata of each anchor */
+    static List<byte[]> parseTrustAnchors(String spec) throws IOException {
+        List<byte[]> ds = new ArrayList<>();
+        for(String entry : spec.split(",")) {
+            entry = entry.trim();
+            if(entry.isEmpty())
+                continue;
+            String[] fields = entry.split("\\s+");
+            if(fields.length != 4)
+                throw new IOException("Invalid trust anchor \"" + entry + "\"");
+            try {
+                String hex = fields[3];
+                if(hex.length() % 2 != 0)
+                    throw new NumberFormatException("odd digest length");
+                byte[] rdata = new byte[4 + hex.length() / 2];
+                DNSWire.putU16(rdata, 0, Integer.parseInt(fields[0]));
+                rdata[2] = (byte) Integer.parseInt(fields[1]);
+                rdata[3] = (byte) Integer.parseInt(fields[2]);
+                for(int i = 0; i < hex.length(); i += 2)
+                    rdata[4 + i / 2] = (byte) Integer.parseInt(hex.substring(i, i + 2), 16);
+                ds.add(rdata);
+            }
+            catch (NumberFormatException ex) {
+                throw new IOException("Invalid trust anchor \"" + entry + "\": " + ex.getMessage());
+            }
+        }
+        if(ds.isEmpty())
+            throw new IOException("No trust anchor");
+        return ds;
+    }
+
+    /** Checks whether the key set of a zone is known, so its answers can be validated without
+     * walking the chain of trust down from the root
+     * @param zone The zone.
+     * @return true if the zone's keys (or its insecurity) are cached */
+    boolean hasTrust(String zone) {
+        return fresh(keys, zone.toLowerCase()) != null;
+    }
+
+    /** Takes the DS records (or the proof that there are none) of a child zone from a referral.
+     * @param msg The referral.
+     * @param len Referral length.
+     * @param parent The zone of the server that sent the referral.
+     * @param child The delegated zone.
+     * @param upstream sends the queries needed for the parent's keys */
+    void noteReferral(byte[] msg, int len, String parent, String child, Upstream upstream) throws IOException {
+        child = child.toLowerCase();
+        if(child.equals(parent) || !isSubdomain(child, parent) || fresh(delegationSigners, child) != null)
+            return;
+        Trust parentKeys = keysFor(parent, upstream, 0);
+        if(parentKeys == null)
+            return;
+        if(parentKeys.state != SECURE) {
+            store(delegationSigners, child, new Trust(parentKeys.state, parentKeys.expiresAt));
+            return;
+        }
+        List<Record> answers = new ArrayList<>();
+        List<Record> authority = new ArrayList<>();
+        if(readSections(msg, len, answers, authority))
+            delegation(child, parent, authority, upstream, 0);
+    }
+
+    /** Validates a final answer: its answer RRsets, or for a negative answer the SOA and
+     * NSEC/NSEC3 records of its authority section. Denial of existence and wildcard expansion
+     * are not proven, such answers are INSECURE at best.
+     * @param msg The response.
+     * @param len Response length.
+     * @param zone The zone of the server that sent it.
+     * @param upstream sends the queries needed for the chain of trust
+     * @return SECURE, INSECURE or BOGUS */
+    int validate(byte[] msg, int len, String zone, Upstream upstream) throws IOException {
+        int result = check(msg, len, zone, upstream);
+        metrics.recordValidation(result);
+        return result;
+    }
+
+    private int check(byte[] msg, int len, String zone, Upstream upstream) throws IOException {
+        List<Record> answers = new ArrayList<>();
+        List<Record> authority = new ArrayList<>();
+        if(!readSections(msg, len, answers, authority))
+            return BOGUS;
+        Trust zoneKeys = keysFor(zone, upstream, 0);
+        if(zoneKeys != null && zoneKeys.state == INSECURE)
+            return INSECURE;
+
+        boolean negative = answers.isEmpty();
+        List<Record> records = negative ? authority : answers;
+        int result = SECURE;
+        boolean checked = false;
+        Set<String> seen = new HashSet<>();
+        for(Record r : records) {
+            if(r.type == RRSIG_REC)
+                continue;
+            if(negative && r.type != DNSWire.SOA_REC && r.type != NSEC_REC && r.type != NSEC3_REC)
+                continue;
+            if(!seen.add(r.type + "/" + r.owner))
+                continue;
+            checked = true;
+            result = Math.max(result, verifyRRset(rrset(records, r.owner, r.type), records, zone, upstream, 0));
+        }
+        if(!checked)
+            return BOGUS;
+        // Signed, but nothing shows that the NSEC ranges cover the question, or that no closer
+        // name matched the wildcard
+        if(negative || isWildcardExpansion(answers))
+            return Math.max(result, INSECURE);
+        return result;
+    }
+
+    /** Checks whether an answer was expanded from a wildcard: one of its RRSIGs has fewer labels
+     * than its owner name, not counting a literal "*" label (RFC 4035 5.3.4)
+     * @param answers The answer records, with their RRSIGs.
+     * @return true if an answer RRset was synthesized */
+    private static boolean isWildcardExpansion(List<Record> answers) {
+        for(Record r : answers) {
+            if(r.type != RRSIG_REC || r.rdata.length < 4)
+                continue;
+            int ownerLabels = labelCount(r.owner);
+            if(r.owner.equals("*") || r.owner.startsWith("*."))
+                ownerLabels--;
+            if((r.rdata[3] & 0xFF) < ownerLabels)
+                return true;
+        }
+        return false;
+    }
+
+    /** Checks an RRset against the RRSIG records covering it.
+     * @param rrset The records of the set.
+     * @param records All the records of the section, with the RRSIGs.
+     * @param zone The zone the set should be signed by, for unsigned sets.
+     * @return SECURE, INSECURE if it belongs to an insecure zone, or BOGUS */
+    private int verifyRRset(List<Record> rrset, List<Record> records, String zone, Upstream upstream, int depth) throws IOException {
+        String owner = rrset.get(0).owner;
+        int type = rrset.get(0).type;
+        boolean signed = false;
+        for(Record sig : covering(records, owner, type)) {
+            String signer = signer(sig);
+            // A DS set is signed by the parent zone, every other set by its own zone
+            if(signer == null || !isSubdomain(owner, signer) || (type == DS_REC && owner.equals(signer)))
+                continue;
+            signed = true;
+            Trust signerKeys = keysFor(signer, upstream, depth + 1);
+            if(signerKeys == null || signerKeys.state == BOGUS)
+                continue;
+            if(signerKeys.state == INSECURE)
+                return INSECURE;
+            if(verify(sig, rrset, signerKeys.keys))
+                return SECURE;
+        }
+        if(!signed) {
+            Trust zoneKeys = keysFor(zone, upstream, depth + 1);
+            if(zoneKeys != null && zoneKeys.state == INSECURE)
+                return INSECURE;
+        }
+        return BOGUS;
+    }
+
+    /** Gets the DNSKEY set of a zone, validating it against the zone's DS set first if needed.
+     * @return the key set, or null if it could not be fetched */
+    private Trust keysFor(String zone, Upstream upstream, int depth) throws IOException {
+        Trust t = fresh(keys, zone);
+        if(t != null || depth > MAX_DEPTH)
+            return t;
+        Trust ds = zone.isEmpty() ? anchors : dsFor(zone, upstream, depth);
+        if(ds == null)
+            return null;
+        if(ds.state != SECURE)
+            return store(keys, zone, new Trust(ds.state, ds.expiresAt));
+        // Only the algorithms and digests this class implements count (RFC 4035 5.2)
+        boolean supported = false;
+        for(byte[] d : ds.ds)
+            supported |= signatureAlgorithm(d[2] & 0xFF) != null && digestAlgorithm(d[3] & 0xFF) != null;
+        if(!supported)
+            return store(keys, zone, new Trust(INSECURE, ds.expiresAt));
+
+        DatagramPacket response = upstream.query(zone, DNSKEY_REC, zone);
+        List<Record> answers = new ArrayList<>();
+        List<Record> authority = new ArrayList<>();
+        if(response == null || !readSections(response.getData(), response.getLength(), answers, authority))
+            return null;
+        List<Record> keySet = rrset(answers, zone, DNSKEY_REC);
+        List<Key> all = new ArrayList<>();
+        List<Key> entryKeys = new ArrayList<>();
+        for(Record r : keySet) {
+            Key key = decodeKey(r.rdata);
+            if(key == null)
+                continue;
+            all.add(key);
+            if(matchesDS(zone, key, ds.ds))
+                entryKeys.add(key);
+        }
+        List<Record> sigs = covering(answers, zone, DNSKEY_REC);
+        for(Record sig : sigs) {
+            if(zone.equals(signer(sig)) && verify(sig, keySet, entryKeys)) {
+                t = new Trust(SECURE, Math.min(expiresAt(keySet, sigs), ds.expiresAt));
+                t.keys = all;
+                return store(keys, zone, t);
+            }
+        }
+        return store(keys, zone, new Trust(BOGUS, System.currentTimeMillis() + BOGUS_MILLIS));
+    }
+
+    /** Gets the DS set of a zone, asking its parent's servers if it was not in a referral.
+     * @return the DS set, or null if it could not be fetched */
+    private Trust dsFor(String zone, Upstream upstream, int depth) throws IOException {
+        Trust t = fresh(delegationSigners, zone);
+        if(t != null)
+            return t;
+        String parent = parentOf(zone);
+        DatagramPacket response = upstream.query(zone, DS_REC, parent);
+        List<Record> answers = new ArrayList<>();
+        List<Record> authority = new ArrayList<>();
+        if(response == null || !readSections(response.getData(), response.getLength(), answers, authority))
+            return null;
+        answers.addAll(authority);
+        return delegation(zone, parent, answers, upstream, depth);
+    }
+
+    /** Validates the DS set of a zone, or the NSEC/NSEC3 proof that it has none, and caches it.
+     * @param zone The delegated zone.
+     * @param parent The zone expected to sign the records.
+     * @param records DS, NSEC and NSEC3 records with their RRSIGs.
+     * @return the DS set, or null if the records neither hold nor deny it */
+    private Trust delegation(String zone, String parent, List<Record> records, Upstream upstream, int depth) throws IOException {
+        List<Record> dsSet = rrset(records, zone, DS_REC);
+        if(!dsSet.isEmpty()) {
+            int result = verifyRRset(dsSet, records, parent, upstream, depth);
+            if(result == BOGUS)
+                return store(delegationSigners, zone, new Trust(BOGUS, System.currentTimeMillis() + BOGUS_MILLIS));
+            Trust t = new Trust(result, expiresAt(dsSet, covering(records, zone, DS_REC)));
+            t.ds = new ArrayList<>();
+            for(Record r : dsSet)
+                t.ds.add(r.rdata);
+            return store(delegationSigners, zone, t);
+        }
+
+        // No DS record: an unsigned delegation, if the parent's NSEC or NSEC3 records say so
+        for(Record r : records) {
+            boolean denies = false;
+            if(r.type == NSEC_REC && r.owner.equals(zone)) {
+                int bitmaps = DNSWire.skipName(r.rdata, 0, r.rdata.length);
+                denies = bitmaps > 0 && isUnsignedDelegation(r.rdata, bitmaps);
+            }
+            else if(r.type == NSEC3_REC && parentOf(r.owner).equals(parent))
+                denies = nsec3DeniesDS(r, zone);
+            if(denies && verifyRRset(rrset(records, r.owner, r.type), records, parent, upstream, depth) == SECURE) {
+                List<Record> proof = rrset(records, r.owner, r.type);
+                return store(delegationSigners, zone, new Trust(INSECURE, expiresAt(proof, covering(records, r.owner, r.type))));
+            }
+        }
+        return null;
+    }
+
+    /** Checks whether an NSEC3 record matches a zone and lacks DS, or covers it with opt-out */
+    private static boolean nsec3DeniesDS(Record r, String zone) {
+        byte[] d = r.rdata;
+        if(d.length < 5)
+            return false;
+        int iterations = DNSWire.u16(d, 2);
+        int saltLen = d[4] & 0xFF;
+        int hashLenAt = 5 + saltLen;
+        if(hashLenAt >= d.length)
+            return false;
+        int hashLen = d[hashLenAt] & 0xFF;
+        int bitmaps = hashLenAt + 1 + hashLen;
+        if(d[0] != 1 || bitmaps > d.length || iterations > MAX_NSEC3_ITERATIONS)
+            return false;
+        String hash = nsec3Hash(zone, d, 5, saltLen, iterations);
+        int dot = r.owner.indexOf('.');
+        String ownerHash = dot < 0 ? r.owner : r.owner.substring(0, dot);
+        if(hash.equals(ownerHash))
+            return isUnsignedDelegation(d, bitmaps);
+        if((d[1] & NSEC3_OPT_OUT) == 0)
+            return false;
+        String next = base32hex(d, hashLenAt + 1, hashLen);
+        if(ownerHash.compareTo(next) < 0)
+            return ownerHash.compareTo(hash) < 0 && hash.compareTo(next) < 0;
+        return ownerHash.compareTo(hash) < 0 || hash.compareTo(next) < 0;
+    }
+
+    /** Checks whether the type bitmap of the NSEC or NSEC3 record matching a zone's name proves an
+     * unsigned delegation: NS, but neither DS nor the SOA of the zone apex (RFC 4035 5.2, RFC 5155 8.9).
+     * Without the NS bit the name is not a delegation, and with SOA the record is the child's own. */
+    private static boolean isUnsignedDelegation(byte[] rdata, int bitmaps) {
+        return hasType(rdata, bitmaps, NS_REC) && !hasType(rdata, bitmaps, DS_REC)
+               && !hasType(rdata, bitmaps, DNSWire.SOA_REC);
+    }
+
+    /** Checks an RRSIG over an RRset with the keys of its signer.
+     * @return true if the signature is current and one of the keys verifies it */
+    private boolean verify(Record sig, List<Record> rrset, List<Key> candidates) {
+        byte[] r = sig.rdata;
+        int signatureStart = DNSWire.skipName(r, 18, r.length);
+        if(signatureStart < 0 || rrset.isEmpty())
+            return false;
+        int algorithm = r[2] & 0xFF;
+        int tag = DNSWire.u16(r, 16);
+        // Serial number arithmetic, the times wrap around in 2106
+        long now = System.currentTimeMillis() / 1000;
+        if((int) (now - DNSWire.u32(r, 12)) < 0 || (int) (DNSWire.u32(r, 8) - now) < 0)
+            return false;
+
+        byte[] data = null;
+        for(Key key : candidates) {
+            if(key.tag != tag || key.algorithm != algorithm)
+                continue;
+            if(data == null)
+                data = signedData(r, signatureStart, rrset);
+            if(data != null && check(key, data, r, signatureStart))
+                return true;
+        }
+        return false;
+    }
+
+    /** Checks a signature, or looks its result up if the same one was checked before */
+    private boolean check(Key key, byte[] data, byte[] rrsig, int signatureStart) {
+        MessageDigest md = digest("SHA-256");
+        md.update(key.rdata);
+        md.update(data);
+        md.update(rrsig, signatureStart, rrsig.length - signatureStart);
+        ByteBuffer id = ByteBuffer.wrap(md.digest());
+        Check known = verified.get(id);
+        metrics.recordSignatureCheck(known != null);
+        if(known != null)
+            return known.valid;
+
+        boolean valid;
+        try {
+            Signature s = Signature.getInstance(signatureAlgorithm(key.algorithm));
+            s.initVerify(key.publicKey);
+            s.update(data);
+            byte[] signature = Arrays.copyOfRange(rrsig, signatureStart, rrsig.length);
+            valid = s.verify(isECDSA(key.algorithm) ? toDER(signature) : signature);
+        }
+        catch (GeneralSecurityException | IllegalArgumentException ex) {
+            valid = false;
+        }
+        // The result is worth keeping while the signature is current, which verify() checked
+        long now = System.currentTimeMillis();
+        long expiresAt = Math.min(now + (int) (DNSWire.u32(rrsig, 8) - now / 1000) * 1000L, now + maxTTL * 1000);
+        if(verified.size() >= maxEntries)
+            DNSCache.evict(verified, EVICTION_SCAN, c -> c.expiresAt);
+        verified.put(id, new Check(valid, expiresAt));
+        return valid;
+    }
+
+    /** Builds the data an RRSIG signs: its own rdata up to the signature, then the records of the
+     * set in canonical form and order (RFC 4034 3.1.8.1 and 6).
+     * @param rrsig Canonical RRSIG rdata.
+     * @param signatureStart Offset of the signature, after the signer name.
+     * @param rrset The records of the set.
+     * @return the signed data, or null if the RRSIG can't cover the set */
+    static byte[] signedData(byte[] rrsig, int signatureStart, List<Record> rrset) {
+        Record first = rrset.get(0);
+        int labels = rrsig[3] & 0xFF;
+        long originalTTL = DNSWire.u32(rrsig, 4);
+        String owner = first.owner;
+        int ownerLabels = labelCount(owner);
+        if(ownerLabels < labels)
+            return null;
+        // An answer expanded from a wildcard is signed with the wildcard owner
+        if(ownerLabels > labels) {
+            for(int i = ownerLabels; i > labels; i--)
+                owner = parentOf(owner);
+            owner = owner.isEmpty() ? "*" : "*." + owner;
+        }
+        byte[] ownerWire = nameWire(owner);
+
+        List<byte[]> rdatas = new ArrayList<>();
+        for(Record r : rrset)
+            rdatas.add(r.rdata);
+        Collections.sort(rdatas, CANONICAL_ORDER);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        out.write(rrsig, 0, signatureStart);
+        byte[] fixed = new byte[10];
+        DNSWire.putU16(fixed, 0, first.type);
+        DNSWire.putU16(fixed, 2, first.cls);
+        DNSWire.putU32(fixed, 4, originalTTL);
+        byte[] previous = null;
+        for(byte[] rdata : rdatas) {
+            if(previous != null && Arrays.equals(previous, rdata))
+                continue;
+            previous = rdata;
+            DNSWire.putU16(fixed, 8, rdata.length);
+            out.write(ownerWire, 0, ownerWire.length);
+            out.write(fixed, 0, fixed.length);
+            out.write(rdata, 0, rdata.length);
+        }
+        return out.toByteArray();
+    }
+
+    /** Orders rdata as unsigned octet strings (RFC 4034 6.3) */
+    final private static Comparator<byte[]> CANONICAL_ORDER = new Comparator<byte[]>() {
+        public int compare(byte[] a, byte[] b) {
+            int n = Math.min(a.length, b.length);
+            for(int i = 0; i < n; i++) {
+                int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+                if(diff != 0)
+                    return diff;
+            }
+            return a.length - b.length;
+        }
+    };
+
+    /** Decodes a zone key.
+     * @param rdata DNSKEY rdata.
+     * @return the key, or null if it is not a zone key of a supported algorithm */
+    private static Key decodeKey(byte[] rdata) {
+        if(rdata.length < 5 || (DNSWire.u16(rdata, 0) & ZONE_KEY_FLAG) == 0 || rdata[2] != DNSKEY_PROTOCOL)
+            return null;
+        Key key = new Key();
+        key.algorithm = rdata[3] & 0xFF;
+        key.tag = keyTag(rdata);
+        key.rdata = rdata;
+        try {
+            switch(key.algorithm) {
+            case 5: case 7: case 8: case 10: {
+                // RFC 3110: exponent length, exponent, modulus
+                int pos = 4;
+                int expLen = rdata[pos++] & 0xFF;
+                if(expLen == 0) {
+                    if(pos + 2 > rdata.length)
+                        return null;
+                    expLen = DNSWire.u16(rdata, pos);
+                    pos += 2;
+                }
+                if(pos + expLen >= rdata.length)
+                    return null;
+                BigInteger exponent = new BigInteger(1, Arrays.copyOfRange(rdata, pos, pos + expLen));
+                BigInteger modulus = new BigInteger(1, Arrays.copyOfRange(rdata, pos + expLen, rdata.length));
+                key.publicKey = KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent));
+                return key;
+            }
+            case 13: case 14: {
+                // RFC 6605: the point as x and y
+                int size = key.algorithm == 13 ? 32 : 48;
+                if(rdata.length != 4 + 2 * size)
+                    return null;
+                AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
+                params.init(new ECGenParameterSpec(key.algorithm == 13 ? "secp256r1" : "secp384r1"));
+                ECPoint point = new ECPoint(new BigInteger(1, Arrays.copyOfRange(rdata, 4, 4 + size)),
+                                            new BigInteger(1, Arrays.copyOfRange(rdata, 4 + size, rdata.length)));
+                key.publicKey = KeyFactory.getInstance("EC").generatePublic(
+                        new ECPublicKeySpec(point, params.getParameterSpec(ECParameterSpec.class)));
+                return key;
+            }
+            default:
+                return null;
+            }
+        }
+        catch (GeneralSecurityException ex) {
+            return null;
+        }
+    }
+
+    /** Checks whether a key matches one of the DS records of its zone */
+    private static boolean matchesDS(String zone, Key key, List<byte[]> dsSet) {
+        for(byte[] ds : dsSet) {
+            if(DNSWire.u16(ds, 0) != key.tag || (ds[2] & 0xFF) != key.algorithm)
+                continue;
+            String algorithm = digestAlgorithm(ds[3] & 0xFF);
+            if(algorithm == null)
+                continue;
+            MessageDigest md = digest(algorithm);
+            md.update(nameWire(zone));
+            md.update(key.rdata);
+            if(Arrays.equals(md.digest(), Arrays.copyOfRange(ds, 4, ds.length)))
+                return true;
+        }
+        return false;
+    }
+
+    /** Computes the key tag of a DNSKEY (RFC 4034 appendix B)
+     * @param rdata DNSKEY rdata.
+     * @return the key tag */
+    static int keyTag(byte[] rdata) {
+        long ac = 0;
+        for(int i = 0; i < rdata.length; i++)
+            ac += (i & 1) == 0 ? (rdata[i] & 0xFF) << 8 : rdata[i] & 0xFF;
+        ac += (ac >> 16) & 0xFFFF;
+        return (int) (ac & 0xFFFF);
+    }
+
+    /** Gets the JCA signature algorithm of a DNSSEC algorithm number, or null if unsupported */
+    static String signatureAlgorithm(int algorithm) {
+        switch(algorithm) {
+        case 5:
+        case 7:
+            return "SHA1withRSA";
+        case 8:
+            return "SHA256withRSA";
+        case 10:
+            return "SHA512withRSA";
+        case 13:
+            return "SHA256withECDSA";
+        case 14:
+            return "SHA384withECDSA";
+        default:
+            return null;
+        }
+    }
+
+    /** Gets the JCA digest of a DS digest type, or null if unsupported */
+    static String digestAlgorithm(int digestType) {
+        switch(digestType) {
+        case 1:
+            return "SHA-1";
+        case 2:
+            return "SHA-256";
+        case 4:
+            return "SHA-384";
+        default:
+            return null;
+        }
+    }
+
+    private static boolean isECDSA(int algorithm) {
+        return algorithm == 13 || algorithm == 14;
+    }
+
+    static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /** Converts an ECDSA signature from the r|s form of RFC 6605 to the DER form of the JCA */
+    private static byte[] toDER(byte[] signature) {
+        int half = signature.length / 2;
+        byte[] r = new BigInteger(1, Arrays.copyOfRange(signature, 0, half)).toByteArray();
+        byte[] s = new BigInteger(1, Arrays.copyOfRange(signature, half, signature.length)).toByteArray();
+        // Every length fits a single octet for P-256 and P-384
+        byte[] der = new byte[6 + r.length + s.length];
+        der[0] = 0x30;
+        der[1] = (byte) (4 + r.length + s.length);
+        der[2] = 0x02;
+        der[3] = (byte) r.length;
+        System.arraycopy(r, 0, der, 4, r.length);
+        der[4 + r.length] = 0x02;
+        der[5 + r.length] = (byte) s.length;
+        System.arraycopy(s, 0, der, 6 + r.length, s.length);
+        return der;
+    }
+
+    /** Computes the NSEC3 hash of a name (RFC 5155 5), in base32hex as in the owner names */
+    private static String nsec3Hash(String name, byte[] rdata, int saltAt, int saltLen, int iterations) {
+        MessageDigest sha1 = digest("SHA-1");
+        sha1.update(nameWire(name));
+        sha1.update(rdata, saltAt, saltLen);
+        byte[] hash = sha1.digest();
+        for(int i = 0; i < iterations; i++) {
+            sha1.update(hash);
+            sha1.update(rdata, saltAt, saltLen);
+            hash = sha1.digest();
+        }
+        return base32hex(hash, 0, hash.length);
+    }
+
+    private static String base32hex(byte[] data, int from, int len) {
+        StringBuilder sb = new StringBuilder((len * 8 + 4) / 5);
+        int buffer = 0;
+        int bits = 0;
+        for(int i = from; i < from + len; i++) {
+            buffer = (buffer << 8) | (data[i] & 0xFF);
+            bits += 8;
+            while(bits >= 5) {
+                sb.append(BASE32HEX.charAt((buffer >> (bits - 5)) & 0x1F));
+                bits -= 5;
+            }
+        }
+        if(bits > 0)
+            sb.append(BASE32HEX.charAt((buffer << (5 - bits)) & 0x1F));
+        return sb.toString();
+    }
+
+    /** Checks an NSEC or NSEC3 type bitmap for a type */
+    private static boolean hasType(byte[] rdata, int pos, int type) {
+        while(pos + 2 <= rdata.length) {
+            int window = rdata[pos] & 0xFF;
+            int len = rdata[pos + 1] & 0xFF;
+            pos += 2;
+            if(pos + len > rdata.length)
+                return false;
+            if(window == type >> 8) {
+                int octet = (type & 0xFF) >> 3;
+                return octet < len && (rdata[pos + octet] & (0x80 >> (type & 7))) != 0;
+            }
+            pos += len;
+        }
+        return false;
+    }
+
+    /** Reads the answer and authority sections of a response in canonical form.
+     * @return false if the response is malformed */
+    private static boolean readSections(byte[] msg, int len, List<Record> answers, List<Record> authority) {
+        int pos = DNSWire.skipQuestions(msg, len);
+        for(int i = pos < 0 ? 0 : DNSWire.u16(msg, 6); i > 0 && pos >= 0; i--)
+            pos = readRecord(msg, len, pos, answers);
+        for(int i = pos < 0 ? 0 : DNSWire.u16(msg, 8); i > 0 && pos >= 0; i--)
+            pos = readRecord(msg, len, pos, authority);
+        return pos >= 0;
+    }
+
+    /** Reads a record in canonical form.
+     * @return the offset of the next record, or -1 */
+    private static int readRecord(byte[] msg, int len, int pos, List<Record> out) {
+        StringBuilder sb = new StringBuilder();
+        int fixed = readName(msg, pos, len, sb, true);
+        if(fixed < 0 || fixed + 10 > len)
+            return -1;
+        int rdata = fixed + 10;
+        int end = rdata + DNSWire.u16(msg, fixed + 8);
+        if(end > len)
+            return -1;
+        Record r = new Record();
+        r.owner = sb.toString();
+        r.type = DNSWire.u16(msg, fixed);
+        r.cls = DNSWire.u16(msg, fixed + 2);
+        r.ttl = DNSWire.u32(msg, fixed + 4);
+        r.rdata = canonicalRdata(msg, len, r.type, rdata, end);
+        if(r.rdata == null)
+            return -1;
+        out.add(r);
+        return end;
+    }
+
+    /** Copies rdata with its names uncompressed and, except for NSEC, in lower case (RFC 4034 6.2) */
+    private static byte[] canonicalRdata(byte[] msg, int len, int type, int rdata, int end) {
+        int before;
+        int names = 1;
+        boolean lower = true;
+        switch(type) {
+        case NS_REC:
+        case CNAME_REC:
+        case PTR_REC:
+        case DNAME_REC:
+            before = 0;
+            break;
+        case DNSWire.SOA_REC:
+            before = 0;
+            names = 2;
+            break;
+        case MX_REC:
+            before = 2;
+            break;
+        case SRV_REC:
+            before = 6;
+            break;
+        case RRSIG_REC:
+            before = 18;
+            break;
+        case NSEC_REC:
+            before = 0;
+            lower = false;
+            break;
+        default:
+            return Arrays.copyOfRange(msg, rdata, end);
+        }
+        if(rdata + before > end)
+            return null;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(end - rdata + 32);
+        out.write(msg, rdata, before);
+        int pos = rdata + before;
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < names; i++) {
+            sb.setLength(0);
+            pos = readName(msg, pos, len, sb, lower);
+            if(pos < 0 || pos > end)
+                return null;
+            byte[] wire = nameWire(sb.toString());
+            out.write(wire, 0, wire.length);
+        }
+        out.write(msg, pos, end - pos);
+        return out.toByteArray();
+    }
+
+    /** Reads a (possibly compressed) name as dotted labels, the root being "".
+     * @return the offset right after the name, or -1 if it is malformed */
+    private static int readName(byte[] msg, int pos, int len, StringBuilder sb, boolean lower) {
+        int next = -1;
+        int pointers = 0;
+        int length = 1;
+        while(true) {
+            if(pos >= len)
+                return -1;
+            int labelLen = msg[pos] & 0xFF;
+            if(labelLen == 0)
+                return next < 0 ? pos + 1 : next;
+            if((labelLen & 0xC0) == 0xC0) {
+                if(pos + 1 >= len || ++pointers > MAX_POINTERS)
+                    return -1;
+                if(next < 0)
+                    next = pos + 2;
+                pos = ((labelLen & 0x3F) << 8) | (msg[pos + 1] & 0xFF);
+                continue;
+            }
+            length += labelLen + 1;
+            if((labelLen & 0xC0) != 0 || pos + 1 + labelLen > len || length > 255)
+                return -1;
+            if(sb.length() > 0)
+                sb.append('.');
+            for(int i = 1; i <= labelLen; i++) {
+                char c = (char) (msg[pos + i] & 0xFF);
+                // A dot inside a label can't be told apart from a label separator
+                if(c == '.')
+                    return -1;
+                sb.append(lower && c >= 'A' && c <= 'Z' ? (char) (c + 32) : c);
+            }
+            pos += labelLen + 1;
+        }
+    }
+
+    /** Encodes a dotted name as uncompressed labels */
+    static byte[] nameWire(String name) {
+        byte[] out = new byte[name.length() + 2];
+        int pos = 0;
+        int start = 0;
+        for(int i = 0; i <= name.length() && !name.isEmpty(); i++) {
+            if(i == name.length() || name.charAt(i) == '.') {
+                out[pos++] = (byte) (i - start);
+                for(int j = start; j < i; j++)
+                    out[pos++] = (byte) name.charAt(j);
+                start = i + 1;
+            }
+        }
+        out[pos++] = 0;
+        return Arrays.copyOf(out, pos);
+    }
+
+    static int labelCount(String name) {
+        if(name.isEmpty())
+            return 0;
+        int n = 1;
+        for(int i = 0; i < name.length(); i++) {
+            if(name.charAt(i) == '.')
+                n++;
+        }
+        return n;
+    }
+
+    static String parentOf(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    /** Checks whether a name is a zone or below it, both in lower case, the root being "" */
+    static boolean isSubdomain(String name, String zone) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    /** Gets the signer name of an RRSIG, or null if it is malformed */
+    private static String signer(Record sig) {
+        StringBuilder sb = new StringBuilder();
+        return sig.rdata.length > 18 && readName(sig.rdata, 18, sig.rdata.length, sb, true) > 0 ? sb.toString() : null;
+    }
+
+    /** Gets the records of an RRset */
+    private static List<Record> rrset(List<Record> records, String owner, int type) {
+        List<Record> set = new ArrayList<>();
+        for(Record r : records) {
+            if(r.type == type && r.owner.equals(owner))
+                set.add(r);
+        }
+        return set;
+    }
+
+    /** Gets the RRSIGs covering an RRset */
+    private static List<Record> covering(List<Record> records, String owner, int type) {
+        List<Record> sigs = new ArrayList<>();
+        for(Record r : records) {
+            if(r.type == RRSIG_REC && r.owner.equals(owner) && r.rdata.length >= 18 && DNSWire.u16(r.rdata, 0) == type)
+                sigs.add(r);
+        }
+        return sigs;
+    }
+
+    /** Gets the time a validated RRset may be trusted until: its TTL, bounded by the original TTL
+     * and the expiration of its signatures and by maxTTL */
+    private long expiresAt(List<Record> rrset, List<Record> sigs) {
+        long now = System.currentTimeMillis();
+        long ttl = maxTTL;
+        for(Record r : rrset)
+            ttl = Math.min(ttl, r.ttl);
+        for(Record sig : sigs) {
+            ttl = Math.min(ttl, DNSWire.u32(sig.rdata, 4));
+            ttl = Math.min(ttl, Math.max((int) (DNSWire.u32(sig.rdata, 8) - now / 1000), 0));
+        }
+        return now + ttl * 1000;
+    }
+
+    private static Trust fresh(Map<String, Trust> map, String zone) {
+        Trust t = map.get(zone);
+        if(t != null && System.currentTimeMillis() >= t.expiresAt) {
+            map.remove(zone, t);
+            return null;
+        }
+        return t;
+    }
+
+    private Trust store(Map<String, Trust> map, String zone, Trust t) {
+        if(map.size() >= maxEntries)
+            DNSCache.evict(map, EVICTION_SCAN, e -> e.expiresAt);
+        map.put(zone, t);
+        return t;
+    }
+
+    /** Gets the number of zones whose key set is known
+     * @return zone count */
+    int getTrustedZoneCount() {
+        return keys.size();
+    }
+
+    /** Gets the number of remembered signature checks
+     * @return signature count */
+    int getVerifiedCount() {
+        return verified.size();
+    }
+}
@@ -0,0 +1,251 @@
+package il.ac.idc.cs.sinkhole;
+
+/** This class is responsible for reading and patching DNS messages directly in their wire format,
+ * without building a DNSParser for them. All the methods work on a byte array holding a message
+ * at offset 0 and return -1 when the message is malformed. */
+final class DNSWire {
+
+    final static int HEADER_SIZE = 12;
+    final static int OPT_REC = 41;
+    final static int SOA_REC = 6;
+    /** Size of an EDNS0 OPT record without options */
+    final static int OPT_SIZE = 11;
+
+    private DNSWire() {
+    }
+
+    /** Reads an unsigned 16 bit value */
+    static int u16(byte[] buf, int pos) {
+        return ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+    }
+
+    /** Reads an unsigned 32 bit value */
+    static long u32(byte[] buf, int pos) {
+        return ((long) u16(buf, pos) << 16) | u16(buf, pos + 2);
+    }
+
+    /** Writes a 16 bit value */
+    static void putU16(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >> 8);
+        buf[pos + 1] = (byte) value;
+    }
+
+    /** Writes a 32 bit value */
+    static void putU32(byte[] buf, int pos, long value) {
+        putU16(buf, pos, (int) (value >> 16));
+        putU16(buf, pos + 2, (int) value);
+    }
+
+    /** Encodes a question in wire format: the lower case name as labels, the type and class IN.
+     * @param qname Queried host.
+     * @param qtype Query type.
+     * @param out Buffer of at least 260 bytes.
+     * @return the encoded length, or -1 if the name is not a valid host name */
+    static int encodeQuestion(String qname, int qtype, byte[] out) {
+        int pos = 0;
+        int labelStart = 0;
+        int n = qname.length();
+        if(n > 253)
+            return -1;
+        for(int i = 0; i <= n; i++) {
+            if(i == n || qname.charAt(i) == '.') {
+                int labelLen = i - labelStart;
+                if(labelLen == 0 && i == n)
+                    break;
+                if(labelLen == 0 || labelLen > 63)
+                    return -1;
+                out[pos++] = (byte) labelLen;
+                for(int j = labelStart; j < i; j++) {
+                    char c = qname.charAt(j);
+                    out[pos++] = (byte) ((c >= 'A' && c <= 'Z') ? c + 32 : c);
+                }
+                labelStart = i + 1;
+            }
+        }
+        out[pos++] = 0;
+        putU16(out, pos, qtype);
+        putU16(out, pos + 2, 1);
+        return pos + 4;
+    }
+
+    /** Decodes the name of a question encoded by encodeQuestion().
+     * @param buf The encoded question.
+     * @param len Encoded length.
+     * @return the dotted name */
+    static String decodeQuestionName(byte[] buf, int len) {
+        StringBuilder sb = new StringBuilder(len);
+        int pos = 0;
+        while(pos < len && buf[pos] != 0) {
+            int labelLen = buf[pos++] & 0xFF;
+            if(sb.length() > 0)
+                sb.append('.');
+            for(int i = 0; i < labelLen; i++)
+                sb.append((char) (buf[pos++] & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    /** Gets the total number of records in the answer, authority and additional sections */
+    static int recordCount(byte[] buf) {
+        return u16(buf, 6) + u16(buf, 8) + u16(buf, 10);
+    }
+
+    /** Skips a (possibly compressed) name.
+     * @param buf The message.
+     * @param pos Offset of the name.
+     * @param end End of the message.
+     * @return the offset right after the name, or -1 */
+    static int skipName(byte[] buf, int pos, int end) {
+        while(pos < end) {
+            int len = buf[pos] & 0xFF;
+            if(len == 0)
+                return pos + 1;
+            if((len & 0xC0) == 0xC0)
+                return pos + 2 <= end ? pos + 2 : -1;
+            if((len & 0xC0) != 0)
+                return -1;
+            pos += len + 1;
+        }
+        return -1;
+    }
+
+    /** Skips the question section.
+     * @param buf The message.
+     * @param len Message length.
+     * @return the offset of the first record, or -1 */
+    static int skipQuestions(byte[] buf, int len) {
+        if(len < HEADER_SIZE)
+            return -1;
+        int pos = HEADER_SIZE;
+        for(int i = u16(buf, 4); i > 0; i--) {
+            pos = skipName(buf, pos, len);
+            if(pos < 0 || pos + 4 > len)
+                return -1;
+            pos += 4;
+        }
+        return pos;
+    }
+
+    /** Checks that a response answers a query: the same single question, names compared
+     * without regard to case.
+     * @param query The query.
+     * @param queryLen Query length.
+     * @param response The response.
+     * @param responseLen Response length.
+     * @return true if the question sections match */
+    static boolean sameQuestion(byte[] query, int queryLen, byte[] response, int responseLen) {
+        if(queryLen < HEADER_SIZE || responseLen < HEADER_SIZE || u16(query, 4) != 1 || u16(response, 4) != 1)
+            return false;
+        int end = skipQuestions(query, queryLen);
+        if(end < 0 || end > responseLen)
+            return false;
+        // The labels of the name, only their characters may differ in case, then type and class
+        int pos = HEADER_SIZE;
+        while(query[pos] != 0) {
+            int labelLen = query[pos] & 0xFF;
+            if((labelLen & 0xC0) != 0 || response[pos] != query[pos])
+                return false;
+            for(int i = pos + 1; i <= pos + labelLen; i++) {
+                if(lower(query[i]) != lower(response[i]))
+                    return false;
+            }
+            pos += labelLen + 1;
+        }
+        for(; pos < end; pos++) {
+            if(query[pos] != response[pos])
+                return false;
+        }
+        return true;
+    }
+
+    private static int lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + 32 : b;
+    }
+
+    /** Gets the smallest TTL of all the records, ignoring the EDNS0 OPT record.
+     * For a negative answer the SOA MINIMUM field bounds the TTL as well (RFC 2308).
+     * @param buf The message.
+     * @param len Message length.
+     * @return the TTL in seconds, Long.MAX_VALUE if there are no records, or -1 */
+    static long minTTL(byte[] buf, int len) {
+        int pos = skipQuestions(buf, len);
+        if(pos < 0)
+            return -1;
+        long min = Long.MAX_VALUE;
+        for(int i = recordCount(buf); i > 0; i--) {
+            pos = skipName(buf, pos, len);
+            if(pos < 0 || pos + 10 > len)
+                return -1;
+            int type = u16(buf, pos);
+            long ttl = u32(buf, pos + 4);
+            int rdlen = u16(buf, pos + 8);
+            pos += 10 + rdlen;
+            if(pos > len)
+                return -1;
+            if(type == OPT_REC)
+                continue;
+            min = Math.min(min, ttl);
+            if(type == SOA_REC && rdlen >= 20)
+                min = Math.min(min, u32(buf, pos - 4));
+        }
+        return min;
+    }
+
+    /** Gets the UDP payload size a message advertises in its EDNS0 OPT record (RFC 6891 6.2.3).
+     * @param buf The message.
+     * @param len Message length.
+     * @return the payload size, or -1 if the message has no OPT record or is malformed */
+    static int ednsPayloadSize(byte[] buf, int len) {
+        int pos = skipQuestions(buf, len);
+        if(pos < 0)
+            return -1;
+        int additionalFrom = u16(buf, 6) + u16(buf, 8);
+        int records = recordCount(buf);
+        for(int i = 0; i < records; i++) {
+            pos = skipName(buf, pos, len);
+            if(pos < 0 || pos + 10 > len)
+                return -1;
+            if(i >= additionalFrom && u16(buf, pos) == OPT_REC)
+                return u16(buf, pos + 2);
+            pos += 10 + u16(buf, pos + 8);
+        }
+        return -1;
+    }
+
+    /** Appends an EDNS0 OPT record without options to a message and counts it in the additional section.
+     * @param buf The message, with room for OPT_SIZE more bytes.
+     * @param len Message length.
+     * @param payloadSize The UDP payload size to advertise.
+     * @return the new message length */
+    static int appendOpt(byte[] buf, int len, int payloadSize) {
+        buf[len] = 0;
+        putU16(buf, len + 1, OPT_REC);
+        putU16(buf, len + 3, payloadSize);
+        putU32(buf, len + 5, 0);
+        putU16(buf, len + 9, 0);
+        putU16(buf, 10, u16(buf, 10) + 1);
+        return len + OPT_SIZE;
+    }
+
+    /** Decrements the TTL of every record, without going below 0.
+     * @param buf The message.
+     * @param len Message length.
+     * @param elapsedSeconds Seconds to subtract.
+     * @return false if the message is malformed */
+    static boolean decrementTTLs(byte[] buf, int len, long elapsedSeconds) {
+        int pos = skipQuestions(buf, len);
+        if(pos < 0)
+            return false;
+        for(int i = recordCount(buf); i > 0; i--) {
+            pos = skipName(buf, pos, len);
+            if(pos < 0 || pos + 10 > len)
+                return false;
+            if(u16(buf, pos) != OPT_REC)
+                putU32(buf, pos + 4, Math.max(u32(buf, pos + 4) - elapsedSeconds, 0));
+            pos += 10 + u16(buf, pos + 8);
+            if(pos > len)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,113 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.locks.LockSupport;
+
+/** This class is responsible for the sinkhole socket in batched I/O mode.
+ * The socket is a non-blocking DatagramChannel: a single selector wakeup drains every datagram that
+ * is already queued in the kernel, up to the batch size, instead of waking up once per packet.
+ * Replies are sent on the same channel from any thread. */
+public class DatagramBatchChannel implements PacketSender {
+
+    final private static int SEND_RETRIES = 100;
+    final private static long SEND_RETRY_NANOS = 50000L;
+
+    private DatagramChannel channel;
+    private Selector selector;
+    private ByteBuffer[] views;
+
+    /** Class constructor. Binds the channel.
+     * @param port UDP port to listen on, 0 for any free port.
+     * @param batchSize Maximum number of datagrams read per receive().
+     */
+    public DatagramBatchChannel(int port, int batchSize) throws IOException {
+        this(new InetSocketAddress(port), batchSize);
+    }
+
+    /** Class constructor. Binds the channel.
+     * @param address Local address to listen on.
+     * @param batchSize Maximum number of datagrams read per receive().
+     */
+    public DatagramBatchChannel(InetSocketAddress address, int batchSize) throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(address);
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        views = new ByteBuffer[batchSize];
+    }
+
+    /** Reads a batch of datagrams, waiting until at least one is available.
+     * Only a single thread may receive.
+     * @param packets Packets to read into, their buffers are reused as long as they don't change.
+     * @return the number of packets read, or -1 once the channel is closed */
+    int receive(DatagramPacket[] packets) throws IOException {
+        int max = Math.min(packets.length, views.length);
+        while(true) {
+            int n = 0;
+            for(; n < max; n++) {
+                DatagramPacket p = packets[n];
+                ByteBuffer bb = views[n];
+                if(bb == null || bb.array() != p.getData())
+                    bb = views[n] = ByteBuffer.wrap(p.getData());
+                bb.clear();
+                SocketAddress from = channel.receive(bb);
+                if(from == null)
+                    break;
+                p.setData(bb.array(), 0, bb.position());
+                p.setSocketAddress(from);
+            }
+            if(n > 0)
+                return n;
+            selector.select();
+            selector.selectedKeys().clear();
+            if(!channel.isOpen()) {
+                selector.close();
+                return -1;
+            }
+        }
+    }
+
+    /** Sends a reply. When the socket send buffer is full the send is retried for a few
+     * milliseconds before giving up. */
+    public void send(DatagramPacket packet) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+        SocketAddress to = packet.getSocketAddress();
+        for(int i = 0; i < SEND_RETRIES; i++) {
+            if(channel.send(bb, to) > 0)
+                return;
+            LockSupport.parkNanos(SEND_RETRY_NANOS);
+        }
+        throw new IOException("socket send buffer full");
+    }
+
+    public void flush() {
+    }
+
+    /** Gets the bound port
+     * @return the local port */
+    int getLocalPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /** Closes the channel and wakes up the receiving thread */
+    void close() {
+        try {
+            channel.close();
+            selector.wakeup();
+        }
+        catch (IOException ex) {
+            System.err.println("Socket close error: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** This class is responsible for an answer store on the Java heap, one object per response.
+ * The store is split into stripes by key hash. Reads are a lock-free ConcurrentHashMap lookup,
+ * writes only lock their own stripe. A full stripe evicts with sampled LRU: it looks at a few
+ * random entries and drops an expired one, or the one that was used least recently. */
+public class HeapAnswerStore implements AnswerStore {
+
+    /** A stored response */
+    private static class Answer {
+        String key;
+        String qname;
+        int qtype;
+        byte[] response;
+        long storedAt;
+        long expiresAt;
+        /** Position in the stripe's slot table */
+        int slot;
+        /** Coarse time of the last hit, see accessTick() */
+        volatile int lastAccess;
+    }
+
+    /** This class is responsible for one independently locked part of the store */
+    private static class Stripe {
+        Map<String, Answer> map = new ConcurrentHashMap<>();
+        /** Every entry of the stripe by slot, to pick eviction samples from */
+        Answer[] slots;
+        int count;
+
+        Stripe(int capacity) {
+            slots = new Answer[capacity];
+        }
+    }
+
+    final private static int EVICTION_SAMPLES = 5;
+
+    private Stripe[] stripes;
+    private int stripeMask;
+
+    /** Class constructor.
+     * @param maxEntries Maximum number of responses.
+     * @param stripes Number of stripes, rounded up to a power of two.
+     */
+    public HeapAnswerStore(int maxEntries, int stripes) {
+        int count = Integer.highestOneBit(Math.max(stripes - 1, 1)) << 1;
+        // Don't split a small store into stripes that can't hold anything
+        while(count > 1 && maxEntries / count < EVICTION_SAMPLES)
+            count >>= 1;
+        this.stripes = new Stripe[count];
+        for(int i = 0; i < count; i++)
+            this.stripes[i] = new Stripe(maxEntries / count);
+        stripeMask = count - 1;
+    }
+
+    private static String key(String qname, int qtype) {
+        return qname + "/" + qtype;
+    }
+
+    private Stripe stripeFor(String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & stripeMask];
+    }
+
+    /** Gets the LRU clock: wall-clock time in units of about a second, so a hot entry writes its
+     * access time at most once per unit instead of on every hit. */
+    private static int accessTick(long now) {
+        return (int) (now >>> 10);
+    }
+
+    public int get(String qname, int qtype, long now, byte[] out) {
+        String key = key(qname, qtype);
+        Answer a = stripeFor(key).map.get(key);
+        if(a == null || now >= a.expiresAt || a.response.length > out.length)
+            return -1;
+        int tick = accessTick(now);
+        if(a.lastAccess != tick)
+            a.lastAccess = tick;
+        System.arraycopy(a.response, 0, out, 0, a.response.length);
+        DNSWire.decrementTTLs(out, a.response.length, (now - a.storedAt) / 1000);
+        return a.response.length;
+    }
+
+    public void put(String qname, int qtype, byte[] response, int len, long storedAt, long expiresAt) {
+        Answer a = new Answer();
+        a.key = key(qname, qtype);
+        a.qname = qname;
+        a.qtype = qtype;
+        a.response = new byte[len];
+        System.arraycopy(response, 0, a.response, 0, len);
+        a.storedAt = storedAt;
+        a.expiresAt = expiresAt;
+        // Until its first hit an entry counts as a tick older, so it goes before the entries hit
+        // within the same tick
+        a.lastAccess = accessTick(storedAt) - 1;
+
+        Stripe s = stripeFor(a.key);
+        if(s.slots.length == 0)
+            return;
+        synchronized(s) {
+            Answer old = s.map.get(a.key);
+            if(old != null) {
+                a.slot = old.slot;
+            }
+            else if(s.count < s.slots.length) {
+                a.slot = s.count++;
+            }
+            else {
+                Answer victim = sample(s, storedAt);
+                s.map.remove(victim.key, victim);
+                a.slot = victim.slot;
+            }
+            s.slots[a.slot] = a;
+            s.map.put(a.key, a);
+        }
+    }
+
+    /** Picks the entry to evict from a full stripe: the first expired sample, or the least
+     * recently used one */
+    private static Answer sample(Stripe s, long now) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Answer victim = null;
+        for(int i = 0; i < EVICTION_SAMPLES; i++) {
+            Answer a = s.slots[random.nextInt(s.count)];
+            if(a.expiresAt <= now)
+                return a;
+            if(victim == null || a.lastAccess - victim.lastAccess < 0)
+                victim = a;
+        }
+        return victim;
+    }
+
+    public int size() {
+        int total = 0;
+        for(Stripe s : stripes)
+            total += s.map.size();
+        return total;
+    }
+
+    public void forEach(Visitor visitor) throws IOException {
+        long now = System.currentTimeMillis();
+        for(Stripe s : stripes) {
+            for(Answer a : s.map.values()) {
+                if(a.expiresAt > now)
+                    visitor.visit(a.qname, a.qtype, a.response, a.storedAt, a.expiresAt);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package il.ac.idc.cs.sinkhole;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** This class is responsible for recording a distribution of latencies without locking.
+ * Values are kept in log-linear buckets (HdrHistogram style): every power of two is split into
+ * 2^SUB_BUCKET_BITS linear sub-buckets, so the relative error is bounded by about 3%.
+ * Values are expected in microseconds but any non negative long can be recorded. */
+public class LatencyHistogram {
+
+    final private static int SUB_BUCKET_BITS = 5;
+    final private static int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    final private static int MAX_EXPONENT = 40;
+    final private static long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    final private static int NUM_BUCKETS = SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private AtomicLongArray counts;
+    private LongAdder totalCount;
+    private LongAdder totalSum;
+
+    /** Class constructor */
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(NUM_BUCKETS);
+        totalCount = new LongAdder();
+        totalSum = new LongAdder();
+    }
+
+    /** Gets the bucket index of a value.
+     * @param value The recorded value.
+     * @return the index into the counts array */
+    static int bucketIndex(long value) {
+        if(value < SUB_BUCKET_COUNT)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKET_COUNT;
+        return SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + sub;
+    }
+
+    /** Gets the highest value that falls into a bucket.
+     * @param index The bucket index.
+     * @return the upper bound of the bucket */
+    static long bucketUpperBound(int index) {
+        if(index < SUB_BUCKET_COUNT)
+            return index;
+        int exponent = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS;
+        long sub = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((SUB_BUCKET_COUNT + sub + 1) << shift) - 1;
+    }
+
+    /** Records a single value.
+     * @param value The value to record, negative values are recorded as 0 and huge values are clamped. */
+    public void record(long value) {
+        if(value < 0)
+            value = 0;
+        else if(value > MAX_VALUE)
+            value = MAX_VALUE;
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.increment();
+        totalSum.add(value);
+    }
+
+    /** Records the time elapsed since a System.nanoTime() stamp, in microseconds.
+     * @param startNanos The start time stamp. */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /** Gets the number of recorded values
+     * @return count */
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    /** Gets the sum of all recorded values
+     * @return sum */
+    public long getSum() {
+        return totalSum.sum();
+    }
+
+    /** Gets the value at a given percentile.
+     * The buckets are read one by one without a lock, so the result is only approximate
+     * while other threads keep recording.
+     * @param percentile Percentile in the range 0-100.
+     * @return the upper bound of the bucket holding the percentile, or 0 if nothing was recorded */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[NUM_BUCKETS];
+        long total = 0;
+        for(int i = 0; i < NUM_BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if(total == 0)
+            return 0;
+        long target = (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0);
+        if(target < 1)
+            target = 1;
+        long seen = 0;
+        for(int i = 0; i < NUM_BUCKETS; i++) {
+            seen += snapshot[i];
+            if(seen >= target)
+                return bucketUpperBound(i);
+        }
+        return MAX_VALUE;
+    }
+}
@@ -0,0 +1,97 @@
+package il.ac.idc.cs.sinkhole;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/** This class is responsible for exporting the resolver metrics over HTTP.
+ * The server listens on the loopback interface only and serves the Prometheus text format on /metrics,
+ * the readiness of the sinkhole on /ready (200 once the caches are warm, 503 while starting or draining),
+ * and the sampled query traces on /traces (?slowest or ?recent, &n=count). */
+public class MetricsServer {
+
+    private HttpServer server;
+
+    /** Class constructor.
+     * @param port Loopback port to listen on.
+     * @param metrics The metrics to export.
+     */
+    public MetricsServer(int port, final DNSMetrics metrics) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                StringBuilder sb = new StringBuilder(8192);
+                metrics.writePrometheus(sb);
+                sendText(exchange, 200, sb.toString());
+            }
+        });
+        server.createContext("/traces", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                TraceCollector traces = metrics.getTraces();
+                if(traces == null) {
+                    sendText(exchange, 404, "tracing is disabled, see sinkhole.trace.sample\n");
+                    return;
+                }
+                // ?recent or ?slowest (the default), and &n= the number of traces
+                String query = exchange.getRequestURI().getQuery();
+                boolean recent = false;
+                int n = Integer.MAX_VALUE;
+                if(query != null) {
+                    for(String p : query.split("&")) {
+                        if(p.equals("recent"))
+                            recent = true;
+                        else if(p.startsWith("n=")) {
+                            try {
+                                n = Integer.parseInt(p.substring(2));
+                            }
+                            catch (NumberFormatException ex) {
+                                sendText(exchange, 400, "bad n\n");
+                                return;
+                            }
+                        }
+                    }
+                }
+                StringBuilder sb = new StringBuilder(8192);
+                TraceCollector.write(sb, recent ? traces.getRecent(n) : traces.getSlowest(n));
+                sendText(exchange, 200, sb.toString());
+            }
+        });
+        server.createContext("/ready", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if(metrics.isReady())
+                    sendText(exchange, 200, "ready\n");
+                else
+                    sendText(exchange, 503, "not ready\n");
+            }
+        });
+    }
+
+    /** Sends a plain text reply and closes the exchange.
+     * @param exchange The HTTP exchange.
+     * @param status HTTP status code.
+     * @param body Reply body.
+     */
+    static void sendText(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /** Starts serving requests on a background thread */
+    public void start() {
+        server.start();
+    }
+
+    /** Stops the server.
+     * @param delaySeconds Time to let in-flight requests finish. */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+    }
+}
@@ -0,0 +1,423 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/** This class is responsible for an answer store kept outside of the Java heap, so a large cache
+ * adds nothing to the garbage collector's work no matter how many responses it holds.
+ * The store is split into segments by key hash. Writes lock their segment, reads take no lock at
+ * all: they copy the response optimistically and check the segment's sequence number (a
+ * StampedLock, i.e. a seqlock) afterwards, retrying only if a writer got in between.
+ * A segment appends its records to a direct buffer (the arena) split into REGIONS circular
+ * regions. When the current region is full the next one is reused: its records that were hit
+ * since they were written get a second chance and are moved to the front of the region, the rest
+ * are dropped at once, so eviction approximates LRU without any per-hit bookkeeping.
+ * Each segment finds its records through an open addressing index, also in a direct buffer.
+ *
+ * Index slot layout (INDEX_SLOT_SIZE bytes):
+ *   0  long  key hash, 0 for an empty slot
+ *   8  int   arena offset of the record
+ *  12  int   generation of the record's region when it was written
+ *
+ * Arena record layout:
+ *   short key length, key (the question in wire format), int last hit (0 if none),
+ *   long stored at, long expires at, short response length, response */
+public class OffHeapAnswerStore implements AnswerStore {
+
+    final private static int REGIONS = 8;
+    final private static int INDEX_SLOT_SIZE = 16;
+    final private static int RECORD_OVERHEAD = 2 + 4 + 16 + 2;
+    final private static int BYTES_PER_SLOT = 128;
+    final private static int MIN_SEGMENT_BYTES = 64 * 1024;
+    final private static int MAX_KEY = 260;
+    final private static double MAX_LOAD = 0.75;
+    final private static int OPTIMISTIC_ATTEMPTS = 3;
+    final private static int MISS = -1;
+    final private static int TORN = -2;
+
+    /** Per-thread buffers, so lookups don't allocate */
+    private static class Scratch {
+        byte[] key = new byte[MAX_KEY];
+        long storedAt;
+        int offset;
+    }
+
+    /** This class is responsible for one part of the store with its own lock */
+    private static class Segment {
+        StampedLock lock = new StampedLock();
+        ByteBuffer arena;
+        ByteBuffer index;
+        ByteBuffer spareIndex;
+        int slots;
+        int mask;
+        int maxUsed;
+        int used;
+        int regionSize;
+        int[] generations = new int[REGIONS];
+        int[] regionEnds = new int[REGIONS];
+        int writeRegion;
+        int writePos;
+
+        Segment(int arenaBytes) {
+            regionSize = arenaBytes / REGIONS;
+            arena = ByteBuffer.allocateDirect(regionSize * REGIONS);
+            slots = Integer.highestOneBit(Math.max(arenaBytes / BYTES_PER_SLOT, 64));
+            mask = slots - 1;
+            maxUsed = (int) (slots * MAX_LOAD);
+            index = ByteBuffer.allocateDirect(slots * INDEX_SLOT_SIZE);
+            spareIndex = ByteBuffer.allocateDirect(slots * INDEX_SLOT_SIZE);
+            for(int r = 0; r < REGIONS; r++)
+                regionEnds[r] = r * regionSize;
+        }
+
+        /** Whether a slot points to a record that was not overwritten since */
+        boolean isLive(ByteBuffer idx, int slot) {
+            int base = slot * INDEX_SLOT_SIZE;
+            return idx.getLong(base) != 0 && idx.getInt(base + 12) == generations[idx.getInt(base + 8) / regionSize];
+        }
+
+        /** Whether the record at an arena offset has a given key */
+        boolean keyEquals(int offset, byte[] key, int keyLen) {
+            if((arena.getShort(offset) & 0xFFFF) != keyLen)
+                return false;
+            for(int i = 0; i < keyLen; i++) {
+                if(arena.get(offset + 2 + i) != key[i])
+                    return false;
+            }
+            return true;
+        }
+
+        /** Finds the slot holding a key. May run concurrently with a writer, so the probe is bounded.
+         * @return the slot, or -1 if the key is not stored */
+        int find(long hash, byte[] key, int keyLen) {
+            ByteBuffer idx = index;
+            int slot = (int) hash & mask;
+            for(int probes = 0; probes < slots; probes++, slot = (slot + 1) & mask) {
+                int base = slot * INDEX_SLOT_SIZE;
+                long h = idx.getLong(base);
+                if(h == 0)
+                    return -1;
+                if(h == hash && isLive(idx, slot) && keyEquals(idx.getInt(base + 8), key, keyLen))
+                    return slot;
+            }
+            return -1;
+        }
+
+        /** Copies a response out of the segment. Runs without the lock, so every offset read from
+         * the buffers may be garbage and the result only counts once the stamp is validated.
+         * @return the response length, MISS, or TORN if the data can't be trusted */
+        int read(long hash, Scratch scratch, int keyLen, long now, byte[] out) {
+            try {
+                int slot = find(hash, scratch.key, keyLen);
+                if(slot < 0)
+                    return MISS;
+                int offset = index.getInt(slot * INDEX_SLOT_SIZE + 8);
+                int pos = offset + 2 + keyLen + 4;
+                if(now >= arena.getLong(pos + 8))
+                    return MISS;
+                int len = arena.getShort(pos + 16) & 0xFFFF;
+                if(len > out.length)
+                    return MISS;
+                for(int i = 0; i < len; i++)
+                    out[i] = arena.get(pos + 18 + i);
+                scratch.storedAt = arena.getLong(pos);
+                scratch.offset = offset;
+                return len;
+            }
+            catch (IndexOutOfBoundsException ex) {
+                return TORN;
+            }
+        }
+
+        /** Appends a record to the arena and points the index at it */
+        void put(long hash, byte[] key, int keyLen, byte[] response, int len, long storedAt, long expiresAt) {
+            int size = RECORD_OVERHEAD + keyLen + len;
+            if(size > regionSize / 2)
+                return;
+            if(writePos + size > (writeRegion + 1) * regionSize)
+                advanceRegion(storedAt);
+            // Keep the probe sequences short: drop expired entries first, then whole regions
+            while(used >= maxUsed) {
+                rebuildIndex(storedAt);
+                if(used >= maxUsed)
+                    advanceRegion(storedAt);
+            }
+
+            int offset = writePos;
+            arena.putShort(offset, (short) keyLen);
+            for(int i = 0; i < keyLen; i++)
+                arena.put(offset + 2 + i, key[i]);
+            int pos = offset + 2 + keyLen;
+            arena.putInt(pos, 0);
+            arena.putLong(pos + 4, storedAt);
+            arena.putLong(pos + 12, expiresAt);
+            arena.putShort(pos + 20, (short) len);
+            for(int i = 0; i < len; i++)
+                arena.put(pos + 22 + i, response[i]);
+            writePos += size;
+
+            int slot = find(hash, key, keyLen);
+            if(slot < 0) {
+                slot = (int) hash & mask;
+                while(index.getLong(slot * INDEX_SLOT_SIZE) != 0)
+                    slot = (slot + 1) & mask;
+                used++;
+            }
+            int base = slot * INDEX_SLOT_SIZE;
+            index.putLong(base, hash);
+            index.putInt(base + 8, offset);
+            index.putInt(base + 12, generations[writeRegion]);
+        }
+
+        /** Moves the write position to the start of the next region. The records of the region
+         * that were hit and have not expired are compacted to its front, the others are evicted. */
+        void advanceRegion(long now) {
+            regionEnds[writeRegion] = writePos;
+            writeRegion = (writeRegion + 1) % REGIONS;
+            int start = writeRegion * regionSize;
+            int end = regionEnds[writeRegion];
+            int oldGeneration = generations[writeRegion]++;
+            int newGeneration = generations[writeRegion];
+            int limit = start + regionSize / 2;
+            writePos = start;
+
+            byte[] key = new byte[MAX_KEY];
+            for(int offset = start; offset < end; ) {
+                int keyLen = arena.getShort(offset) & 0xFFFF;
+                int pos = offset + 2 + keyLen;
+                int size = RECORD_OVERHEAD + keyLen + (arena.getShort(pos + 20) & 0xFFFF);
+                if(arena.getInt(pos) != 0 && arena.getLong(pos + 12) > now && writePos + size <= limit) {
+                    for(int i = 0; i < keyLen; i++)
+                        key[i] = arena.get(offset + 2 + i);
+                    int slot = findRecord(hash(key, keyLen), offset, oldGeneration);
+                    if(slot >= 0) {
+                        // Records only move towards the start, so copying forward is safe
+                        for(int i = 0; i < size; i++)
+                            arena.put(writePos + i, arena.get(offset + i));
+                        arena.putInt(writePos + 2 + keyLen, 0);
+                        index.putInt(slot * INDEX_SLOT_SIZE + 8, writePos);
+                        index.putInt(slot * INDEX_SLOT_SIZE + 12, newGeneration);
+                        writePos += size;
+                    }
+                }
+                offset += size;
+            }
+            rebuildIndex(now);
+        }
+
+        /** Finds the slot that points to a given record */
+        int findRecord(long hash, int offset, int generation) {
+            for(int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+                int base = slot * INDEX_SLOT_SIZE;
+                long h = index.getLong(base);
+                if(h == 0)
+                    return -1;
+                if(h == hash && index.getInt(base + 8) == offset && index.getInt(base + 12) == generation)
+                    return slot;
+            }
+        }
+
+        /** Re-inserts every live and unexpired slot into the spare index and swaps the two */
+        void rebuildIndex(long now) {
+            for(int slot = 0; slot < slots; slot++)
+                spareIndex.putLong(slot * INDEX_SLOT_SIZE, 0);
+            int count = 0;
+            for(int slot = 0; slot < slots; slot++) {
+                if(!isLive(index, slot))
+                    continue;
+                int base = slot * INDEX_SLOT_SIZE;
+                int offset = index.getInt(base + 8);
+                int keyLen = arena.getShort(offset) & 0xFFFF;
+                if(arena.getLong(offset + 2 + keyLen + 12) <= now)
+                    continue;
+                long hash = index.getLong(base);
+                int target = (int) hash & mask;
+                while(spareIndex.getLong(target * INDEX_SLOT_SIZE) != 0)
+                    target = (target + 1) & mask;
+                int to = target * INDEX_SLOT_SIZE;
+                spareIndex.putLong(to, hash);
+                spareIndex.putInt(to + 8, offset);
+                spareIndex.putInt(to + 12, index.getInt(base + 12));
+                count++;
+            }
+            ByteBuffer old = index;
+            index = spareIndex;
+            spareIndex = old;
+            used = count;
+        }
+    }
+
+    /** A copy of an entry, taken while the segment is locked */
+    private static class Copy {
+        String qname;
+        int qtype;
+        byte[] response;
+        long storedAt;
+        long expiresAt;
+    }
+
+    private Segment[] segments;
+    private int segmentMask;
+    private ThreadLocal<Scratch> scratch;
+
+    /** Class constructor. Allocates all of the off-heap memory up front.
+     * @param segments Number of segments, rounded up to a power of two.
+     * @param totalBytes Memory for the stored responses, the indexes take about a quarter more.
+     */
+    public OffHeapAnswerStore(int segments, long totalBytes) {
+        int count = Integer.highestOneBit(Math.max(segments - 1, 1)) << 1;
+        long perSegment = Math.max(totalBytes / count, MIN_SEGMENT_BYTES);
+        int arenaBytes = (int) Math.min(perSegment, Integer.MAX_VALUE / 2);
+        this.segments = new Segment[count];
+        for(int i = 0; i < count; i++)
+            this.segments[i] = new Segment(arenaBytes);
+        segmentMask = count - 1;
+        scratch = new ThreadLocal<Scratch>() {
+            protected Scratch initialValue() {
+                return new Scratch();
+            }
+        };
+    }
+
+    /** Hashes a key with FNV-1a and a final mix so the low bits are usable as a slot number.
+     * @return the hash, never 0 */
+    private static long hash(byte[] key, int len) {
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < len; i++) {
+            h ^= key[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> 48) & segmentMask];
+    }
+
+    /** Gets the LRU clock: wall-clock time in units of about a second, never 0 */
+    private static int accessTick(long now) {
+        return (int) (now >>> 10) | 1;
+    }
+
+    public int get(String qname, int qtype, long now, byte[] out) {
+        Scratch sc = scratch.get();
+        int keyLen = DNSWire.encodeQuestion(qname, qtype, sc.key);
+        if(keyLen < 0)
+            return -1;
+        long hash = hash(sc.key, keyLen);
+        Segment s = segmentFor(hash);
+
+        int len = TORN;
+        for(int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS && len == TORN; attempt++) {
+            long stamp = s.lock.tryOptimisticRead();
+            if(stamp == 0)
+                continue;
+            len = s.read(hash, sc, keyLen, now, out);
+            if(!s.lock.validate(stamp))
+                len = TORN;
+        }
+        // Give up on optimism while the segment is busy
+        if(len == TORN) {
+            long stamp = s.lock.readLock();
+            try {
+                len = s.read(hash, sc, keyLen, now, out);
+            }
+            finally {
+                s.lock.unlockRead(stamp);
+            }
+        }
+        if(len < 0)
+            return -1;
+
+        // Mark the record as used, at most once per tick so hot records stay read-only
+        int tick = accessTick(now);
+        int hitPos = sc.offset + 2 + keyLen;
+        if(s.arena.getInt(hitPos) != tick) {
+            long stamp = s.lock.readLock();
+            try {
+                // The record may have been moved or evicted since it was read
+                int slot = s.find(hash, sc.key, keyLen);
+                if(slot >= 0 && s.index.getInt(slot * INDEX_SLOT_SIZE + 8) == sc.offset)
+                    s.arena.putInt(hitPos, tick);
+            }
+            finally {
+                s.lock.unlockRead(stamp);
+            }
+        }
+
+        DNSWire.decrementTTLs(out, len, (now - sc.storedAt) / 1000);
+        return len;
+    }
+
+    public void put(String qname, int qtype, byte[] response, int len, long storedAt, long expiresAt) {
+        Scratch sc = scratch.get();
+        int keyLen = DNSWire.encodeQuestion(qname, qtype, sc.key);
+        if(keyLen < 0)
+            return;
+        long hash = hash(sc.key, keyLen);
+        Segment s = segmentFor(hash);
+        long stamp = s.lock.writeLock();
+        try {
+            s.put(hash, sc.key, keyLen, response, len, storedAt, expiresAt);
+        }
+        finally {
+            s.lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        int total = 0;
+        for(Segment s : segments) {
+            long stamp = s.lock.readLock();
+            try {
+                total += s.used;
+            }
+            finally {
+                s.lock.unlockRead(stamp);
+            }
+        }
+        return total;
+    }
+
+    public void forEach(Visitor visitor) throws IOException {
+        long now = System.currentTimeMillis();
+        for(Segment s : segments) {
+            // Copy the segment out so the visitor runs without holding its lock
+            List<Copy> copies = new ArrayList<>();
+            long stamp = s.lock.readLock();
+            try {
+                byte[] key = new byte[MAX_KEY];
+                for(int slot = 0; slot < s.slots; slot++) {
+                    if(!s.isLive(s.index, slot))
+                        continue;
+                    int offset = s.index.getInt(slot * INDEX_SLOT_SIZE + 8);
+                    int keyLen = s.arena.getShort(offset) & 0xFFFF;
+                    int pos = offset + 2 + keyLen + 4;
+                    Copy c = new Copy();
+                    c.expiresAt = s.arena.getLong(pos + 8);
+                    if(c.expiresAt <= now)
+                        continue;
+                    for(int i = 0; i < keyLen; i++)
+                        key[i] = s.arena.get(offset + 2 + i);
+                    c.qname = DNSWire.decodeQuestionName(key, keyLen);
+                    c.qtype = DNSWire.u16(key, keyLen - 4);
+                    c.storedAt = s.arena.getLong(pos);
+                    c.response = new byte[s.arena.getShort(pos + 16) & 0xFFFF];
+                    for(int i = 0; i < c.response.length; i++)
+                        c.response[i] = s.arena.get(pos + 18 + i);
+                    copies.add(c);
+                }
+            }
+            finally {
+                s.lock.unlockRead(stamp);
+            }
+            for(Copy c : copies)
+                visitor.visit(c.qname, c.qtype, c.response, c.storedAt, c.expiresAt);
+        }
+    }
+}
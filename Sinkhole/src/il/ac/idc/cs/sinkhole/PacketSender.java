@@ -0,0 +1,16 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.IOException;
+import java.net.DatagramPacket;
+
+/** This interface is responsible for sending replies back to the clients.
+ * A sender may hold replies back until flush() is called, the caller must not expect a packet to be
+ * on the wire before that. Senders shared between threads must be safe for concurrent use. */
+interface PacketSender {
+
+    /** Sends a packet, or queues it for the next flush(). The packet can be reused once this returns.
+     * @param packet The packet, with its destination address set. */
+    void send(DatagramPacket packet) throws IOException;
+
+    /** Sends every packet held back so far */
+    void flush() throws IOException;
+}
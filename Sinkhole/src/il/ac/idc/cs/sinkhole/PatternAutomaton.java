@@ -0,0 +1,678 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** This class is responsible for matching a name against many pattern rules at once.
+ * Every rule (a regular expression or a glob) is added to one NFA, which compile() turns into a
+ * single DFA with the subset construction. A name is then matched in one pass, one table read per
+ * character whatever the number of rules, and the pass stops as soon as no rule can match any more.
+ * Each state of the DFA holds the category bits of the rules that accept there.
+ *
+ * Rules match the whole name, case-insensitively, without its trailing dot. The regex syntax is
+ * the usual subset: literals, ".", [a-z0-9-] and [^...] classes, \d \w and escaped characters,
+ * (...|...) groups and the * + ? {m} {m,} {m,n} repetitions; ^ and $ are accepted at the ends.
+ * In a glob, * matches any characters (dots included) and ? a single one.
+ *
+ * Two kinds of rules are compiled specially to keep the DFA small. A rule that ends with .* is a
+ * prefix rule: its bits are collected by match() as soon as the prefix matched, instead of being
+ * carried by every following state, which would make the DFA remember every subset of such rules
+ * that already matched. A rule that starts with .* hangs off one shared NFA state that loops on any
+ * character, so that unanchored rules compile to the equivalent of a single Aho-Corasick automaton. */
+public class PatternAutomaton {
+
+    final static int DEFAULT_MAX_STATES = 1 << 16;
+    final private static int MAX_REPEAT = 255;
+
+    /** A parsed rule: a character set, a sequence, an alternation or a repetition */
+    private static class Node {
+        final static int CHARS = 0;
+        final static int SEQUENCE = 1;
+        final static int ALTERNATION = 2;
+        final static int REPEAT = 3;
+
+        int type;
+        long[] set;
+        List<Node> children = new ArrayList<>();
+        int min;
+        int max;
+
+        Node(int type) {
+            this.type = type;
+        }
+    }
+
+    /** A DFA state while compiling: the sorted NFA states it stands for */
+    private static class StateKey {
+        int[] nfa;
+        int hash;
+
+        StateKey(int[] nfa) {
+            this.nfa = nfa;
+            this.hash = Arrays.hashCode(nfa);
+        }
+
+        public boolean equals(Object o) {
+            return Arrays.equals(nfa, ((StateKey) o).nfa);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // The NFA: each state has at most one character transition and any number of empty ones
+    private int nfaSize;
+    private long[][] nfaSet = new long[64][];
+    private int[] nfaNext = new int[64];
+    private int[][] nfaEmpty = new int[64][];
+    private int[] nfaEmptyCount = new int[64];
+    /** Bits of the rules that end in a state */
+    private long[] nfaAccept = new long[64];
+    /** Bits of the prefix rules that end in a state */
+    private long[] nfaLatch = new long[64];
+    private int rules;
+
+    // The DFA: state 0 is dead, a transition to -s enters state s where prefix rules matched
+    private int[] classOf = new int[256];
+    private int classes;
+    private int[] table;
+    /** Bits of the rules that match a name ending in a state */
+    private long[] acceptBits;
+    /** Bits of the prefix rules that matched on entering a state */
+    private long[] latchBits;
+    private int start;
+    private int states;
+    private long compileNanos;
+
+    /** Creates an automaton without rules, matching nothing */
+    PatternAutomaton() {
+        // State 0 starts every rule, state 1 loops on any character and starts the unanchored ones
+        newState();
+        newState();
+        long[] any = new long[4];
+        Arrays.fill(any, -1L);
+        clearUpperCase(any);
+        nfaSet[1] = any;
+        nfaNext[1] = 1;
+    }
+
+    /** Adds a regular expression rule.
+     * @param regex The rule, matched against the whole name.
+     * @param bits The category bits reported when the rule matches. */
+    void addRegex(String regex, long bits) throws IOException {
+        Node root = new Parser(regex).parse();
+        boolean prefix = false;
+        boolean unanchored = false;
+        if(isAnyRepeat(root)) {
+            root = new Node(Node.SEQUENCE);
+            prefix = true;
+        }
+        else if(root.type == Node.SEQUENCE && !root.children.isEmpty()) {
+            // A trailing .* is dropped, the rule becomes a prefix rule
+            if(isAnyRepeat(root.children.get(root.children.size() - 1))) {
+                root.children.remove(root.children.size() - 1);
+                prefix = true;
+            }
+            // A leading .* is dropped, the rule starts from the shared looping state
+            if(!root.children.isEmpty() && isAnyRepeat(root.children.get(0))) {
+                root.children.remove(0);
+                unanchored = true;
+            }
+        }
+        // The looping state is only reachable once there are unanchored rules, so that the
+        // matching of anchored rules can stop early
+        if(unanchored && nfaEmptyCount[1] == 0)
+            addEmpty(0, 1);
+        int from = newState();
+        addEmpty(unanchored ? 1 : 0, from);
+        int end = build(root, from);
+        if(prefix)
+            nfaLatch[end] |= bits;
+        else
+            nfaAccept[end] |= bits;
+        rules++;
+        table = null;
+    }
+
+    /** Adds a glob rule.
+     * @param glob The rule, * matches any characters and ? a single one.
+     * @param bits The category bits reported when the rule matches. */
+    void addGlob(String glob, long bits) throws IOException {
+        StringBuilder regex = new StringBuilder();
+        for(int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if(c == '*')
+                regex.append(".*");
+            else if(c == '?')
+                regex.append('.');
+            else if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_')
+                regex.append(c);
+            else
+                regex.append('\\').append(c);
+        }
+        addRegex(regex.toString(), bits);
+    }
+
+    private static boolean isAnyRepeat(Node n) {
+        return n.type == Node.REPEAT && n.min == 0 && n.max < 0
+               && n.children.get(0).type == Node.CHARS && isAny(n.children.get(0).set);
+    }
+
+    private int newState() {
+        if(nfaSize == nfaNext.length) {
+            int capacity = nfaSize * 2;
+            nfaSet = Arrays.copyOf(nfaSet, capacity);
+            nfaNext = Arrays.copyOf(nfaNext, capacity);
+            nfaEmpty = Arrays.copyOf(nfaEmpty, capacity);
+            nfaEmptyCount = Arrays.copyOf(nfaEmptyCount, capacity);
+            nfaAccept = Arrays.copyOf(nfaAccept, capacity);
+            nfaLatch = Arrays.copyOf(nfaLatch, capacity);
+        }
+        return nfaSize++;
+    }
+
+    private void addEmpty(int from, int to) {
+        int[] edges = nfaEmpty[from];
+        if(edges == null)
+            edges = nfaEmpty[from] = new int[2];
+        else if(nfaEmptyCount[from] == edges.length)
+            edges = nfaEmpty[from] = Arrays.copyOf(edges, edges.length * 2);
+        edges[nfaEmptyCount[from]++] = to;
+    }
+
+    /** Adds the NFA of a rule starting at a state
+     * @return the state where the rule ends */
+    private int build(Node n, int from) {
+        switch(n.type) {
+        case Node.CHARS: {
+            // A state with empty edges gets a fresh state for its character edge
+            if(nfaSet[from] != null) {
+                int s = newState();
+                addEmpty(from, s);
+                from = s;
+            }
+            int to = newState();
+            nfaSet[from] = n.set;
+            nfaNext[from] = to;
+            return to;
+        }
+        case Node.SEQUENCE:
+            for(Node child : n.children)
+                from = build(child, from);
+            return from;
+        case Node.ALTERNATION: {
+            int to = newState();
+            for(Node child : n.children) {
+                int s = newState();
+                addEmpty(from, s);
+                addEmpty(build(child, s), to);
+            }
+            return to;
+        }
+        default: {
+            Node child = n.children.get(0);
+            for(int i = 0; i < n.min; i++)
+                from = build(child, from);
+            if(n.max < 0) {
+                int loop = newState();
+                addEmpty(from, loop);
+                addEmpty(build(child, loop), loop);
+                return loop;
+            }
+            int to = newState();
+            for(int i = n.min; i < n.max; i++) {
+                addEmpty(from, to);
+                from = build(child, from);
+            }
+            addEmpty(from, to);
+            return to;
+        }
+        }
+    }
+
+    /** Builds the DFA of the rules added so far.
+     * The looping state of the unanchored rules, and every state it leads to without reading a
+     * character, are part of every DFA state. They are left out of the state keys and their
+     * transitions are computed once, otherwise they would dominate the compile time.
+     * @param maxStates The most DFA states allowed. */
+    void compile(int maxStates) throws IOException {
+        long began = System.nanoTime();
+        buildClasses();
+
+        Map<StateKey, Integer> ids = new HashMap<>();
+        List<StateKey> keys = new ArrayList<>();
+        keys.add(null);
+        int[] next = new int[16 * classes];
+        long[] accept = new long[16];
+        long[] latch = new long[16];
+        int[] mark = new int[nfaSize];
+        int[] stack = new int[nfaSize];
+        int[] targets = new int[nfaSize];
+        int[] rep = new int[classes];
+        for(int b = 255; b >= 0; b--) {
+            if(b < 'A' || b > 'Z')
+                rep[classOf[b]] = b;
+        }
+        int generation = 0;
+
+        // The shared part: the looping state's closure and where each class leads from it
+        int[] base = nfaEmptyCount[1] == 0 ? new int[0] : closure(new int[] {1}, 1, mark, ++generation, stack);
+        boolean[] inBase = new boolean[nfaSize];
+        long baseAccept = 0;
+        long baseLatch = 0;
+        for(int s : base) {
+            inBase[s] = true;
+            baseAccept |= nfaAccept[s];
+            baseLatch |= nfaLatch[s];
+        }
+        int[][] baseNext = new int[classes][];
+        for(int c = 0; c < classes; c++) {
+            int n = transitions(base, rep[c], targets);
+            baseNext[c] = without(closure(targets, n, mark, ++generation, stack), inBase);
+        }
+
+        StateKey first = new StateKey(without(closure(new int[] {0}, 1, mark, ++generation, stack), inBase));
+        ids.put(first, 1);
+        keys.add(first);
+        int[] merged = new int[nfaSize];
+        for(int d = 1; d < keys.size(); d++) {
+            StateKey key = keys.get(d);
+            if(d >= accept.length) {
+                accept = Arrays.copyOf(accept, accept.length * 2);
+                latch = Arrays.copyOf(latch, accept.length);
+                next = Arrays.copyOf(next, accept.length * classes);
+            }
+            accept[d] = baseAccept;
+            latch[d] = baseLatch;
+            for(int s : key.nfa) {
+                accept[d] |= nfaAccept[s];
+                latch[d] |= nfaLatch[s];
+            }
+
+            for(int c = 0; c < classes; c++) {
+                int n = transitions(key.nfa, rep[c], targets);
+                if(n == 0 && base.length == 0)
+                    continue;
+                // The states reached from this state, plus those reached from the shared part
+                int[] own = closure(targets, n, mark, ++generation, stack);
+                int m = 0;
+                for(int s : own) {
+                    if(!inBase[s])
+                        merged[m++] = s;
+                }
+                for(int s : baseNext[c]) {
+                    if(mark[s] != generation)
+                        merged[m++] = s;
+                }
+                int[] set = Arrays.copyOf(merged, m);
+                Arrays.sort(set);
+                StateKey k = new StateKey(set);
+                Integer id = ids.get(k);
+                if(id == null) {
+                    if(keys.size() > maxStates)
+                        throw new IOException("block list patterns need more than " + maxStates + " automaton states");
+                    id = keys.size();
+                    ids.put(k, id);
+                    keys.add(k);
+                }
+                next[d * classes + c] = id;
+            }
+        }
+
+        // Transitions to states where prefix rules match are negative, the only ones match() checks
+        states = keys.size();
+        for(int i = 0; i < states * classes; i++) {
+            if(latch[next[i]] != 0)
+                next[i] = -next[i];
+        }
+        start = latch[1] != 0 ? -1 : 1;
+        table = Arrays.copyOf(next, states * classes);
+        acceptBits = Arrays.copyOf(accept, states);
+        latchBits = Arrays.copyOf(latch, states);
+        compileNanos = System.nanoTime() - began;
+    }
+
+    /** Gets the NFA states that a set of states moves to on a character
+     * @return the number of states written to targets */
+    private int transitions(int[] from, int b, int[] targets) {
+        int n = 0;
+        for(int s : from) {
+            long[] set = nfaSet[s];
+            if(set != null && (set[b >>> 6] & (1L << b)) != 0)
+                targets[n++] = nfaNext[s];
+        }
+        return n;
+    }
+
+    private static int[] without(int[] set, boolean[] excluded) {
+        int n = 0;
+        int[] result = new int[set.length];
+        for(int s : set) {
+            if(!excluded[s])
+                result[n++] = s;
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /** Splits the 256 byte values into classes that every character set treats alike, so that a
+     * DFA state has one transition per class instead of one per byte */
+    private void buildClasses() {
+        Arrays.fill(classOf, 0);
+        classes = 1;
+        int[] split = new int[512];
+        for(int s = 0; s < nfaSize; s++) {
+            long[] set = nfaSet[s];
+            if(set == null)
+                continue;
+            Arrays.fill(split, 0, classes * 2, -1);
+            int count = 0;
+            for(int b = 0; b < 256; b++) {
+                int k = classOf[b] * 2 + ((set[b >>> 6] & (1L << b)) != 0 ? 1 : 0);
+                if(split[k] < 0)
+                    split[k] = count++;
+                classOf[b] = split[k];
+            }
+            classes = count;
+        }
+        // Rules are lower case, upper case letters follow the lower case ones
+        for(int b = 'A'; b <= 'Z'; b++)
+            classOf[b] = classOf[b + 32];
+    }
+
+    /** Gets the sorted NFA states reachable by empty edges from the given ones */
+    private int[] closure(int[] from, int n, int[] mark, int generation, int[] stack) {
+        int top = 0;
+        int size = 0;
+        int[] result = new int[16];
+        for(int i = 0; i < n; i++) {
+            if(mark[from[i]] != generation) {
+                mark[from[i]] = generation;
+                stack[top++] = from[i];
+            }
+        }
+        while(top > 0) {
+            int s = stack[--top];
+            if(size == result.length)
+                result = Arrays.copyOf(result, size * 2);
+            result[size++] = s;
+            for(int i = 0; i < nfaEmptyCount[s]; i++) {
+                int t = nfaEmpty[s][i];
+                if(mark[t] != generation) {
+                    mark[t] = generation;
+                    stack[top++] = t;
+                }
+            }
+        }
+        // Only the states with a character edge or an accepting one tell DFA states apart
+        int kept = 0;
+        for(int i = 0; i < size; i++) {
+            int s = result[i];
+            if(nfaSet[s] != null || nfaAccept[s] != 0 || nfaLatch[s] != 0)
+                result[kept++] = s;
+        }
+        int[] sorted = Arrays.copyOf(result, kept);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /** Matches a name against every rule.
+     * @param name The name, in any case, with or without the trailing dot.
+     * @return the bits of the matching rules, 0 if none matches */
+    long match(String name) {
+        long bits = 0;
+        int state = start;
+        if(state < 0) {
+            state = -state;
+            bits = latchBits[state];
+        }
+        int n = name.length();
+        if(n > 0 && name.charAt(n - 1) == '.')
+            n--;
+        for(int i = 0; i < n; i++) {
+            char c = name.charAt(i);
+            state = table[state * classes + classOf[c < 256 ? c : 0]];
+            if(state <= 0) {
+                if(state == 0)
+                    return bits;
+                state = -state;
+                bits |= latchBits[state];
+            }
+        }
+        return bits | acceptBits[state];
+    }
+
+    /** Gets the number of rules
+     * @return the rule count */
+    int getRuleCount() {
+        return rules;
+    }
+
+    /** Gets the number of DFA states of the last compile()
+     * @return the state count */
+    int getStateCount() {
+        return states;
+    }
+
+    /** Gets the size of the DFA tables
+     * @return the size in bytes */
+    long getTableBytes() {
+        return table == null ? 0 : table.length * 4L + acceptBits.length * 16L + classOf.length * 4L;
+    }
+
+    /** Summarizes the automaton: rules, NFA and DFA sizes and compile time */
+    String describe() {
+        return rules + " pattern rules, " + nfaSize + " NFA states, " + states + " DFA states x " + classes
+               + " character classes (" + (getTableBytes() + 1023) / 1024 + " KB), compiled in "
+               + compileNanos / 1000000 + " ms";
+    }
+
+    private static boolean isAny(long[] set) {
+        long[] any = new long[4];
+        Arrays.fill(any, -1L);
+        clearUpperCase(any);
+        return Arrays.equals(set, any);
+    }
+
+    /** Upper case letters never reach the DFA, they are matched as lower case */
+    private static void clearUpperCase(long[] set) {
+        for(int b = 'A'; b <= 'Z'; b++)
+            set[b >>> 6] &= ~(1L << b);
+    }
+
+    /** Recursive descent parser of a regex rule */
+    private static class Parser {
+        private String regex;
+        private int pos;
+
+        Parser(String regex) {
+            this.regex = regex;
+        }
+
+        Node parse() throws IOException {
+            if(regex.startsWith("^"))
+                pos++;
+            Node n = parseAlternation();
+            if(pos < regex.length())
+                throw error("unbalanced )");
+            return n;
+        }
+
+        private IOException error(String reason) {
+            return new IOException("bad pattern \"" + regex + "\": " + reason);
+        }
+
+        private Node parseAlternation() throws IOException {
+            Node n = new Node(Node.ALTERNATION);
+            n.children.add(parseSequence());
+            while(pos < regex.length() && regex.charAt(pos) == '|') {
+                pos++;
+                n.children.add(parseSequence());
+            }
+            return n.children.size() == 1 ? n.children.get(0) : n;
+        }
+
+        private Node parseSequence() throws IOException {
+            Node n = new Node(Node.SEQUENCE);
+            while(pos < regex.length() && regex.charAt(pos) != '|' && regex.charAt(pos) != ')') {
+                if(regex.charAt(pos) == '$' && pos == regex.length() - 1) {
+                    pos++;
+                    break;
+                }
+                n.children.add(parseRepeat());
+            }
+            return n;
+        }
+
+        private Node parseRepeat() throws IOException {
+            Node atom = parseAtom();
+            while(pos < regex.length()) {
+                char c = regex.charAt(pos);
+                int min;
+                int max;
+                if(c == '*') {
+                    min = 0;
+                    max = -1;
+                }
+                else if(c == '+') {
+                    min = 1;
+                    max = -1;
+                }
+                else if(c == '?') {
+                    min = 0;
+                    max = 1;
+                }
+                else if(c == '{') {
+                    int close = regex.indexOf('}', pos);
+                    if(close < 0)
+                        throw error("unclosed {");
+                    String range = regex.substring(pos + 1, close);
+                    int comma = range.indexOf(',');
+                    try {
+                        min = Integer.parseInt((comma < 0 ? range : range.substring(0, comma)).trim());
+                        if(comma < 0)
+                            max = min;
+                        else if(range.substring(comma + 1).trim().isEmpty())
+                            max = -1;
+                        else
+                            max = Integer.parseInt(range.substring(comma + 1).trim());
+                    }
+                    catch (NumberFormatException ex) {
+                        throw error("bad repetition {" + range + "}");
+                    }
+                    if(min < 0 || min > MAX_REPEAT || max > MAX_REPEAT || (max >= 0 && max < min))
+                        throw error("bad repetition {" + range + "}");
+                    pos = close;
+                }
+                else
+                    break;
+                pos++;
+                Node n = new Node(Node.REPEAT);
+                n.children.add(atom);
+                n.min = min;
+                n.max = max;
+                atom = n;
+            }
+            return atom;
+        }
+
+        private Node parseAtom() throws IOException {
+            char c = regex.charAt(pos++);
+            Node n = new Node(Node.CHARS);
+            n.set = new long[4];
+            switch(c) {
+            case '(':
+                if(regex.startsWith("?:", pos))
+                    pos += 2;
+                Node group = parseAlternation();
+                if(pos == regex.length() || regex.charAt(pos) != ')')
+                    throw error("unclosed (");
+                pos++;
+                return group;
+            case '[':
+                parseClass(n.set);
+                return n;
+            case '.':
+                Arrays.fill(n.set, -1L);
+                clearUpperCase(n.set);
+                return n;
+            case '\\':
+                parseEscape(n.set);
+                return n;
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+                throw error("nothing to repeat at " + (pos - 1));
+            case '^':
+            case '$':
+                throw error("anchors are only allowed at the ends");
+            default:
+                add(n.set, c, c);
+                return n;
+            }
+        }
+
+        private void parseClass(long[] set) throws IOException {
+            boolean negate = pos < regex.length() && regex.charAt(pos) == '^';
+            if(negate)
+                pos++;
+            boolean first = true;
+            while(true) {
+                if(pos == regex.length())
+                    throw error("unclosed [");
+                char c = regex.charAt(pos++);
+                if(c == ']' && !first)
+                    break;
+                first = false;
+                if(c == '\\') {
+                    parseEscape(set);
+                    continue;
+                }
+                char last = c;
+                if(pos + 1 < regex.length() && regex.charAt(pos) == '-' && regex.charAt(pos + 1) != ']') {
+                    last = regex.charAt(pos + 1);
+                    pos += 2;
+                    if(last < c)
+                        throw error("bad range " + c + "-" + last);
+                }
+                add(set, c, last);
+            }
+            if(negate) {
+                for(int i = 0; i < set.length; i++)
+                    set[i] = ~set[i];
+                clearUpperCase(set);
+            }
+        }
+
+        private void parseEscape(long[] set) throws IOException {
+            if(pos == regex.length())
+                throw error("trailing \\");
+            char c = regex.charAt(pos++);
+            if(c == 'd')
+                add(set, '0', '9');
+            else if(c == 'w') {
+                add(set, 'a', 'z');
+                add(set, '0', '9');
+                add(set, '_', '_');
+            }
+            else if(Character.isLetterOrDigit(c))
+                throw error("unsupported escape \\" + c);
+            else
+                add(set, c, c);
+        }
+
+        /** Adds a range of characters, upper case letters as lower case */
+        private void add(long[] set, char from, char to) throws IOException {
+            if(to > 255)
+                throw error("non-ASCII character");
+            for(int b = from; b <= to; b++) {
+                int lower = b >= 'A' && b <= 'Z' ? b + 32 : b;
+                set[lower >>> 6] |= 1L << lower;
+            }
+        }
+    }
+}
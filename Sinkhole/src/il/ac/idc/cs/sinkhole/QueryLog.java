@@ -0,0 +1,364 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/** This class is responsible for logging every handled query without slowing down the workers.
+ * The receive and resolver threads, few and long-lived, attach() a single-producer ring each and
+ * write fixed-size binary records into it. Every other thread (the DNS-over-TLS connections and the
+ * DNS-over-HTTPS requests, as many as there are clients) shares one multi-producer ring: a producer
+ * claims a slot by CAS on the tail and publishes it by its sequence number once written, so the
+ * rings don't grow with the connections. A background writer thread drains all the rings and
+ * appends them in batches to a rotating file. When a ring is full the record is dropped and
+ * counted, logging never blocks a worker.
+ *
+ * Binary record layout (RECORD_SIZE bytes, big endian):
+ *   0  long  timestamp (ms since epoch)
+ *   8  int   latency (microseconds)
+ *  12  short qtype
+ *  14  byte  action
+ *  15  byte  rcode
+ *  16  byte  client address length (4 or 16)
+ *  17  16    client address
+ *  33  byte  qname length
+ *  34  254   qname, one byte per character */
+public class QueryLog {
+
+    /** What was done with a query */
+    enum Action {
+        ANSWERED,
+        BLOCKED,
+        REFUSED,
+        FAILED,
+        RATE_LIMITED
+    }
+
+    final private static Action[] ACTIONS = Action.values();
+    final static int RECORD_SIZE = 288;
+    final private static int MAX_QNAME = 254;
+    /** Longest CSV line, with every qname character escaped */
+    final private static int MAX_CSV_LINE = 1200;
+    final private static int WRITE_BUFFER_SIZE = 256 * 1024;
+    final private static long IDLE_PARK_NANOS = 10000000L;
+
+    /** This class is responsible for a ring of records with a single consumer, and a single producer
+     * unless it is the shared ring */
+    private static class Ring {
+        /** The producer thread, null for the shared ring */
+        Thread owner;
+        ByteBuffer producerView;
+        ByteBuffer consumerView;
+        int capacity;
+        int mask;
+        AtomicLong head = new AtomicLong();
+        AtomicLong tail = new AtomicLong();
+        /** Shared ring only: for each slot, the sequence number after the record last written to it */
+        AtomicLongArray published;
+
+        Ring(Thread owner, int capacity) {
+            this.owner = owner;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            byte[] slots = new byte[capacity * RECORD_SIZE];
+            producerView = ByteBuffer.wrap(slots);
+            consumerView = ByteBuffer.wrap(slots);
+            if(owner == null)
+                published = new AtomicLongArray(capacity);
+        }
+    }
+
+    private Path path;
+    private boolean binary;
+    private long maxFileBytes;
+    private int maxFiles;
+    private int ringCapacity;
+    private List<Ring> rings;
+    private ThreadLocal<Ring> localRing;
+    private Ring shared;
+    private LongAdder dropped;
+    private LongAdder written;
+    private volatile boolean running;
+    private Thread writer;
+    private FileChannel channel;
+    private long fileBytes;
+
+    /** Class constructor. Opens the log file and starts the writer thread.
+     * @param filename Log file name, rotated files get a .1, .2, ... suffix.
+     * @param binary Whether to write raw binary records instead of CSV lines.
+     * @param maxFileBytes Rotate once the file grows beyond this size.
+     * @param maxFiles Number of rotated files to keep.
+     * @param ringSize Number of records buffered per attached thread, and by the shared ring, rounded
+     * up to a power of two.
+     */
+    public QueryLog(String filename, boolean binary, long maxFileBytes, int maxFiles, int ringSize) throws IOException {
+        this.path = Paths.get(filename);
+        this.binary = binary;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = Math.max(maxFiles, 1);
+        this.ringCapacity = Integer.highestOneBit(Math.max(ringSize - 1, 1)) << 1;
+        rings = new CopyOnWriteArrayList<>();
+        localRing = new ThreadLocal<>();
+        shared = new Ring(null, ringCapacity);
+        rings.add(shared);
+        dropped = new LongAdder();
+        written = new LongAdder();
+        openFile();
+
+        running = true;
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writerLoop();
+            }
+        }, "query-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Gives the calling thread a ring of its own. Only meant for the threads that live as long as
+     * the sinkhole and log most queries, the others log into the shared ring. */
+    void attach() {
+        if(localRing.get() != null)
+            return;
+        Ring ring = new Ring(Thread.currentThread(), ringCapacity);
+        localRing.set(ring);
+        rings.add(ring);
+    }
+
+    /** Logs a query. Never blocks, drops the record if the writer is behind.
+     * @param client Client address, may be null.
+     * @param qname Queried host, may be null.
+     * @param qtype Query type.
+     * @param action What was done with the query.
+     * @param rcode R-code sent to the client.
+     * @param latencyMicros Time spent handling the query.
+     */
+    void log(InetAddress client, String qname, int qtype, Action action, int rcode, long latencyMicros) {
+        Ring ring = localRing.get();
+        if(ring == null)
+            ring = shared;
+
+        long t;
+        while(true) {
+            t = ring.tail.get();
+            if(t - ring.head.get() >= ring.capacity) {
+                dropped.increment();
+                return;
+            }
+            // The owner of a ring is its only producer, the shared ring's producers race for the slot
+            if(ring.published == null || ring.tail.compareAndSet(t, t + 1))
+                break;
+        }
+
+        ByteBuffer bb = ring.producerView;
+        int base = (int) (t & ring.mask) * RECORD_SIZE;
+        bb.putLong(base, System.currentTimeMillis());
+        bb.putInt(base + 8, (int) Math.min(latencyMicros, Integer.MAX_VALUE));
+        bb.putShort(base + 12, (short) qtype);
+        bb.put(base + 14, (byte) action.ordinal());
+        bb.put(base + 15, (byte) rcode);
+        if(client instanceof Inet4Address) {
+            // The hash code of an IPv4 address is the address itself, no copy needed
+            bb.put(base + 16, (byte) 4);
+            bb.putInt(base + 17, client.hashCode());
+        }
+        else if(client != null) {
+            byte[] addr = client.getAddress();
+            bb.put(base + 16, (byte) addr.length);
+            for(int i = 0; i < addr.length; i++)
+                bb.put(base + 17 + i, addr[i]);
+        }
+        else {
+            bb.put(base + 16, (byte) 0);
+        }
+        int len = 0;
+        if(qname != null) {
+            len = Math.min(qname.length(), MAX_QNAME);
+            for(int i = 0; i < len; i++)
+                bb.put(base + 34 + i, (byte) qname.charAt(i));
+        }
+        bb.put(base + 33, (byte) len);
+
+        // Publish the record to the writer
+        if(ring.published != null)
+            ring.published.lazySet((int) (t & ring.mask), t + 1);
+        else
+            ring.tail.lazySet(t + 1);
+    }
+
+    /** Gets the number of records dropped because a ring was full
+     * @return dropped records */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /** Gets the number of records written to the file
+     * @return written records */
+    long getWritten() {
+        return written.sum();
+    }
+
+    /** Stops the writer thread after it drained every ring, and closes the file.
+     * @param timeoutMillis How long to wait for the writer. */
+    void close(long timeoutMillis) {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(timeoutMillis);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** The writer thread: drains the rings into a buffer and writes it in batches */
+    private void writerLoop() {
+        ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        while(true) {
+            boolean stopping = !running;
+            int drained = 0;
+            try {
+                for(Ring ring : rings) {
+                    drained += drain(ring, out);
+                    // Forget the rings of threads that are gone once they are empty
+                    if(ring.owner != null && !ring.owner.isAlive() && ring.head.get() == ring.tail.get())
+                        rings.remove(ring);
+                }
+                flush(out);
+            }
+            catch (IOException ex) {
+                System.err.println("Query log write error: " + ex.getMessage());
+                out.clear();
+            }
+            if(stopping)
+                break;
+            if(drained == 0)
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException ex) {
+            System.err.println("Query log close error: " + ex.getMessage());
+        }
+    }
+
+    /** Moves every published record of a ring into the output buffer.
+     * @param ring The ring to drain.
+     * @param out The output buffer, flushed whenever it gets full.
+     * @return number of records drained */
+    private int drain(Ring ring, ByteBuffer out) throws IOException {
+        long h = ring.head.get();
+        long t = ring.tail.get();
+        int n = 0;
+        ByteBuffer bb = ring.consumerView;
+        for(; h < t; h++, n++) {
+            // A claimed slot of the shared ring may still be being written, the rest waits for it
+            if(ring.published != null && ring.published.get((int) (h & ring.mask)) != h + 1)
+                break;
+            if(out.remaining() < MAX_CSV_LINE)
+                flush(out);
+            int base = (int) (h & ring.mask) * RECORD_SIZE;
+            if(binary) {
+                for(int i = 0; i < RECORD_SIZE; i++)
+                    out.put(bb.get(base + i));
+            }
+            else {
+                writeCsv(bb, base, out);
+            }
+        }
+        // Give the slots back to the producer
+        ring.head.lazySet(h);
+        written.add(n);
+        return n;
+    }
+
+    /** Formats a record as a CSV line: timestamp,client,qname,qtype,action,rcode,latency_us, with the
+     * qname escaped
+     * @param bb The ring storage.
+     * @param base Offset of the record.
+     * @param out The output buffer. */
+    private static void writeCsv(ByteBuffer bb, int base, ByteBuffer out) {
+        StringBuilder sb = new StringBuilder(MAX_CSV_LINE);
+        sb.append(bb.getLong(base)).append(',');
+        int addrLen = bb.get(base + 16);
+        if(addrLen == 4) {
+            for(int i = 0; i < 4; i++) {
+                if(i > 0)
+                    sb.append('.');
+                sb.append(bb.get(base + 17 + i) & 0xFF);
+            }
+        }
+        else if(addrLen == 16) {
+            for(int i = 0; i < 16; i += 2) {
+                if(i > 0)
+                    sb.append(':');
+                sb.append(Integer.toHexString(((bb.get(base + 17 + i) & 0xFF) << 8) | (bb.get(base + 18 + i) & 0xFF)));
+            }
+        }
+        sb.append(',');
+        int len = bb.get(base + 33) & 0xFF;
+        for(int i = 0; i < len; i++)
+            appendEscaped(sb, bb.get(base + 34 + i) & 0xFF);
+        sb.append(',').append(bb.getShort(base + 12) & 0xFFFF);
+        sb.append(',').append(ACTIONS[bb.get(base + 14)].name());
+        sb.append(',').append(bb.get(base + 15));
+        sb.append(',').append(bb.getInt(base + 8)).append('\n');
+        out.put(sb.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /** Appends a qname character the way a zone file would (RFC 1035 5.1): a label read off the
+     * wire may hold any byte, so commas, quotes, backslashes and anything not printable ASCII are
+     * written as \DDD and can't end the field or the line. */
+    private static void appendEscaped(StringBuilder sb, int c) {
+        if(c > ' ' && c < 0x7F && c != ',' && c != '"' && c != '\\') {
+            sb.append((char) c);
+            return;
+        }
+        sb.append('\\').append((char) ('0' + c / 100)).append((char) ('0' + c / 10 % 10)).append((char) ('0' + c % 10));
+    }
+
+    /** Writes the output buffer to the file and rotates the file if it grew too large.
+     * @param out The output buffer. */
+    private void flush(ByteBuffer out) throws IOException {
+        if(out.position() == 0)
+            return;
+        out.flip();
+        while(out.hasRemaining())
+            fileBytes += channel.write(out);
+        out.clear();
+        if(fileBytes >= maxFileBytes)
+            rotate();
+    }
+
+    /** Opens the log file for appending */
+    private void openFile() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+    }
+
+    /** Renames file to file.1, file.1 to file.2 and so on, and opens a new file */
+    private void rotate() throws IOException {
+        channel.close();
+        for(int i = maxFiles - 1; i >= 1; i--) {
+            Path from = Paths.get(path.toString() + "." + i);
+            if(Files.exists(from))
+                Files.move(from, Paths.get(path.toString() + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(path, Paths.get(path.toString() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        openFile();
+    }
+}
@@ -0,0 +1,177 @@
+package il.ac.idc.cs.sinkhole;
+import java.net.InetAddress;
+
+/** This class is responsible for recording the hops of the sampled queries of one resolver thread.
+ * The hops go into arrays allocated once per thread, a finished trace is only copied out when the
+ * TraceCollector keeps it. Not thread-safe, every resolver thread has its own. */
+public class QueryTrace {
+
+    final static int MAX_HOPS = 64;
+
+    /** What a hop was */
+    enum Hop {
+        /** Wait in the request queue */
+        QUEUE,
+        CACHE_HIT,
+        CACHE_MISS,
+        /** Resolution started at a cached zone cut (detail) */
+        DELEGATION,
+        /** An upstream query for the name in detail */
+        UPSTREAM,
+        /** An upstream query that got no response in time */
+        TIMEOUT,
+        /** A referral to the zone in detail, including the check of its DS records */
+        REFERRAL,
+        /** Name server address lookup of the host in detail */
+        GLUE_LOOKUP,
+        /** DNSSEC validation with the result in detail */
+        VALIDATION
+    }
+
+    /** A finished trace, as kept by the TraceCollector */
+    static class Record {
+        long timestamp;
+        String qname;
+        int qtype;
+        InetAddress client;
+        int rcode;
+        long totalMicros;
+        int hopCount;
+        boolean truncated;
+        Hop[] kinds;
+        long[] offsetMicros;
+        long[] durationMicros;
+        InetAddress[] servers;
+        int[] rcodes;
+        String[] details;
+    }
+
+    private int sampleEvery;
+    private int sinceSample;
+    private boolean active;
+
+    private long timestamp;
+    private String qname;
+    private int qtype;
+    private InetAddress client;
+    private long startedAt;
+    private int hopCount;
+    private boolean truncated;
+    private Hop[] kinds;
+    private long[] offsets;
+    private long[] durations;
+    private InetAddress[] servers;
+    private int[] rcodes;
+    private String[] details;
+
+    /** Class constructor.
+     * @param sampleEvery One query in this many is traced.
+     */
+    QueryTrace(int sampleEvery) {
+        this.sampleEvery = Math.max(sampleEvery, 1);
+        kinds = new Hop[MAX_HOPS];
+        offsets = new long[MAX_HOPS];
+        durations = new long[MAX_HOPS];
+        servers = new InetAddress[MAX_HOPS];
+        rcodes = new int[MAX_HOPS];
+        details = new String[MAX_HOPS];
+    }
+
+    /** Starts a trace if this query is sampled. The trace starts when the request was queued, if known.
+     * @param qname Queried host.
+     * @param qtype Query type.
+     * @param client Client address.
+     * @param startedAt System.nanoTime() when the request was dequeued.
+     * @param queueWaitNanos Time the request waited in the queue, or -1 if unknown. */
+    void begin(String qname, int qtype, InetAddress client, long startedAt, long queueWaitNanos) {
+        if(++sinceSample < sampleEvery) {
+            active = false;
+            return;
+        }
+        sinceSample = 0;
+        active = true;
+        this.timestamp = System.currentTimeMillis();
+        this.qname = qname;
+        this.qtype = qtype;
+        this.client = client;
+        this.startedAt = queueWaitNanos >= 0 ? startedAt - queueWaitNanos : startedAt;
+        hopCount = 0;
+        truncated = false;
+        if(queueWaitNanos >= 0)
+            hop(Hop.QUEUE, null, this.startedAt, startedAt, -1, null);
+    }
+
+    /** Checks whether the current query is traced
+     * @return true if hops should be recorded */
+    boolean isActive() {
+        return active;
+    }
+
+    /** Records a hop of the current query.
+     * @param kind What the hop was.
+     * @param server Upstream server, or null.
+     * @param from System.nanoTime() when the hop started.
+     * @param to System.nanoTime() when the hop ended.
+     * @param rcode Upstream R-code, or -1.
+     * @param detail Name, zone or result, or null. */
+    void hop(Hop kind, InetAddress server, long from, long to, int rcode, String detail) {
+        if(hopCount == MAX_HOPS) {
+            truncated = true;
+            return;
+        }
+        kinds[hopCount] = kind;
+        offsets[hopCount] = from - startedAt;
+        durations[hopCount] = to - from;
+        servers[hopCount] = server;
+        rcodes[hopCount] = rcode;
+        details[hopCount] = detail;
+        hopCount++;
+    }
+
+    /** Records a hop that took no time */
+    void hop(Hop kind, String detail) {
+        long now = System.nanoTime();
+        hop(kind, null, now, now, -1, detail);
+    }
+
+    /** Ends the trace of the current query and hands it to the collector.
+     * @param rcode R-code sent to the client, or a negative DNSResolver result.
+     * @param collector Keeps the trace if it is among the slowest or the most recent ones. */
+    void end(int rcode, TraceCollector collector) {
+        active = false;
+        long total = (System.nanoTime() - startedAt) / 1000;
+        if(collector.wants(total)) {
+            Record r = new Record();
+            r.timestamp = timestamp;
+            r.qname = qname;
+            r.qtype = qtype;
+            r.client = client;
+            r.rcode = rcode;
+            r.totalMicros = total;
+            r.hopCount = hopCount;
+            r.truncated = truncated;
+            r.kinds = new Hop[hopCount];
+            r.offsetMicros = new long[hopCount];
+            r.durationMicros = new long[hopCount];
+            r.servers = new InetAddress[hopCount];
+            r.rcodes = new int[hopCount];
+            r.details = new String[hopCount];
+            for(int i = 0; i < hopCount; i++) {
+                r.kinds[i] = kinds[i];
+                r.offsetMicros[i] = offsets[i] / 1000;
+                r.durationMicros[i] = durations[i] / 1000;
+                r.servers[i] = servers[i];
+                r.rcodes[i] = rcodes[i];
+                r.details[i] = details[i];
+            }
+            collector.add(r);
+        }
+        // Don't hold on to the names and addresses of the query
+        for(int i = 0; i < hopCount; i++) {
+            servers[i] = null;
+            details[i] = null;
+        }
+        qname = null;
+        client = null;
+    }
+}
@@ -0,0 +1,112 @@
+package il.ac.idc.cs.sinkhole;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/** This class is responsible for keeping a single client from starving the others.
+ * Queries are limited per client address and per client subnet on the receive thread, before
+ * they reach the request queue. Response rate limiting (RRL) additionally limits the negative
+ * answers (blocked hosts and NXDOMAIN) sent to a subnet, since those are cheap to trigger with
+ * spoofed sources and random names. Over the limit a packet is dropped without a reply.
+ * Every limit is a TokenBucketTable, so the per-packet cost is a hash and a few array reads. */
+public class RateLimiter {
+
+    /** Kinds of rate limited responses */
+    final static int BLOCKED = 1;
+    final static int NXDOMAIN = 2;
+
+    final private static long IPV4_TAG = 4L << 32;
+
+    private TokenBucketTable clients;
+    private TokenBucketTable subnets;
+    private TokenBucketTable responses;
+    private int ipv4PrefixMask;
+    private long ipv6PrefixMask;
+
+    /** Class constructor. A rate of 0 disables that limit.
+     * @param tableSize Number of buckets of each table.
+     * @param clientRate Queries per second per client address.
+     * @param clientBurst Queries a client may send at once.
+     * @param subnetRate Queries per second per client subnet.
+     * @param subnetBurst Queries a subnet may send at once.
+     * @param responseRate Negative answers per second per client subnet.
+     * @param responseBurst Negative answers a subnet may get at once.
+     * @param ipv4Prefix Length of an IPv4 subnet.
+     * @param ipv6Prefix Length of an IPv6 subnet, at most 64.
+     */
+    public RateLimiter(int tableSize, int clientRate, int clientBurst, int subnetRate, int subnetBurst,
+                       int responseRate, int responseBurst, int ipv4Prefix, int ipv6Prefix) {
+        if(clientRate > 0)
+            clients = new TokenBucketTable(tableSize, clientRate, clientBurst);
+        if(subnetRate > 0)
+            subnets = new TokenBucketTable(tableSize, subnetRate, subnetBurst);
+        if(responseRate > 0)
+            responses = new TokenBucketTable(tableSize, responseRate, responseBurst);
+        ipv4PrefixMask = ipv4Prefix <= 0 ? 0 : -1 << (32 - Math.min(ipv4Prefix, 32));
+        ipv6PrefixMask = ipv6Prefix <= 0 ? 0 : -1L << (64 - Math.min(ipv6Prefix, 64));
+    }
+
+    /** Creates the rate limiter described by the sinkhole settings.
+     * @param config sinkhole settings
+     * @return the rate limiter, or null if every limit is disabled */
+    static RateLimiter fromConfig(SinkholeConfig config) {
+        if(config.rateLimitQPS <= 0 && config.rateLimitSubnetQPS <= 0 && config.rrlRPS <= 0)
+            return null;
+        return new RateLimiter(config.rateLimitTableSize,
+                               config.rateLimitQPS, burst(config.rateLimitBurst, config.rateLimitQPS),
+                               config.rateLimitSubnetQPS, burst(config.rateLimitSubnetBurst, config.rateLimitSubnetQPS),
+                               config.rrlRPS, burst(config.rrlBurst, config.rrlRPS),
+                               config.rateLimitIPv4Prefix, config.rateLimitIPv6Prefix);
+    }
+
+    /** The burst defaults to one second worth of tokens */
+    private static int burst(int burst, int rate) {
+        return burst > 0 ? burst : rate;
+    }
+
+    /** Checks whether a query from a client may be handled.
+     * @param client The client address.
+     * @return false if the client or its subnet is over its limit */
+    boolean allowQuery(InetAddress client) {
+        if(clients == null && subnets == null)
+            return true;
+        long now = System.nanoTime();
+        if(client instanceof Inet4Address) {
+            // The hash code of an IPv4 address is the address itself, no copy needed
+            int addr = client.hashCode();
+            if(clients != null && !clients.tryAcquire(IPV4_TAG | (addr & 0xFFFFFFFFL), now))
+                return false;
+            return subnets == null || subnets.tryAcquire(IPV4_TAG | (addr & ipv4PrefixMask & 0xFFFFFFFFL), now);
+        }
+        byte[] addr = client.getAddress();
+        long high = ipv6Half(addr, 0);
+        if(clients != null && !clients.tryAcquire(nonZero(TokenBucketTable.mix(high) ^ ipv6Half(addr, 8)), now))
+            return false;
+        return subnets == null || subnets.tryAcquire(nonZero(high & ipv6PrefixMask), now);
+    }
+
+    /** Checks whether a negative answer may be sent to a client.
+     * @param client The client address.
+     * @param kind BLOCKED or NXDOMAIN.
+     * @return false if the client's subnet got too many answers of this kind */
+    boolean allowResponse(InetAddress client, int kind) {
+        if(responses == null)
+            return true;
+        long key;
+        if(client instanceof Inet4Address)
+            key = IPV4_TAG | (client.hashCode() & ipv4PrefixMask & 0xFFFFFFFFL);
+        else
+            key = ipv6Half(client.getAddress(), 0) & ipv6PrefixMask;
+        return responses.tryAcquire(nonZero(key ^ (kind * 0x9E3779B97F4A7C15L)), System.nanoTime());
+    }
+
+    private static long ipv6Half(byte[] addr, int from) {
+        long v = 0;
+        for(int i = from; i < from + 8; i++)
+            v = (v << 8) | (addr[i] & 0xFF);
+        return v;
+    }
+
+    private static long nonZero(long key) {
+        return key == 0 ? 1 : key;
+    }
+}
@@ -0,0 +1,58 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.IOException;
+import java.net.DatagramPacket;
+
+/** This class is responsible for gathering the replies of one thread and sending them together.
+ * Replies are copied into a fixed set of pooled packets, so the caller can reuse its own buffers
+ * at once, and go out back to back on flush() or when the batch is full. Not thread-safe, every
+ * thread needs its own batch. */
+public class ReplyBatch implements PacketSender {
+
+    final private static int MAX_REPLY = 1024;
+
+    private PacketSender target;
+    private DatagramPacket[] packets;
+    private int count;
+
+    /** Class constructor.
+     * @param target Where the replies are sent on flush.
+     * @param size Number of replies held back at most.
+     */
+    public ReplyBatch(PacketSender target, int size) {
+        this.target = target;
+        packets = new DatagramPacket[size];
+        for(int i = 0; i < size; i++)
+            packets[i] = new DatagramPacket(new byte[MAX_REPLY], MAX_REPLY);
+    }
+
+    public void send(DatagramPacket packet) throws IOException {
+        if(packet.getLength() > MAX_REPLY) {
+            target.send(packet);
+            return;
+        }
+        if(count == packets.length)
+            flush();
+        DatagramPacket p = packets[count++];
+        System.arraycopy(packet.getData(), packet.getOffset(), p.getData(), 0, packet.getLength());
+        p.setLength(packet.getLength());
+        p.setSocketAddress(packet.getSocketAddress());
+    }
+
+    /** Sends every gathered reply. A reply that can't be sent is dropped and the error is
+     * reported once the rest of the batch went out. */
+    public void flush() throws IOException {
+        IOException failure = null;
+        for(int i = 0; i < count; i++) {
+            try {
+                target.send(packets[i]);
+            }
+            catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        count = 0;
+        target.flush();
+        if(failure != null)
+            throw failure;
+    }
+}
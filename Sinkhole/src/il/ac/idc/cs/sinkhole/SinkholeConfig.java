@@ -0,0 +1,278 @@
+package il.ac.idc.cs.sinkhole;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/** This class is responsible for the run-time settings of the sinkhole.
+ * Every setting is read from a java property (e.g. -Dsinkhole.metrics.port=9153) and falls back
+ * to a default when the property is missing. */
+public class SinkholeConfig {
+
+    /** The settings of a client policy (sinkhole.policy.NAME.*) */
+    static class Policy {
+        /** Policy name, "default" for the clients that match no other policy */
+        String name;
+        /** Blocked categories (comma separated), null for all */
+        String categories;
+        /** "sinkhole" or "nxdomain" */
+        String action;
+        /** Client subnets (comma separated address/prefix) */
+        String clients;
+    }
+
+    /** UDP port the sinkhole listens on */
+    int port;
+
+    /** Number of resolver threads to start with */
+    int workers;
+    /** Fewest resolver threads the pool shrinks to */
+    int workersMin;
+    /** Most resolver threads the pool grows to, the minimum keeps the pool at a fixed size */
+    int workersMax;
+    /** Mean queue wait above which the pool grows, in microseconds */
+    int workersTargetWaitMicros;
+    /** Time between two pool size checks, in milliseconds */
+    int workersIntervalMillis;
+    /** Requests queued for the resolver threads at most, the receive loop waits when it is full */
+    int queueCapacity;
+    /** Datagrams read and processed per wakeup, 1 for one blocking receive per packet */
+    int ioBatch;
+
+    /** TCP port of the DNS-over-TLS listener, 0 disables it */
+    int dotPort;
+    /** Time an idle DNS-over-TLS connection is kept open, in milliseconds */
+    int dotIdleMillis;
+    /** Most DNS-over-TLS connections open at once */
+    int dotConnections;
+    /** Most replies waiting to be written to one DNS-over-TLS connection, the connection is closed beyond */
+    int dotPendingReplies;
+    /** Time a closing DNS-over-TLS connection waits for the replies still to come, in milliseconds */
+    int dotReplyTimeoutMillis;
+    /** TCP port of the DNS-over-HTTPS listener, 0 disables it */
+    int dohPort;
+    /** URI path of the DNS-over-HTTPS queries */
+    String dohPath;
+    /** Number of threads serving the DNS-over-HTTPS requests */
+    int dohThreads;
+    /** Time a DNS-over-HTTPS request waits for its reply, in milliseconds */
+    int dohTimeoutMillis;
+    /** Key store (PKCS12, or JKS by its .jks extension) with the key and certificate of the encrypted listeners */
+    String tlsKeyStore;
+    /** Password of the key store and of its key */
+    String tlsKeyStorePassword;
+    /** Number of TLS sessions cached for resumption */
+    int tlsSessionCache;
+    /** Time a TLS session can be resumed, in seconds */
+    int tlsSessionTimeout;
+
+    /** Root server addresses (comma separated), null for the built-in root servers */
+    String roots;
+    /** Root hints file, one "name address" or named.root style line per server */
+    String rootsFile;
+    /** UDP port every upstream query is sent to */
+    int upstreamPort;
+    /** How long to wait for an upstream response before retrying */
+    int upstreamTimeoutMillis;
+    /** Largest UDP message, sent or received, when the other side's EDNS0 OPT record allows more than 512 bytes */
+    int ednsUdpSize;
+    /** QNAME minimisation: "relaxed" falls back to the full name when a server fails a minimised
+     * query, "strict" takes its NXDOMAIN as final, "off" always sends the full name */
+    String qnameMinimisation;
+    /** Validate the answers with DNSSEC, asking for the signatures with the EDNS0 DO bit */
+    boolean dnssecValidate;
+    /** DNSSEC trust anchors, comma separated "key-tag algorithm digest-type digest" DS records of the root */
+    String dnssecTrustAnchors;
+
+    /** Additional block lists, comma separated category=file pairs */
+    String blockLists;
+    /** Most automaton states the block list pattern rules may compile to */
+    int blockListPatternStates;
+    /** Client policies, from the comma separated names in sinkhole.policies */
+    List<Policy> policies;
+
+    /** Address blocked A queries are answered with, null answers NXDOMAIN */
+    String blockedIPv4;
+    /** Address blocked AAAA queries are answered with */
+    String blockedIPv6;
+    /** TTL of the sinkhole answers */
+    int blockedTTL;
+
+    /** Maximum number of cached answers (and of cached delegations), 0 disables caching */
+    int cacheSize;
+    /** Upper bound of the time an entry is cached, in seconds */
+    int cacheMaxTTL;
+    /** Time a negative answer without SOA is cached, in seconds */
+    int cacheNegativeTTL;
+    /** Keep the cached answers in off-heap memory instead of the Java heap */
+    boolean cacheOffHeap;
+    /** Off-heap memory for the cached answers, in megabytes */
+    int cacheOffHeapMB;
+    /** Number of independently locked segments of the answer store, a few per core by default */
+    int cacheSegments;
+    /** Cache snapshot file, null disables snapshots */
+    String cacheSnapshotFile;
+    /** Time between two cache snapshots, in seconds */
+    int cacheSnapshotInterval;
+
+    /** Queries per second accepted from a single client address, 0 disables the limit */
+    int rateLimitQPS;
+    /** Queries a single client may send at once, 0 for one second worth */
+    int rateLimitBurst;
+    /** Queries per second accepted from a client subnet, 0 disables the limit */
+    int rateLimitSubnetQPS;
+    /** Queries a client subnet may send at once, 0 for one second worth */
+    int rateLimitSubnetBurst;
+    /** Prefix length of an IPv4 client subnet */
+    int rateLimitIPv4Prefix;
+    /** Prefix length of an IPv6 client subnet */
+    int rateLimitIPv6Prefix;
+    /** Number of clients (and subnets) tracked at once */
+    int rateLimitTableSize;
+    /** Blocked and NXDOMAIN answers per second sent to a client subnet, 0 disables RRL */
+    int rrlRPS;
+    /** Negative answers a client subnet may get at once, 0 for one second worth */
+    int rrlBurst;
+
+    /** Time the sinkhole keeps serving after it reported not ready on shutdown, so load balancers
+     * move the traffic away first, in milliseconds */
+    int drainDelayMillis;
+    /** Time the resolver threads get to finish the queued and in-flight requests on shutdown, in milliseconds */
+    int drainTimeoutMillis;
+
+    /** Trace one query in this many, 0 disables tracing */
+    int traceSample;
+    /** Number of recent traces kept */
+    int traceRecent;
+    /** Number of slowest traces kept */
+    int traceSlowest;
+    /** File the slowest traces are written to on shutdown, null to not write them */
+    String traceDumpFile;
+
+    /** Loopback port of the metrics endpoint, 0 disables it */
+    int metricsPort;
+
+    /** Query log file, null disables query logging */
+    String queryLogFile;
+    /** Write binary records instead of CSV lines */
+    boolean queryLogBinary;
+    /** Rotate the query log once it grows beyond this size */
+    long queryLogMaxBytes;
+    /** Number of rotated query log files to keep */
+    int queryLogFiles;
+    /** Number of query log records buffered per thread */
+    int queryLogRingSize;
+
+    /** Class constructor reading the settings from the given properties
+     * @param props The properties to read from.
+     */
+    SinkholeConfig(Properties props) {
+        port = getInt(props, "sinkhole.port", SinkholeServer.SINKHOLE_PORT);
+        workers = getInt(props, "sinkhole.workers", SinkholeServer.WORKER_THREAD_COUNT);
+        workersMin = getInt(props, "sinkhole.workers.min", workers);
+        workersMax = getInt(props, "sinkhole.workers.max", Math.max(workers, SinkholeServer.MAX_WORKER_THREAD_COUNT));
+        workersTargetWaitMicros = getInt(props, "sinkhole.workers.wait", 1000);
+        workersIntervalMillis = getInt(props, "sinkhole.workers.interval", 1000);
+        queueCapacity = getInt(props, "sinkhole.queue.capacity", 1024);
+        ioBatch = getInt(props, "sinkhole.io.batch", 1);
+        dotPort = getInt(props, "sinkhole.dot.port", 0);
+        dotIdleMillis = getInt(props, "sinkhole.dot.idle", 10000);
+        dotConnections = getInt(props, "sinkhole.dot.connections", 1024);
+        dotPendingReplies = getInt(props, "sinkhole.dot.pending", 128);
+        dotReplyTimeoutMillis = getInt(props, "sinkhole.dot.timeout", 5000);
+        dohPort = getInt(props, "sinkhole.doh.port", 0);
+        dohPath = props.getProperty("sinkhole.doh.path", "/dns-query");
+        dohThreads = getInt(props, "sinkhole.doh.threads", 32);
+        dohTimeoutMillis = getInt(props, "sinkhole.doh.timeout", 5000);
+        tlsKeyStore = props.getProperty("sinkhole.tls.keystore");
+        tlsKeyStorePassword = props.getProperty("sinkhole.tls.password", "");
+        tlsSessionCache = getInt(props, "sinkhole.tls.session.cache", 10000);
+        tlsSessionTimeout = getInt(props, "sinkhole.tls.session.timeout", 3600);
+        roots = props.getProperty("sinkhole.roots");
+        rootsFile = props.getProperty("sinkhole.roots.file");
+        upstreamPort = getInt(props, "sinkhole.upstream.port", DNSResolver.DNS_QUERY_PORT);
+        upstreamTimeoutMillis = getInt(props, "sinkhole.upstream.timeout", 2000);
+        ednsUdpSize = Math.max(getInt(props, "sinkhole.edns.udp.size", DNSSECValidator.EDNS_UDP_SIZE),
+                               DNSResponseBuilder.MAX_UDP_REPLY);
+        qnameMinimisation = props.getProperty("sinkhole.qname.minimisation", "relaxed").trim().toLowerCase();
+        dnssecValidate = Boolean.parseBoolean(props.getProperty("sinkhole.dnssec", "false"));
+        dnssecTrustAnchors = props.getProperty("sinkhole.dnssec.anchors", DNSSECValidator.ROOT_TRUST_ANCHORS);
+        blockLists = props.getProperty("sinkhole.blocklists");
+        blockListPatternStates = getInt(props, "sinkhole.blocklist.pattern.states", PatternAutomaton.DEFAULT_MAX_STATES);
+        policies = new ArrayList<>();
+        for(String name : props.getProperty("sinkhole.policies", "").split(",")) {
+            name = name.trim();
+            if(name.isEmpty())
+                continue;
+            Policy p = new Policy();
+            p.name = name;
+            p.categories = props.getProperty("sinkhole.policy." + name + ".categories");
+            p.action = props.getProperty("sinkhole.policy." + name + ".action");
+            p.clients = props.getProperty("sinkhole.policy." + name + ".clients");
+            policies.add(p);
+        }
+        blockedIPv4 = props.getProperty("sinkhole.blocked.ipv4");
+        blockedIPv6 = props.getProperty("sinkhole.blocked.ipv6");
+        blockedTTL = getInt(props, "sinkhole.blocked.ttl", 60);
+        cacheSize = getInt(props, "sinkhole.cache.size", 100000);
+        cacheMaxTTL = getInt(props, "sinkhole.cache.maxttl", 86400);
+        cacheNegativeTTL = getInt(props, "sinkhole.cache.negativettl", 60);
+        cacheOffHeap = "offheap".equalsIgnoreCase(props.getProperty("sinkhole.cache.store", "heap"));
+        cacheOffHeapMB = getInt(props, "sinkhole.cache.offheap.mb", 256);
+        cacheSegments = getInt(props, "sinkhole.cache.segments", 4 * Runtime.getRuntime().availableProcessors());
+        cacheSnapshotFile = props.getProperty("sinkhole.cache.snapshot");
+        cacheSnapshotInterval = getInt(props, "sinkhole.cache.snapshot.interval", 300);
+        rateLimitQPS = getInt(props, "sinkhole.ratelimit.qps", 0);
+        rateLimitBurst = getInt(props, "sinkhole.ratelimit.burst", 0);
+        rateLimitSubnetQPS = getInt(props, "sinkhole.ratelimit.subnet.qps", 0);
+        rateLimitSubnetBurst = getInt(props, "sinkhole.ratelimit.subnet.burst", 0);
+        rateLimitIPv4Prefix = getInt(props, "sinkhole.ratelimit.ipv4.prefix", 24);
+        rateLimitIPv6Prefix = getInt(props, "sinkhole.ratelimit.ipv6.prefix", 56);
+        rateLimitTableSize = getInt(props, "sinkhole.ratelimit.table", 65536);
+        rrlRPS = getInt(props, "sinkhole.rrl.rps", 0);
+        rrlBurst = getInt(props, "sinkhole.rrl.burst", 0);
+        drainDelayMillis = getInt(props, "sinkhole.drain.delay", 0);
+        drainTimeoutMillis = getInt(props, "sinkhole.drain.timeout", 5000);
+        traceSample = getInt(props, "sinkhole.trace.sample", 0);
+        traceRecent = getInt(props, "sinkhole.trace.recent", 100);
+        traceSlowest = getInt(props, "sinkhole.trace.slowest", 20);
+        traceDumpFile = props.getProperty("sinkhole.trace.dump");
+        metricsPort = getInt(props, "sinkhole.metrics.port", 9153);
+        queryLogFile = props.getProperty("sinkhole.querylog.file");
+        queryLogBinary = "binary".equalsIgnoreCase(props.getProperty("sinkhole.querylog.format", "csv"));
+        queryLogMaxBytes = getLong(props, "sinkhole.querylog.maxbytes", 64L * 1024 * 1024);
+        queryLogFiles = getInt(props, "sinkhole.querylog.files", 5);
+        queryLogRingSize = getInt(props, "sinkhole.querylog.ring", 4096);
+    }
+
+    /** Reads the settings from the JVM system properties.
+     * @return the sinkhole settings */
+    static SinkholeConfig fromSystemProperties() {
+        return new SinkholeConfig(System.getProperties());
+    }
+
+    /** Reads an integer property.
+     * @param props The properties to read from.
+     * @param key The property name.
+     * @param def The default value.
+     * @return the property value, or def if it is not set */
+    static int getInt(Properties props, String key, int def) {
+        return (int) getLong(props, key, def);
+    }
+
+    /** Reads a long property.
+     * @param props The properties to read from.
+     * @param key The property name.
+     * @param def The default value.
+     * @return the property value, or def if it is not set */
+    static long getLong(Properties props, String key, long def) {
+        String value = props.getProperty(key);
+        if(value == null || value.trim().isEmpty())
+            return def;
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Property " + key + " is not a number: \"" + value + "\"");
+        }
+    }
+}
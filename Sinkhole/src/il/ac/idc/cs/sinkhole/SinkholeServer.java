@@ -2,66 +2,535 @@ package il.ac.idc.cs.sinkhole;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+
+public class SinkholeServer implements Runnable {
+    /** What became of a stream query */
+    enum Submitted {
+        /** Answered on the calling thread */
+        ANSWERED,
+        /** Handed to the resolver threads, the reply comes later */
+        QUEUED,
+        /** Too short to be a DNS message */
+        MALFORMED,
+        /** Dropped by the rate limits */
+        RATE_LIMITED,
+        /** Dropped because the queue or the table of stream queries in flight is full */
+        UNAVAILABLE,
+        /** Dropped because the sinkhole is shutting down, the connection should be closed */
+        DRAINING
+    }
+
+    final static int WORKER_THREAD_COUNT = 1;
+    final static int MAX_WORKER_THREAD_COUNT = 64;
+    final static int SINKHOLE_PORT = 5300;
+
+    private DatagramSocket socket;
+    private DatagramBatchChannel channel;
+    private PacketSender sender;
+    private StreamReplies streamReplies;
+    private DNSOverTLSServer tlsServer;
+    private DNSOverHTTPSServer httpsServer;
+    private int batchSize;
+    private SynchronizedQueue<DatagramPacket> packetQueue;
+    private WorkerPool workers;
+    /** Read by the receive and stream threads for every request, so they never wait for each other */
+    private volatile boolean accepting;
+    private DNSMetrics metrics;
+    private BlockedResponder blockedResponder;
+    private RateLimiter rateLimiter;
+    private QueryLog queryLog;
+
+    /** Class constructor for one blocking receive per packet.
+     * @param config sinkhole settings
+     * @param socket socket the requests are read from and the replies are sent on
+     * @param blockList List of blocked Hostnames
+     * @param rootServers the Root-servers
+     * @param metrics resolver metrics
+     * @param queryLog query log, or null if query logging is disabled
+     * @param cache answer and delegation caches
+     */
+    SinkholeServer(SinkholeConfig config, DatagramSocket socket, DNSBlockList blockList, DNSRootServer rootServers,
+                   DNSMetrics metrics, QueryLog queryLog, DNSCache cache) throws IOException
+    {
+        this(config, socket, null, blockList, rootServers, metrics, queryLog, cache);
+    }
+
+    /** Class constructor for batched I/O (sinkhole.io.batch).
+     * @param config sinkhole settings
+     * @param channel channel the requests are read from and the replies are sent on
+     * @param blockList List of blocked Hostnames
+     * @param rootServers the Root-servers
+     * @param metrics resolver metrics
+     * @param queryLog query log, or null if query logging is disabled
+     * @param cache answer and delegation caches
+     */
+    SinkholeServer(SinkholeConfig config, DatagramBatchChannel channel, DNSBlockList blockList, DNSRootServer rootServers,
+                   DNSMetrics metrics, QueryLog queryLog, DNSCache cache) throws IOException
+    {
+        this(config, null, channel, blockList, rootServers, metrics, queryLog, cache);
+    }
+
+    /** Creates the request queue and starts the resolver threads */
+    private SinkholeServer(final SinkholeConfig config, DatagramSocket socket, DatagramBatchChannel channel, DNSBlockList blockList,
+                           final DNSRootServer rootServers, final DNSMetrics metrics, final QueryLog queryLog, final DNSCache cache) throws IOException
+    {
+        this.socket = socket;
+        this.channel = channel;
+        this.sender = channel != null ? channel : new SocketSender(socket);
+        // The resolver threads reply to the UDP and the stream clients alike
+        this.streamReplies = new StreamReplies(sender);
+        this.batchSize = Math.max(config.ioBatch, 1);
+        this.metrics = metrics;
+        this.queryLog = queryLog;
+        this.rateLimiter = RateLimiter.fromConfig(config);
+        this.blockedResponder = new BlockedResponder(config, blockList, metrics, queryLog, rateLimiter);
+        metrics.watchCache(cache);
+        metrics.watchTraces(TraceCollector.fromConfig(config));
+        // One validator for all the threads, so a zone's keys are fetched and checked once
+        final DNSSECValidator validator = DNSSECValidator.fromConfig(config, metrics);
+
+        // Create a Synchronized Queue for each request, its size doesn't depend on the thread count
+        packetQueue = new SynchronizedQueue<>(Math.max(config.queueCapacity, 1));
+        metrics.watchQueue(packetQueue);
+        packetQueue.registerProducer();
+        accepting = true;
+
+        // Start resolver threads, their number follows the queue wait
+        workers = new WorkerPool(config, metrics.getQueueWait(), new WorkerPool.Factory() {
+            public DNSResolver newResolver() {
+                return new DNSResolver(packetQueue, streamReplies, rootServers, metrics, queryLog, config, cache, rateLimiter, validator);
+            }
+        });
+        metrics.watchWorkers(workers);
+        workers.start(config.workers);
+    }
+
+    /** Receives requests until the socket is closed */
+    public void run() {
+        if(channel != null) {
+            runBatched();
+            return;
+        }
+        if(queryLog != null)
+            queryLog.attach();
+        DatagramPacket packet = null;
+        while (!socket.isClosed()) {
+            // Wait for a DNS request, the buffer is reused until a packet is handed to the queue
+            if(packet == null) {
+                byte buffer[] = new byte[1024];
+                packet = new DatagramPacket(buffer, buffer.length);
+            }
+            packet.setLength(packet.getData().length);
+            try {
+                socket.receive(packet);
+            }
+            catch (IOException ex) {
+                if(socket.isClosed())
+                    break;
+                System.err.println("Socket read error: " + ex.getMessage());
+                metrics.recordDrop(DNSMetrics.Drop.RECEIVE_ERROR);
+                continue;
+            }
+            if(handleLocally(packet, sender))
+                continue;
+
+            // Push the packet into the queue and let the threads do the work, the buffer is reused if it is dropped
+            if(!accepting) {
+                metrics.recordDrop(DNSMetrics.Drop.DRAINING);
+                continue;
+            }
+            if(!packetQueue.offer(packet)) {
+                metrics.recordDrop(accepting ? DNSMetrics.Drop.QUEUE_FULL : DNSMetrics.Drop.DRAINING);
+                continue;
+            }
+            packet = null;
+        }
+    }
+
+    /** The receive loop in batched mode: drains every queued datagram on each wakeup, answers the
+     * ones it can, hands the others to the resolver threads at once and then flushes the replies */
+    private void runBatched() {
+        if(queryLog != null)
+            queryLog.attach();
+        DatagramPacket[] received = new DatagramPacket[batchSize];
+        DatagramPacket[] forward = new DatagramPacket[batchSize];
+        ReplyBatch replies = new ReplyBatch(channel, batchSize);
+        for(int i = 0; i < batchSize; i++)
+            received[i] = new DatagramPacket(new byte[1024], 1024);
+
+        while (channel.isOpen()) {
+            int n;
+            try {
+                n = channel.receive(received);
+            }
+            catch (IOException ex) {
+                if(!channel.isOpen())
+                    break;
+                System.err.println("Socket read error: " + ex.getMessage());
+                metrics.recordDrop(DNSMetrics.Drop.RECEIVE_ERROR);
+                continue;
+            }
+
+            int forwarded = 0;
+            for(int i = 0; i < n; i++) {
+                if(handleLocally(received[i], replies))
+                    continue;
+                // The packet now belongs to the queue, its slot gets a fresh buffer
+                forward[forwarded++] = received[i];
+                received[i] = new DatagramPacket(new byte[1024], 1024);
+            }
+            // A full queue drops the rest of the batch rather than stall the receive thread
+            int queued = accepting ? packetQueue.offerAll(forward, forwarded) : 0;
+            DNSMetrics.Drop reason = accepting ? DNSMetrics.Drop.QUEUE_FULL : DNSMetrics.Drop.DRAINING;
+            for(int i = queued; i < forwarded; i++)
+                metrics.recordDrop(reason);
+            for(int i = 0; i < forwarded; i++)
+                forward[i] = null;
+
+            try {
+                replies.flush();
+            }
+            catch (IOException ex) {
+                System.err.println("Socket send error: " + ex.getMessage());
+                metrics.recordDrop(DNSMetrics.Drop.SEND_ERROR);
+            }
+        }
+    }
+
+    /** Starts the DNS-over-TLS and DNS-over-HTTPS listeners that have a port set
+     * @param config sinkhole settings */
+    void startEncryptedListeners(SinkholeConfig config) throws IOException, GeneralSecurityException {
+        if(config.dotPort <= 0 && config.dohPort <= 0)
+            return;
+        SSLContext context = DNSOverTLSServer.createContext(config);
+        if(config.dotPort > 0) {
+            tlsServer = new DNSOverTLSServer(config, context, this);
+            Thread t = new Thread(tlsServer, "dot-accept");
+            t.setDaemon(true);
+            t.start();
+        }
+        if(config.dohPort > 0) {
+            httpsServer = new DNSOverHTTPSServer(config, context, this);
+            httpsServer.start();
+        }
+    }
+
+    /** Handles a query read from a stream connection like a datagram: answers it right away if it can, or
+     * hands it to the resolver threads, and the reply goes back through the connection.
+     * @param query the DNS message, owned by the sinkhole from now on
+     * @param length message length
+     * @param client client address
+     * @param connection where the reply goes
+     * @return whether a reply was sent or is on its way, or why the query was dropped, so the
+     * connection can tell its client at once */
+    Submitted submitStream(byte[] query, int length, InetAddress client, StreamReplies.Connection connection) {
+        if(length < DNSWire.HEADER_SIZE)
+            return Submitted.MALFORMED;
+        DatagramPacket packet = new DatagramPacket(query, length, client, StreamReplies.STREAM_PORT);
+        if(!admit(packet))
+            return Submitted.RATE_LIMITED;
+        StreamReplies.Direct direct = new StreamReplies.Direct(connection);
+        if(answerBlocked(packet, direct))
+            return direct.sent ? Submitted.ANSWERED : Submitted.RATE_LIMITED;
+
+        if(!accepting) {
+            metrics.recordDrop(DNSMetrics.Drop.DRAINING);
+            return Submitted.DRAINING;
+        }
+        int slot = streamReplies.register(connection, DNSWire.u16(query, 0));
+        if(slot < 0) {
+            metrics.recordDrop(DNSMetrics.Drop.NO_ANSWER);
+            return Submitted.UNAVAILABLE;
+        }
+        DNSWire.putU16(query, 0, slot);
+        if(!packetQueue.offer(packet)) {
+            streamReplies.release(slot);
+            if(!accepting) {
+                metrics.recordDrop(DNSMetrics.Drop.DRAINING);
+                return Submitted.DRAINING;
+            }
+            metrics.recordDrop(DNSMetrics.Drop.QUEUE_FULL);
+            return Submitted.UNAVAILABLE;
+        }
+        return Submitted.QUEUED;
+    }
+
+    /** Applies the rate limits and answers blocked hosts on the receive thread.
+     * @param packet the received packet
+     * @param replies sends the reply
+     * @return true if the packet was dropped or answered */
+    private boolean handleLocally(DatagramPacket packet, PacketSender replies) {
+        return !admit(packet) || answerBlocked(packet, replies);
+    }
+
+    /** Counts a received packet and applies the query rate limit.
+     * @param packet the received packet
+     * @return false if the packet is dropped */
+    private boolean admit(DatagramPacket packet) {
+        metrics.recordReceived();
+
+        // Drop the packet if its source sends too fast, before it costs any more work
+        if(rateLimiter != null && !rateLimiter.allowQuery(packet.getAddress())) {
+            metrics.recordDrop(DNSMetrics.Drop.RATE_LIMITED);
+            return false;
+        }
+        return true;
+    }
+
+    /** Answers blocked hosts on the receiving thread.
+     * @param packet the received packet
+     * @param replies sends the reply
+     * @return true if the host is blocked and the packet was answered or dropped */
+    private boolean answerBlocked(DatagramPacket packet, PacketSender replies) {
+        try {
+            return blockedResponder.tryAnswer(replies, packet);
+        }
+        catch (IOException ex) {
+            System.err.println("Socket send error: " + ex.getMessage());
+            metrics.recordDrop(DNSMetrics.Drop.SEND_ERROR);
+            return true;
+        }
+    }
+
+    /** Stops handing requests to the resolver threads, so they exit once the queue is empty.
+     * Blocked hosts are still answered, the other requests are dropped for the clients to retry elsewhere. */
+    private synchronized void stopAccepting() {
+        if(accepting) {
+            accepting = false;
+            packetQueue.unregisterProducer();
+        }
+    }
+
+    /** Stops receiving requests and lets the resolver threads exit once the queue is empty */
+    void close() {
+        stopAccepting();
+        workers.stop();
+        if(tlsServer != null)
+            tlsServer.close();
+        if(httpsServer != null)
+            httpsServer.stop(0);
+        if(channel != null)
+            channel.close();
+        else
+            socket.close();
+    }
+
+    /** Stops taking new requests, waits for the resolver threads to answer the queued and in-flight
+     * ones and closes the socket.
+     * @param timeoutMillis how long to wait for the resolver threads
+     * @return the number of resolver threads still busy at the deadline */
+    int drain(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        stopAccepting();
+        // The open stream connections still get the replies to their queries
+        if(tlsServer != null)
+            tlsServer.stopAccepting();
+        if(httpsServer != null)
+            httpsServer.stop((int) ((timeoutMillis + 999) / 1000));
+        int busy = workers.join(deadline);
+        close();
+        return busy;
+    }
+
+    /** Takes the sinkhole out of service: reports not ready, keeps serving while the load balancers
+     * move the traffic away, drains the resolver threads, then saves the caches and the query log.
+     * @param config sinkhole settings
+     * @param server the server
+     * @param metrics resolver metrics
+     * @param cache answer and delegation caches
+     * @param snapshots the periodic cache snapshots, or null
+     * @param queryLog query log, or null
+     * @param metricsServer metrics endpoint, or null */
+    static void shutdown(SinkholeConfig config, SinkholeServer server, DNSMetrics metrics, DNSCache cache,
+                         ScheduledExecutorService snapshots, QueryLog queryLog, MetricsServer metricsServer) {
+        metrics.setReady(false);
+        try {
+            Thread.sleep(config.drainDelayMillis);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        long startedAt = System.currentTimeMillis();
+        int queued = server.packetQueue.getSize();
+        int busy = server.drain(config.drainTimeoutMillis);
+        if(busy > 0)
+            System.err.println("Drain timed out: " + busy + " resolver threads busy, "
+                               + server.packetQueue.getSize() + " requests dropped");
+        else
+            System.err.println("Drained " + queued + " queued requests in " + (System.currentTimeMillis() - startedAt) + " ms");
+
+        if(snapshots != null) {
+            // Let a periodic snapshot in progress finish first, they share the temporary file
+            snapshots.shutdown();
+            try {
+                snapshots.awaitTermination(config.drainTimeoutMillis, TimeUnit.MILLISECONDS);
+                System.err.println("Saved " + CacheSnapshot.save(cache, config.cacheSnapshotFile)
+                                   + " cache entries to " + config.cacheSnapshotFile);
+            }
+            catch (IOException ex) {
+                System.err.println("Cache snapshot error: " + ex.getMessage());
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(queryLog != null)
+            queryLog.close(config.drainTimeoutMillis);
+        if(metrics.getTraces() != null && config.traceDumpFile != null) {
+            try {
+                System.err.println("Wrote " + metrics.getTraces().dump(config.traceDumpFile)
+                                   + " slowest traces to " + config.traceDumpFile);
+            }
+            catch (IOException ex) {
+                System.err.println("Trace dump error: " + ex.getMessage());
+            }
+        }
+        if(metricsServer != null)
+            metricsServer.stop(0);
+    }
 
-public class SinkholeServer {
-    final private static int WORKER_THREAD_COUNT = 1;
-    final private static int SINKHOLE_PORT = 5300;
-    
     public static void main(String[] args) {
-        
+
         String blockListFilename = null;
         // If file is passed in the command line
         if(args.length == 1) {
             blockListFilename = args[0];
         }
 
-        // Create a new DNSBlockList with the the file passed int
+        SinkholeConfig config = SinkholeConfig.fromSystemProperties();
+
+        // Create a new DNSBlockList with the the file passed int, and the lists and policies of the settings
         DNSBlockList blockList = null;
         try {
-            blockList = new DNSBlockList(blockListFilename);
+            blockList = DNSBlockList.fromConfig(config, blockListFilename);
         }
         catch (IOException ex) {
-            System.err.println("Error: Block list file \"" + blockListFilename + "\" does not exists or can't be read.");
+            System.err.println("Error: Block lists can't be loaded: " + ex.getMessage());
             System.exit(1);
         }
+        if(blockList.getPatterns() != null)
+            System.err.println("Block list patterns: " + blockList.getPatterns().describe());
+
         // Getting a random root server
-        DNSRootServer rootServers = new DNSRootServer();
-                
-        // Create a datagram socket on the right port (Set above)
+        DNSRootServer rootServers = null;
+        try {
+            rootServers = DNSRootServer.fromConfig(config);
+        }
+        catch (IOException ex) {
+            System.err.println("Error: Root servers can't be loaded: " + ex.getMessage());
+            System.exit(1);
+        }
+
+        // The JDK HTTP server writes the headers and the body of a reply separately, and Nagle's algorithm
+        // holds the body back until the client ACKs: 40 ms on every DNS-over-HTTPS query. Read once per JVM.
+        if(System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        // Start the metrics endpoint, it reports not ready until the caches are warm
+        DNSMetrics metrics = new DNSMetrics();
+        MetricsServer metricsServer = null;
+        if(config.metricsPort > 0) {
+            try {
+                metricsServer = new MetricsServer(config.metricsPort, metrics);
+                metricsServer.start();
+            }
+            catch (IOException ex) {
+                System.err.println("Metrics endpoint error: " + ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // Start the query log writer
+        QueryLog queryLog = null;
+        if(config.queryLogFile != null) {
+            try {
+                queryLog = new QueryLog(config.queryLogFile, config.queryLogBinary, config.queryLogMaxBytes,
+                                        config.queryLogFiles, config.queryLogRingSize);
+                metrics.watchQueryLog(queryLog);
+            }
+            catch (IOException ex) {
+                System.err.println("Error: Query log file \"" + config.queryLogFile + "\" can't be opened: " + ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // Warm up the caches from the last snapshot before accepting requests
+        DNSCache cache = DNSCache.fromConfig(config);
+        ScheduledExecutorService snapshots = null;
+        if(config.cacheSnapshotFile != null) {
+            try {
+                int loaded = CacheSnapshot.load(cache, config.cacheSnapshotFile);
+                if(loaded >= 0)
+                    System.err.println("Loaded " + loaded + " cache entries from " + config.cacheSnapshotFile);
+            }
+            catch (IOException ex) {
+                System.err.println("Cache snapshot ignored: " + ex.getMessage());
+            }
+            snapshots = CacheSnapshot.schedule(cache, config.cacheSnapshotFile, config.cacheSnapshotInterval);
+        }
+
+        // Create a datagram socket on the right port (sinkhole.port, 5300 by default)
         DatagramSocket socket = null;
+        DatagramBatchChannel channel = null;
         try {
-            socket = new DatagramSocket(SINKHOLE_PORT);
+            if(config.ioBatch > 1)
+                channel = new DatagramBatchChannel(config.port, config.ioBatch);
+            else
+                socket = new DatagramSocket(config.port);
         }
-        catch (SocketException ex) {
+        catch (IOException ex) {
             // Logger.getLogger(SinkholeServer.class.getName()).log(Level.SEVERE, null, ex);
 
             System.err.println("Socket error: " + ex.getMessage());
             System.exit(1);
 
         }
-        // Create a Synchronized Queue for each request
-        SynchronizedQueue<DatagramPacket> packetQueue = new SynchronizedQueue<>(WORKER_THREAD_COUNT);
-        packetQueue.registerProducer();
 
-        // Start resolver threads
-        for(int i=0; i < WORKER_THREAD_COUNT; i++)
-            (new Thread(new DNSResolver(packetQueue, socket, blockList, rootServers))).start();
-            
-        while (true) {            
-            // Wait for a DNS request
-            byte buffer[] = new byte[1024];
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-            try {
-                socket.receive(packet);
-            }
-            catch (IOException ex) {
-                System.err.println("Socket read error: " + ex.getMessage());
-                continue;                
+        SinkholeServer server = null;
+        try {
+            if(channel != null)
+                server = new SinkholeServer(config, channel, blockList, rootServers, metrics, queryLog, cache);
+            else
+                server = new SinkholeServer(config, socket, blockList, rootServers, metrics, queryLog, cache);
+        }
+        catch (UnknownHostException ex) {
+            System.err.println("Error: Invalid sinkhole address: " + ex.getMessage());
+            System.exit(1);
+        }
+        catch (IOException ex) {
+            System.err.println("Error: DNSSEC trust anchors can't be loaded: " + ex.getMessage());
+            System.exit(1);
+        }
+
+        // Encrypted client transports
+        try {
+            server.startEncryptedListeners(config);
+        }
+        catch (IOException | GeneralSecurityException ex) {
+            System.err.println("Error: Encrypted listeners can't be started: " + ex.getMessage());
+            System.exit(1);
+        }
+
+        // Drain instead of dropping the queued requests on SIGTERM (or Ctrl-C)
+        final SinkholeServer running = server;
+        final ScheduledExecutorService runningSnapshots = snapshots;
+        final QueryLog runningQueryLog = queryLog;
+        final MetricsServer runningMetricsServer = metricsServer;
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                shutdown(config, running, metrics, cache, runningSnapshots, runningQueryLog, runningMetricsServer);
             }
-            // Push the packet into the queue and let the threads do the work
-            packetQueue.enqueue(packet);
-        }        
+        }, "sinkhole-shutdown"));
+
+        // The caches are warm and the resolver threads are up
+        metrics.setReady(true);
+        server.run();
     }
 }
-
@@ -0,0 +1,24 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+
+/** This class is responsible for sending every reply right away on a blocking DatagramSocket */
+public class SocketSender implements PacketSender {
+
+    private DatagramSocket socket;
+
+    /** Class constructor.
+     * @param socket socket to send the replies on
+     */
+    public SocketSender(DatagramSocket socket) {
+        this.socket = socket;
+    }
+
+    public void send(DatagramPacket packet) throws IOException {
+        socket.send(packet);
+    }
+
+    public void flush() {
+    }
+}
@@ -0,0 +1,121 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** This class is responsible for routing the replies of the resolver threads: the replies to UDP clients
+ * go out on the sinkhole socket, the replies to stream clients (DNS-over-TLS and DNS-over-HTTPS) go back
+ * to their connection.
+ *
+ * A stream query is queued like a datagram from port 0, which no UDP client can send from. Its ID is
+ * replaced by a slot of the table of the stream queries in flight, since the queries of different
+ * connections (and every DoH query, RFC 8484 4.1) may share an ID, and the reply gets its ID back. */
+public class StreamReplies implements PacketSender {
+
+    /** Source port of the queued stream queries */
+    final static int STREAM_PORT = 0;
+    final private static int SLOT_COUNT = 65536;
+    /** A slot is given to another query once its reply is this late, e.g. because it was never sent */
+    final private static long SLOT_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(2);
+
+    /** A stream client connection */
+    interface Connection {
+        /** Sends a reply to the client, or drops it if the connection is closed. Called on the resolver
+         * threads, so it must not wait for the client.
+         * @param message The DNS message, owned by the connection from now on.
+         * @param length Message length. */
+        void reply(byte[] message, int length) throws IOException;
+    }
+
+    /** A stream query in flight */
+    private static class Pending {
+        final Connection connection;
+        final int id;
+        final long queuedAt;
+
+        Pending(Connection connection, int id, long queuedAt) {
+            this.connection = connection;
+            this.id = id;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private PacketSender datagrams;
+    private AtomicReferenceArray<Pending> slots;
+    private AtomicInteger next;
+
+    /** Class constructor.
+     * @param datagrams Sends the replies to the UDP clients.
+     */
+    public StreamReplies(PacketSender datagrams) {
+        this.datagrams = datagrams;
+        slots = new AtomicReferenceArray<>(SLOT_COUNT);
+        next = new AtomicInteger();
+    }
+
+    /** Takes a slot for a stream query about to be queued.
+     * @param connection Where the reply goes.
+     * @param id The query ID.
+     * @return the ID to queue the query with, or -1 if every slot is in use */
+    int register(Connection connection, int id) {
+        long now = System.nanoTime();
+        Pending pending = new Pending(connection, id, now);
+        for(int i = 0; i < SLOT_COUNT; i++) {
+            int slot = next.getAndIncrement() & (SLOT_COUNT - 1);
+            Pending old = slots.get(slot);
+            if((old == null || now - old.queuedAt > SLOT_TIMEOUT_NANOS) && slots.compareAndSet(slot, old, pending))
+                return slot;
+        }
+        return -1;
+    }
+
+    /** Frees the slot of a stream query that could not be queued after all.
+     * @param slot The slot register() returned. */
+    void release(int slot) {
+        slots.set(slot, null);
+    }
+
+    public void send(DatagramPacket packet) throws IOException {
+        if(packet.getPort() != STREAM_PORT) {
+            datagrams.send(packet);
+            return;
+        }
+        int offset = packet.getOffset();
+        int length = packet.getLength();
+        if(length < DNSWire.HEADER_SIZE)
+            return;
+        byte[] reply = Arrays.copyOfRange(packet.getData(), offset, offset + length);
+        Pending pending = slots.getAndSet(DNSWire.u16(reply, 0), null);
+        if(pending == null)
+            return;
+        DNSWire.putU16(reply, 0, pending.id);
+        pending.connection.reply(reply, length);
+    }
+
+    public void flush() throws IOException {
+        datagrams.flush();
+    }
+
+    /** Writes the replies that are answered before a stream query is queued straight to the connection */
+    static class Direct implements PacketSender {
+        final private Connection connection;
+        /** Whether a reply went out, a blocked query may be dropped by the response rate limit instead */
+        boolean sent;
+
+        Direct(Connection connection) {
+            this.connection = connection;
+        }
+
+        public void send(DatagramPacket packet) throws IOException {
+            int offset = packet.getOffset();
+            connection.reply(Arrays.copyOfRange(packet.getData(), offset, offset + packet.getLength()), packet.getLength());
+            sent = true;
+        }
+
+        public void flush() {
+        }
+    }
+}
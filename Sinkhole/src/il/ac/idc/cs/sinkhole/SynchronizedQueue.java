@@ -11,7 +11,9 @@ import java.util.concurrent.locks.ReentrantLock;
 public class SynchronizedQueue<T> {
 
 	private T[] buffer;
+	private long[] enqueueTimes;
 	private int producers;
+	private LatencyHistogram waitHistogram;
 
 	int putptr, takeptr, count, capacity;
 	Lock lock;
@@ -27,6 +29,7 @@ public class SynchronizedQueue<T> {
 	@SuppressWarnings("unchecked")
 	public SynchronizedQueue(int capacity) {
 		this.buffer = (T[]) (new Object[capacity]);
+		this.enqueueTimes = new long[capacity];
 		this.producers = 0;
 		this.capacity = capacity;
 		this.count = 0;
@@ -57,6 +60,9 @@ public class SynchronizedQueue<T> {
 			if(count == 0 && producers == 0)
 				return null;
 			x = buffer[takeptr];
+			buffer[takeptr] = null;
+			if (waitHistogram != null)
+				waitHistogram.recordSince(enqueueTimes[takeptr]);
 			if (++takeptr == capacity)
 				takeptr = 0;
 			--count;
@@ -80,6 +86,8 @@ public class SynchronizedQueue<T> {
 			while (count == buffer.length)
 				notFull.await();
 			buffer[putptr] = item;
+			if (waitHistogram != null)
+				enqueueTimes[putptr] = System.nanoTime();
 			if (++putptr == capacity)
 				putptr = 0;
 			++count;
@@ -92,6 +100,155 @@ public class SynchronizedQueue<T> {
 		}
 	}
 
+	/**
+	 * Enqueues an item to the end of this queue if there is room for it, without blocking.
+	 * Once every producer is unregistered nothing is enqueued any more, as the consumers
+	 * may already be gone.
+	 * @param item Item to enqueue
+	 * @return true if the item was enqueued, false if the queue is full or no producer is registered
+	 */
+	public boolean offer(T item) {
+		lock.lock();
+		try {
+			if (producers == 0 || count == buffer.length)
+				return false;
+			buffer[putptr] = item;
+			if (waitHistogram != null)
+				enqueueTimes[putptr] = System.nanoTime();
+			if (++putptr == capacity)
+				putptr = 0;
+			++count;
+			notEmpty.signal();
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Dequeues up to items.length items at once, under a single lock acquisition.
+	 * Blocks like <see>{@link #dequeue()}</see> until at least one item is available.
+	 * @param items Array to fill with the dequeued items, in queue order
+	 * @return The number of items dequeued, or 0 if there are no more items
+	 */
+	public int dequeueAll(T[] items) {
+		return dequeueAll(items, null);
+	}
+
+	/**
+	 * Dequeues up to items.length items at once, like <see>{@link #dequeueAll(Object[])}</see>,
+	 * and tells when each of them was enqueued.
+	 * @param items Array to fill with the dequeued items, in queue order
+	 * @param enqueuedAt Array to fill with the System.nanoTime() each item was enqueued at,
+	 * 0 if the queue has no wait histogram, or null
+	 * @return The number of items dequeued, or 0 if there are no more items
+	 */
+	public int dequeueAll(T[] items, long[] enqueuedAt) {
+		lock.lock();
+		int n = 0;
+		try {
+			while (count == 0 && producers != 0 || !started)
+				notEmpty.await();
+			long now = waitHistogram != null ? System.nanoTime() : 0;
+			for (; n < items.length && count > 0; n++) {
+				items[n] = buffer[takeptr];
+				buffer[takeptr] = null;
+				if (enqueuedAt != null)
+					enqueuedAt[n] = waitHistogram != null ? enqueueTimes[takeptr] : 0;
+				if (waitHistogram != null)
+					waitHistogram.record((now - enqueueTimes[takeptr]) / 1000);
+				if (++takeptr == capacity)
+					takeptr = 0;
+				--count;
+			}
+			if (n > 0)
+				notFull.signalAll();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+		return n;
+	}
+
+	/**
+	 * Enqueues several items at once, under a single lock acquisition as long as
+	 * there is room for them. Blocks whenever the queue is full.
+	 * @param items Items to enqueue
+	 * @param n Number of items to take from the start of the array
+	 */
+	public void enqueueAll(T[] items, int n) {
+		lock.lock();
+		try {
+			long now = waitHistogram != null ? System.nanoTime() : 0;
+			for (int i = 0; i < n; i++) {
+				while (count == buffer.length) {
+					notEmpty.signalAll();
+					notFull.await();
+					now = waitHistogram != null ? System.nanoTime() : 0;
+				}
+				buffer[putptr] = items[i];
+				enqueueTimes[putptr] = now;
+				if (++putptr == capacity)
+					putptr = 0;
+				++count;
+			}
+			if (n > 1)
+				notEmpty.signalAll();
+			else if (n == 1)
+				notEmpty.signal();
+		} catch(InterruptedException e) {
+			e.printStackTrace();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Enqueues as many of several items as there is room for, under a single lock
+	 * acquisition and without blocking, like <see>{@link #offer(Object)}</see>.
+	 * @param items Items to enqueue
+	 * @param n Number of items to take from the start of the array
+	 * @return The number of items enqueued, from the start of the array
+	 */
+	public int offerAll(T[] items, int n) {
+		lock.lock();
+		int i = 0;
+		try {
+			if (producers == 0)
+				return 0;
+			long now = waitHistogram != null ? System.nanoTime() : 0;
+			for (; i < n && count < buffer.length; i++) {
+				buffer[putptr] = items[i];
+				enqueueTimes[putptr] = now;
+				if (++putptr == capacity)
+					putptr = 0;
+				++count;
+			}
+			if (i > 1)
+				notEmpty.signalAll();
+			else if (i == 1)
+				notEmpty.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+		return i;
+	}
+
+	/**
+	 * Sets a histogram that records how long each item waited in the queue, in
+	 * microseconds. Must be called before any producer is registered.
+	 * @param waitHistogram Histogram to record into, or null to stop recording
+	 */
+	public void setWaitHistogram(LatencyHistogram waitHistogram) {
+		lock.lock();
+		this.waitHistogram = waitHistogram;
+		lock.unlock();
+	}
+
 	/**
 	 * Returns the capacity of this queue
 	 * @return queue capacity
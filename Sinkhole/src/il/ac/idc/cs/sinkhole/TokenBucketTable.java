@@ -0,0 +1,79 @@
+package il.ac.idc.cs.sinkhole;
+
+/** This class is responsible for a fixed-size table of token buckets keyed by a long.
+ * Each bucket is kept as a single number, the time at which it will be full again (the GCRA form
+ * of a token bucket): taking a token pushes that time one interval further, and a token is
+ * available as long as it is no more than burst-1 intervals in the future.
+ * The table never grows and never allocates. A key is looked for in a short probe window; a new
+ * key takes the first free slot there, or the slot of the bucket that has been full the longest,
+ * so idle clients are forgotten first when the table is crowded. */
+public class TokenBucketTable {
+
+    final private static int PROBES = 8;
+
+    private long[] keys;
+    private long[] fullAt;
+    private int mask;
+    private long interval;
+    private long tolerance;
+
+    /** Class constructor.
+     * @param size Number of buckets, rounded up to a power of two.
+     * @param rate Tokens added per second.
+     * @param burst Bucket size, at least 1.
+     */
+    public TokenBucketTable(int size, double rate, int burst) {
+        int capacity = Integer.highestOneBit(Math.max(size - 1, PROBES)) << 1;
+        keys = new long[capacity];
+        fullAt = new long[capacity];
+        mask = capacity - 1;
+        interval = (long) (1e9 / rate);
+        tolerance = interval * (Math.max(burst, 1) - 1);
+    }
+
+    /** Takes a token from the bucket of a key.
+     * @param key The bucket key, must not be 0.
+     * @param now System.nanoTime().
+     * @return true if a token was available */
+    synchronized boolean tryAcquire(long key, long now) {
+        int start = (int) mix(key) & mask;
+        int slot = -1;
+        long oldest = Long.MAX_VALUE;
+        for(int i = 0; i < PROBES; i++) {
+            int s = (start + i) & mask;
+            if(keys[s] == key)
+                return take(s, now);
+            if(keys[s] == 0) {
+                slot = s;
+                break;
+            }
+            if(fullAt[s] - oldest < 0 || slot < 0) {
+                oldest = fullAt[s];
+                slot = s;
+            }
+        }
+        keys[slot] = key;
+        fullAt[slot] = now;
+        return take(slot, now);
+    }
+
+    private boolean take(int slot, long now) {
+        long t = fullAt[slot];
+        if(t - now < 0)
+            t = now;
+        if(t - now > tolerance)
+            return false;
+        fullAt[slot] = t + interval;
+        return true;
+    }
+
+    /** Spreads the bits of a key so that neighbouring addresses land in different slots */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
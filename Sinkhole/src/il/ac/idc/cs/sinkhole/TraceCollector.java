@@ -0,0 +1,145 @@
+package il.ac.idc.cs.sinkhole;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/** This class is responsible for keeping the traces of the sampled queries (sinkhole.trace.sample):
+ * the most recent ones, and the slowest ones since the start. They are served as text on /traces
+ * of the metrics endpoint and written to sinkhole.trace.dump on shutdown. */
+public class TraceCollector {
+
+    final private static Comparator<QueryTrace.Record> BY_TOTAL = new Comparator<QueryTrace.Record>() {
+        public int compare(QueryTrace.Record a, QueryTrace.Record b) {
+            return Long.compare(a.totalMicros, b.totalMicros);
+        }
+    };
+
+    private int sampleEvery;
+    private QueryTrace.Record[] recent;
+    private int recentNext;
+    private PriorityQueue<QueryTrace.Record> slowest;
+    private int slowestSize;
+    /** The fastest of the slowest traces once there are slowestSize of them */
+    private volatile long slowestFloor;
+
+    /** Class constructor.
+     * @param sampleEvery One query in this many is traced.
+     * @param recentSize Number of recent traces kept.
+     * @param slowestSize Number of slowest traces kept.
+     */
+    TraceCollector(int sampleEvery, int recentSize, int slowestSize) {
+        this.sampleEvery = sampleEvery;
+        this.recent = new QueryTrace.Record[Math.max(recentSize, 0)];
+        this.slowestSize = Math.max(slowestSize, 0);
+        this.slowest = new PriorityQueue<>(this.slowestSize + 1, BY_TOTAL);
+        this.slowestFloor = -1;
+    }
+
+    /** Creates the trace collector from the settings.
+     * @param config sinkhole settings
+     * @return the collector, or null if tracing is disabled */
+    static TraceCollector fromConfig(SinkholeConfig config) {
+        if(config.traceSample <= 0)
+            return null;
+        return new TraceCollector(config.traceSample, config.traceRecent, config.traceSlowest);
+    }
+
+    /** Creates the trace buffer of a resolver thread
+     * @return a new per-thread buffer */
+    QueryTrace newTrace() {
+        return new QueryTrace(sampleEvery);
+    }
+
+    /** Checks whether a finished trace would be kept, before it is copied
+     * @param totalMicros Duration of the query.
+     * @return true if the trace should be added */
+    boolean wants(long totalMicros) {
+        return recent.length > 0 || (slowestSize > 0 && totalMicros > slowestFloor);
+    }
+
+    /** Keeps a finished trace
+     * @param r The trace. */
+    synchronized void add(QueryTrace.Record r) {
+        if(recent.length > 0) {
+            recent[recentNext] = r;
+            recentNext = (recentNext + 1) % recent.length;
+        }
+        if(slowestSize > 0 && r.totalMicros > slowestFloor) {
+            slowest.add(r);
+            if(slowest.size() > slowestSize)
+                slowest.poll();
+            if(slowest.size() == slowestSize)
+                slowestFloor = slowest.peek().totalMicros;
+        }
+    }
+
+    /** Gets the most recent traces, newest first
+     * @param n Most traces to return.
+     * @return the traces */
+    synchronized List<QueryTrace.Record> getRecent(int n) {
+        List<QueryTrace.Record> list = new ArrayList<>();
+        for(int i = 1; i <= recent.length && list.size() < n; i++) {
+            QueryTrace.Record r = recent[(recentNext - i + recent.length) % recent.length];
+            if(r == null)
+                break;
+            list.add(r);
+        }
+        return list;
+    }
+
+    /** Gets the slowest traces, slowest first
+     * @param n Most traces to return.
+     * @return the traces */
+    synchronized List<QueryTrace.Record> getSlowest(int n) {
+        List<QueryTrace.Record> list = new ArrayList<>(slowest);
+        Collections.sort(list, Collections.reverseOrder(BY_TOTAL));
+        return list.size() > n ? list.subList(0, n) : list;
+    }
+
+    /** Writes traces as text, one line per query followed by one indented line per hop.
+     * The hops are listed as they ended: a referral or validation comes after the key lookups it made.
+     * @param sb The output buffer.
+     * @param traces The traces. */
+    static void write(StringBuilder sb, List<QueryTrace.Record> traces) {
+        for(QueryTrace.Record r : traces) {
+            sb.append(Instant.ofEpochMilli(r.timestamp)).append(' ').append(r.qname);
+            sb.append(" qtype ").append(r.qtype);
+            sb.append(" client ").append(r.client == null ? "-" : r.client.getHostAddress());
+            sb.append(" rcode ").append(r.rcode).append(" total ").append(r.totalMicros).append(" us");
+            if(r.truncated)
+                sb.append(" (more than ").append(QueryTrace.MAX_HOPS).append(" hops)");
+            sb.append('\n');
+            for(int i = 0; i < r.hopCount; i++) {
+                sb.append("  +").append(r.offsetMicros[i]).append(" us ").append(r.kinds[i].name().toLowerCase());
+                if(r.servers[i] != null)
+                    sb.append(' ').append(r.servers[i].getHostAddress());
+                if(r.details[i] != null)
+                    sb.append(' ').append(r.details[i].isEmpty() ? "." : r.details[i]);
+                if(r.rcodes[i] >= 0)
+                    sb.append(" rcode ").append(r.rcodes[i]);
+                if(r.durationMicros[i] > 0)
+                    sb.append(' ').append(r.durationMicros[i]).append(" us");
+                sb.append('\n');
+            }
+        }
+    }
+
+    /** Writes the slowest traces to a file
+     * @param filename The file.
+     * @return the number of traces written */
+    int dump(String filename) throws IOException {
+        List<QueryTrace.Record> traces = getSlowest(slowestSize);
+        StringBuilder sb = new StringBuilder();
+        write(sb, traces);
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(filename))) {
+            bw.write(sb.toString());
+        }
+        return traces.size();
+    }
+}
@@ -0,0 +1,288 @@
+package il.ac.idc.cs.sinkhole;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/** This class is responsible for the resolver threads: it starts them, and resizes the pool between
+ * sinkhole.workers.min and sinkhole.workers.max from the measured queue wait and upstream concurrency.
+ *
+ * Every interval the mean queue wait of the requests is compared with sinkhole.workers.wait. Above it the
+ * pool grows by half its size, as long as the threads are not all busy on the CPU already (more threads
+ * only help while they wait for upstream servers). Well below it, with at least one thread worth of idle
+ * time, the pool shrinks by one thread. A thread retires after its current batch, so no request is lost.
+ * A thread that dies of an error is replaced, so the pool never drops below sinkhole.workers.min. */
+public class WorkerPool {
+
+    /** Creates the resolver a new thread runs */
+    interface Factory {
+        DNSResolver newResolver();
+    }
+
+    /** A resolver thread and its time breakdown. The times are only written by the thread itself. */
+    static class Worker {
+        final WorkerPool pool;
+        final String name;
+        /** CPU time spent on the batches */
+        volatile long cpuNanos;
+        /** Time spent waiting for upstream responses */
+        volatile long upstreamNanos;
+        /** Time spent waiting for requests */
+        volatile long idleNanos;
+        private long batchCpuStart;
+
+        Worker(WorkerPool pool, String name) {
+            this.pool = pool;
+            this.name = name;
+        }
+
+        /** Called when the thread got a batch of requests.
+         * @param idleSince System.nanoTime() when it started waiting */
+        void beginBatch(long idleSince) {
+            idleNanos += System.nanoTime() - idleSince;
+            batchCpuStart = pool.cpuTime();
+        }
+
+        /** Called when the thread is done with a batch.
+         * @return true if the thread should exit, to shrink the pool */
+        boolean endBatch() {
+            cpuNanos += pool.cpuTime() - batchCpuStart;
+            return pool.retire();
+        }
+
+        /** Counts the time an upstream query took.
+         * @param sentAt System.nanoTime() when it was sent */
+        void recordUpstream(long sentAt) {
+            upstreamNanos += System.nanoTime() - sentAt;
+        }
+    }
+
+    private Factory factory;
+    private int minWorkers;
+    private int maxWorkers;
+    private long targetWaitMicros;
+    private long intervalMillis;
+    private LatencyHistogram queueWait;
+    private ThreadMXBean threadBean;
+    private boolean cpuTimeSupported;
+
+    private List<Worker> workers;
+    private List<Thread> threads;
+    private AtomicInteger retiring;
+    private int nextIndex;
+    private ScheduledExecutorService controller;
+    private volatile boolean stopped;
+    private LongAdder grown;
+    private LongAdder shrunk;
+    private LongAdder replaced;
+
+    /* The totals at the previous resize check */
+    private long lastWaitCount;
+    private long lastWaitSum;
+    private long lastBusyNanos;
+    private long lastCpuNanos;
+    private long lastCheckNanos;
+
+    /** Class constructor.
+     * @param config sinkhole settings
+     * @param queueWait queue wait times of the requests, in microseconds
+     * @param factory creates the resolvers of the new threads
+     */
+    WorkerPool(SinkholeConfig config, LatencyHistogram queueWait, Factory factory) {
+        this.factory = factory;
+        this.minWorkers = Math.max(config.workersMin, 1);
+        this.maxWorkers = Math.max(config.workersMax, minWorkers);
+        this.targetWaitMicros = config.workersTargetWaitMicros;
+        this.intervalMillis = config.workersIntervalMillis;
+        this.queueWait = queueWait;
+        threadBean = ManagementFactory.getThreadMXBean();
+        cpuTimeSupported = threadBean.isCurrentThreadCpuTimeSupported();
+        workers = new CopyOnWriteArrayList<>();
+        threads = new CopyOnWriteArrayList<>();
+        retiring = new AtomicInteger();
+        grown = new LongAdder();
+        shrunk = new LongAdder();
+        replaced = new LongAdder();
+    }
+
+    /** Starts the first threads, and the resize checks if the pool may change size.
+     * @param initial number of threads to start with, bounded by the minimum and maximum */
+    void start(int initial) {
+        for(int i = Math.min(Math.max(initial, minWorkers), maxWorkers); i > 0; i--)
+            startWorker();
+        if(maxWorkers == minWorkers || intervalMillis <= 0)
+            return;
+        lastCheckNanos = System.nanoTime();
+        controller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "worker-pool");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        controller.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                resize();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void startWorker() {
+        final Worker worker = new Worker(this, "resolver-" + nextIndex++);
+        final DNSResolver resolver = factory.newResolver();
+        resolver.attach(worker);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                boolean died = true;
+                try {
+                    resolver.run();
+                    died = false;
+                }
+                finally {
+                    workers.remove(worker);
+                    threads.remove(Thread.currentThread());
+                    // The error itself goes to the default handler once this returns
+                    if(died && !stopped)
+                        replace(worker);
+                }
+            }
+        }, worker.name);
+        workers.add(worker);
+        threads.add(thread);
+        thread.start();
+    }
+
+    /** Starts a thread in place of one that died, unless the pool is stopping
+     * @param dead the thread that died */
+    private synchronized void replace(Worker dead) {
+        if(stopped)
+            return;
+        System.err.println("Error: resolver thread " + dead.name + " died, starting another one");
+        replaced.increment();
+        startWorker();
+    }
+
+    /** Lets one thread exit after its batch, if the pool is shrinking
+     * @return true if the calling thread should exit */
+    private boolean retire() {
+        while(true) {
+            int n = retiring.get();
+            if(n == 0)
+                return false;
+            if(retiring.compareAndSet(n, n - 1))
+                return true;
+        }
+    }
+
+    /** CPU time of the calling thread, 0 if the JVM can't measure it */
+    private long cpuTime() {
+        return cpuTimeSupported ? threadBean.getCurrentThreadCpuTime() : 0;
+    }
+
+    /** Grows or shrinks the pool from the queue wait and thread times since the last check */
+    synchronized void resize() {
+        long now = System.nanoTime();
+        long elapsed = Math.max(now - lastCheckNanos, 1);
+        long waitCount = queueWait.getCount();
+        long waitSum = queueWait.getSum();
+        long busyNanos = 0;
+        long cpuNanos = 0;
+        for(Worker w : workers) {
+            busyNanos += w.cpuNanos + w.upstreamNanos;
+            cpuNanos += w.cpuNanos;
+        }
+        long meanWait = waitCount > lastWaitCount ? (waitSum - lastWaitSum) / (waitCount - lastWaitCount) : 0;
+        // Average number of threads busy (on the CPU or waiting upstream), and on the CPU only;
+        // the totals drop when threads retire, so negative deltas are taken as no work
+        double busy = Math.max(busyNanos - lastBusyNanos, 0) / (double) elapsed;
+        double onCpu = Math.max(cpuNanos - lastCpuNanos, 0) / (double) elapsed;
+        lastCheckNanos = now;
+        lastWaitCount = waitCount;
+        lastWaitSum = waitSum;
+        lastBusyNanos = busyNanos;
+        lastCpuNanos = cpuNanos;
+
+        int size = getSize();
+        if(meanWait > targetWaitMicros && size < maxWorkers
+           && onCpu < Runtime.getRuntime().availableProcessors()) {
+            int add = Math.min(Math.max(size / 2, 1), maxWorkers - size);
+            // Cancel a pending retirement first
+            while(add > 0 && retire())
+                add--;
+            for(int i = 0; i < add; i++)
+                startWorker();
+            grown.increment();
+        }
+        else if(meanWait < targetWaitMicros / 4 && size > minWorkers && busy < size - 1) {
+            retiring.incrementAndGet();
+            shrunk.increment();
+        }
+    }
+
+    /** Stops resizing the pool and replacing the threads that die */
+    void stop() {
+        stopped = true;
+        if(controller != null)
+            controller.shutdownNow();
+    }
+
+    /** Waits for every thread to exit, after the queue producers are gone.
+     * @param deadline System.currentTimeMillis() to give up at
+     * @return the number of threads still running at the deadline */
+    int join(long deadline) {
+        stop();
+        for(Thread thread : threads) {
+            try {
+                thread.join(Math.max(deadline - System.currentTimeMillis(), 1));
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int running = 0;
+        for(Thread thread : threads) {
+            if(thread.isAlive())
+                running++;
+        }
+        return running;
+    }
+
+    /** Gets the number of threads, not counting the ones about to retire
+     * @return pool size */
+    int getSize() {
+        return Math.max(workers.size() - retiring.get(), 0);
+    }
+
+    int getMinWorkers() {
+        return minWorkers;
+    }
+
+    int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    /** Gets the threads with their time breakdown
+     * @return the workers */
+    List<Worker> getWorkers() {
+        return workers;
+    }
+
+    long getGrowCount() {
+        return grown.sum();
+    }
+
+    long getShrinkCount() {
+        return shrunk.sum();
+    }
+
+    long getReplaceCount() {
+        return replaced.sum();
+    }
+}
@@ -0,0 +1,174 @@
+package il.ac.idc.cs.sinkhole;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockedResponderTest {
+
+    final private static int A_REC = 1;
+    final private static int AAAA_REC = 28;
+
+    /** Keeps a copy of every reply */
+    private static class Captured implements PacketSender {
+        byte[] reply;
+
+        public void send(DatagramPacket packet) {
+            reply = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+        }
+
+        public void flush() {
+        }
+    }
+
+    /** A message with one question, its name uncompressed, and the given bytes as its answer record */
+    private static byte[] message(int id, int flags, String host, int qtype, int... rest) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeShort(id);
+        dos.writeShort(flags);
+        dos.writeShort(1);
+        dos.writeShort(rest.length > 0 ? 1 : 0);
+        dos.writeInt(0);
+        for(String label : host.split("\\.")) {
+            dos.writeByte(label.length());
+            dos.write(label.getBytes(StandardCharsets.US_ASCII));
+        }
+        dos.writeByte(0);
+        dos.writeShort(qtype);
+        dos.writeShort(1);
+        for(int b : rest)
+            dos.writeByte(b);
+        return baos.toByteArray();
+    }
+
+    private static byte[] query(int id, String host, int qtype) throws IOException {
+        return message(id, 0x0100, host, qtype);
+    }
+
+    private DNSBlockList blockList;
+    private Captured sender;
+
+    @Before
+    public void setUp() throws IOException {
+        File file = File.createTempFile("blocklist", ".txt");
+        file.deleteOnExit();
+        try (FileWriter w = new FileWriter(file)) {
+            w.write("ads.example.test\n");
+        }
+        blockList = new DNSBlockList(file.getPath());
+        sender = new Captured();
+    }
+
+    private BlockedResponder responder(String ipv4, String ipv6) throws IOException {
+        Properties props = new Properties();
+        if(ipv4 != null)
+            props.setProperty("sinkhole.blocked.ipv4", ipv4);
+        if(ipv6 != null)
+            props.setProperty("sinkhole.blocked.ipv6", ipv6);
+        props.setProperty("sinkhole.blocked.ttl", "120");
+        return new BlockedResponder(new SinkholeConfig(props), blockList, new DNSMetrics(), null, null);
+    }
+
+    private boolean ask(BlockedResponder r, byte[] query) throws IOException {
+        DatagramPacket p = new DatagramPacket(query, query.length,
+                                              new InetSocketAddress(InetAddress.getLoopbackAddress(), 5353));
+        return r.tryAnswer(sender, p);
+    }
+
+    @Test
+    public void sinkholeAnswerPointsAtTheQuestion() throws IOException {
+        byte[] query = query(0xBEEF, "Ads.Example.Test", A_REC);
+        assertTrue(ask(responder("0.0.0.0", null), query));
+
+        byte[] expected = message(0xBEEF, 0x8180, "Ads.Example.Test", A_REC,
+                                  0xC0, 0x0C, 0, 1, 0, 1, 0, 0, 0, 120, 0, 4, 0, 0, 0, 0);
+        assertArrayEquals(expected, sender.reply);
+    }
+
+    @Test
+    public void aaaaAnswerCarriesTheIPv6Address() throws IOException {
+        byte[] query = query(1, "ads.example.test", AAAA_REC);
+        assertTrue(ask(responder("0.0.0.0", "::1"), query));
+
+        int rr = query.length;
+        assertEquals(rr + 12 + 16, sender.reply.length);
+        assertEquals(1, DNSWire.u16(sender.reply, 6));
+        assertEquals(AAAA_REC, DNSWire.u16(sender.reply, rr + 2));
+        assertEquals(16, DNSWire.u16(sender.reply, rr + 10));
+        assertEquals(1, sender.reply[sender.reply.length - 1]);
+    }
+
+    @Test
+    public void otherTypesGetNoData() throws IOException {
+        byte[] query = query(2, "ads.example.test", AAAA_REC);
+        assertTrue(ask(responder("0.0.0.0", null), query));
+
+        assertEquals(query.length, sender.reply.length);
+        assertEquals(0x8180, DNSWire.u16(sender.reply, 2));
+        assertEquals(0, DNSWire.u16(sender.reply, 6));
+    }
+
+    @Test
+    public void withoutSinkholeAddressesItIsNxdomain() throws IOException {
+        byte[] query = query(3, "ads.example.test", A_REC);
+        assertTrue(ask(responder(null, null), query));
+
+        assertEquals(0x8183, DNSWire.u16(sender.reply, 2));
+        assertEquals(0, DNSWire.u16(sender.reply, 6));
+    }
+
+    @Test
+    public void leavesEverythingElseToTheResolver() throws IOException {
+        BlockedResponder r = responder("0.0.0.0", null);
+        assertFalse(ask(r, query(4, "www.example.test", A_REC)));
+        // Not recursive
+        byte[] query = query(5, "ads.example.test", A_REC);
+        query[2] = 0;
+        assertFalse(ask(r, query));
+        // A compressed question name
+        assertFalse(ask(r, new byte[] {0, 6, 1, 0, 0, 1, 0, 0, 0, 0, 0, 0, (byte) 0xC0, 0x0C, 0, 1, 0, 1}));
+        // Cut short in the name
+        assertFalse(ask(r, Arrays.copyOf(query(7, "ads.example.test", A_REC), 20)));
+        assertNull(sender.reply);
+    }
+
+    @Test
+    public void serverAnswersWithTheSinkholePolicy() throws IOException {
+        Properties props = new Properties();
+        props.setProperty("sinkhole.blocked.ipv4", "192.0.2.99");
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        DatagramSocket socket = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        // No upstream answers, a blocked host must not need one
+        SinkholeServer server = new SinkholeServer(new SinkholeConfig(props), socket, blockList,
+                                                   new DNSRootServer(new InetAddress[] {loopback}, 9), new DNSMetrics(),
+                                                   null, new DNSCache(100, 86400, 60));
+        new Thread(server).start();
+        try (DatagramSocket client = new DatagramSocket()) {
+            client.setSoTimeout(5000);
+            byte[] query = query(8, "ads.example.test", A_REC);
+            client.send(new DatagramPacket(query, query.length, loopback, socket.getLocalPort()));
+            DatagramPacket reply = new DatagramPacket(new byte[512], 512);
+            client.receive(reply);
+
+            assertEquals(0x8180, DNSWire.u16(reply.getData(), 2));
+            assertEquals(1, DNSWire.u16(reply.getData(), 6));
+            assertEquals(99, reply.getData()[reply.getLength() - 1]);
+        }
+        finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package il.ac.idc.cs.sinkhole;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DNSBlockListTest {
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    private DNSBlockList load(String... lines) throws IOException {
+        File file = dir.newFile();
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.US_ASCII);
+        return new DNSBlockList(file.getPath());
+    }
+
+    @Test
+    public void hostsFileLinesBlockEveryName() throws IOException {
+        DNSBlockList list = load("# Hosts file",
+                                 "0.0.0.0 ads.example.test",
+                                 "127.0.0.1\ttracker.example.test  pixel.example.test",
+                                 "0.0.0.0 \t metrics.example.test # end of line comment",
+                                 "::1 v6.example.test");
+
+        for(String name : new String[] {"ads.example.test", "tracker.example.test", "pixel.example.test",
+                                        "metrics.example.test", "v6.example.test"})
+            assertTrue(name, list.isBlocked(name));
+        assertFalse(list.isBlocked("comment"));
+        assertFalse(list.isBlocked("end"));
+        assertFalse(list.isBlocked("www.example.test"));
+    }
+
+    @Test
+    public void plainListLines() throws IOException {
+        DNSBlockList list = load("Ads.Example.Test.", "*.tracking.test # all of it", "", "/ads[0-9]+\\.example\\.test/");
+
+        assertTrue(list.isBlocked("ads.example.test"));
+        assertTrue(list.isBlocked("a.b.tracking.test"));
+        assertFalse(list.isBlocked("tracking.test"));
+        assertTrue(list.isBlocked("ads42.example.test"));
+        assertFalse(list.isBlocked("adsx.example.test"));
+    }
+}
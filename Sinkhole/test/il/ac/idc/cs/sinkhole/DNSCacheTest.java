@@ -0,0 +1,145 @@
+package il.ac.idc.cs.sinkhole;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class DNSCacheTest {
+
+    final private static String HOST = "www.example.test";
+
+    private static void writeName(DataOutputStream dos, String name) throws IOException {
+        for(String label : name.split("\\.")) {
+            dos.writeByte(label.length());
+            dos.write(label.getBytes(StandardCharsets.US_ASCII));
+        }
+        dos.writeByte(0);
+    }
+
+    /** An authoritative answer with the given number of A records, 10.0.0.1 and up, owner names uncompressed */
+    private static byte[] answer(int id, String host, int ttl, int count) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeShort(id);
+        dos.writeShort(0x8400);
+        dos.writeShort(1);
+        dos.writeShort(count);
+        dos.writeInt(0);
+        writeName(dos, host);
+        dos.writeShort(1);
+        dos.writeShort(1);
+        for(int i = 1; i <= count; i++) {
+            writeName(dos, host);
+            dos.writeShort(1);
+            dos.writeShort(1);
+            dos.writeInt(ttl);
+            dos.writeShort(4);
+            dos.write(new byte[] {10, 0, 0, (byte) i});
+        }
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void ttlsCountDownWhileCached() throws IOException {
+        byte[] response = answer(1, HOST, 300, 2);
+        AnswerStore[] stores = {new HeapAnswerStore(16, 1), new OffHeapAnswerStore(1, 1024 * 1024)};
+        for(AnswerStore store : stores) {
+            long storedAt = 1000000;
+            store.put(HOST, 1, response, response.length, storedAt, storedAt + 300 * 1000);
+            byte[] out = new byte[512];
+
+            int len = store.get(HOST, 1, storedAt + 30500, out);
+            assertEquals(response.length, len);
+            assertEquals(270, DNSWire.minTTL(out, len));
+            // The stored copy is not touched
+            assertEquals(300, DNSWire.minTTL(response, response.length));
+
+            assertEquals(-1, store.get(HOST, 1, storedAt + 300 * 1000, out));
+        }
+    }
+
+    @Test
+    public void decrementStopsAtZero() throws IOException {
+        byte[] response = answer(1, HOST, 10, 1);
+        assertTrue(DNSWire.decrementTTLs(response, response.length, 60));
+        assertEquals(0, DNSWire.minTTL(response, response.length));
+        assertFalse(DNSWire.decrementTTLs(response, response.length - 1, 1));
+    }
+
+    @Test
+    public void answersAreCachedForTheirSmallestTTL() throws IOException {
+        DNSCache cache = new DNSCache(16, 86400, 60);
+        byte[] response = answer(1, HOST, 300, 2);
+        cache.putAnswer("WWW.Example.Test", 1, response, response.length);
+
+        byte[] out = new byte[512];
+        assertEquals(response.length, cache.getAnswer(HOST, 1, out));
+        assertEquals(-1, cache.getAnswer(HOST, 28, out));
+
+        // Nothing to keep with a TTL of 0
+        byte[] expired = answer(2, "old.example.test", 0, 1);
+        cache.putAnswer("old.example.test", 1, expired, expired.length);
+        assertEquals(-1, cache.getAnswer("old.example.test", 1, out));
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        File file = File.createTempFile("cache", ".snapshot");
+        file.deleteOnExit();
+        DNSCache cache = new DNSCache(16, 86400, 60);
+        long now = System.currentTimeMillis();
+        byte[] response = answer(1, HOST, 300, 2);
+        cache.getAnswerStore().put(HOST, 1, response, response.length, now - 100 * 1000, now + 200 * 1000);
+        cache.getAnswerStore().put("old.example.test", 1, response, response.length, now - 400 * 1000, now - 100 * 1000);
+        InetAddress[] servers = {InetAddress.getByName("192.0.2.1"), InetAddress.getByName("2001:db8::1")};
+        cache.putDelegation("example.test", servers, 3600);
+
+        assertEquals(2, CacheSnapshot.save(cache, file.getPath()));
+
+        DNSCache loaded = new DNSCache(16, 86400, 60);
+        assertEquals(2, CacheSnapshot.load(loaded, file.getPath()));
+        byte[] out = new byte[512];
+        int len = loaded.getAnswer(HOST, 1, out);
+        assertEquals(response.length, len);
+        // The time spent in the cache before the snapshot still counts
+        long ttl = DNSWire.minTTL(out, len);
+        assertTrue("ttl " + ttl, ttl <= 200 && ttl >= 190);
+        assertEquals(-1, loaded.getAnswer("old.example.test", 1, out));
+        DNSCache.Delegation d = loaded.findDelegation("www.example.test");
+        assertNotNull(d);
+        assertEquals("example.test", d.zone);
+        assertArrayEquals(servers, d.servers);
+    }
+
+    @Test
+    public void missingSnapshotLoadsNothing() throws IOException {
+        assertEquals(-1, CacheSnapshot.load(new DNSCache(16, 86400, 60), "/nonexistent/cache.snapshot"));
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptSnapshotIsRejected() throws IOException {
+        File file = File.createTempFile("cache", ".snapshot");
+        file.deleteOnExit();
+        java.nio.file.Files.write(file.toPath(), new byte[32]);
+        CacheSnapshot.load(new DNSCache(16, 86400, 60), file.getPath());
+    }
+
+    @Test
+    public void boundedMapsEvictExpiredEntriesFirst() throws IOException {
+        DNSCache cache = new DNSCache(2, 86400, 60);
+        InetAddress[] servers = {InetAddress.getLoopbackAddress()};
+        for(int i = 0; i < 5; i++) {
+            cache.putDelegation("zone" + i + ".test", servers, 3600);
+            cache.putNoCut("name" + i + ".test", 3600);
+        }
+        assertEquals(2, cache.getDelegationCount());
+        assertEquals(2, cache.getNoCutCount());
+        assertNotNull(cache.findDelegation("www.zone4.test"));
+        assertTrue(cache.isNoCut("name4.test"));
+    }
+}
@@ -0,0 +1,133 @@
+package il.ac.idc.cs.sinkhole;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class DNSParserTest {
+
+    /** Starts a message with one question and its header */
+    private static DataOutputStream header(ByteArrayOutputStream baos, int flags, int an, int ns) throws IOException {
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeShort(1);
+        dos.writeShort(flags);
+        dos.writeShort(1);
+        dos.writeShort(an);
+        dos.writeShort(ns);
+        dos.writeShort(0);
+        return dos;
+    }
+
+    private static void writeName(DataOutputStream dos, String name) throws IOException {
+        for(String label : name.split("\\.")) {
+            dos.writeByte(label.length());
+            dos.write(label.getBytes(StandardCharsets.US_ASCII));
+        }
+        dos.writeByte(0);
+    }
+
+    /** A query whose question is written byte by byte */
+    private static byte[] query(int... question) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = header(baos, 0x0100, 0, 0);
+        for(int b : question)
+            dos.writeByte(b);
+        return baos.toByteArray();
+    }
+
+    /** An authoritative answer with the given number of A records, owner names uncompressed */
+    private static byte[] answer(int id, String host, int ttl, int count) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = header(baos, 0x8400, count, 0);
+        writeName(dos, host);
+        dos.writeShort(1);
+        dos.writeShort(1);
+        for(int i = 1; i <= count; i++) {
+            writeName(dos, host);
+            dos.writeShort(1);
+            dos.writeShort(1);
+            dos.writeInt(ttl);
+            dos.writeShort(4);
+            dos.write(new byte[] {10, 0, 0, (byte) i});
+        }
+        byte[] packet = baos.toByteArray();
+        DNSWire.putU16(packet, 0, id);
+        return packet;
+    }
+
+    private static DNSParser parse(byte[] packet) {
+        DNSParser parser = new DNSParser(new DatagramPacket(packet, packet.length));
+        parser.parseDNS();
+        return parser;
+    }
+
+    @Test
+    public void readsQuestionAndAnswers() throws IOException {
+        DNSParser parser = parse(answer(7, "www.example.test", 300, 2));
+        assertEquals(7, parser.getID());
+        assertEquals("www.example.test", parser.getQuestion().host);
+        assertEquals(1, parser.getQuestion().qtype);
+        assertEquals(2, parser.getRRList().size());
+        assertEquals("10.0.0.2", parser.getRRList().get(1).address);
+        assertEquals(300, parser.getRRList().get(1).ttl);
+    }
+
+    @Test
+    public void followsCompressionPointers() throws IOException {
+        // The answer owner points at the question name, the NS name at a suffix of it
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = header(baos, 0x8000, 0, 1);
+        writeName(dos, "www.example.test");
+        dos.writeShort(1);
+        dos.writeShort(1);
+        for(int b : new int[] {0xC0, 0x10, 0, 2, 0, 1, 0, 0, 0, 60, 0, 5, 2, 'n', 's', 0xC0, 0x10})
+            dos.writeByte(b);
+        DNSParser parser = parse(baos.toByteArray());
+        DNSParser.RR ns = parser.getFirstNS();
+        assertNotNull(ns);
+        assertEquals("example.test", ns.name);
+        assertEquals("ns.example.test", ns.hostname);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pointerToItselfIsRejected() throws IOException {
+        parse(query(0xC0, 0x0C, 0, 1, 0, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pointerLoopIsRejected() throws IOException {
+        // Two labels pointing at each other
+        parse(query(1, 'a', 0xC0, 0x0E, 0, 1, 0, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void overlongNameIsRejected() throws IOException {
+        int[] question = new int[5 * 64 + 5];
+        Arrays.fill(question, 'a');
+        for(int i = 0; i < 5; i++)
+            question[i * 64] = 63;
+        question[5 * 64] = 0;
+        question[5 * 64 + 1] = 0;
+        question[5 * 64 + 2] = 1;
+        question[5 * 64 + 3] = 0;
+        question[5 * 64 + 4] = 1;
+        parse(query(question));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void reservedLabelTypeIsRejected() throws IOException {
+        parse(query(0x40, 0, 0, 1, 0, 1));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void truncatedPacketDoesNotReadStaleBytes() throws IOException {
+        byte[] packet = answer(1, "www.example.test", 300, 1);
+        // The buffer still holds the whole answer, only the received length is short
+        new DNSParser(new DatagramPacket(packet, packet.length - 6)).parseDNS();
+    }
+}
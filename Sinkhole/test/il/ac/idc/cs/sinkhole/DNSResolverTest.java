@@ -0,0 +1,419 @@
+package il.ac.idc.cs.sinkhole;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Test;
+
+/** The upstream exchange of the resolver threads, against a fake authoritative server */
+public class DNSResolverTest {
+
+    final private static InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    /** An upstream server answering every query with the datagrams a test writes for it */
+    private static abstract class FakeUpstream extends Thread {
+        DatagramSocket socket;
+        List<DatagramPacket> queries = new ArrayList<>();
+
+        FakeUpstream() throws SocketException {
+            socket = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+            setDaemon(true);
+        }
+
+        abstract List<byte[]> respond(byte[] query);
+
+        public void run() {
+            byte[] buf = new byte[1024];
+            while(!socket.isClosed()) {
+                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                try {
+                    socket.receive(p);
+                    byte[] query = Arrays.copyOf(p.getData(), p.getLength());
+                    synchronized (this) {
+                        queries.add(new DatagramPacket(query, query.length, p.getSocketAddress()));
+                    }
+                    for(byte[] r : respond(query))
+                        socket.send(new DatagramPacket(r, r.length, p.getSocketAddress()));
+                }
+                catch (IOException ex) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /** The zones test and example.test and the names in them, every server of the hierarchy being
+     * the upstream itself: it answers by the queried name alone, whichever zone it is asked for */
+    private static class Hierarchy extends FakeUpstream {
+        final Set<String> zones = new HashSet<>(Arrays.asList("test", "example.test"));
+        final Set<String> hosts = new HashSet<>();
+        /** Names whose server fails with an error */
+        final Map<String, Integer> rcodes = new HashMap<>();
+
+        Hierarchy(String... hosts) throws SocketException {
+            this.hosts.addAll(Arrays.asList(hosts));
+        }
+
+        List<byte[]> respond(byte[] query) {
+            String name = qname(query);
+            if(zones.contains(name)) {
+                // A referral with the glue of the zone's server
+                byte[] r = append(response(query, 0x8000), 8, name, 2, DNSSECValidator.nameWire("ns." + name));
+                return Arrays.asList(append(r, 10, "ns." + name, 1, LOOPBACK.getAddress()));
+            }
+            if(hosts.contains(name))
+                return Arrays.asList(answer(query, query, 1));
+            Integer rcode = rcodes.get(name);
+            byte[] soa = new byte[2 + 20];
+            DNSWire.putU32(soa, 18, 300);
+            return Arrays.asList(append(response(query, 0x8400 | (rcode != null ? rcode : 0)), 8, "example.test", 6, soa));
+        }
+
+        synchronized List<String> qnames() {
+            List<String> names = new ArrayList<>();
+            for(DatagramPacket p : queries)
+                names.add(qname(p.getData()));
+            return names;
+        }
+    }
+
+    private static String qname(byte[] query) {
+        return DNSWire.decodeQuestionName(Arrays.copyOfRange(query, DNSWire.HEADER_SIZE, query.length),
+                                          query.length - DNSWire.HEADER_SIZE).toLowerCase();
+    }
+
+    /** The header and question of a response to a query, without records */
+    private static byte[] response(byte[] query, int flags) {
+        byte[] r = Arrays.copyOf(query, DNSWire.skipQuestions(query, query.length));
+        DNSWire.putU16(r, 2, flags);
+        DNSWire.putU16(r, 10, 0);
+        return r;
+    }
+
+    /** Appends a record to a response and counts it in the header field at countAt */
+    private static byte[] append(byte[] msg, int countAt, String owner, int type, byte[] rdata) {
+        byte[] name = DNSSECValidator.nameWire(owner);
+        int pos = msg.length + name.length;
+        byte[] r = Arrays.copyOf(msg, pos + 10 + rdata.length);
+        System.arraycopy(name, 0, r, msg.length, name.length);
+        DNSWire.putU16(r, pos, type);
+        DNSWire.putU16(r, pos + 2, 1);
+        DNSWire.putU32(r, pos + 4, 300);
+        DNSWire.putU16(r, pos + 8, rdata.length);
+        System.arraycopy(rdata, 0, r, pos + 10, rdata.length);
+        DNSWire.putU16(r, countAt, DNSWire.u16(r, countAt) + 1);
+        return r;
+    }
+
+    /** An authoritative answer to a query, with one A record, for the question of another query */
+    private static byte[] answer(byte[] query, byte[] question, int lastOctet) {
+        int qEnd = DNSWire.skipQuestions(question, question.length);
+        byte[] r = Arrays.copyOf(question, qEnd + 16);
+        r[0] = query[0];
+        r[1] = query[1];
+        DNSWire.putU16(r, 2, 0x8400);
+        DNSWire.putU16(r, 6, 1);
+        DNSWire.putU16(r, 10, 0);
+        DNSWire.putU16(r, qEnd, 0xC00C);
+        DNSWire.putU16(r, qEnd + 2, 1);
+        DNSWire.putU16(r, qEnd + 4, 1);
+        DNSWire.putU32(r, qEnd + 6, 300);
+        DNSWire.putU16(r, qEnd + 10, 4);
+        r[qEnd + 12] = (byte) 192;
+        r[qEnd + 13] = 0;
+        r[qEnd + 14] = 2;
+        r[qEnd + 15] = (byte) lastOctet;
+        return r;
+    }
+
+    /** An authoritative answer to a query with count A records, 192.0.2.1 and up */
+    private static byte[] answer(byte[] query, int count) {
+        int qEnd = DNSWire.skipQuestions(query, query.length);
+        byte[] r = Arrays.copyOf(query, qEnd + count * 16);
+        for(int i = 0; i < count; i++) {
+            byte[] one = answer(query, query, i + 1);
+            System.arraycopy(one, qEnd, r, qEnd + i * 16, 16);
+        }
+        DNSWire.putU16(r, 2, 0x8400);
+        DNSWire.putU16(r, 6, count);
+        DNSWire.putU16(r, 10, 0);
+        return r;
+    }
+
+    private static byte[] query(int id, String host) {
+        byte[] q = new byte[DNSWire.HEADER_SIZE + 260];
+        DNSWire.putU16(q, 0, id);
+        DNSWire.putU16(q, 2, 0x0100);
+        DNSWire.putU16(q, 4, 1);
+        byte[] question = new byte[260];
+        int len = DNSWire.encodeQuestion(host, 1, question);
+        System.arraycopy(question, 0, q, DNSWire.HEADER_SIZE, len);
+        return Arrays.copyOf(q, DNSWire.HEADER_SIZE + len);
+    }
+
+    private FakeUpstream upstream;
+    private DNSMetrics metrics;
+    private SinkholeServer server;
+    private DatagramSocket serverSocket;
+    private DatagramSocket client;
+
+    private void start(FakeUpstream fake) throws IOException {
+        start(fake, "off");
+    }
+
+    private void start(FakeUpstream fake, String minimisation) throws IOException {
+        start(fake, minimisation, new Properties());
+    }
+
+    private void start(FakeUpstream fake, String minimisation, Properties props) throws IOException {
+        upstream = fake;
+        upstream.start();
+        props.setProperty("sinkhole.qname.minimisation", minimisation);
+        props.setProperty("sinkhole.upstream.timeout", "1000");
+        SinkholeConfig config = new SinkholeConfig(props);
+        serverSocket = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+        DNSRootServer roots = new DNSRootServer(new InetAddress[] {LOOPBACK}, upstream.socket.getLocalPort());
+        metrics = new DNSMetrics();
+        server = new SinkholeServer(config, serverSocket, new DNSBlockList(null), roots, metrics, null,
+                                    new DNSCache(1000, 86400, 60));
+        Thread t = new Thread(server, "sinkhole-receive");
+        t.setDaemon(true);
+        t.start();
+        client = new DatagramSocket();
+        client.setSoTimeout(5000);
+    }
+
+    private byte[] ask(String host) throws IOException {
+        return ask(query(0x4242, host));
+    }
+
+    private byte[] ask(byte[] q) throws IOException {
+        client.send(new DatagramPacket(q, q.length, LOOPBACK, serverSocket.getLocalPort()));
+        DatagramPacket reply = new DatagramPacket(new byte[4096], 4096);
+        client.receive(reply);
+        return Arrays.copyOf(reply.getData(), reply.getLength());
+    }
+
+    @After
+    public void tearDown() {
+        if(client != null)
+            client.close();
+        if(server != null)
+            server.close();
+        if(upstream != null)
+            upstream.socket.close();
+    }
+
+    @Test
+    public void responsesToAnotherQuestionAreIgnored() throws IOException {
+        start(new FakeUpstream() {
+            List<byte[]> respond(byte[] query) {
+                // Right ID, address and port, but answering another name, and the genuine answer after it
+                return Arrays.asList(answer(query, query(0, "www.example.test.evil"), 66),
+                                     answer(new byte[] {(byte) (query[0] + 1), query[1]}, query, 67),
+                                     answer(query, query, 1));
+            }
+        });
+        byte[] reply = ask("www.example.test");
+
+        assertEquals(0x4242, DNSWire.u16(reply, 0));
+        assertEquals(0, reply[3] & 0x0F);
+        assertEquals(1, DNSWire.u16(reply, 6));
+        assertEquals(1, reply[reply.length - 1]);
+    }
+
+    @Test
+    public void questionMatchIgnoresCaseOnly() {
+        byte[] q = query(1, "www.example.test");
+        byte[] upper = q.clone();
+        upper[DNSWire.HEADER_SIZE + 1] = 'W';
+        upper[DNSWire.HEADER_SIZE + 5] = 'E';
+        assertTrue(DNSWire.sameQuestion(q, q.length, upper, upper.length));
+        assertFalse(DNSWire.sameQuestion(q, q.length, query(1, "www.example.tesu"), q.length));
+        byte[] aaaa = q.clone();
+        aaaa[aaaa.length - 3] = 28;
+        assertFalse(DNSWire.sameQuestion(q, q.length, aaaa, aaaa.length));
+        assertFalse(DNSWire.sameQuestion(q, q.length, q, q.length - 1));
+    }
+
+    @Test
+    public void everyQueryHasARandomIdAndPort() throws IOException {
+        start(new FakeUpstream() {
+            List<byte[]> respond(byte[] query) {
+                return Arrays.asList(answer(query, query, 1));
+            }
+        });
+        int n = 16;
+        for(int i = 0; i < n; i++)
+            ask("host" + i + ".example.test");
+
+        Set<Integer> ids = new HashSet<>();
+        Set<Integer> ports = new HashSet<>();
+        int sequential = 0;
+        synchronized (upstream) {
+            assertEquals(n, upstream.queries.size());
+            for(int i = 0; i < n; i++) {
+                DatagramPacket p = upstream.queries.get(i);
+                int id = DNSWire.u16(p.getData(), 0);
+                ids.add(id);
+                ports.add(p.getPort());
+                if(i > 0 && id == DNSWire.u16(upstream.queries.get(i - 1).getData(), 0) + 1)
+                    sequential++;
+            }
+        }
+        assertTrue("ids " + ids, ids.size() >= n - 1);
+        assertTrue("sequential ids " + sequential, sequential < 3);
+        assertTrue("ports " + ports, ports.size() > n / 2);
+    }
+
+    @Test
+    public void ednsClientsGetRepliesUpToTheirPayloadSize() throws IOException {
+        start(new FakeUpstream() {
+            List<byte[]> respond(byte[] query) {
+                return Arrays.asList(answer(query, 40));
+            }
+        });
+        byte[] plain = query(0x4242, "www.example.test");
+        byte[] edns = Arrays.copyOf(plain, plain.length + DNSWire.OPT_SIZE);
+        DNSWire.appendOpt(edns, plain.length, 4096);
+
+        // Resolved, then from the cache
+        for(int i = 0; i < 2; i++) {
+            byte[] reply = ask(edns);
+            assertEquals(0, reply[2] & 0x02);
+            assertEquals(40, DNSWire.u16(reply, 6));
+            assertEquals(1, DNSWire.u16(reply, 10));
+            assertEquals(plain.length + 40 * 16 + DNSWire.OPT_SIZE, reply.length);
+            assertEquals(1232, DNSWire.ednsPayloadSize(reply, reply.length));
+        }
+        synchronized (upstream) {
+            assertEquals(1, upstream.queries.size());
+        }
+
+        // Too large for a client without EDNS0, which gets a truncated reply
+        byte[] reply = ask(plain);
+        assertTrue("TC is set", (reply[2] & 0x02) != 0);
+        assertTrue(reply.length <= DNSResponseBuilder.MAX_UDP_REPLY);
+        assertEquals(-1, DNSWire.ednsPayloadSize(reply, reply.length));
+        // Upstream queries advertise the configured size too
+        synchronized (upstream) {
+            DatagramPacket p = upstream.queries.get(0);
+            assertEquals(1232, DNSWire.ednsPayloadSize(p.getData(), p.getLength()));
+        }
+    }
+
+    @Test
+    public void minimisedQueriesAskOneLabelMore() throws IOException {
+        Hierarchy hierarchy = new Hierarchy("www.example.test", "mail.example.test");
+        start(hierarchy, "relaxed");
+
+        byte[] reply = ask("www.example.test");
+        assertEquals(0, reply[3] & 0x0F);
+        assertEquals(1, DNSWire.u16(reply, 6));
+        assertEquals(Arrays.asList("test", "example.test", "www.example.test"), hierarchy.qnames());
+        assertEquals(2, metrics.getMinimisationCount(DNSMetrics.Minimisation.QUERY));
+
+        // The zone cut is cached, its servers are asked straight away
+        assertEquals(1, DNSWire.u16(ask("mail.example.test"), 6));
+        assertEquals(Arrays.asList("test", "example.test", "www.example.test", "mail.example.test"), hierarchy.qnames());
+    }
+
+    @Test
+    public void namesThatAreNoZoneCutAreSkippedNextTime() throws IOException {
+        Hierarchy hierarchy = new Hierarchy("a.b.example.test", "c.b.example.test");
+        start(hierarchy, "relaxed");
+
+        assertEquals(1, DNSWire.u16(ask("a.b.example.test"), 6));
+        assertEquals(Arrays.asList("test", "example.test", "b.example.test", "a.b.example.test"), hierarchy.qnames());
+        assertEquals(1, metrics.getMinimisationCount(DNSMetrics.Minimisation.NO_CUT));
+
+        assertEquals(1, DNSWire.u16(ask("c.b.example.test"), 6));
+        assertEquals("c.b.example.test", hierarchy.qnames().get(4));
+        assertEquals(5, hierarchy.qnames().size());
+        assertEquals(1, metrics.getMinimisationCount(DNSMetrics.Minimisation.LABEL_SKIPPED));
+    }
+
+    @Test
+    public void relaxedModeFallsBackToTheFullName() throws IOException {
+        // Servers that fail the names with nothing but names below them
+        Hierarchy hierarchy = new Hierarchy("host.nx.example.test", "host.fail.example.test");
+        hierarchy.rcodes.put("nx.example.test", 3);
+        hierarchy.rcodes.put("fail.example.test", 2);
+        start(hierarchy, "relaxed");
+
+        for(String host : new String[] {"host.nx.example.test", "host.fail.example.test"}) {
+            byte[] reply = ask(host);
+            assertEquals(host, 0, reply[3] & 0x0F);
+            assertEquals(host, 1, DNSWire.u16(reply, 6));
+            assertTrue(host, hierarchy.qnames().contains(host));
+        }
+        assertEquals(2, metrics.getMinimisationCount(DNSMetrics.Minimisation.FALLBACK));
+    }
+
+    @Test
+    public void strictModeTrustsNXDomain() throws IOException {
+        Hierarchy hierarchy = new Hierarchy("host.nx.example.test", "host.fail.example.test");
+        hierarchy.rcodes.put("nx.example.test", 3);
+        hierarchy.rcodes.put("fail.example.test", 2);
+        start(hierarchy, "strict");
+
+        // Nothing exists below a name that does not exist
+        assertEquals(3, ask("host.nx.example.test")[3] & 0x0F);
+        assertFalse(hierarchy.qnames().contains("host.nx.example.test"));
+        // But a failure still falls back
+        assertEquals(1, DNSWire.u16(ask("host.fail.example.test"), 6));
+        assertEquals(1, metrics.getMinimisationCount(DNSMetrics.Minimisation.FALLBACK));
+    }
+
+    @Test
+    public void sampledQueriesTraceTheirPath() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("sinkhole.trace.sample", "2");
+        // Every resolver thread samples its own queries
+        props.setProperty("sinkhole.workers", "1");
+        props.setProperty("sinkhole.workers.max", "1");
+        start(new Hierarchy("www.example.test", "mail.example.test", "ftp.example.test"), "relaxed", props);
+
+        for(String host : new String[] {"www.example.test", "mail.example.test", "ftp.example.test", "mail.example.test"})
+            assertEquals(1, DNSWire.u16(ask(host), 6));
+
+        // Every second query, newest first, kept once its reply is sent
+        List<QueryTrace.Record> traces = metrics.getTraces().getRecent(10);
+        for(int i = 0; i < 300 && traces.size() < 2; i++) {
+            Thread.sleep(10);
+            traces = metrics.getTraces().getRecent(10);
+        }
+        assertEquals(2, traces.size());
+        QueryTrace.Record hit = traces.get(0);
+        assertEquals("mail.example.test", hit.qname);
+        assertEquals(Arrays.asList(QueryTrace.Hop.QUEUE, QueryTrace.Hop.CACHE_HIT), kinds(hit));
+
+        // The zone cut found by the first query is where the second one starts
+        QueryTrace.Record miss = traces.get(1);
+        assertEquals("mail.example.test", miss.qname);
+        assertEquals(0, miss.rcode);
+        assertEquals(Arrays.asList(QueryTrace.Hop.QUEUE, QueryTrace.Hop.CACHE_MISS, QueryTrace.Hop.DELEGATION,
+                                   QueryTrace.Hop.UPSTREAM), kinds(miss));
+        assertEquals("example.test", miss.details[2]);
+        assertEquals(LOOPBACK, miss.servers[3]);
+        assertEquals("mail.example.test", miss.details[3]);
+        assertEquals(0, miss.rcodes[3]);
+    }
+
+    private static List<QueryTrace.Hop> kinds(QueryTrace.Record r) {
+        return Arrays.asList(r.kinds);
+    }
+}
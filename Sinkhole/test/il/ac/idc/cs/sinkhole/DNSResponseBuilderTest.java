@@ -0,0 +1,220 @@
+package il.ac.idc.cs.sinkhole;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class DNSResponseBuilderTest {
+
+    final private static String HOST = "www.example.test";
+    final private static int A_REC = 1;
+
+    private static void writeName(DataOutputStream dos, String name) throws IOException {
+        for(String label : name.split("\\.")) {
+            dos.writeByte(label.length());
+            dos.write(label.getBytes(StandardCharsets.US_ASCII));
+        }
+        dos.writeByte(0);
+    }
+
+    private static DataOutputStream header(ByteArrayOutputStream baos, int id, int flags, int an, int ns, int ar)
+            throws IOException {
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeShort(id);
+        dos.writeShort(flags);
+        dos.writeShort(1);
+        dos.writeShort(an);
+        dos.writeShort(ns);
+        dos.writeShort(ar);
+        writeName(dos, HOST);
+        dos.writeShort(A_REC);
+        dos.writeShort(1);
+        return dos;
+    }
+
+    /** A recursive client query, with an EDNS0 OPT record if ednsSize is not 0 */
+    private static byte[] query(int id, int ednsSize) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = header(baos, id, 0x0100, 0, 0, ednsSize != 0 ? 1 : 0);
+        if(ednsSize != 0) {
+            dos.write(new byte[] {0, 0, (byte) DNSWire.OPT_REC});
+            dos.writeShort(ednsSize);
+            dos.write(new byte[6]);
+        }
+        return baos.toByteArray();
+    }
+
+    /** An authoritative answer with the given number of A records, owner names uncompressed */
+    private static byte[] answer(int id, int ttl, int count) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = header(baos, id, 0x8400, count, 0, 0);
+        for(int i = 1; i <= count; i++) {
+            writeName(dos, HOST);
+            dos.writeShort(A_REC);
+            dos.writeShort(1);
+            dos.writeInt(ttl);
+            dos.writeShort(4);
+            dos.write(new byte[] {10, 0, 0, (byte) i});
+        }
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void ownerNamesPointAtTheQuestion() throws IOException {
+        byte[] query = query(0x1234, 0);
+        byte[] upstream = answer(0x4321, 300, 2);
+        DNSResponseBuilder builder = new DNSResponseBuilder(DNSResponseBuilder.MAX_UDP_REPLY);
+
+        int len = builder.build(query, query.length, upstream, upstream.length, false);
+
+        // Two records of a 2 byte pointer and 14 bytes each, instead of the 18 byte name
+        assertEquals(query.length + 2 * 16, len);
+        byte[] out = builder.getBuffer();
+        assertEquals(0x1234, DNSWire.u16(out, 0));
+        assertEquals(0x8180, DNSWire.u16(out, 2));
+        assertEquals(2, DNSWire.u16(out, 6));
+        assertEquals(0xC00C, DNSWire.u16(out, query.length));
+        assertEquals(0xC00C, DNSWire.u16(out, query.length + 16));
+        assertEquals(300, DNSWire.u32(out, query.length + 6));
+    }
+
+    @Test
+    public void negativeAnswerKeepsOnlyTheSOA() throws IOException {
+        byte[] query = query(1, 0);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = header(baos, 1, 0x8403, 0, 1, 0);
+        writeName(dos, "example.test");
+        dos.writeShort(DNSWire.SOA_REC);
+        dos.writeShort(1);
+        dos.writeInt(3600);
+        dos.writeShort(2 * 17 + 20);
+        writeName(dos, "ns.example.test");
+        writeName(dos, "hm.example.test");
+        for(int field : new int[] {1, 3600, 600, 86400, 300})
+            dos.writeInt(field);
+        byte[] upstream = baos.toByteArray();
+        DNSResponseBuilder builder = new DNSResponseBuilder(DNSResponseBuilder.MAX_UDP_REPLY);
+
+        int len = builder.build(query, query.length, upstream, upstream.length, false);
+
+        byte[] out = builder.getBuffer();
+        assertEquals(3, out[3] & 0x0F);
+        assertEquals(0, DNSWire.u16(out, 6));
+        assertEquals(1, DNSWire.u16(out, 8));
+        assertEquals(300, DNSWire.minTTL(out, len));
+        // The zone name is a suffix of the question
+        assertEquals(0xC010, DNSWire.u16(out, query.length));
+    }
+
+    @Test
+    public void udpReplyIsTruncatedToWholeRecords() throws IOException {
+        byte[] query = query(2, 0);
+        byte[] upstream = answer(2, 300, 40);
+        DNSResponseBuilder builder = new DNSResponseBuilder(DNSResponseBuilder.MAX_UDP_REPLY);
+
+        int len = builder.build(query, query.length, upstream, upstream.length, false);
+
+        byte[] out = builder.getBuffer();
+        int fit = (DNSResponseBuilder.MAX_UDP_REPLY - query.length) / 16;
+        assertEquals(fit, DNSWire.u16(out, 6));
+        assertEquals(query.length + fit * 16, len);
+        assertTrue("TC is set", (out[2] & 0x02) != 0);
+        assertEquals(300, DNSWire.minTTL(out, len));
+    }
+
+    @Test
+    public void limitTruncatesBelowTheBufferSize() throws IOException {
+        byte[] query = query(3, 0);
+        byte[] upstream = answer(3, 300, 40);
+        DNSResponseBuilder builder = new DNSResponseBuilder(1232);
+
+        int len = builder.build(query, query.length, upstream, upstream.length, false, DNSResponseBuilder.MAX_UDP_REPLY);
+        assertTrue("TC is set", (builder.getBuffer()[2] & 0x02) != 0);
+        assertTrue(len <= DNSResponseBuilder.MAX_UDP_REPLY);
+
+        // The next client takes more
+        len = builder.build(query, query.length, upstream, upstream.length, false, 1232);
+        assertEquals(0, builder.getBuffer()[2] & 0x02);
+        assertEquals(40, DNSWire.u16(builder.getBuffer(), 6));
+        assertEquals(query.length + 40 * 16, len);
+    }
+
+    @Test
+    public void streamReplyHoldsTheWholeAnswer() throws IOException {
+        byte[] query = query(4, 0);
+        byte[] upstream = answer(4, 300, 40);
+        DNSResponseBuilder builder = new DNSResponseBuilder(DNSResponseBuilder.MAX_STREAM_REPLY);
+
+        int len = builder.build(query, query.length, upstream, upstream.length, false);
+
+        byte[] out = builder.getBuffer();
+        assertEquals(40, DNSWire.u16(out, 6));
+        assertEquals(query.length + 40 * 16, len);
+        assertEquals(0, out[2] & 0x02);
+    }
+
+    @Test
+    public void clientOptRecordIsFoundAndAnswered() throws IOException {
+        byte[] query = query(5, 4096);
+        assertEquals(4096, DNSWire.ednsPayloadSize(query, query.length));
+        assertEquals(-1, DNSWire.ednsPayloadSize(query, query.length - 1));
+        byte[] plain = query(5, 0);
+        assertEquals(-1, DNSWire.ednsPayloadSize(plain, plain.length));
+
+        byte[] reply = new byte[plain.length + DNSWire.OPT_SIZE];
+        System.arraycopy(plain, 0, reply, 0, plain.length);
+        assertEquals(reply.length, DNSWire.appendOpt(reply, plain.length, 1232));
+        assertEquals(1, DNSWire.u16(reply, 10));
+        assertEquals(1232, DNSWire.ednsPayloadSize(reply, reply.length));
+    }
+
+    @Test
+    public void authenticatedSetsAD() throws IOException {
+        byte[] query = query(6, 0);
+        byte[] upstream = answer(6, 300, 1);
+        DNSResponseBuilder builder = new DNSResponseBuilder(DNSResponseBuilder.MAX_UDP_REPLY);
+
+        builder.build(query, query.length, upstream, upstream.length, true);
+
+        assertTrue((builder.getBuffer()[3] & 0x20) != 0);
+    }
+
+    @Test
+    public void adIsOnlyToldToClientsAskingForIt() throws IOException {
+        byte[] upstream = answer(8, 300, 1);
+        byte[] plain = query(8, 0);
+        byte[] asking = query(9, 0);
+        asking[3] |= 0x20;
+        DNSResponseBuilder builder = new DNSResponseBuilder(DNSResponseBuilder.MAX_UDP_REPLY);
+
+        int len = builder.build(plain, plain.length, upstream, upstream.length, true);
+        byte[] cached = Arrays.copyOf(builder.getBuffer(), len);
+        byte[] reply = cached.clone();
+        DNSResponseBuilder.maskAuthenticData(reply, plain);
+        assertEquals(0, reply[3] & 0x20);
+
+        // The cached reply keeps AD for the next client that sets it, with its own ID and no RD
+        asking[2] &= ~0x01;
+        reply = cached.clone();
+        DNSResponseBuilder.adaptReply(reply, len, asking, asking.length);
+        assertEquals(9, DNSWire.u16(reply, 0));
+        assertEquals(0, reply[2] & 0x01);
+        assertTrue((reply[3] & 0x20) != 0);
+        reply = cached.clone();
+        DNSResponseBuilder.adaptReply(reply, len, plain, plain.length);
+        assertEquals(0, reply[3] & 0x20);
+    }
+
+    @Test
+    public void malformedUpstreamIsRejected() throws IOException {
+        byte[] query = query(7, 0);
+        byte[] upstream = answer(7, 300, 2);
+        DNSResponseBuilder builder = new DNSResponseBuilder(DNSResponseBuilder.MAX_UDP_REPLY);
+
+        assertEquals(-1, builder.build(query, query.length, upstream, upstream.length - 3, false));
+    }
+}
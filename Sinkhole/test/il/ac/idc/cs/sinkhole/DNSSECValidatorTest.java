@@ -0,0 +1,326 @@
+package il.ac.idc.cs.sinkhole;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+/** The chain of trust and the proofs of unsigned delegations, against zones signed by the test */
+public class DNSSECValidatorTest {
+
+    final private static int A_REC = 1;
+    final private static int NS_REC = 2;
+    final private static int TTL = 3600;
+    final private static String BASE32HEX = "0123456789abcdefghijklmnopqrstuv";
+
+    /** A signed zone with a single P-256 key */
+    private static class Zone {
+        final String name;
+        final KeyPair keyPair;
+        final byte[] dnskey;
+
+        Zone(String name) throws GeneralSecurityException {
+            this.name = name;
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            keyPair = generator.generateKeyPair();
+            ECPublicKey pub = (ECPublicKey) keyPair.getPublic();
+            dnskey = new byte[4 + 64];
+            DNSWire.putU16(dnskey, 0, 257);
+            dnskey[2] = 3;
+            dnskey[3] = 13;
+            unsigned(pub.getW().getAffineX().toByteArray(), dnskey, 4);
+            unsigned(pub.getW().getAffineY().toByteArray(), dnskey, 36);
+        }
+
+        /** The SHA-256 DS record of the key */
+        byte[] ds() {
+            MessageDigest md = DNSSECValidator.digest("SHA-256");
+            md.update(DNSSECValidator.nameWire(name));
+            md.update(dnskey);
+            byte[] digest = md.digest();
+            byte[] ds = new byte[4 + digest.length];
+            DNSWire.putU16(ds, 0, DNSSECValidator.keyTag(dnskey));
+            ds[2] = 13;
+            ds[3] = 2;
+            System.arraycopy(digest, 0, ds, 4, digest.length);
+            return ds;
+        }
+
+        /** Signs an RRset
+         * @return the RRset followed by its RRSIG */
+        List<DNSSECValidator.Record> sign(DNSSECValidator.Record... rrset) throws GeneralSecurityException {
+            DNSSECValidator.Record first = rrset[0];
+            byte[] signer = DNSSECValidator.nameWire(name);
+            byte[] head = new byte[18 + signer.length];
+            long now = System.currentTimeMillis() / 1000;
+            DNSWire.putU16(head, 0, first.type);
+            head[2] = 13;
+            head[3] = (byte) DNSSECValidator.labelCount(first.owner);
+            DNSWire.putU32(head, 4, TTL);
+            DNSWire.putU32(head, 8, now + 86400);
+            DNSWire.putU32(head, 12, now - 3600);
+            DNSWire.putU16(head, 16, DNSSECValidator.keyTag(dnskey));
+            System.arraycopy(signer, 0, head, 18, signer.length);
+
+            Signature s = Signature.getInstance("SHA256withECDSA");
+            s.initSign(keyPair.getPrivate());
+            s.update(DNSSECValidator.signedData(head, head.length, Arrays.asList(rrset)));
+            // DER to the r|s form of RFC 6605
+            byte[] der = s.sign();
+            int rLen = der[3];
+            byte[] rrsig = Arrays.copyOf(head, head.length + 64);
+            unsigned(Arrays.copyOfRange(der, 4, 4 + rLen), rrsig, head.length);
+            unsigned(Arrays.copyOfRange(der, 6 + rLen, der.length), rrsig, head.length + 32);
+
+            List<DNSSECValidator.Record> records = new ArrayList<>(Arrays.asList(rrset));
+            records.add(new DNSSECValidator.Record(first.owner, DNSSECValidator.RRSIG_REC, TTL, rrsig));
+            return records;
+        }
+    }
+
+    /** Copies a big-endian integer right-aligned into a 32 byte field, without its sign octet */
+    private static void unsigned(byte[] value, byte[] out, int pos) {
+        int skip = Math.max(value.length - 32, 0);
+        System.arraycopy(value, skip, out, pos + 32 - (value.length - skip), value.length - skip);
+    }
+
+    private static DNSSECValidator.Record record(String owner, int type, byte[] rdata) {
+        return new DNSSECValidator.Record(owner, type, TTL, rdata);
+    }
+
+    /** An NSEC or NSEC3 type bitmap of the first window */
+    private static byte[] bitmap(int... types) {
+        int last = 0;
+        for(int type : types)
+            last = Math.max(last, type);
+        byte[] map = new byte[2 + last / 8 + 1];
+        map[1] = (byte) (last / 8 + 1);
+        for(int type : types)
+            map[2 + type / 8] |= 0x80 >> (type % 8);
+        return map;
+    }
+
+    private static byte[] nsec(String next, int... types) {
+        byte[] name = DNSSECValidator.nameWire(next);
+        byte[] map = bitmap(types);
+        byte[] rdata = Arrays.copyOf(name, name.length + map.length);
+        System.arraycopy(map, 0, rdata, name.length, map.length);
+        return rdata;
+    }
+
+    /** The owner of the NSEC3 record of a name: its SHA-1 hash, no salt or extra iterations */
+    private static String nsec3Owner(String name, String zone) {
+        byte[] hash = DNSSECValidator.digest("SHA-1").digest(DNSSECValidator.nameWire(name));
+        StringBuilder sb = new StringBuilder();
+        for(int bit = 0; bit < hash.length * 8; bit += 5) {
+            int value = 0;
+            for(int i = bit; i < bit + 5; i++)
+                value = (value << 1) | ((hash[i / 8] >> (7 - i % 8)) & 1);
+            sb.append(BASE32HEX.charAt(value));
+        }
+        return sb + "." + zone;
+    }
+
+    private static byte[] nsec3(int... types) {
+        byte[] map = bitmap(types);
+        byte[] rdata = new byte[6 + 20 + map.length];
+        rdata[0] = 1;
+        rdata[5] = 20;
+        Arrays.fill(rdata, 6, 26, (byte) 0xFF);
+        System.arraycopy(map, 0, rdata, 26, map.length);
+        return rdata;
+    }
+
+    /** A response with its records uncompressed */
+    private static byte[] message(String qname, int qtype, List<DNSSECValidator.Record> answers,
+                                  List<DNSSECValidator.Record> authority) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] header = new byte[DNSWire.HEADER_SIZE];
+        DNSWire.putU16(header, 2, answers.isEmpty() ? 0x8403 : 0x8400);
+        DNSWire.putU16(header, 4, 1);
+        DNSWire.putU16(header, 6, answers.size());
+        DNSWire.putU16(header, 8, authority.size());
+        out.write(header, 0, header.length);
+        byte[] name = DNSSECValidator.nameWire(qname);
+        out.write(name, 0, name.length);
+        byte[] fixed = new byte[10];
+        DNSWire.putU16(fixed, 0, qtype);
+        DNSWire.putU16(fixed, 2, 1);
+        out.write(fixed, 0, 4);
+        List<DNSSECValidator.Record> all = new ArrayList<>(answers);
+        all.addAll(authority);
+        for(DNSSECValidator.Record r : all) {
+            name = DNSSECValidator.nameWire(r.owner);
+            out.write(name, 0, name.length);
+            DNSWire.putU16(fixed, 0, r.type);
+            DNSWire.putU32(fixed, 4, r.ttl);
+            DNSWire.putU16(fixed, 8, r.rdata.length);
+            out.write(fixed, 0, fixed.length);
+            out.write(r.rdata, 0, r.rdata.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] answer(String qname, int qtype, List<DNSSECValidator.Record> answers) {
+        return message(qname, qtype, answers, Collections.<DNSSECValidator.Record>emptyList());
+    }
+
+    private Zone root;
+    private Zone tld;
+    private Zone example;
+    /** The upstream responses by "name/qtype" */
+    private Map<String, byte[]> responses;
+    private AtomicInteger queries;
+    private DNSSECValidator.Upstream upstream;
+    private DNSSECValidator validator;
+
+    @Before
+    public void setUp() throws GeneralSecurityException {
+        root = new Zone("");
+        tld = new Zone("test");
+        example = new Zone("example.test");
+        responses = new HashMap<>();
+        queries = new AtomicInteger();
+        upstream = (name, qtype, zone) -> {
+            queries.incrementAndGet();
+            byte[] r = responses.get(name + "/" + qtype);
+            return r == null ? null : new DatagramPacket(r, r.length);
+        };
+        for(Zone z : new Zone[] {root, tld, example})
+            responses.put(z.name + "/" + DNSSECValidator.DNSKEY_REC, answer(z.name, DNSSECValidator.DNSKEY_REC,
+                    z.sign(record(z.name, DNSSECValidator.DNSKEY_REC, z.dnskey))));
+        responses.put("test/" + DNSSECValidator.DS_REC, answer("test", DNSSECValidator.DS_REC,
+                root.sign(record("test", DNSSECValidator.DS_REC, tld.ds()))));
+        responses.put("example.test/" + DNSSECValidator.DS_REC, answer("example.test", DNSSECValidator.DS_REC,
+                tld.sign(record("example.test", DNSSECValidator.DS_REC, example.ds()))));
+        validator = new DNSSECValidator(Arrays.asList(root.ds()), new DNSMetrics(), 1000, 86400);
+    }
+
+    private int validate(byte[] msg, String zone) throws IOException {
+        return validator.validate(msg, msg.length, zone, upstream);
+    }
+
+    private static byte[] address(int lastOctet) {
+        return new byte[] {(byte) 192, 0, 2, (byte) lastOctet};
+    }
+
+    /** Serves the parent's denial of a DS record for a zone, then validates an unsigned answer from it */
+    private int unsignedAnswer(String zone, DNSSECValidator.Record proof) throws IOException, GeneralSecurityException {
+        responses.put(zone + "/" + DNSSECValidator.DS_REC, message(zone, DNSSECValidator.DS_REC,
+                Collections.<DNSSECValidator.Record>emptyList(), tld.sign(proof)));
+        String host = "www." + zone;
+        return validate(answer(host, A_REC, Arrays.asList(record(host, A_REC, address(1)))), zone);
+    }
+
+    @Test
+    public void chainOfTrustIsWalkedOnceAndValidatesAnswers() throws Exception {
+        byte[] msg = answer("www.example.test", A_REC, example.sign(record("www.example.test", A_REC, address(1))));
+        assertEquals(DNSSECValidator.SECURE, validate(msg, "example.test"));
+        assertEquals(3, validator.getTrustedZoneCount());
+        assertTrue(validator.hasTrust("Example.Test"));
+
+        // The next answers only cost their own signature
+        int walked = queries.get();
+        msg = answer("mail.example.test", A_REC, example.sign(record("mail.example.test", A_REC, address(2)),
+                                                              record("mail.example.test", A_REC, address(3))));
+        assertEquals(DNSSECValidator.SECURE, validate(msg, "example.test"));
+        assertEquals(walked, queries.get());
+    }
+
+    @Test
+    public void tamperedOrForeignSignaturesAreBogus() throws Exception {
+        List<DNSSECValidator.Record> signed = example.sign(record("www.example.test", A_REC, address(1)));
+        signed.get(0).rdata = address(66);
+        assertEquals(DNSSECValidator.BOGUS, validate(answer("www.example.test", A_REC, signed), "example.test"));
+
+        Zone impostor = new Zone("example.test");
+        byte[] msg = answer("www.example.test", A_REC, impostor.sign(record("www.example.test", A_REC, address(1))));
+        assertEquals(DNSSECValidator.BOGUS, validate(msg, "example.test"));
+
+        msg = answer("www.example.test", A_REC, Arrays.asList(record("www.example.test", A_REC, address(1))));
+        assertEquals(DNSSECValidator.BOGUS, validate(msg, "example.test"));
+    }
+
+    @Test
+    public void brokenDSChainMakesTheZoneBogus() throws Exception {
+        Zone impostor = new Zone("test");
+        responses.put("example.test/" + DNSSECValidator.DS_REC, answer("example.test", DNSSECValidator.DS_REC,
+                impostor.sign(record("example.test", DNSSECValidator.DS_REC, example.ds()))));
+        byte[] msg = answer("www.example.test", A_REC, example.sign(record("www.example.test", A_REC, address(1))));
+        assertEquals(DNSSECValidator.BOGUS, validate(msg, "example.test"));
+    }
+
+    @Test
+    public void signedNegativeAnswerIsInsecureAtBest() throws Exception {
+        List<DNSSECValidator.Record> authority = new ArrayList<>();
+        byte[] soa = new byte[2 + 20];
+        authority.addAll(example.sign(record("example.test", DNSWire.SOA_REC, soa)));
+        authority.addAll(example.sign(record("example.test", DNSSECValidator.NSEC_REC,
+                nsec("www.example.test", NS_REC, DNSWire.SOA_REC, DNSSECValidator.RRSIG_REC,
+                     DNSSECValidator.NSEC_REC, DNSSECValidator.DNSKEY_REC))));
+        byte[] msg = message("nx.example.test", A_REC, Collections.<DNSSECValidator.Record>emptyList(), authority);
+        assertEquals(DNSSECValidator.INSECURE, validate(msg, "example.test"));
+
+        authority.get(authority.size() - 2).rdata = nsec("zzz.example.test", NS_REC, DNSWire.SOA_REC);
+        msg = message("nx.example.test", A_REC, Collections.<DNSSECValidator.Record>emptyList(), authority);
+        assertEquals(DNSSECValidator.BOGUS, validate(msg, "example.test"));
+    }
+
+    @Test
+    public void nsecProvesAnUnsignedDelegation() throws Exception {
+        DNSSECValidator.Record proof = record("plain.test", DNSSECValidator.NSEC_REC,
+                nsec("zzz.test", NS_REC, DNSSECValidator.RRSIG_REC, DNSSECValidator.NSEC_REC));
+        assertEquals(DNSSECValidator.INSECURE, unsignedAnswer("plain.test", proof));
+    }
+
+    @Test
+    public void nsecWithoutNSOrWithDSOrSOAProvesNothing() throws Exception {
+        int[][] bitmaps = {{DNSSECValidator.RRSIG_REC, DNSSECValidator.NSEC_REC},
+                           {NS_REC, DNSSECValidator.DS_REC, DNSSECValidator.RRSIG_REC, DNSSECValidator.NSEC_REC},
+                           {NS_REC, DNSWire.SOA_REC, DNSSECValidator.RRSIG_REC, DNSSECValidator.NSEC_REC}};
+        for(int i = 0; i < bitmaps.length; i++) {
+            String zone = "plain" + i + ".test";
+            DNSSECValidator.Record proof = record(zone, DNSSECValidator.NSEC_REC, nsec("zzz.test", bitmaps[i]));
+            assertEquals(zone, DNSSECValidator.BOGUS, unsignedAnswer(zone, proof));
+        }
+    }
+
+    @Test
+    public void nsec3ProvesAnUnsignedDelegationOnlyWithNS() throws Exception {
+        DNSSECValidator.Record proof = record(nsec3Owner("plain.test", "test"), DNSSECValidator.NSEC3_REC,
+                nsec3(NS_REC, DNSSECValidator.RRSIG_REC));
+        assertEquals(DNSSECValidator.INSECURE, unsignedAnswer("plain.test", proof));
+
+        proof = record(nsec3Owner("other.test", "test"), DNSSECValidator.NSEC3_REC, nsec3(DNSSECValidator.RRSIG_REC));
+        assertEquals(DNSSECValidator.BOGUS, unsignedAnswer("other.test", proof));
+    }
+
+    @Test
+    public void rememberedSignatureChecksStayBounded() throws Exception {
+        validator = new DNSSECValidator(Arrays.asList(root.ds()), new DNSMetrics(), 8, 86400);
+        for(int i = 1; i <= 20; i++) {
+            String host = "host" + i + ".example.test";
+            byte[] msg = answer(host, A_REC, example.sign(record(host, A_REC, address(i))));
+            assertEquals(host, DNSSECValidator.SECURE, validate(msg, "example.test"));
+            // Full, one check makes way for the next instead of all of them
+            assertEquals(Math.min(5 + i, 8), validator.getVerifiedCount());
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package il.ac.idc.cs.sinkhole;
+import static org.junit.Assert.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** DNS-over-TLS and DNS-over-HTTPS, with a key made for the tests and an upstream server that answers on demand */
+public class EncryptedListenersTest {
+
+    final private static InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    final private static String PASSWORD = "changeit";
+    final private static String BLOCKED = "ads.example.test";
+
+    /** An upstream server that holds its answers until it is released */
+    private static class GatedUpstream extends Thread {
+        final DatagramSocket socket;
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger();
+
+        GatedUpstream() throws IOException {
+            socket = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+            setDaemon(true);
+        }
+
+        public void run() {
+            byte[] buf = new byte[1024];
+            while(!socket.isClosed()) {
+                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                try {
+                    socket.receive(p);
+                    final byte[] answer = answer(Arrays.copyOf(p.getData(), p.getLength()));
+                    final DatagramPacket reply = new DatagramPacket(answer, answer.length, p.getSocketAddress());
+                    received.incrementAndGet();
+                    new Thread() {
+                        public void run() {
+                            try {
+                                gate.await();
+                                socket.send(reply);
+                            }
+                            catch (IOException | InterruptedException ex) {
+                                // The test is over
+                            }
+                        }
+                    }.start();
+                }
+                catch (IOException ex) {
+                    return;
+                }
+            }
+        }
+
+        /** An authoritative answer with one A record, 192.0.2.1 */
+        static byte[] answer(byte[] query) {
+            int qEnd = DNSWire.skipQuestions(query, query.length);
+            byte[] r = Arrays.copyOf(query, qEnd + 16);
+            DNSWire.putU16(r, 2, 0x8400);
+            DNSWire.putU16(r, 6, 1);
+            DNSWire.putU16(r, 10, 0);
+            DNSWire.putU16(r, qEnd, 0xC00C);
+            DNSWire.putU16(r, qEnd + 2, 1);
+            DNSWire.putU16(r, qEnd + 4, 1);
+            DNSWire.putU32(r, qEnd + 6, 300);
+            DNSWire.putU16(r, qEnd + 10, 4);
+            r[qEnd + 12] = (byte) 192;
+            r[qEnd + 14] = 2;
+            r[qEnd + 15] = 1;
+            return r;
+        }
+    }
+
+    @ClassRule
+    public static TemporaryFolder dir = new TemporaryFolder();
+
+    private static File keyStore;
+    private static SSLContext clientContext;
+
+    private GatedUpstream upstream;
+    private DNSMetrics metrics;
+    private SinkholeServer server;
+    private int dotPort;
+    private int dohPort;
+
+    /** Makes a self-signed key for localhost with the JDK's keytool, and a client context trusting it */
+    @BeforeClass
+    public static void makeKey() throws Exception {
+        keyStore = new File(dir.getRoot(), "sinkhole.p12");
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "sinkhole", "-keyalg", "EC",
+                                       "-dname", "CN=localhost", "-ext", "san=dns:localhost,ip:127.0.0.1",
+                                       "-validity", "2", "-storetype", "PKCS12", "-keystore", keyStore.getPath(),
+                                       "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true).start();
+        while(p.getInputStream().read() >= 0)
+            ;
+        assertEquals("keytool exit status", 0, p.waitFor());
+
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keyStore)) {
+            keys.load(in, PASSWORD.toCharArray());
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keys);
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, tmf.getTrustManagers(), null);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private void start(Properties props) throws Exception {
+        upstream = new GatedUpstream();
+        upstream.start();
+        dotPort = freePort();
+        dohPort = freePort();
+        props.setProperty("sinkhole.dot.port", Integer.toString(dotPort));
+        props.setProperty("sinkhole.doh.port", Integer.toString(dohPort));
+        props.setProperty("sinkhole.tls.keystore", keyStore.getPath());
+        props.setProperty("sinkhole.tls.password", PASSWORD);
+        props.setProperty("sinkhole.qname.minimisation", "off");
+        SinkholeConfig config = new SinkholeConfig(props);
+        metrics = new DNSMetrics();
+        File blockList = new File(dir.getRoot(), "blocked.txt");
+        Files.write(blockList.toPath(), (BLOCKED + "\n").getBytes(StandardCharsets.US_ASCII));
+        DNSRootServer roots = new DNSRootServer(new InetAddress[] {LOOPBACK}, upstream.socket.getLocalPort());
+        server = new SinkholeServer(config, new DatagramSocket(new InetSocketAddress(LOOPBACK, 0)),
+                                    new DNSBlockList(blockList.getPath()), roots, metrics, null, new DNSCache(1000, 86400, 60));
+        new Thread(server, "sinkhole-receive").start();
+        server.startEncryptedListeners(config);
+    }
+
+    @After
+    public void tearDown() {
+        if(server != null)
+            server.close();
+        if(upstream != null) {
+            upstream.gate.countDown();
+            upstream.socket.close();
+        }
+    }
+
+    /** A recursive query for the A record of a host */
+    private static byte[] query(int id, String host) {
+        byte[] question = new byte[260];
+        int len = DNSWire.encodeQuestion(host, 1, question);
+        byte[] q = new byte[DNSWire.HEADER_SIZE + len];
+        DNSWire.putU16(q, 0, id);
+        DNSWire.putU16(q, 2, 0x0100);
+        DNSWire.putU16(q, 4, 1);
+        System.arraycopy(question, 0, q, DNSWire.HEADER_SIZE, len);
+        return q;
+    }
+
+    private SSLSocket connectTLS() throws IOException {
+        SSLSocket socket = (SSLSocket) clientContext.getSocketFactory().createSocket(LOOPBACK, dotPort);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static void writeFramed(OutputStream out, byte[]... queries) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+        for(byte[] q : queries) {
+            dos.writeShort(q.length);
+            dos.write(q);
+        }
+        dos.flush();
+    }
+
+    private static byte[] readFramed(DataInputStream in) throws IOException {
+        byte[] reply = new byte[in.readUnsignedShort()];
+        in.readFully(reply);
+        return reply;
+    }
+
+    private static void awaitUpstream(GatedUpstream upstream, int n) throws InterruptedException {
+        for(int i = 0; i < 300 && upstream.received.get() < n; i++)
+            Thread.sleep(10);
+        assertEquals("upstream queries", n, upstream.received.get());
+    }
+
+    private HttpsURLConnection openHTTPS(String query) throws IOException {
+        HttpsURLConnection c = (HttpsURLConnection) new URL("https://localhost:" + dohPort + "/dns-query" + query).openConnection();
+        c.setSSLSocketFactory(clientContext.getSocketFactory());
+        c.setConnectTimeout(5000);
+        c.setReadTimeout(5000);
+        return c;
+    }
+
+    private static byte[] readBody(HttpsURLConnection c) throws IOException {
+        byte[] body = new byte[c.getContentLength()];
+        try (DataInputStream in = new DataInputStream(c.getInputStream())) {
+            in.readFully(body);
+        }
+        return body;
+    }
+
+    private static String encode(byte[] query) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(query);
+    }
+
+    @Test
+    public void pipelinedQueriesAreAnsweredOnOneConnection() throws Exception {
+        start(new Properties());
+        upstream.gate.countDown();
+        try (SSLSocket socket = connectTLS()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            // Sent together, one of them twice with the same ID
+            writeFramed(socket.getOutputStream(), query(7, "www.example.test"), query(7, BLOCKED), query(8, "mail.example.test"));
+
+            Set<Integer> ids = new HashSet<>();
+            int blocked = 0;
+            for(int i = 0; i < 3; i++) {
+                byte[] reply = readFramed(in);
+                ids.add(DNSWire.u16(reply, 0));
+                // Without a sinkhole address a blocked host is NXDOMAIN
+                if(DNSWire.u16(reply, 2) == 0x8183)
+                    blocked++;
+                else
+                    assertEquals(1, DNSWire.u16(reply, 6));
+            }
+            assertEquals(new HashSet<>(Arrays.asList(7, 8)), ids);
+            assertEquals(1, blocked);
+        }
+    }
+
+    @Test
+    public void idleConnectionWritesTheRepliesStillToComeBeforeClosing() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("sinkhole.dot.idle", "200");
+        start(props);
+        try (SSLSocket socket = connectTLS()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            writeFramed(socket.getOutputStream(), query(1, "www.example.test"), query(2, "mail.example.test"));
+            awaitUpstream(upstream, 2);
+            // The connection stops reading once idle, its replies are not lost
+            Thread.sleep(500);
+            upstream.gate.countDown();
+
+            assertEquals(1, DNSWire.u16(readFramed(in), 6));
+            assertEquals(1, DNSWire.u16(readFramed(in), 6));
+            try {
+                readFramed(in);
+                fail("the connection is still open");
+            }
+            catch (EOFException | javax.net.ssl.SSLException ex) {
+                // Closed by the sinkhole
+            }
+        }
+    }
+
+    @Test
+    public void closingConnectionGivesUpOnLateReplies() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("sinkhole.dot.idle", "200");
+        props.setProperty("sinkhole.dot.timeout", "300");
+        start(props);
+        try (SSLSocket socket = connectTLS()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            long startedAt = System.currentTimeMillis();
+            writeFramed(socket.getOutputStream(), query(1, "www.example.test"));
+            try {
+                readFramed(in);
+                fail("the upstream never answered");
+            }
+            catch (EOFException | javax.net.ssl.SSLException ex) {
+                // Closed by the sinkhole
+            }
+            // Idle, then waited for the reply
+            long elapsed = System.currentTimeMillis() - startedAt;
+            assertTrue(elapsed >= 450);
+            assertTrue(elapsed < 3000);
+        }
+    }
+
+    @Test
+    public void getAndPostAreAnsweredAsDNSMessages() throws Exception {
+        start(new Properties());
+        upstream.gate.countDown();
+
+        HttpsURLConnection get = openHTTPS("?dns=" + encode(query(0, "www.example.test")));
+        assertEquals(200, get.getResponseCode());
+        assertEquals("application/dns-message", get.getContentType());
+        assertEquals("max-age=300", get.getHeaderField("Cache-Control"));
+        byte[] reply = readBody(get);
+        assertEquals(0, DNSWire.u16(reply, 0));
+        assertEquals(1, DNSWire.u16(reply, 6));
+
+        HttpsURLConnection post = openHTTPS("");
+        post.setRequestMethod("POST");
+        post.setDoOutput(true);
+        post.setRequestProperty("Content-Type", "application/dns-message");
+        try (OutputStream out = post.getOutputStream()) {
+            out.write(query(0x1234, BLOCKED));
+        }
+        assertEquals(200, post.getResponseCode());
+        reply = readBody(post);
+        assertEquals(0x1234, DNSWire.u16(reply, 0));
+        assertEquals(0x8183, DNSWire.u16(reply, 2));
+
+        assertEquals(400, openHTTPS("?dns=not*base64").getResponseCode());
+        HttpsURLConnection put = openHTTPS("");
+        put.setRequestMethod("PUT");
+        assertEquals(405, put.getResponseCode());
+    }
+
+    @Test
+    public void droppedQueriesAreToldAtOnce() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("sinkhole.ratelimit.qps", "1");
+        props.setProperty("sinkhole.ratelimit.burst", "1");
+        props.setProperty("sinkhole.doh.timeout", "10000");
+        start(props);
+        upstream.gate.countDown();
+        long startedAt = System.currentTimeMillis();
+
+        assertEquals(400, openHTTPS("?dns=" + encode(new byte[5])).getResponseCode());
+        assertEquals(200, openHTTPS("?dns=" + encode(query(0, "www.example.test"))).getResponseCode());
+        assertEquals(429, openHTTPS("?dns=" + encode(query(0, "mail.example.test"))).getResponseCode());
+        assertEquals(1, metrics.getDropCount(DNSMetrics.Drop.RATE_LIMITED));
+        // Far below the reply timeout
+        assertTrue(System.currentTimeMillis() - startedAt < 5000);
+    }
+
+    @Test
+    public void fullQueueIsToldAtOnce() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("sinkhole.workers", "1");
+        props.setProperty("sinkhole.workers.max", "1");
+        props.setProperty("sinkhole.queue.capacity", "1");
+        props.setProperty("sinkhole.doh.timeout", "10000");
+        start(props);
+
+        // One query waits upstream, one in the queue, the others are dropped
+        final int[] status = new int[4];
+        Thread[] clients = new Thread[status.length];
+        for(int i = 0; i < status.length; i++) {
+            final int n = i;
+            clients[i] = new Thread() {
+                public void run() {
+                    try {
+                        status[n] = openHTTPS("?dns=" + encode(query(0, "host" + n + ".example.test"))).getResponseCode();
+                    }
+                    catch (IOException ex) {
+                        status[n] = -1;
+                    }
+                }
+            };
+            clients[i].start();
+            if(i == 0)
+                awaitUpstream(upstream, 1);
+        }
+        for(int i = 0; i < 300 && metrics.getDropCount(DNSMetrics.Drop.QUEUE_FULL) < 2; i++)
+            Thread.sleep(10);
+        assertEquals(2, metrics.getDropCount(DNSMetrics.Drop.QUEUE_FULL));
+        upstream.gate.countDown();
+        for(Thread t : clients)
+            t.join(5000);
+
+        int[] sorted = status.clone();
+        Arrays.sort(sorted);
+        assertArrayEquals(new int[] {200, 200, 503, 503}, sorted);
+    }
+}
@@ -0,0 +1,127 @@
+package il.ac.idc.cs.sinkhole;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class OffHeapAnswerStoreTest {
+
+    final private static long NOW = 1000000;
+
+    /** A response of version v: 1 to 4 A records depending on v, every address byte is v */
+    private static byte[] response(String host, int v) {
+        byte[] question = new byte[260];
+        int qLen = DNSWire.encodeQuestion(host, 1, question);
+        int count = 1 + v % 4;
+        byte[] r = new byte[DNSWire.HEADER_SIZE + qLen + count * 16];
+        DNSWire.putU16(r, 2, 0x8400);
+        DNSWire.putU16(r, 4, 1);
+        DNSWire.putU16(r, 6, count);
+        System.arraycopy(question, 0, r, DNSWire.HEADER_SIZE, qLen);
+        for(int i = 0, pos = DNSWire.HEADER_SIZE + qLen; i < count; i++, pos += 16) {
+            DNSWire.putU16(r, pos, 0xC00C);
+            DNSWire.putU16(r, pos + 2, 1);
+            DNSWire.putU16(r, pos + 4, 1);
+            DNSWire.putU32(r, pos + 6, 300);
+            DNSWire.putU16(r, pos + 10, 4);
+            for(int j = 12; j < 16; j++)
+                r[pos + j] = (byte) v;
+        }
+        return r;
+    }
+
+    /** Checks that a response read from the store is one that was written, not a mix of two
+     * @return null if it is whole, or what is wrong with it */
+    private static String torn(String host, byte[] out, int len) {
+        int count = DNSWire.u16(out, 6);
+        if(count < 1 || count > 4)
+            return "count " + count;
+        int v = out[len - 1] & 0xFF;
+        byte[] expected = response(host, v);
+        if(len != expected.length)
+            return "length " + len + " for version " + v;
+        for(int i = 0; i < len; i++) {
+            if(out[i] != expected[i])
+                return "byte " + i + " of version " + v;
+        }
+        return null;
+    }
+
+    @Test
+    public void storesAndExpiresResponses() {
+        OffHeapAnswerStore store = new OffHeapAnswerStore(2, 1024 * 1024);
+        byte[] response = response("www.example.test", 3);
+        store.put("www.example.test", 1, response, response.length, NOW, NOW + 1000);
+        byte[] out = new byte[512];
+
+        assertEquals(response.length, store.get("WWW.example.test", 1, NOW, out));
+        assertNull(torn("www.example.test", out, response.length));
+        assertEquals(-1, store.get("www.example.test", 28, NOW, out));
+        assertEquals(-1, store.get("www.example.test", 1, NOW + 1000, out));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void hitRecordsSurviveTheirRegionsReuse() {
+        // One 64KB segment of 8KB regions, the second writes wrap around all of them
+        OffHeapAnswerStore store = new OffHeapAnswerStore(1, 64 * 1024);
+        byte[] out = new byte[512];
+        byte[] hot = response("hot.example.test", 1);
+        store.put("hot.example.test", 1, hot, hot.length, NOW, NOW + 3600 * 1000);
+        for(int i = 0; i < 2000; i++) {
+            String host = "cold" + i + ".example.test";
+            byte[] r = response(host, i);
+            store.put(host, 1, r, r.length, NOW, NOW + 3600 * 1000);
+            // Hits a second apart, each one counts
+            assertEquals(hot.length, store.get("hot.example.test", 1, NOW + i * 1024L, out));
+        }
+        assertEquals(-1, store.get("cold0.example.test", 1, NOW, out));
+        assertEquals(hot.length, store.get("hot.example.test", 1, NOW, out));
+        assertNull(torn("hot.example.test", out, hot.length));
+    }
+
+    @Test
+    public void lockFreeReadsNeverSeeATornResponse() throws Exception {
+        // A small segment, so the writers keep moving and evicting records under the readers
+        final OffHeapAnswerStore store = new OffHeapAnswerStore(1, 64 * 1024);
+        final int hosts = 64;
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final AtomicLong hits = new AtomicLong();
+
+        Thread[] threads = new Thread[4];
+        for(int t = 0; t < threads.length; t++) {
+            final boolean writer = t == 0;
+            threads[t] = new Thread() {
+                public void run() {
+                    byte[] out = new byte[512];
+                    for(int i = 0; !stop.get(); i++) {
+                        String host = "h" + (i % hosts) + ".example.test";
+                        if(writer) {
+                            byte[] r = response(host, i & 0xFF);
+                            store.put(host, 1, r, r.length, NOW, NOW + 3600 * 1000);
+                            continue;
+                        }
+                        int len = store.get(host, 1, NOW, out);
+                        if(len < 0)
+                            continue;
+                        hits.incrementAndGet();
+                        String wrong = torn(host, out, len);
+                        if(wrong != null)
+                            failure.compareAndSet(null, host + ": " + wrong);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        Thread.sleep(1500);
+        stop.set(true);
+        for(Thread t : threads)
+            t.join();
+
+        assertNull(failure.get());
+        assertTrue("hits " + hits.get(), hits.get() > 0);
+    }
+}
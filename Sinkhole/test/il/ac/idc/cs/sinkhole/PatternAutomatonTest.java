@@ -0,0 +1,86 @@
+package il.ac.idc.cs.sinkhole;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import org.junit.Test;
+
+public class PatternAutomatonTest {
+
+    private static PatternAutomaton compile(String... regexes) throws IOException {
+        PatternAutomaton automaton = new PatternAutomaton();
+        for(int i = 0; i < regexes.length; i++)
+            automaton.addRegex(regexes[i], 1L << i);
+        automaton.compile(PatternAutomaton.DEFAULT_MAX_STATES);
+        return automaton;
+    }
+
+    @Test
+    public void rulesMatchTheWholeName() throws IOException {
+        PatternAutomaton a = compile("ads[0-9]+\\.example\\.com");
+        assertEquals(1, a.match("ads42.example.com"));
+        assertEquals(0, a.match("ads.example.com"));
+        assertEquals(0, a.match("ads42.example.com.evil"));
+        assertEquals(0, a.match("xads42.example.com"));
+    }
+
+    @Test
+    public void caseAndTrailingDotAreIgnored() throws IOException {
+        PatternAutomaton a = compile("tracker\\.example\\.com");
+        assertEquals(1, a.match("Tracker.EXAMPLE.com."));
+    }
+
+    @Test
+    public void everyMatchingRuleReportsItsBits() throws IOException {
+        PatternAutomaton a = compile(".*\\.track\\..*", "[a-z0-9]{20,}\\.(com|net)", "(www\\.)?cdn-[a-z]+\\..*", ".*\\.com");
+        assertEquals(1, a.match("a.track.example.org"));
+        assertEquals(2 | 8, a.match("x1y2z3w4v5u6t7s8r9q0p.com"));
+        assertEquals(0, a.match("x1y2z3w4v5u6t7s8r9q0p.org"));
+        assertEquals(4 | 8, a.match("www.cdn-img.example.com"));
+        assertEquals(4, a.match("cdn-img.example"));
+        assertEquals(0, a.match("cdn-1.example"));
+        assertEquals(1 | 8, a.match("a.track.example.com"));
+    }
+
+    @Test
+    public void repetitionBounds() throws IOException {
+        PatternAutomaton a = compile("a{2,3}\\.test", "\\d+x?\\.test");
+        assertEquals(0, a.match("a.test"));
+        assertEquals(1, a.match("aa.test"));
+        assertEquals(1, a.match("aaa.test"));
+        assertEquals(0, a.match("aaaa.test"));
+        assertEquals(2, a.match("123x.test"));
+        assertEquals(0, a.match("x.test"));
+    }
+
+    @Test
+    public void globs() throws IOException {
+        PatternAutomaton a = new PatternAutomaton();
+        a.addGlob("*.doubleclick.net", 1);
+        a.addGlob("ad?.example.com", 2);
+        a.compile(PatternAutomaton.DEFAULT_MAX_STATES);
+        assertEquals(1, a.match("stats.g.doubleclick.net"));
+        assertEquals(0, a.match("doubleclick.net"));
+        assertEquals(2, a.match("ads.example.com"));
+        assertEquals(0, a.match("adsx.example.com"));
+        // A dot in a glob is literal
+        assertEquals(0, a.match("ads-example.com"));
+    }
+
+    @Test
+    public void noRulesMatchNothing() throws IOException {
+        assertEquals(0, compile().match("www.example.com"));
+    }
+
+    @Test(expected = IOException.class)
+    public void stateLimitIsEnforced() throws IOException {
+        PatternAutomaton a = new PatternAutomaton();
+        for(int i = 0; i < 16; i++)
+            a.addRegex(".*a.{" + i + "}b", 1L << i);
+        a.compile(64);
+    }
+
+    @Test(expected = IOException.class)
+    public void badRegexIsRejected() throws IOException {
+        compile("(ads");
+    }
+}
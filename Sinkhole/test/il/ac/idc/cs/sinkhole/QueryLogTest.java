@@ -0,0 +1,183 @@
+package il.ac.idc.cs.sinkhole;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class QueryLogTest {
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    private static void awaitWritten(QueryLog log, long n) throws InterruptedException {
+        for(int i = 0; i < 500 && log.getWritten() < n; i++)
+            Thread.sleep(10);
+        assertEquals(n, log.getWritten());
+    }
+
+    @Test
+    public void writesOneCsvLinePerQuery() throws Exception {
+        File file = new File(dir.getRoot(), "queries.log");
+        QueryLog log = new QueryLog(file.getPath(), false, 1 << 20, 2, 16);
+        log.log(InetAddress.getByName("192.0.2.7"), "www.example.test", 1, QueryLog.Action.ANSWERED, 0, 1500);
+        log.log(InetAddress.getByName("2001:db8::1"), "ads.example.test", 28, QueryLog.Action.BLOCKED, 3, 12);
+        log.log(null, null, 1, QueryLog.Action.FAILED, 2, 0);
+        log.close(5000);
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0), lines.get(0).endsWith(",192.0.2.7,www.example.test,1,ANSWERED,0,1500"));
+        assertTrue(lines.get(1), lines.get(1).endsWith(",2001:db8:0:0:0:0:0:1,ads.example.test,28,BLOCKED,3,12"));
+        assertTrue(lines.get(2), lines.get(2).endsWith(",,,1,FAILED,2,0"));
+    }
+
+    @Test
+    public void qnameCannotForgeFieldsOrLines() throws Exception {
+        File file = new File(dir.getRoot(), "queries.log");
+        QueryLog log = new QueryLog(file.getPath(), false, 1 << 20, 2, 16);
+        log.log(InetAddress.getByName("192.0.2.7"), "a,b\n1,\"x\\é .test", 1, QueryLog.Action.ANSWERED, 0, 1);
+        log.close(5000);
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+        assertEquals(1, lines.size());
+        String[] fields = lines.get(0).split(",");
+        assertEquals(7, fields.length);
+        assertEquals("a\\044b\\0101\\044\\034x\\092\\233\\032.test", fields[2]);
+    }
+
+    @Test
+    public void fullRingDropsInsteadOfBlocking() throws Exception {
+        File file = new File(dir.getRoot(), "queries.log");
+        // Two records per ring, the writer wakes up every few milliseconds
+        QueryLog log = new QueryLog(file.getPath(), true, 1 << 30, 2, 2);
+        InetAddress client = InetAddress.getByName("192.0.2.7");
+        int n = 100000;
+        for(int i = 0; i < n; i++)
+            log.log(client, "www.example.test", 1, QueryLog.Action.ANSWERED, 0, i);
+        log.close(5000);
+
+        assertTrue("dropped " + log.getDropped(), log.getDropped() > 0);
+        assertEquals(n, log.getWritten() + log.getDropped());
+        assertEquals(log.getWritten() * QueryLog.RECORD_SIZE, file.length());
+    }
+
+    @Test
+    public void fullRingTakesRecordsAgainOnceDrained() throws Exception {
+        File file = new File(dir.getRoot(), "queries.log");
+        final QueryLog log = new QueryLog(file.getPath(), false, 1 << 30, 2, 2);
+        final InetAddress client = InetAddress.getByName("192.0.2.7");
+        // The attached ring of another thread, then the shared ring of this one
+        Thread attached = new Thread() {
+            public void run() {
+                log.attach();
+                overflowThenLogOne(log, client, "attached.example.test");
+            }
+        };
+        attached.start();
+        attached.join();
+        overflowThenLogOne(log, client, "shared.example.test");
+        log.close(5000);
+
+        assertTrue("dropped " + log.getDropped(), log.getDropped() > 0);
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+        assertTrue(lines.get(lines.size() - 1).endsWith(",shared.example.test,1,ANSWERED,0,-1"));
+        boolean attachedLogged = false;
+        for(String line : lines)
+            attachedLogged |= line.endsWith(",attached.example.test,1,ANSWERED,0,-1");
+        assertTrue(attachedLogged);
+    }
+
+    /** Fills the ring faster than the writer drains it, waits for the writer and logs once more */
+    private static void overflowThenLogOne(QueryLog log, InetAddress client, String qname) {
+        long dropped = log.getDropped();
+        for(int i = 0; i < 100000 && log.getDropped() == dropped; i++)
+            log.log(client, qname, 1, QueryLog.Action.ANSWERED, 0, i);
+        assertTrue(log.getDropped() > dropped);
+        try {
+            // Drained once the writer stops writing
+            long written;
+            do {
+                written = log.getWritten();
+                Thread.sleep(50);
+            } while(log.getWritten() != written);
+        }
+        catch (InterruptedException ex) {
+            throw new AssertionError(ex);
+        }
+        dropped = log.getDropped();
+        log.log(client, qname, 1, QueryLog.Action.ANSWERED, 0, -1);
+        assertEquals(dropped, log.getDropped());
+    }
+
+    @Test
+    public void rotatesAndKeepsTheNewestFiles() throws Exception {
+        File file = new File(dir.getRoot(), "queries.log");
+        QueryLog log = new QueryLog(file.getPath(), false, 500, 2, 64);
+        InetAddress client = InetAddress.getByName("192.0.2.7");
+        for(int round = 1; round <= 5; round++) {
+            for(int i = 0; i < 20; i++)
+                log.log(client, "round" + round + ".example.test", 1, QueryLog.Action.ANSWERED, 0, i);
+            awaitWritten(log, round * 20);
+        }
+        log.close(5000);
+
+        File first = new File(file.getPath() + ".1");
+        File second = new File(file.getPath() + ".2");
+        assertTrue(first.exists());
+        assertTrue(second.exists());
+        assertFalse(new File(file.getPath() + ".3").exists());
+        // Every flush grew the file past 500 bytes, so each file holds one round
+        assertTrue(new String(Files.readAllBytes(first.toPath()), StandardCharsets.US_ASCII).contains("round5."));
+        assertTrue(new String(Files.readAllBytes(second.toPath()), StandardCharsets.US_ASCII).contains("round4."));
+    }
+
+    @Test
+    public void sharedRingKeepsEveryThreadsRecordsWholeAndInOrder() throws Exception {
+        File file = new File(dir.getRoot(), "queries.log");
+        final QueryLog log = new QueryLog(file.getPath(), false, 1 << 30, 2, 256);
+        final InetAddress client = InetAddress.getByName("192.0.2.7");
+        final int perThread = 20000;
+        List<Thread> threads = new ArrayList<>();
+        // The first thread has its own ring, the others race for the shared one
+        for(int t = 0; t < 5; t++) {
+            final int id = t;
+            threads.add(new Thread() {
+                public void run() {
+                    if(id == 0)
+                        log.attach();
+                    for(int i = 0; i < perThread; i++)
+                        log.log(client, "t" + id + ".example.test", 1, QueryLog.Action.ANSWERED, 0, i);
+                }
+            });
+        }
+        for(Thread t : threads)
+            t.start();
+        for(Thread t : threads)
+            t.join();
+        log.close(5000);
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+        assertEquals(threads.size() * perThread, log.getWritten() + log.getDropped());
+        assertEquals(log.getWritten(), lines.size());
+        long[] last = new long[threads.size()];
+        Arrays.fill(last, -1);
+        for(String line : lines) {
+            String[] fields = line.split(",");
+            assertEquals(line, 7, fields.length);
+            assertTrue(line, fields[2].matches("t[0-4]\\.example\\.test"));
+            int id = fields[2].charAt(1) - '0';
+            long latency = Long.parseLong(fields[6]);
+            assertTrue(line, latency > last[id]);
+            last[id] = latency;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package il.ac.idc.cs.sinkhole;
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    final private static long MS = 1000000;
+
+    @Test
+    public void burstThenOneTokenPerInterval() {
+        // 10 per second: a token every 100ms, 3 at once
+        TokenBucketTable table = new TokenBucketTable(64, 10, 3);
+        long t = 5000 * MS;
+        assertTrue(table.tryAcquire(1, t));
+        assertTrue(table.tryAcquire(1, t));
+        assertTrue(table.tryAcquire(1, t));
+        assertFalse(table.tryAcquire(1, t));
+        assertFalse(table.tryAcquire(1, t + 99 * MS));
+        assertTrue(table.tryAcquire(1, t + 100 * MS));
+        assertFalse(table.tryAcquire(1, t + 100 * MS));
+        // An idle bucket fills up again, but never above the burst
+        t += 10000 * MS;
+        for(int i = 0; i < 3; i++)
+            assertTrue(table.tryAcquire(1, t));
+        assertFalse(table.tryAcquire(1, t));
+    }
+
+    @Test
+    public void keysHaveTheirOwnBuckets() {
+        TokenBucketTable table = new TokenBucketTable(64, 1, 1);
+        long t = 5000 * MS;
+        assertTrue(table.tryAcquire(1, t));
+        assertFalse(table.tryAcquire(1, t));
+        for(long key = 2; key < 20; key++)
+            assertTrue(table.tryAcquire(key, t));
+    }
+
+    @Test
+    public void crowdedTableForgetsTheIdlestBucket() {
+        TokenBucketTable table = new TokenBucketTable(8, 1, 1);
+        long t = 5000 * MS;
+        for(long key = 1; key <= 64; key++)
+            table.tryAcquire(key, t + key * MS);
+        // A full table still takes new keys
+        assertTrue(table.tryAcquire(1000, t + 100 * MS));
+        assertFalse(table.tryAcquire(1000, t + 100 * MS));
+    }
+
+    @Test
+    public void subnetsShareALimit() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(1024, 0, 0, 1, 2, 0, 0, 24, 56);
+        assertTrue(limiter.allowQuery(InetAddress.getByName("10.0.0.1")));
+        assertTrue(limiter.allowQuery(InetAddress.getByName("10.0.0.2")));
+        assertFalse(limiter.allowQuery(InetAddress.getByName("10.0.0.3")));
+        assertTrue(limiter.allowQuery(InetAddress.getByName("10.0.1.1")));
+
+        assertTrue(limiter.allowQuery(InetAddress.getByName("2001:db8:0:1::1")));
+        assertTrue(limiter.allowQuery(InetAddress.getByName("2001:db8:0:1::2")));
+        assertFalse(limiter.allowQuery(InetAddress.getByName("2001:db8:0:10::1")));
+        assertTrue(limiter.allowQuery(InetAddress.getByName("2001:db8:0:100::1")));
+    }
+
+    @Test
+    public void clientLimitComesBeforeTheSubnetOne() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(1024, 1, 1, 100, 100, 0, 0, 24, 56);
+        InetAddress client = InetAddress.getByName("192.0.2.7");
+        assertTrue(limiter.allowQuery(client));
+        assertFalse(limiter.allowQuery(client));
+        assertTrue(limiter.allowQuery(InetAddress.getByName("192.0.2.8")));
+    }
+
+    @Test
+    public void responseKindsAreLimitedApart() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(1024, 0, 0, 0, 0, 1, 1, 24, 56);
+        InetAddress client = InetAddress.getByName("192.0.2.7");
+        assertTrue(limiter.allowQuery(client));
+        assertTrue(limiter.allowResponse(client, RateLimiter.BLOCKED));
+        assertFalse(limiter.allowResponse(InetAddress.getByName("192.0.2.9"), RateLimiter.BLOCKED));
+        assertTrue(limiter.allowResponse(client, RateLimiter.NXDOMAIN));
+    }
+}
@@ -0,0 +1,263 @@
+package il.ac.idc.cs.sinkhole;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Draining and shutting the sinkhole down, against an upstream server that answers on demand */
+public class SinkholeServerTest {
+
+    final private static InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    /** An upstream server that holds its answers until it is released */
+    private static class GatedUpstream extends Thread {
+        final DatagramSocket socket;
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger();
+
+        GatedUpstream() throws IOException {
+            socket = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+            setDaemon(true);
+        }
+
+        public void run() {
+            byte[] buf = new byte[1024];
+            while(!socket.isClosed()) {
+                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                try {
+                    socket.receive(p);
+                    final byte[] answer = answer(Arrays.copyOf(p.getData(), p.getLength()));
+                    final DatagramPacket reply = new DatagramPacket(answer, answer.length, p.getSocketAddress());
+                    received.incrementAndGet();
+                    new Thread() {
+                        public void run() {
+                            try {
+                                gate.await();
+                                socket.send(reply);
+                            }
+                            catch (IOException | InterruptedException ex) {
+                                // The test is over
+                            }
+                        }
+                    }.start();
+                }
+                catch (IOException ex) {
+                    return;
+                }
+            }
+        }
+
+        /** An authoritative answer with one A record, 192.0.2.1 */
+        static byte[] answer(byte[] query) {
+            int qEnd = DNSWire.skipQuestions(query, query.length);
+            byte[] r = Arrays.copyOf(query, qEnd + 16);
+            DNSWire.putU16(r, 2, 0x8400);
+            DNSWire.putU16(r, 6, 1);
+            DNSWire.putU16(r, 10, 0);
+            DNSWire.putU16(r, qEnd, 0xC00C);
+            DNSWire.putU16(r, qEnd + 2, 1);
+            DNSWire.putU16(r, qEnd + 4, 1);
+            DNSWire.putU32(r, qEnd + 6, 300);
+            DNSWire.putU16(r, qEnd + 10, 4);
+            r[qEnd + 12] = (byte) 192;
+            r[qEnd + 14] = 2;
+            r[qEnd + 15] = 1;
+            return r;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    private GatedUpstream upstream;
+    private DNSMetrics metrics;
+    private DNSCache cache;
+    private SinkholeConfig config;
+    private DatagramSocket serverSocket;
+    private QueryLog queryLog;
+    private SinkholeServer server;
+    private DatagramSocket client;
+
+    private void start(Properties props) throws IOException {
+        upstream = new GatedUpstream();
+        upstream.start();
+        props.setProperty("sinkhole.qname.minimisation", "off");
+        config = new SinkholeConfig(props);
+        metrics = new DNSMetrics();
+        cache = new DNSCache(1000, 86400, 60);
+        serverSocket = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+        DNSRootServer roots = new DNSRootServer(new InetAddress[] {LOOPBACK}, upstream.socket.getLocalPort());
+        queryLog = config.queryLogFile != null
+                ? new QueryLog(config.queryLogFile, false, 1 << 20, 2, 64) : null;
+        server = new SinkholeServer(config, serverSocket, new DNSBlockList(null), roots, metrics, queryLog, cache);
+        new Thread(server, "sinkhole-receive").start();
+        metrics.setReady(true);
+        client = new DatagramSocket();
+        client.setSoTimeout(3000);
+    }
+
+    private void send(int id) throws IOException {
+        byte[] question = new byte[260];
+        int len = DNSWire.encodeQuestion("host" + id + ".example.test", 1, question);
+        byte[] q = new byte[DNSWire.HEADER_SIZE + len];
+        DNSWire.putU16(q, 0, id);
+        DNSWire.putU16(q, 2, 0x0100);
+        DNSWire.putU16(q, 4, 1);
+        System.arraycopy(question, 0, q, DNSWire.HEADER_SIZE, len);
+        client.send(new DatagramPacket(q, q.length, LOOPBACK, serverSocket.getLocalPort()));
+    }
+
+    /** Receives replies until none comes for a while
+     * @return the IDs of the answered queries */
+    private List<Integer> receiveAll() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try {
+            while(true) {
+                DatagramPacket reply = new DatagramPacket(new byte[512], 512);
+                client.receive(reply);
+                assertEquals(1, DNSWire.u16(reply.getData(), 6));
+                ids.add(DNSWire.u16(reply.getData(), 0));
+                client.setSoTimeout(500);
+            }
+        }
+        catch (SocketTimeoutException ex) {
+            return ids;
+        }
+    }
+
+    private static void await(String what, AtomicInteger counter, int n) throws InterruptedException {
+        for(int i = 0; i < 300 && counter.get() < n; i++)
+            Thread.sleep(10);
+        assertEquals(what, n, counter.get());
+    }
+
+    private static Properties workers(int n) {
+        Properties props = new Properties();
+        props.setProperty("sinkhole.workers", Integer.toString(n));
+        props.setProperty("sinkhole.workers.max", Integer.toString(n));
+        return props;
+    }
+
+    @After
+    public void tearDown() {
+        if(client != null)
+            client.close();
+        if(server != null)
+            server.close();
+        if(upstream != null) {
+            upstream.gate.countDown();
+            upstream.socket.close();
+        }
+    }
+
+    @Test
+    public void drainAnswersQueuedRequestsAndDropsNewOnes() throws Exception {
+        start(workers(2));
+        for(int id = 1; id <= 4; id++)
+            send(id);
+        // Two requests in flight upstream, two in the queue
+        await("upstream queries", upstream.received, 2);
+
+        final int[] busy = {-1};
+        Thread drain = new Thread() {
+            public void run() {
+                busy[0] = server.drain(5000);
+            }
+        };
+        drain.start();
+        Thread.sleep(200);
+        send(5);
+        Thread.sleep(200);
+        upstream.gate.countDown();
+        drain.join();
+
+        assertEquals(0, busy[0]);
+        List<Integer> ids = receiveAll();
+        assertEquals(4, ids.size());
+        assertFalse(ids.contains(5));
+        assertEquals(1, metrics.getDropCount(DNSMetrics.Drop.DRAINING));
+    }
+
+    @Test
+    public void drainGivesUpOnTheDeadline() throws Exception {
+        Properties props = workers(1);
+        props.setProperty("sinkhole.upstream.timeout", "10000");
+        start(props);
+        send(1);
+        await("upstream queries", upstream.received, 1);
+
+        long startedAt = System.currentTimeMillis();
+        assertEquals(1, server.drain(300));
+        assertTrue(System.currentTimeMillis() - startedAt < 2000);
+    }
+
+    @Test
+    public void fullQueueDropsInsteadOfBlocking() throws Exception {
+        Properties props = workers(1);
+        props.setProperty("sinkhole.queue.capacity", "1");
+        start(props);
+        send(1);
+        await("upstream queries", upstream.received, 1);
+        // One request waits in the queue, the receive thread drops the others and keeps going
+        for(int id = 2; id <= 5; id++)
+            send(id);
+        for(int i = 0; i < 300 && metrics.getDropCount(DNSMetrics.Drop.QUEUE_FULL) < 3; i++)
+            Thread.sleep(10);
+        assertEquals(3, metrics.getDropCount(DNSMetrics.Drop.QUEUE_FULL));
+
+        upstream.gate.countDown();
+        assertEquals(Arrays.asList(1, 2), receiveAll());
+    }
+
+    @Test
+    public void shutdownReportsNotReadyFirstAndSavesAfterTheDrain() throws Exception {
+        File snapshot = new File(dir.getRoot(), "cache.snapshot");
+        File log = new File(dir.getRoot(), "queries.log");
+        Properties props = workers(4);
+        props.setProperty("sinkhole.drain.delay", "100");
+        props.setProperty("sinkhole.cache.snapshot", snapshot.getPath());
+        props.setProperty("sinkhole.querylog.file", log.getPath());
+        start(props);
+        for(int id = 1; id <= 3; id++)
+            send(id);
+        await("upstream queries", upstream.received, 3);
+
+        Thread shutdown = new Thread() {
+            public void run() {
+                SinkholeServer.shutdown(config, server, metrics, cache,
+                                        CacheSnapshot.schedule(cache, config.cacheSnapshotFile, 3600), queryLog, null);
+            }
+        };
+        shutdown.start();
+        // Not ready while the requests are still being answered
+        for(int i = 0; i < 300 && metrics.isReady(); i++)
+            Thread.sleep(10);
+        assertFalse(metrics.isReady());
+        assertTrue(shutdown.isAlive());
+        upstream.gate.countDown();
+        shutdown.join(10000);
+        assertFalse(shutdown.isAlive());
+
+        assertEquals(3, receiveAll().size());
+        // The answers resolved during the drain are in the snapshot
+        assertEquals(3, CacheSnapshot.load(new DNSCache(1000, 86400, 60), snapshot.getPath()));
+        assertEquals(3, Files.readAllLines(log.toPath(), StandardCharsets.US_ASCII).size());
+    }
+}
@@ -0,0 +1,104 @@
+package il.ac.idc.cs.sinkhole;
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/** Sampling the queries, and keeping the recent and the slowest traces */
+public class TraceCollectorTest {
+
+    final private static InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    /** Runs a query through the trace of a thread, as long as its queue wait says
+     * @return whether it was sampled */
+    private static boolean query(QueryTrace trace, TraceCollector collector, String qname, long millis) {
+        trace.begin(qname, 1, LOOPBACK, System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(millis));
+        boolean sampled = trace.isActive();
+        if(sampled)
+            trace.end(0, collector);
+        return sampled;
+    }
+
+    private static List<String> qnames(List<QueryTrace.Record> traces) {
+        List<String> names = new ArrayList<>();
+        for(QueryTrace.Record r : traces)
+            names.add(r.qname);
+        return names;
+    }
+
+    @Test
+    public void oneQueryInSampleEveryIsTraced() {
+        TraceCollector collector = new TraceCollector(3, 100, 0);
+        QueryTrace trace = collector.newTrace();
+        List<Integer> sampled = new ArrayList<>();
+        for(int i = 1; i <= 10; i++) {
+            if(query(trace, collector, "q" + i + ".example.test", 0))
+                sampled.add(i);
+        }
+        assertEquals(Arrays.asList(3, 6, 9), sampled);
+        assertEquals(Arrays.asList("q9.example.test", "q6.example.test", "q3.example.test"),
+                     qnames(collector.getRecent(100)));
+    }
+
+    @Test
+    public void recentTracesAreTheNewestFirst() {
+        TraceCollector collector = new TraceCollector(1, 3, 0);
+        QueryTrace trace = collector.newTrace();
+        for(int i = 1; i <= 5; i++)
+            query(trace, collector, "q" + i + ".example.test", 0);
+
+        assertEquals(Arrays.asList("q5.example.test", "q4.example.test", "q3.example.test"),
+                     qnames(collector.getRecent(10)));
+        assertEquals(Arrays.asList("q5.example.test"), qnames(collector.getRecent(1)));
+        assertTrue(collector.getSlowest(10).isEmpty());
+    }
+
+    @Test
+    public void slowestTracesAreKeptSlowestFirst() {
+        TraceCollector collector = new TraceCollector(1, 0, 2);
+        QueryTrace trace = collector.newTrace();
+        long[] millis = {30, 10, 50, 20, 40};
+        for(int i = 0; i < millis.length; i++)
+            query(trace, collector, millis[i] + ".example.test", millis[i]);
+
+        assertEquals(Arrays.asList("50.example.test", "40.example.test"), qnames(collector.getSlowest(10)));
+        assertTrue(collector.getRecent(10).isEmpty());
+        // A faster trace is not even copied once there are enough slower ones
+        assertFalse(collector.wants(TimeUnit.MILLISECONDS.toMicros(35)));
+        assertTrue(collector.wants(TimeUnit.MILLISECONDS.toMicros(45)));
+    }
+
+    @Test
+    public void hopsAreWrittenOnePerLineUpToTheLimit() {
+        TraceCollector collector = new TraceCollector(1, 1, 0);
+        QueryTrace trace = collector.newTrace();
+        long now = System.nanoTime();
+        trace.begin("www.example.test", 28, LOOPBACK, now, TimeUnit.MILLISECONDS.toNanos(2));
+        trace.hop(QueryTrace.Hop.CACHE_MISS, null);
+        trace.hop(QueryTrace.Hop.UPSTREAM, LOOPBACK, now, now + TimeUnit.MILLISECONDS.toNanos(3), 0, "www.example.test");
+        for(int i = 0; i < QueryTrace.MAX_HOPS; i++)
+            trace.hop(QueryTrace.Hop.REFERRAL, "");
+        trace.end(0, collector);
+
+        QueryTrace.Record r = collector.getRecent(1).get(0);
+        assertEquals(QueryTrace.MAX_HOPS, r.hopCount);
+        assertTrue(r.truncated);
+        assertEquals(QueryTrace.Hop.QUEUE, r.kinds[0]);
+        assertEquals(2000, r.durationMicros[0]);
+        assertEquals(QueryTrace.Hop.CACHE_MISS, r.kinds[1]);
+
+        StringBuilder sb = new StringBuilder();
+        TraceCollector.write(sb, collector.getRecent(1));
+        String[] lines = sb.toString().split("\n");
+        assertEquals(1 + QueryTrace.MAX_HOPS, lines.length);
+        assertTrue(lines[0], lines[0].contains(" www.example.test qtype 28 client 127.0.0.1 rcode 0 total "));
+        assertTrue(lines[0], lines[0].endsWith(" us (more than " + QueryTrace.MAX_HOPS + " hops)"));
+        assertEquals("  +0 us queue 2000 us", lines[1]);
+        assertEquals("  +2000 us upstream 127.0.0.1 www.example.test rcode 0 3000 us", lines[3]);
+        assertTrue(lines[4], lines[4].endsWith(" referral ."));
+    }
+}
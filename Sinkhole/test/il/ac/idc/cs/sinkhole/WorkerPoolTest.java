@@ -0,0 +1,166 @@
+package il.ac.idc.cs.sinkhole;
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+/** Resizing the resolver threads and replacing the ones that die, with requests the resolvers
+ * answer without an upstream query */
+public class WorkerPoolTest {
+
+    final private static InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private SynchronizedQueue<DatagramPacket> queue;
+    private LatencyHistogram queueWait;
+    private WorkerPool pool;
+    private AtomicInteger replies = new AtomicInteger();
+    /** How many of the next resolvers die as soon as they start */
+    private AtomicInteger dying = new AtomicInteger();
+    private List<Throwable> uncaught = new CopyOnWriteArrayList<>();
+    private Thread.UncaughtExceptionHandler defaultHandler;
+
+    private void start(int initial, int min, int max) {
+        Properties props = new Properties();
+        props.setProperty("sinkhole.workers", Integer.toString(initial));
+        props.setProperty("sinkhole.workers.min", Integer.toString(min));
+        props.setProperty("sinkhole.workers.max", Integer.toString(max));
+        props.setProperty("sinkhole.workers.wait", "1000");
+        // The tests call resize() themselves
+        props.setProperty("sinkhole.workers.interval", "0");
+        final SinkholeConfig config = new SinkholeConfig(props);
+        final DNSMetrics metrics = new DNSMetrics();
+        final DNSRootServer roots = new DNSRootServer(new InetAddress[] {LOOPBACK}, 9);
+        final DNSCache cache = new DNSCache(1000, 86400, 60);
+        final PacketSender sender = new PacketSender() {
+            public void send(DatagramPacket packet) {
+                replies.incrementAndGet();
+            }
+
+            public void flush() {
+            }
+        };
+        queue = new SynchronizedQueue<>(100);
+        queue.registerProducer();
+        queueWait = new LatencyHistogram();
+        defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((t, ex) -> uncaught.add(ex));
+        pool = new WorkerPool(config, queueWait, () -> {
+            if(dying.getAndDecrement() > 0) {
+                return new DNSResolver(queue, sender, roots, metrics, null, config, cache, null, null) {
+                    public void run() {
+                        throw new IllegalStateException("resolver failure for the test");
+                    }
+                };
+            }
+            return new DNSResolver(queue, sender, roots, metrics, null, config, cache, null, null);
+        });
+        pool.start(initial);
+    }
+
+    /** Sends a request the resolvers refuse straight away (RD is not set), and waits for the reply */
+    private void request() throws InterruptedException {
+        byte[] question = new byte[260];
+        int len = DNSWire.encodeQuestion("www.example.test", 1, question);
+        byte[] q = new byte[DNSWire.HEADER_SIZE + len];
+        DNSWire.putU16(q, 4, 1);
+        System.arraycopy(question, 0, q, DNSWire.HEADER_SIZE, len);
+        int before = replies.get();
+        assertTrue(queue.offer(new DatagramPacket(q, q.length, LOOPBACK, 5353)));
+        for(int i = 0; i < 300 && replies.get() == before; i++)
+            Thread.sleep(10);
+        assertEquals(before + 1, replies.get());
+    }
+
+    /** Makes the requests since the last resize check look like they waited long in the queue */
+    private void slowQueue() {
+        for(int i = 0; i < 10; i++)
+            queueWait.record(5000);
+    }
+
+    private void awaitThreads(int n) throws InterruptedException {
+        for(int i = 0; i < 300 && pool.getWorkers().size() != n; i++)
+            Thread.sleep(10);
+        assertEquals(n, pool.getWorkers().size());
+    }
+
+    @After
+    public void tearDown() {
+        if(pool != null) {
+            queue.unregisterProducer();
+            Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+            assertEquals(0, pool.join(System.currentTimeMillis() + 5000));
+        }
+    }
+
+    @Test
+    public void growsByHalfItsSizeUpToTheMaximum() throws Exception {
+        start(2, 1, 5);
+        int[] sizes = {3, 4, 5, 5};
+        for(int size : sizes) {
+            slowQueue();
+            pool.resize();
+            assertEquals(size, pool.getSize());
+        }
+        awaitThreads(5);
+        assertEquals(3, pool.getGrowCount());
+        request();
+    }
+
+    @Test
+    public void shrinksOneThreadAfterItsBatchDownToTheMinimum() throws Exception {
+        start(3, 1, 3);
+        pool.resize();
+        assertEquals(2, pool.getSize());
+        // The thread retires once it is done with a batch, not before
+        Thread.sleep(100);
+        assertEquals(3, pool.getWorkers().size());
+        request();
+        awaitThreads(2);
+
+        pool.resize();
+        request();
+        awaitThreads(1);
+        pool.resize();
+        assertEquals(1, pool.getSize());
+        assertEquals(2, pool.getShrinkCount());
+        request();
+        awaitThreads(1);
+    }
+
+    @Test
+    public void growingCancelsAPendingRetirement() throws Exception {
+        start(2, 1, 4);
+        pool.resize();
+        assertEquals(1, pool.getSize());
+        slowQueue();
+        pool.resize();
+        // One thread more than the single one left: the retiring thread stays
+        assertEquals(2, pool.getSize());
+        request();
+        request();
+        awaitThreads(2);
+    }
+
+    @Test
+    public void deadThreadIsReplaced() throws Exception {
+        dying.set(2);
+        start(2, 2, 2);
+        for(int i = 0; i < 300 && pool.getReplaceCount() < 2; i++)
+            Thread.sleep(10);
+        assertEquals(2, pool.getReplaceCount());
+        awaitThreads(2);
+        // The error still reaches the default handler, once the thread is replaced
+        for(int i = 0; i < 300 && uncaught.size() < 2; i++)
+            Thread.sleep(10);
+        assertEquals(2, uncaught.size());
+        assertTrue(uncaught.get(0) instanceof IllegalStateException);
+        request();
+        request();
+    }
+}